@@ -1 +1,32 @@
-@java -cp "%~dp0\..\lib\gol.jar" -Dfile.encoding=UTF-8 com.geodesk.gol.GolTool %*
\ No newline at end of file
+@echo off
+setlocal
+set "lib=%~dp0\..\lib"
+if "%~1"=="--train-cds" goto train
+rem Use the class-data sharing archive (see CdsTrainer) if it is newer
+rem than the jar; otherwise, create it in the background (delete gol.jsa
+rem after upgrading Java). Only one launch at a time creates the archive
+rem (mkdir of gol.jsa.lock fails if another one does); if this fails, the
+rem lock stays in place, so it isn't retried until the next day.
+set "cds="
+set "newest="
+if exist "%lib%\gol.jsa" for /f "delims=" %%f in ('dir /b /o:d "%lib%\gol.jar" "%lib%\gol.jsa"') do set "newest=%%f"
+if /i "%newest%"=="gol.jsa" (
+  set "cds=-XX:SharedArchiveFile=%lib%\gol.jsa -Xlog:cds=off -Xlog:cds+dynamic=off"
+) else if not defined GOL_NO_CDS (
+  forfiles /p "%lib%" /m gol.jsa.lock /d -1 /c "cmd /c rmdir @path" >nul 2>&1
+  mkdir "%lib%\gol.jsa.lock" 2>nul && start "" /b "%~f0" --train-cds
+)
+java %cds% -cp "%lib%\gol.jar" -Dfile.encoding=UTF-8 com.geodesk.gol.GolTool %*
+exit /b %errorlevel%
+
+:train
+rem Create the archive under a temporary name, so a launch never sees
+rem a partially written archive
+set "jsaTemp=%lib%\gol.jsa.%RANDOM%"
+java -XX:ArchiveClassesAtExit="%jsaTemp%" -Xlog:cds=off -Xlog:cds+dynamic=off -cp "%lib%\gol.jar" com.geodesk.gol.CdsTrainer >nul 2>&1
+if errorlevel 1 (
+  del "%jsaTemp%" >nul 2>&1
+  exit /b 1
+)
+move /y "%jsaTemp%" "%lib%\gol.jsa" >nul && rmdir "%lib%\gol.jsa.lock"
+exit /b 0
@@ -7,65 +7,131 @@
 
 package com.clarisma.common.cli;
 
-import java.io.IOException;
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 
+/**
+ * A lightweight client that forwards a command line to a long-running
+ * server process (which has already loaded its classes and opened its
+ * files) via a Unix-domain socket, and relays the server's output.
+ * Since the client itself only loads a handful of JDK classes, it starts
+ * much faster than the full application.
+ *
+ * Protocol: the client sends its working folder and its arguments
+ * (`writeUTF`, preceded by the argument count); the server responds
+ * with a sequence of frames, each starting with a channel byte:
+ * `STDOUT` or `STDERR` (followed by a length and the bytes to write),
+ * or `EXIT` (followed by the exit code), which ends the response.
+ *
+ * Usage: `java -cp <jar> com.clarisma.common.cli.JvmLauncher <socket> <args...>`
+ *
+ * Exits with `UNAVAILABLE` if the server cannot be reached, so a launch
+ * script can fall back to running the command itself.
+ */
 public class JvmLauncher
 {
-    public void launch()
-    {
-        ProcessBuilder pb = new ProcessBuilder();
-    }
+    public static final byte EXIT = 0;
+    public static final byte STDOUT = 1;
+    public static final byte STDERR = 2;
 
-    public static void main(String[] args)
+    /**
+     * The exit code if the server is not running.
+     */
+    public static final int UNAVAILABLE = 75;
+
+    /**
+     * Returns the default socket path of the server of the given
+     * application (per user, in the temp folder).
+     */
+    public static Path defaultSocketPath(String appName)
     {
-        try
-        {
-            long start = System.currentTimeMillis();
-            System.out.println("Started main class.");
-            System.out.println("Other class: " + Other.class.getName());
-            /*
-            System.err.println(System.getProperty("java.home"));
-            System.err.println(System.getProperty("sun.java.command"));
-            System.err.println(System.getProperty("java.class.path"));
-            */
-            String separator = System.getProperty("file.separator");
-            String classPath = System.getProperty("java.class.path");
-            String javaPath = System.getProperty("java.home")
-                + separator + "bin" + separator + "java";
-            System.out.println("Calling: " + javaPath);
-            ProcessBuilder pb =
-                new ProcessBuilder(javaPath, "-cp",
-                    classPath,
-                    Other.class.getName());
-            pb.inheritIO();
-            Process process = pb.start();
-            process.waitFor();
-            System.out.println("Done.");
-            System.out.format("Elapsed time: %d ms", System.currentTimeMillis() - start);
-        }
-        catch(Exception ex)
-        {
-            System.err.println(ex);
-        }
+        return Path.of(System.getProperty("java.io.tmpdir"),
+            appName + "-" + System.getProperty("user.name") + ".sock");
     }
 
-    static class Other
+    /**
+     * Sends a command line to the server and relays its output.
+     *
+     * @param socketPath    the server's socket
+     * @param args          the arguments
+     * @param out           the stream to which results are written
+     * @param err           the stream to which messages are written
+     * @return the command's exit code, or `UNAVAILABLE` if the server
+     *   cannot be reached
+     * @throws IOException if the connection fails
+     */
+    public static int forward(Path socketPath, String[] args,
+        OutputStream out, OutputStream err) throws IOException
     {
-        public static void main(String[] args)
+        try(SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX))
         {
-            System.err.println("Launched other class.");
-            long start = System.currentTimeMillis();
             try
             {
-                Thread.sleep(2000);
+                channel.connect(UnixDomainSocketAddress.of(socketPath));
             }
-            catch (InterruptedException e)
+            catch(IOException ex)
             {
-                e.printStackTrace();
+                return UNAVAILABLE;
             }
-            System.err.println("Other class: Ran for " +
-                (System.currentTimeMillis() - start) + " ms");
-            System.err.println("Other class: Done.");
+            DataOutputStream request = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel)));
+            request.writeUTF(Path.of("").toAbsolutePath().toString());
+            request.writeInt(args.length);
+            for(String arg: args) request.writeUTF(arg);
+            request.flush();
+
+            DataInputStream response = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+            byte[] buf = new byte[64 * 1024];
+            for(;;)
+            {
+                byte type = response.readByte();
+                if(type == EXIT)
+                {
+                    out.flush();
+                    err.flush();
+                    return response.readInt();
+                }
+                int len = response.readInt();
+                OutputStream target = type == STDERR ? err : out;
+                while(len > 0)
+                {
+                    int n = response.read(buf, 0, Math.min(len, buf.length));
+                    if(n < 0) throw new EOFException("Server closed the connection");
+                    target.write(buf, 0, n);
+                    len -= n;
+                }
+                if(type == STDERR) err.flush();
+            }
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        if(args.length < 1)
+        {
+            System.err.println("Usage: JvmLauncher <socket> <args...>");
+            System.exit(2);
+        }
+        String[] commandArgs = new String[args.length - 1];
+        System.arraycopy(args, 1, commandArgs, 0, commandArgs.length);
+        int result;
+        try
+        {
+            result = forward(Path.of(args[0]), commandArgs,
+                new FileOutputStream(FileDescriptor.out), System.err);
+        }
+        catch(IOException ex)
+        {
+            // Don't report UNAVAILABLE, since the server may already
+            // have produced some of the output
+            System.err.println("Lost connection to server: " + ex.getMessage());
+            result = 4;
         }
+        System.exit(result);
     }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.clarisma.common.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A compact summary of the keys stored in an IntIndex: one bit for each
+ * block of `2^blockBits` consecutive IDs, which is set if any ID in
+ * the block has been added, plus the highest ID. A summary never reports
+ * an added ID as missing; it can quickly reject IDs that lie above the
+ * highest ID or in a range of IDs that are all absent, without
+ * touching the (much larger) index itself.
+ *
+ * `add()` is not thread-safe; `mayContain()` may be called
+ * concurrently once all IDs have been added.
+ *
+ * # File Format
+ *
+ * 0-3      magic
+ * 4-7      block bits
+ * 8-15     highest ID
+ * 16-19    number of 64-bit words
+ * 20-n     words (little-endian)
+ */
+public class IdRangeSummary
+{
+    private final int blockBits;
+    private long[] words;
+    private long maxId = -1;
+
+    private static final int MAGIC = 0x53444952;    // "RIDS"
+    private static final int HEADER_SIZE = 20;
+
+    public IdRangeSummary(int blockBits)
+    {
+        this(blockBits, new long[1024]);
+    }
+
+    private IdRangeSummary(int blockBits, long[] words)
+    {
+        if(blockBits < 0 || blockBits > 30)
+        {
+            throw new IllegalArgumentException("Block bits must be between 0 and 30");
+        }
+        this.blockBits = blockBits;
+        this.words = words;
+    }
+
+    public long maxId()
+    {
+        return maxId;
+    }
+
+    public void add(long id)
+    {
+        assert id >= 0;
+        long block = id >>> blockBits;
+        int word = (int)(block >>> 6);
+        if(word >= words.length)
+        {
+            words = Arrays.copyOf(words, Math.max(words.length * 2, word + 1));
+        }
+        words[word] |= 1L << block;
+        if(id > maxId) maxId = id;
+    }
+
+    /**
+     * Checks whether an ID may have been added to the summary.
+     *
+     * @return `false` if the ID has definitely not been added
+     */
+    public boolean mayContain(long id)
+    {
+        if(id < 0 || id > maxId) return false;
+        long block = id >>> blockBits;
+        return (words[(int)(block >>> 6)] & (1L << block)) != 0;
+    }
+
+    public void write(Path path) throws IOException
+    {
+        int wordCount = (int)((maxId >>> blockBits >>> 6) + 1);
+        if(maxId < 0) wordCount = 0;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + wordCount * 8)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(MAGIC);
+        buf.putInt(blockBits);
+        buf.putLong(maxId);
+        buf.putInt(wordCount);
+        for(int i=0; i<wordCount; i++) buf.putLong(words[i]);
+        buf.flip();
+        try(FileChannel channel = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, WRITE))
+        {
+            while(buf.hasRemaining()) channel.write(buf);
+        }
+    }
+
+    public static IdRangeSummary read(Path path) throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(path, READ))
+        {
+            long size = channel.size();
+            ByteBuffer buf = ByteBuffer.allocate((int)size).order(ByteOrder.LITTLE_ENDIAN);
+            while(buf.hasRemaining())
+            {
+                if(channel.read(buf) < 0) break;
+            }
+            buf.flip();
+            if(size < HEADER_SIZE || buf.getInt() != MAGIC)
+            {
+                throw new IOException(path + ": Not a valid ID summary");
+            }
+            int blockBits = buf.getInt();
+            long maxId = buf.getLong();
+            int wordCount = buf.getInt();
+            if(size != HEADER_SIZE + wordCount * 8L)
+            {
+                throw new IOException(path + ": ID summary is truncated");
+            }
+            long[] words = new long[Math.max(wordCount, 1)];
+            for(int i=0; i<wordCount; i++) words[i] = buf.getLong();
+            IdRangeSummary summary = new IdRangeSummary(blockBits, words);
+            summary.maxId = maxId;
+            return summary;
+        }
+    }
+}
@@ -13,9 +13,6 @@ import static java.nio.file.StandardOpenOption.SPARSE;
 import static java.nio.file.StandardOpenOption.WRITE;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
@@ -23,18 +20,43 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 
+import com.clarisma.common.store.Store;
 
-// TODO: mapped file segments are only released when garbage collected
-//  Maybe invoke Cleaner directly when closing file?
-//  See https://stackoverflow.com/a/25239834
-
-
-// TODO: getMapping is not threadsafe, must be wrapped in higher-level code
-
+/**
+ * A file that is memory-mapped in 1-GB segments, which are mapped lazily
+ * as they are accessed. Segments can be mapped read-write (the default;
+ * the file grows as needed) or read-only (segments are limited to the
+ * actual size of the file). `close()` unmaps all segments explicitly,
+ * rather than waiting for them to be garbage-collected.
+ *
+ * `advise()` lets the caller describe how the file will be accessed in
+ * the next phase of its work. Java offers no equivalent of `madvise()`;
+ * the only hint that is acted upon is `DONTNEED`, which unmaps all
+ * segments, so their pages no longer count against the process and can
+ * be evicted. (Prefetching is left to the OS, since loading an entire
+ * segment up front would only add to the memory pressure.)
+ */
 public class MappedFile 
 {
 	protected Path path;
 	private FileChannel channel;
+	private final boolean readOnly;
+
+	/**
+	 * Hints about the expected access pattern of a MappedFile.
+	 */
+	public enum Advice
+	{
+		/**
+		 * No particular access pattern (the default).
+		 */
+		NORMAL,
+		/**
+		 * The file won't be accessed for some time; all segments are
+		 * unmapped (they are mapped again once they are accessed).
+		 */
+		DONTNEED
+	}
 
 	// private List<MappedByteBuffer> mappings = new ArrayList<>();
 	private volatile MappedByteBuffer[] mappings = new MappedByteBuffer[0];
@@ -44,9 +66,26 @@ public class MappedFile
 	protected static final int MAPPING_SIZE = 1 << 30;
 	
 	public MappedFile(Path path) throws IOException
+	{
+		this(path, false);
+	}
+
+	/**
+	 * Opens a MappedFile, creating it if it does not exist (unless it is
+	 * opened in read-only mode).
+	 *
+	 * @param path		the path of the file
+	 * @param readOnly	`true` if the file should be mapped read-only
+	 */
+	public MappedFile(Path path, boolean readOnly) throws IOException
 	{
 		this.path = path;
-		if(!Files.exists(path))
+		this.readOnly = readOnly;
+		if(readOnly)
+		{
+			channel = FileChannel.open(path, READ);
+		}
+		else if(!Files.exists(path))
 		{
 			channel = (FileChannel)Files.newByteChannel(path, CREATE_NEW,READ,WRITE,SPARSE);
 		}
@@ -61,26 +100,35 @@ public class MappedFile
 		return path;
 	}
 
+	public boolean isReadOnly()
+	{
+		return readOnly;
+	}
+
+	/**
+	 * Describes how the file will be accessed from now on. The caller
+	 * must ensure that no other thread is accessing the file while
+	 * `DONTNEED` is applied, since the segments are unmapped right away.
+	 *
+	 * @param advice	the expected access pattern
+	 */
+	public void advise(Advice advice)
+	{
+		if(advice == Advice.DONTNEED) unmapSegments();
+	}
+
 	/**
 	 * Gets the ByteBuffer for the requested segment. If the segment is not
 	 * already mapped, a new mapping is created.
 	 *
-	 * Note: The old version is NOT THREADSAFE. This is per design, as this
-	 * is a low-level component, and synchronization is supposed to be
-	 * handled at a higher level. We don't want to synchronize this because
-	 * of the higher number of concurrent reads.
+	 * This method is threadsafe: mapped segments are published via a
+	 * volatile copy-on-write array, and new segments are mapped using
+	 * double-checked locking (the approach used by `Store`). Callers
+	 * that share a segment among threads must use absolute get/put
+	 * methods, since the buffer's position is shared.
 	 *
-	 * A potential issue arises in Sorter: When writing indexes for
-	 * nodes, ways and relations, access is always synchronized -- only one
-	 * thread writes to the index. After the index has been created, access
-	 * is no longer synchronized, since all further usage is read-only.
-	 * But what if the Sorter tries to look up an element that is NOT in the
-	 * index? Potentially, this element's index position lies in a segment
-	 * that has not yet been mapped; at this point, the list of mapped segments
-	 * is mutated and we've got a race condition. We could prevent this by
-	 * not allowing access to index positions above a "high-water mark"
-	 * established during index creation -- however, the cleaner way is to
-	 * adopt the (safe) double-checked locking approach used in `Store`.
+	 * In read-only mode, a segment is limited to the size of the file,
+	 * hence it may be shorter than 1 GB (or even empty).
 	 *
 	 * @param n		the segment number
 	 * @return		the MappedByteBuffer for the requested segment
@@ -88,8 +136,6 @@ public class MappedFile
 	 */
 
 	// TODO: should make MappedFile a base class of Store, so this code is shared
-	// TODO: map segments lazily?
-	// TODO: consider option to map in read-only mode
 	protected MappedByteBuffer getMapping(int n)
 	{
 		MappedByteBuffer[] a = mappings;
@@ -123,9 +169,16 @@ public class MappedFile
 			try
 			{
 				// Log.debug("Mapping segment %d...", i);
-				buf = channel.map(
-					FileChannel.MapMode.READ_WRITE,
-					(long) n * MAPPING_SIZE, MAPPING_SIZE);
+				long ofs = (long) n * MAPPING_SIZE;
+				if(readOnly)
+				{
+					long size = Math.max(Math.min(channel.size() - ofs, MAPPING_SIZE), 0);
+					buf = channel.map(FileChannel.MapMode.READ_ONLY, ofs, size);
+				}
+				else
+				{
+					buf = channel.map(FileChannel.MapMode.READ_WRITE, ofs, MAPPING_SIZE);
+				}
 			}
 			catch(IOException ex)
 			{
@@ -162,46 +215,11 @@ public class MappedFile
 
 	private boolean unmapSegments()
 	{
-		// Log.debug("unmapping segments");
-
 		synchronized (mappingsLock)
 		{
-			try
-			{
-				// See https://stackoverflow.com/a/19447758
-
-				Class unsafeClass;
-				try
-				{
-					unsafeClass = Class.forName("sun.misc.Unsafe");
-				}
-				catch (Exception ex)
-				{
-					// jdk.internal.misc.Unsafe doesn't yet have an invokeCleaner() method,
-					// but that method should be added if sun.misc.Unsafe is removed.
-					unsafeClass = Class.forName("jdk.internal.misc.Unsafe");
-				}
-				Method clean = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
-				clean.setAccessible(true);
-				Field theUnsafeField = unsafeClass.getDeclaredField("theUnsafe");
-				theUnsafeField.setAccessible(true);
-				Object theUnsafe = theUnsafeField.get(null);
-
-				MappedByteBuffer[] a = mappings;
-				for (int i = 0; i < a.length; i++)
-				{
-					MappedByteBuffer buf = a[i];
-					if(buf != null) clean.invoke(theUnsafe, buf);
-					// TODO: set array entry to null just in case one of the
-					//  cleaner invocations fails?
-				}
-				mappings = new MappedByteBuffer[0];
-				return true;
-			}
-			catch (Exception ex)
-			{
-				return false;
-			}
+			MappedByteBuffer[] a = mappings;
+			mappings = new MappedByteBuffer[0];
+			return Store.unmapSegments(a);
 		}
 	}
 
@@ -10,13 +10,13 @@ package com.clarisma.common.io;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.nio.file.Path;
-
-// concurrent reading is not possible
-
-// TODO: We can safely read as long as we ensure all buffers are mapped
-//  Or see Store for perfectly thread-safe solution
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 // TODO: cleanup needed
 
@@ -29,6 +29,29 @@ import java.nio.file.Path;
  * Piles cannot shrink or be deleted. (For a more flexible approach to storing
  * BLOBs, consider using a {@link com.clarisma.common.store.BlobStore}.
  *
+ * Pages are handed out in Extents: when a Pile fills up its current Extent,
+ * it reserves a run of contiguous pages that is a quarter of the size of
+ * the Pile itself (up to a maximum Extent size of 4 MB), so a Pile that is
+ * written concurrently with many other Piles still consists of a modest
+ * number of contiguous runs, and reading it results in long sequential
+ * reads rather than in scattered accesses to individual pages. Reserved
+ * pages that are never used are not written to; the file is created as a
+ * sparse file, so on file systems that support sparse files, they do not
+ * take up any space on disk. Elsewhere, they may add up to 25% to the
+ * size of a Pile (at most 4 MB per Pile). Extents are only tracked while
+ * the PileFile is open; once it is reopened, the first page appended to a
+ * Pile starts a new Extent. `compactTo()` copies all Piles into a new
+ * PileFile, so that each Pile occupies a single run of pages.
+ *
+ * Optionally, the contents of Piles can be compressed (using Deflate at its
+ * fastest level). Each block of data passed to `append()` is compressed
+ * separately, and `load()` returns the decompressed contents of a Pile,
+ * so compression is transparent to the callers. This reduces the disk
+ * space (and write volume) of a PileFile at a modest CPU cost. Since
+ * appending is serialized, writers that run on multiple threads should
+ * compress their data with `encodeBlock()` (which is threadsafe) before
+ * they acquire the lock, and then store the block with `appendBlock()`.
+ *
  * Each PileFile can hold a maximum of 64M - 1 (2^26 - 1) Piles.
  * This number is fixed at the time the PileFile is created and cannot
  * subsequently be changed. Piles are numbered sequentially starting with 1.
@@ -42,10 +65,11 @@ import java.nio.file.Path;
  * ## Header
  *
  * 0-3		magic (TODO)
- * 4-7		total number of pages in use
+ * 4-7		total number of pages in use (including reserved pages)
  * 8-11     number of piles
  * 12		page size (lowest 5 bits used)
- * 13-15	reserved
+ * 13		flags (bit 0: Piles are compressed)
+ * 14-15	reserved
  * 16-n		Index Entries for each pile (16 bytes each)
  *
  * ## Index Entry
@@ -59,6 +83,15 @@ import java.nio.file.Path;
  * 0-3		Number of the next Page of the Pile, or 0 if this is the last
  * 4-n		content
  *
+ * ## Compressed Block
+ *
+ * If Piles are compressed, the content of a Pile is a sequence of blocks:
+ *
+ * 0-3		size of the uncompressed data
+ * 4-7		size of the stored data (if same as uncompressed size,
+ * 			the data is stored without compression)
+ * 8-n		stored data
+ *
  *
  */
 public class PileFile extends MappedFile
@@ -75,31 +108,82 @@ public class PileFile extends MappedFile
 	 * where the page is stored.
 	 */
 	private final int mappingShift;
-	private final ByteBuffer baseMapping;
+	/**
+	 * The maximum number of pages in an Extent.
+	 */
+	private final int maxExtentPages;
+	/**
+	 * For each pile, the page following its current Extent (or 0 if the
+	 * Pile has not started an Extent since the PileFile was opened).
+	 */
+	private final int[] extentEnds;
+	private final boolean compressed;
+
+	/**
+	 * A Deflater for each thread that compresses blocks.
+	 */
+	private static final ThreadLocal<Deflater> deflaters =
+		ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
 
+	/**
+	 * The default maximum size of an Extent.
+	 */
+	public static final int DEFAULT_MAX_EXTENT_SIZE = 1 << 22;
+	/**
+	 * A new Extent is the size of the pile, shifted right by this amount
+	 * (i.e. a quarter of the pile), which bounds the unused pages.
+	 */
+	private static final int EXTENT_GROWTH_SHIFT = 2;
 	private static final int ENTRY_SIZE = 16;
 	private static final int OFS_NUMBER_OF_PAGES = 4;
 	private static final int OFS_NUMBER_OF_PILES = 8;
 	private static final int OFS_PAGESIZE = 12;
+	private static final int OFS_FLAGS = 13;
+	private static final int COMPRESSED_FLAG = 1;
+	private static final int BLOCK_HEADER_SIZE = 8;
 
 	public static PileFile create(Path path, int pileCount, int pageSize) throws IOException
+	{
+		return create(path, pileCount, pageSize, false);
+	}
+
+	public static PileFile create(Path path, int pileCount, int pageSize,
+		boolean compressed) throws IOException
 	{
 		Files.deleteIfExists(path);
-		return new PileFile(path, pileCount, pageSize);
+		return new PileFile(path, pileCount, pageSize, compressed);
 	}
 
 	public static PileFile openExisiting(Path path) throws IOException
+	{
+		return openExisiting(path, false);
+	}
+
+	/**
+	 * Opens an existing PileFile.
+	 *
+	 * @param path		the path of the file
+	 * @param readOnly	`true` if the file should be mapped read-only
+	 *                  (piles can be loaded, but not appended to)
+	 */
+	public static PileFile openExisiting(Path path, boolean readOnly) throws IOException
 	{
 		if(!Files.exists(path))
 		{
 			throw new FileNotFoundException("Pilefile does not exist: " + path);
 		}
-		return new PileFile(path, 1, 4096);
+		return new PileFile(path, 1, 4096, false, readOnly);
 	}
 
-	private PileFile(Path path, int pileCount, int pageSize) throws IOException
+	private PileFile(Path path, int pileCount, int pageSize, boolean compressed) throws IOException
 	{
-		super(path);
+		this(path, pileCount, pageSize, compressed, false);
+	}
+
+	private PileFile(Path path, int pileCount, int pageSize, boolean compressed,
+		boolean readOnly) throws IOException
+	{
+		super(path, readOnly);
 		if(pileCount< 1 || pileCount > ((1 << 26)-1))
 		{
 			throw new IllegalArgumentException("Pile count must be between 1 and 2^26-1");
@@ -108,29 +192,34 @@ public class PileFile extends MappedFile
 		{
 			throw new IllegalArgumentException("Page size must be log-2 between 4K and 1G");
 		}
-		baseMapping = getMapping(0);
-		int flags = baseMapping.getInt(OFS_PAGESIZE);
-		if(flags != 0)
+		ByteBuffer baseMapping = getMapping(0);
+		int existingPageSizeAsLog = baseMapping.get(OFS_PAGESIZE) & 0x1f;
+		if(existingPageSizeAsLog != 0)
 		{
-			// existing file: take pileCount and pagesize from header
+			// existing file: take pileCount, pagesize and compression
+			// from header
 
-			int pageSizeAsLog = flags;
-			this.pageSizeAsLog = pageSizeAsLog;
+			this.pageSizeAsLog = existingPageSizeAsLog;
 			this.pageSize = 1 << pageSizeAsLog;
 			this.pileCount = baseMapping.getInt(OFS_NUMBER_OF_PILES);
+			this.compressed = (baseMapping.get(OFS_FLAGS) & COMPRESSED_FLAG) != 0;
 		}
 		else
 		{
 			this.pileCount = pileCount;
 			this.pageSize = pageSize;
+			this.compressed = compressed;
 			pageSizeAsLog = Integer.numberOfTrailingZeros(pageSize);
 			baseMapping.putInt(OFS_NUMBER_OF_PILES, pileCount);
-			baseMapping.putInt(OFS_PAGESIZE, pageSizeAsLog);
+			baseMapping.put(OFS_PAGESIZE, (byte)pageSizeAsLog);
+			baseMapping.put(OFS_FLAGS, (byte)(compressed ? COMPRESSED_FLAG : 0));
 		}
 		sizeMask = 0xffff_ffff >>> (32-pageSizeAsLog);
 		mappingShift = 30 - pageSizeAsLog;
+		maxExtentPages = Math.max(DEFAULT_MAX_EXTENT_SIZE >> this.pageSizeAsLog, 1);
+		extentEnds = new int[this.pileCount + 1];
 
-		if(numberOfPages() == 0)
+		if(!readOnly && numberOfPages() == 0)
 		{
 			int entriesPerPage = pageSize / ENTRY_SIZE;
 			int indexPageCount = (pileCount + entriesPerPage) / entriesPerPage;
@@ -142,69 +231,242 @@ public class PileFile extends MappedFile
 	{
 		return pileCount;
 	}
+
+	public boolean isCompressed()
+	{
+		return compressed;
+	}
 	
+	/**
+	 * Returns the first segment, which holds the header and the index
+	 * entries. We don't hold on to it, since `advise()` may unmap it.
+	 */
+	private ByteBuffer baseMapping()
+	{
+		return getMapping(0);
+	}
+
 	private int numberOfPages()
 	{
-		return baseMapping.getInt(OFS_NUMBER_OF_PAGES);
+		return baseMapping().getInt(OFS_NUMBER_OF_PAGES);
 	}
 
 	private void setNumberOfPages(int pages)
 	{
-		baseMapping.putInt(OFS_NUMBER_OF_PAGES, pages);
+		baseMapping().putInt(OFS_NUMBER_OF_PAGES, pages);
 	}
 	
-	private int allocPage()
+	private int numberOfPages(long pileSize)
+	{
+		return (int)((pileSize+pageSize-1) >> pageSizeAsLog);
+	}
+
+	/**
+	 * Reserves a run of contiguous pages for a pile.
+	 *
+	 * @return the first page of the new Extent
+	 */
+	private int allocExtent(int pile, int pageCount)
 	{
 		int page = numberOfPages();
-		setNumberOfPages(page+1);
+		setNumberOfPages(page + pageCount);
+		extentEnds[pile] = page + pageCount;
 		return page;
 	}
 
+	/**
+	 * Allocates the next page of a pile: the page following the pile's
+	 * last page, if its current Extent has room; otherwise, the first page
+	 * of a new Extent that grows the pile by a quarter.
+	 *
+	 * @param pile		the pile
+	 * @param lastPage	the pile's current last page (or 0 if the pile is empty)
+	 * @param pileSize	the gross size of the pile
+	 * @return			the page
+	 */
+	private int allocPage(int pile, int lastPage, long pileSize)
+	{
+		if(lastPage != 0 && lastPage + 1 < extentEnds[pile]) return lastPage + 1;
+		int pageCount = lastPage == 0 ? 1 : Math.max(1, Math.min(
+			numberOfPages(pileSize) >> EXTENT_GROWTH_SHIFT, maxExtentPages));
+		return allocExtent(pile, pageCount);
+	}
+
+	/**
+	 * Appends data to a pile. If the PileFile is compressed, the data is
+	 * compressed as a single block.
+	 *
+	 * Not threadsafe; callers must synchronize.
+	 */
 	public void append(int pile, byte[] data, int start, int len) throws IOException
+	{
+		if(compressed)
+		{
+			byte[] block = compressBlock(data, start, len);
+			appendRaw(pile, block, 0, block.length);
+			return;
+		}
+		appendRaw(pile, data, start, len);
+	}
+
+	/**
+	 * Turns data into a block that can be passed to `appendBlock()`: if the
+	 * PileFile is compressed, the data is compressed; otherwise, the block
+	 * is a copy of the data. This method is threadsafe, so the (costly)
+	 * compression can happen on the thread that produced the data, rather
+	 * than while holding the lock that serializes appending.
+	 */
+	public byte[] encodeBlock(byte[] data, int start, int len)
+	{
+		return compressed ? compressBlock(data, start, len) :
+			Arrays.copyOfRange(data, start, start + len);
+	}
+
+	/**
+	 * Appends a block created by `encodeBlock()` to a pile.
+	 *
+	 * Not threadsafe; callers must synchronize.
+	 */
+	public void appendBlock(int pile, byte[] block) throws IOException
+	{
+		appendRaw(pile, block, 0, block.length);
+	}
+
+	private byte[] compressBlock(byte[] data, int start, int len)
+	{
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(data, start, len);
+		deflater.finish();
+		byte[] block = new byte[BLOCK_HEADER_SIZE + len];
+		int storedLen = 0;
+		while(!deflater.finished())
+		{
+			int n = deflater.deflate(block, BLOCK_HEADER_SIZE + storedLen, len - storedLen);
+			storedLen += n;
+			if(storedLen >= len) break;
+		}
+		if(!deflater.finished() || storedLen >= len)
+		{
+			// Data does not compress well: store it as-is
+			System.arraycopy(data, start, block, BLOCK_HEADER_SIZE, len);
+			storedLen = len;
+		}
+		ByteBuffer header = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0, len);
+		header.putInt(4, storedLen);
+		return storedLen == len ? block : Arrays.copyOf(block, BLOCK_HEADER_SIZE + storedLen);
+	}
+
+	private static byte[] decompressBlocks(byte[] stored, int pile) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.wrap(stored).order(ByteOrder.LITTLE_ENDIAN);
+		long totalSize = 0;
+		int pos = 0;
+		while(pos < stored.length)
+		{
+			if(pos + BLOCK_HEADER_SIZE > stored.length) break;
+			totalSize += buf.getInt(pos);
+			pos += BLOCK_HEADER_SIZE + buf.getInt(pos + 4);
+		}
+		if(pos != stored.length || totalSize > Integer.MAX_VALUE)
+		{
+			throw new IOException(String.format(
+				"Corrupt PileFile, Pile %d has invalid compressed blocks", pile));
+		}
+		byte[] data = new byte[(int)totalSize];
+		Inflater inflater = new Inflater();
+		try
+		{
+			int dataPos = 0;
+			pos = 0;
+			while(pos < stored.length)
+			{
+				int len = buf.getInt(pos);
+				int storedLen = buf.getInt(pos + 4);
+				pos += BLOCK_HEADER_SIZE;
+				if(storedLen == len)
+				{
+					System.arraycopy(stored, pos, data, dataPos, len);
+				}
+				else
+				{
+					inflater.reset();
+					inflater.setInput(stored, pos, storedLen);
+					int n = 0;
+					while(n < len && !inflater.finished())
+					{
+						int chunk = inflater.inflate(data, dataPos + n, len - n);
+						if(chunk == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+						n += chunk;
+					}
+					if(n != len)
+					{
+						throw new IOException(String.format(
+							"Corrupt PileFile, Pile %d has a truncated compressed block", pile));
+					}
+				}
+				pos += storedLen;
+				dataPos += len;
+			}
+		}
+		catch(DataFormatException ex)
+		{
+			throw new IOException(String.format(
+				"Corrupt PileFile, Pile %d: %s", pile, ex.getMessage()), ex);
+		}
+		finally
+		{
+			inflater.end();
+		}
+		return data;
+	}
+
+	private void appendRaw(int pile, byte[] data, int start, int len) throws IOException
 	{
 		// log.debug("Appending {} bytes to pile #{}", len, pile);
 		assert pile > 0 && pile <= pileCount: String.format("Invalid pile: %d", pile);
-		// assert baseMapping.limit() == (1 << 30) : String.format("Wrong buffer limit = %d", baseMapping.limit());
+		// assert baseMapping().limit() == (1 << 30) : String.format("Wrong buffer limit = %d", baseMapping().limit());
 		int ptrEntry = pile * ENTRY_SIZE;
-		int lastPage = baseMapping.getInt(ptrEntry + 4);
-		long pileSize = baseMapping.getLong(ptrEntry + 8);
+		int lastPage = baseMapping().getInt(ptrEntry + 4);
+		long pileSize = baseMapping().getLong(ptrEntry + 8);
 		if(lastPage == 0)
 		{
-			lastPage = allocPage();
+			lastPage = allocPage(pile, 0, 0);
 			pileSize = 4;
-			baseMapping.putInt(ptrEntry, lastPage);
-			baseMapping.putInt(ptrEntry + 4, lastPage);
+			baseMapping().putInt(ptrEntry, lastPage);
+			baseMapping().putInt(ptrEntry + 4, lastPage);
 		}
 		int lastPageUsedBytes = (int)pileSize & sizeMask;
 		if(lastPageUsedBytes == 0) lastPageUsedBytes = pageSize;
 		int pageSpaceRemaining = pageSize - lastPageUsedBytes;
 		ByteBuffer mapping = getMapping(lastPage >> mappingShift);
 		int pageOffset = (lastPage << pageSizeAsLog) & 0x3fff_ffff;
-		mapping.position(pageOffset + lastPageUsedBytes);
+		int pos = pageOffset + lastPageUsedBytes;
 		if(pageSpaceRemaining >= len)
 		{
-			mapping.put(data, start, len);
+			mapping.put(pos, data, start, len);
 		}
 		else
 		{
 			int remainingLen = len;
 			for(;;)
 			{
-				mapping.put(data, start, Math.min(pageSpaceRemaining,remainingLen));
+				mapping.put(pos, data, start, Math.min(pageSpaceRemaining,remainingLen));
 				start += pageSpaceRemaining;
 				remainingLen -= pageSpaceRemaining;
 				if(remainingLen <= 0) break;
-				lastPage = allocPage();
+				lastPage = allocPage(pile, lastPage, pileSize);
 				mapping.putInt(pageOffset, lastPage);
 				pageSpaceRemaining = pageSize - 4;
 				pileSize += 4;
 				mapping = getMapping(lastPage >> mappingShift);
 				pageOffset = (lastPage << pageSizeAsLog) & 0x3fff_ffff;
-				mapping.position(pageOffset + 4);
+				pos = pageOffset + 4;
 			}
-			baseMapping.putInt(ptrEntry + 4, lastPage);
+			baseMapping().putInt(ptrEntry + 4, lastPage);
 		}
-		baseMapping.putLong(ptrEntry + 8, pileSize + len);
+		baseMapping().putLong(ptrEntry + 8, pileSize + len);
 	}
 
 	public void append(int pile, byte[] data) throws IOException
@@ -212,6 +474,36 @@ public class PileFile extends MappedFile
 		append(pile, data, 0, data.length);
 	}
 
+	/**
+	 * Copies all piles into another (empty) PileFile, placing the pages of
+	 * each pile into a single contiguous run, in the order of the piles.
+	 * The target's page size may differ from the page size of this PileFile.
+	 *
+	 * @param target	an empty PileFile with the same number of piles
+	 */
+	public void compactTo(PileFile target) throws IOException
+	{
+		if(target.pileCount != pileCount)
+		{
+			throw new IllegalArgumentException(String.format(
+				"Target must have %d piles (has %d)", pileCount, target.pileCount));
+		}
+		for(int pile=1; pile<=pileCount; pile++)
+		{
+			if(baseMapping().getInt(pile * ENTRY_SIZE) == 0) continue;
+			byte[] data = load(pile);
+			if(target.compressed) data = target.compressBlock(data, 0, data.length);
+			int dataPerPage = target.pageSize - 4;
+			int pageCount = Math.max((data.length + dataPerPage - 1) / dataPerPage, 1);
+			int page = target.allocExtent(pile, pageCount);
+			int ptrEntry = pile * ENTRY_SIZE;
+			target.baseMapping().putInt(ptrEntry, page);
+			target.baseMapping().putInt(ptrEntry + 4, page);
+			target.baseMapping().putLong(ptrEntry + 8, 4);
+			target.appendRaw(pile, data, 0, data.length);
+		}
+	}
+
 	// TODO: this is not threadsafe
 	//  Can be made threadsafe starting with JDK 13
 	//  but getMapping() is not safe because list of mappings may grow
@@ -298,32 +590,43 @@ public class PileFile extends MappedFile
 	{
 		assert pile > 0 && pile <= pileCount;
 		int ptrEntry = pile * ENTRY_SIZE;
-		int firstPage = baseMapping.getInt(ptrEntry);
-		long pileSize = baseMapping.getLong(ptrEntry + 8);
+		int firstPage = baseMapping().getInt(ptrEntry);
+		long pileSize = baseMapping().getLong(ptrEntry + 8);
 		int lastPageSize = (int)pileSize & sizeMask;
 		if (lastPageSize == 0) lastPageSize = pageSize;
 		return new PileInputStream(firstPage, lastPageSize);
 	}
 	*/
 	
+	/**
+	 * Returns the size of the data stored in a pile (if the PileFile is
+	 * compressed, this is the size of the compressed blocks).
+	 */
 	public long dataSize(int pile)
 	{
 		int ptrEntry = pile * ENTRY_SIZE;
-		long pileSize = baseMapping.getLong(ptrEntry + 8);
+		long pileSize = baseMapping().getLong(ptrEntry + 8);
 		int numberOfPages = (int)((pileSize+pageSize-1) >> pageSizeAsLog);
 		return pileSize - numberOfPages * 4;
 	}
 	
-	// not threadsafe
-	// TODO: Since 13, we've got absolute bulk get, so we can make it safe
-	//   except that getMapping can grow list of buffers, which is not threadsafe
+	/**
+	 * Loads the contents of a pile. Piles can be loaded concurrently,
+	 * as long as no other thread is appending to the same pile.
+	 */
 	public byte[] load(int pile) throws IOException
+	{
+		byte[] data = loadRaw(pile);
+		return compressed ? decompressBlocks(data, pile) : data;
+	}
+
+	private byte[] loadRaw(int pile) throws IOException
 	{
 		assert pile > 0 && pile <= pileCount;
 		int ptrEntry = pile * ENTRY_SIZE;
-		int page = baseMapping.getInt(ptrEntry);
+		int page = baseMapping().getInt(ptrEntry);
 		if(page==0) return new byte[0];
-		long pileSize = baseMapping.getLong(ptrEntry + 8);
+		long pileSize = baseMapping().getLong(ptrEntry + 8);
 		if(pileSize < 0)
 		{
 			throw new IOException(
@@ -351,8 +654,7 @@ public class PileFile extends MappedFile
 			ByteBuffer buf = getMapping(page >> mappingShift);
 			int pos = (page << pageSizeAsLog) & 0x3fff_ffff;
 			page = buf.getInt(pos);
-			buf.position(pos+4);
-			buf.get(data, dataPos, Math.min(dataSize, dataPerPage));
+			buf.get(pos+4, data, dataPos, Math.min(dataSize, dataPerPage));
 			dataPos += dataPerPage;
 			dataSize -= dataPerPage;
 		}
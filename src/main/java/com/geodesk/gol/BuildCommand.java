@@ -9,6 +9,7 @@ package com.geodesk.gol;
 
 import com.clarisma.common.cli.*;
 import com.clarisma.common.io.FileUtils;
+import com.clarisma.common.io.MappedFile;
 import com.clarisma.common.soar.Archive;
 import com.clarisma.common.soar.SBytes;
 import com.clarisma.common.text.Format;
@@ -210,14 +211,13 @@ public class BuildCommand extends BasicCommand
         statePath = workPath.resolve("state.txt");
     }
 
-    private void createIndexFolders(Path indexPath, boolean wayNodes) throws IOException
+    private void createIndexFolders(Path indexPath) throws IOException
     {
         try
         {
+            // The way-node index is a single file (created by the Compiler),
+            // so there is no need for a folder per tile
             Files.createDirectories(indexPath);
-            int topTip = context.getTileCatalog().topTip();
-            if (wayNodes) createTipFolders(indexPath.resolve("waynodes"), topTip);
-            // createTipFolders(indexPath.resolve("wnodes"), topTip);
         }
         catch(IOException ex)
         {
@@ -227,16 +227,6 @@ public class BuildCommand extends BasicCommand
         }
     }
 
-    private static void createTipFolders(Path folder, int topTip) throws IOException
-    {
-        int maxFolder = topTip >>> 12;
-        for (int n = 0; n <= maxFolder; n++)
-        {
-            Path subFolder = folder.resolve("%03X".formatted(n));
-            Files.createDirectories(subFolder);
-        }
-    }
-
     private int readState() throws IOException
     {
         if(Files.exists(statePath))
@@ -305,10 +295,9 @@ public class BuildCommand extends BasicCommand
                 TileQuad.fromSingleTile(Tile.fromString("0/0/0")));
         }
 
-        boolean isUpdatable = project.isUpdatable();
-        if(project.idIndexing() || isUpdatable)
+        if(project.idIndexing() || project.isUpdatable())
         {
-            createIndexFolders(context.indexPath(), isUpdatable);
+            createIndexFolders(context.indexPath());
         }
 
         if(!keepWork)
@@ -346,10 +335,21 @@ public class BuildCommand extends BasicCommand
         Sorter sorter = new Sorter(context, project.verbosity());
         sorter.sortFeatures(project.sourcePath().toFile());
         context.closeIndexes();
+        if(project.compactPiles())
+        {
+            context.compactPileFile();
+        }
+        else
+        {
+            // Release the Sorter's mappings; the Validator maps the
+            // segments again as it reads them
+            context.getPileFile().advise(MappedFile.Advice.DONTNEED);
+        }
 
         if(!keepWork && !project.idIndexing())
         {
-            delete(workPath,"nodes.idx", "ways.idx", "relations.idx");
+            delete(workPath,"nodes.idx", "ways.idx", "relations.idx",
+                "nodes.sum", "ways.sum", "relations.sum");
         }
     }
 
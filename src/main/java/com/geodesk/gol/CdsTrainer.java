@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+/**
+ * Loads the classes used by the common command paths (`query`, `info`),
+ * so a run with `-XX:ArchiveClassesAtExit` produces a class-data sharing
+ * (CDS) archive for them. The `gol` launch script creates the archive
+ * on first use and passes it to the JVM afterward; class loading is a
+ * large part of the runtime of a short query.
+ *
+ * The classes are loaded (but not initialized) by package, since a
+ * training run cannot count on a GOL to actually query. In addition,
+ * the command-line handling of both commands is exercised.
+ */
+public class CdsTrainer
+{
+    /**
+     * The packages (as path prefixes) whose classes are archived. The
+     * build, update and load machinery is deliberately left out.
+     */
+    private static final List<String> PACKAGES = List.of(
+        "com/clarisma/common/cli/",
+        "com/clarisma/common/text/",
+        "com/clarisma/common/util/",
+        "com/clarisma/common/store/",
+        "com/geodesk/core/",
+        "com/geodesk/geom/",
+        "com/geodesk/feature/",
+        "com/geodesk/util/",
+        "com/geodesk/gol/query/",
+        "com/geodesk/gol/info/",
+        "com/geodesk/gol/util/",
+        "org/locationtech/jts/geom/",
+        "org/locationtech/jts/io/");
+
+    private static boolean isArchived(String name)
+    {
+        if(!name.endsWith(".class") || name.contains("-")) return false;
+        // Top-level classes of com.geodesk.gol (commands etc.)
+        if(name.startsWith("com/geodesk/gol/") && name.indexOf('/', 16) < 0) return true;
+        for(String p: PACKAGES)
+        {
+            if(name.startsWith(p)) return true;
+        }
+        return false;
+    }
+
+    private static int load(String name)
+    {
+        String className = name.substring(0, name.length() - 6).replace('/', '.');
+        try
+        {
+            Class.forName(className, false, CdsTrainer.class.getClassLoader());
+            return 1;
+        }
+        catch(Throwable ex)
+        {
+            // class depends on something that isn't there; skip it
+            return 0;
+        }
+    }
+
+    private static int loadClasses(Path classPathEntry) throws IOException
+    {
+        int count = 0;
+        if(Files.isDirectory(classPathEntry))
+        {
+            try(Stream<Path> files = Files.walk(classPathEntry))
+            {
+                for(Path file: (Iterable<Path>)files::iterator)
+                {
+                    String name = classPathEntry.relativize(file).toString()
+                        .replace(File.separatorChar, '/');
+                    if(isArchived(name)) count += load(name);
+                }
+            }
+            return count;
+        }
+        if(!classPathEntry.toString().endsWith(".jar")) return 0;
+        try(JarFile jar = new JarFile(classPathEntry.toFile()))
+        {
+            Enumeration<JarEntry> entries = jar.entries();
+            while(entries.hasMoreElements())
+            {
+                String name = entries.nextElement().getName();
+                if(isArchived(name)) count += load(name);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Runs a command with its output discarded.
+     */
+    private static void exercise(GolCommand cmd, String... args)
+    {
+        PrintStream nullStream = new PrintStream(OutputStream.nullOutputStream());
+        cmd.stdout = nullStream;
+        cmd.stderr = nullStream;
+        try
+        {
+            new GolTool().run(cmd, args);
+        }
+        catch(Exception ex)
+        {
+            // expected, the library does not exist
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int count = 0;
+        for(String entry: System.getProperty("java.class.path").split(File.pathSeparator))
+        {
+            if(!entry.isEmpty()) count += loadClasses(Path.of(entry));
+        }
+        exercise(new QueryCommand(), "missing.gol", "na[amenity=cafe]",
+            "-f=geojson", "--bbox=1,2,3,4");
+        exercise(new InfoCommand(), "missing.gol", "-i", "-t");
+        System.err.format("Loaded %d classes\n", count);
+    }
+}
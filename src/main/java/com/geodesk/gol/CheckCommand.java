@@ -10,24 +10,69 @@ package com.geodesk.gol;
 import com.clarisma.common.cli.Verbosity;
 import com.geodesk.feature.store.FeatureStoreChecker;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Checks the integrity of a GOL. The tiles are checked in parallel; if
+ * the check is limited to a bounding box or area (e.g. to recheck the
+ * tiles touched by an update), only the tiles in that region are
+ * checked. Otherwise, the blob structure of the entire store (free
+ * tables, tile index) is checked as well, on a separate thread.
+ */
 public class CheckCommand extends GolCommand
 {
     @Override protected void performWithLibrary() throws Exception
     {
-        FeatureStoreChecker checker = new FeatureStoreChecker(features.store());
-        checker.check();
+        FeatureStoreChecker storeChecker = null;
+        FutureTask<Void> storeCheck = null;
+        if(bbox == null && areaFilter == null)
+        {
+            storeChecker = new FeatureStoreChecker(features.store());
+            storeCheck = new FutureTask<>(storeChecker::check, null);
+            new Thread(storeCheck, "store-checker").start();
+        }
+
+        TileChecker tileChecker = new TileChecker(features.store(), getTileIndexWalker());
+        // Progress goes to stderr, since the results may be redirected
+        tileChecker.setProgressOutput(verbosity >= Verbosity.NORMAL ? stderr : null);
+        tileChecker.check();
+        if(storeCheck != null)
+        {
+            try
+            {
+                storeCheck.get();
+            }
+            catch(ExecutionException ex)
+            {
+                throw (ex.getCause() instanceof Exception cause) ? cause : ex;
+            }
+        }
 
         // We send errors to stdout instead of stderr
         // (or file specfied by -o) // TODO
         // because error messages are considered result output
         // in this context
 
-        if(checker.hasErrors())
+        boolean hasErrors = false;
+        if(storeChecker != null && storeChecker.hasErrors())
+        {
+            if(verbosity >= Verbosity.QUIET) storeChecker.reportErrors(stdout);
+            hasErrors = true;
+        }
+        if(tileChecker.hasErrors())
+        {
+            if(verbosity >= Verbosity.QUIET) tileChecker.reportErrors(stdout);
+            hasErrors = true;
+        }
+        if(hasErrors)
         {
-            if(verbosity >= Verbosity.QUIET) checker.reportErrors(System.out);
             setResult(ErrorReporter.INVALID_GOL_FILE);
             return;
         }
-        if(verbosity >= Verbosity.QUIET) System.err.println("No errors found.");
+        if(verbosity >= Verbosity.QUIET)
+        {
+            stderr.format("No errors found in %d tiles.\n", tileChecker.tileCount());
+        }
     }
 }
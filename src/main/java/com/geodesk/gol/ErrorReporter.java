@@ -12,6 +12,7 @@ import com.clarisma.common.store.StoreException;
 import com.geodesk.feature.match.QueryException;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.file.NoSuchFileException;
 
 public class ErrorReporter
@@ -24,6 +25,11 @@ public class ErrorReporter
     public static final int INTERNAL_ERROR = 127;
 
     public static int report(Throwable ex, int verbosity)
+    {
+        return report(ex, verbosity, System.err);
+    }
+
+    public static int report(Throwable ex, int verbosity, PrintStream err)
     {
         String msg;
         int result;
@@ -64,8 +70,8 @@ public class ErrorReporter
         }
         if(verbosity > Verbosity.SILENT)
         {
-            System.err.println(msg);
-            if(trace) ex.printStackTrace();
+            err.println(msg);
+            if(trace) ex.printStackTrace(err);
         }
         return result;
     }
@@ -8,89 +8,222 @@
 package com.geodesk.gol;
 
 
+import com.clarisma.common.util.Bytes;
+import com.clarisma.common.util.ProgressListener;
 import com.geodesk.feature.store.FeatureStore;
-import com.geodesk.feature.store.TileIndexWalker;
-import com.geodesk.core.Box;
 import com.geodesk.feature.store.Tip;
+import org.eclipse.collections.api.list.primitive.IntList;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
-// TODO: total size, total files, compression level
+import static com.clarisma.common.store.BlobStoreConstants.*;
+
+/**
+ * Writes tiles of a FeatureStore to a tile set, using the given codec.
+ * Each worker thread compresses its tiles with its own Deflater and
+ * writes them via a buffered stream (to a temporary file that then
+ * replaces the tile file). Progress is reported to a ProgressListener
+ * (in batches of tiles), rather than logging each tile.
+ *
+ * The tile files have the same layout as those written by the library's
+ * `TileExporter`; the metadata (`meta.tile`) is not written by this class.
+ */
+// TODO: total size, total files
 public class Exporter extends Processor<Exporter.Task>
 {
     private final FeatureStore store;
     private final Path exportPath;
+    private final TileCodec codec;
+    private final byte[] dictionary;
+    private final IntList tiles;
+    private final ProgressListener progress;
+    private final UUID guid;
 
-    public Exporter(FeatureStore store, Path exportPath)
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * @param store         the store
+     * @param exportPath    the root folder of the tile set
+     * @param codec         the codec
+     * @param dictionary    the preset dictionary (if the codec uses one),
+     *                      or `null`
+     * @param tiles         the TIPs of the tiles to export
+     * @param progress      the listener to which progress is reported
+     */
+    public Exporter(FeatureStore store, Path exportPath, TileCodec codec,
+        byte[] dictionary, IntList tiles, ProgressListener progress)
     {
+        assert codec.usesDictionary() == (dictionary != null);
         this.store = store;
         this.exportPath = exportPath;
+        this.codec = codec;
+        this.dictionary = dictionary;
+        this.tiles = tiles;
+        this.progress = progress;
+        guid = store.getGuid();
     }
 
     @Override protected void feed() throws Exception
     {
         int currentSuperFolder = -1;
-        TileIndexWalker walker = new TileIndexWalker(store);
-        walker.start(Box.ofWorld());
-        while(walker.next())
+        for(int i=0; i<tiles.size(); i++)
+        {
+            if(failed()) break;
+            int tip = tiles.get(i);
+            int startPage = store.tilePage(tip);
+            if(startPage == 0) continue;
+            int superFolder = tip >>> 12;
+            if(superFolder != currentSuperFolder)
+            {
+                Path folder = Tip.folder(exportPath, tip);
+                if(!Files.exists(folder))
+                {
+                    Files.createDirectories(folder);
+                }
+                currentSuperFolder = superFolder;
+            }
+            submit(new Task(tip, startPage));
+        }
+    }
+
+    private class ExportWorker extends Worker
+    {
+        private final Deflater deflater = new Deflater(codec.level());
+        private final byte[] header = new byte[EXPORTED_HEADER_LEN];
+        private final byte[] chunk = new byte[BUFFER_SIZE];
+        private final byte[] output = new byte[BUFFER_SIZE];
+        private final CRC32 crc = new CRC32();
+        private int tilesExported;
+
+        @Override public void run()
+        {
+            try
+            {
+                super.run();
+            }
+            finally
+            {
+                deflater.end();
+                reportProgress();
+            }
+        }
+
+        private void reportProgress()
         {
-            int startPage = walker.tilePage();
-            if(startPage != 0)
+            if(tilesExported == 0) return;
+            synchronized (progress)
             {
-                int tip = walker.tip();
-                int superFolder = tip >>> 12;
-                if(superFolder != currentSuperFolder)
+                progress.progress(tilesExported);
+            }
+            tilesExported = 0;
+        }
+
+        private void export(int tip, int page) throws IOException
+        {
+            ByteBuffer buf = store.bufferOfPage(page);
+            int ofs = store.offsetOfPage(page);
+            int len = (buf.getInt(ofs) & 0x3fff_ffff) - 4;
+            ofs += 8;
+
+            Bytes.putInt(header, 0, EXPORTED_MAGIC);
+            Bytes.putInt(header, 4, VERSION);
+            Bytes.putLong(header, EXPORTED_HEADER_GUID, guid.getLeastSignificantBits());
+            Bytes.putLong(header, EXPORTED_HEADER_GUID + 8, guid.getMostSignificantBits());
+            Bytes.putInt(header, EXPORTED_BLOB_ID, tip);
+            Bytes.putInt(header, EXPORTED_ORIGINAL_LEN_OFS, len);
+
+            Path path = Tip.path(exportPath, tip, ".tile");
+            Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+            deflater.reset();
+            if(dictionary != null) deflater.setDictionary(dictionary);
+            crc.reset();
+            try(OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(tempPath.toFile()), BUFFER_SIZE))
+            {
+                out.write(header);
+                int remaining = len;
+                while(remaining > 0)
                 {
-                    Path folder = Tip.folder(exportPath, tip);
-                    if(!Files.exists(folder))
+                    int n = Math.min(remaining, chunk.length);
+                    buf.get(ofs, chunk, 0, n);
+                    crc.update(chunk, 0, n);
+                    deflater.setInput(chunk, 0, n);
+                    while(!deflater.needsInput())
                     {
-                        Files.createDirectories(folder);
+                        out.write(output, 0, deflater.deflate(output));
                     }
+                    ofs += n;
+                    remaining -= n;
                 }
-                submit(new Task(walker.tile(), tip, startPage));
+                deflater.finish();
+                while(!deflater.finished())
+                {
+                    out.write(output, 0, deflater.deflate(output));
+                }
+                byte[] checksum = new byte[4];
+                Bytes.putInt(checksum, 0, (int)crc.getValue());
+                out.write(checksum);
             }
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+            if(++tilesExported == 16) reportProgress();
         }
     }
 
+    @Override protected Worker createWorker()
+    {
+        return new ExportWorker();
+    }
+
     protected class Task implements Runnable
     {
-        private final int tile;
         private final int tip;
         private final int startPage;
 
-        public Task(int tile, int tip, int startPage)
+        public Task(int tip, int startPage)
         {
-            this.tile = tile;
             this.tip = tip;
             this.startPage = startPage;
         }
 
         @Override public void run()
         {
-            System.out.format("Exporting %s\n", Tip.toString(tip));
-            Path path = Tip.path(exportPath, tip, ".ftile.gz");
             try
             {
-                store.export(startPage, path);
+                ((ExportWorker)Thread.currentThread()).export(tip, startPage);
             }
-            catch(IOException ex)
+            catch(Throwable ex)
             {
-                // TODO: respect output level
-                System.err.format("Failed to export %s: %s", path, ex.getMessage());
+                fail(new IOException(String.format("Failed to export %s: %s",
+                    Tip.toString(tip), ex.getMessage()), ex));
             }
         }
     }
 
-    /*
-    public static void main(String[] args)
+    /**
+     * Exports the tiles.
+     */
+    public void export() throws IOException
     {
-        FeatureStore store = new FeatureStore(Path.of(args[0]));
-        Path exportPath = Path.of(args[1]);
-        Exporter exporter = new Exporter(store, exportPath);
-        exporter.run();
-        store.close();
+        if(tiles.isEmpty()) return;
+        try
+        {
+            run();
+        }
+        catch(RuntimeException ex)
+        {
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException ioex) throw ioex;
+            throw ex;
+        }
     }
-     */
 }
@@ -13,11 +13,10 @@ import com.clarisma.common.cli.Parameter;
 import com.geodesk.core.Box;
 import com.geodesk.core.Tile;
 import com.geodesk.feature.FeatureLibrary;
-import com.geodesk.feature.Filter;
-import com.geodesk.feature.Filters;
 import com.geodesk.feature.store.FeatureStore;
 import com.geodesk.feature.store.TileIndexWalker;
 import com.geodesk.gol.build.Utils;
+import com.geodesk.gol.util.AreaFilter;
 import com.geodesk.io.PolyReader;
 import com.geodesk.util.CoordinateTransformer;
 import org.eclipse.collections.api.list.primitive.IntList;
@@ -50,8 +49,27 @@ public abstract class GolCommand extends BasicCommand
      * should be used.
      */
     protected Geometry area;
+
+    /**
+     * The filter for `area` (prepared once the area has been read), or
+     * `null` if no area has been specified.
+     */
+    protected AreaFilter areaFilter;
     private int result;
 
+    /**
+     * The session of the `gol serve` client on whose behalf the command
+     * runs, or `null` if the command runs standalone.
+     */
+    private GolServer.Session session;
+
+    /**
+     * The streams to which the command writes its results and messages
+     * (the console, or the connection of a `gol serve` client).
+     */
+    protected PrintStream stdout = System.out;
+    protected PrintStream stderr = System.err;
+
     @Option("new,n: create GOL if it does not exist")
     protected boolean createIfMissing;
 
@@ -87,6 +105,24 @@ public abstract class GolCommand extends BasicCommand
         areaFilePath = Paths.get(file);
     }
 
+    protected Path golPath()
+    {
+        return golPath;
+    }
+
+    /**
+     * Runs the command on behalf of a client of `gol serve`: paths are
+     * resolved against the client's working folder, output goes to the
+     * client, and the library is obtained from (and stays open in) the
+     * server.
+     */
+    public void session(GolServer.Session session)
+    {
+        this.session = session;
+        stdout = session.out();
+        stderr = session.err();
+    }
+
     protected abstract void performWithLibrary() throws Exception;
 
     protected void setResult(int result)
@@ -103,12 +139,18 @@ public abstract class GolCommand extends BasicCommand
                 new CoordinateTransformer.ToMercator());
             area = reader.read();
         }
+        areaFilter = new AreaFilter(area);
     }
 
     @Override public int perform() throws Exception
     {
         try
         {
+            if(session != null)
+            {
+                golPath = session.resolve(golPath);
+                if(areaFilePath != null) areaFilePath = session.resolve(areaFilePath);
+            }
             if(!createIfMissing)
             {
                 if(Files.notExists(golPath))
@@ -118,13 +160,15 @@ public abstract class GolCommand extends BasicCommand
                         "to create an empty library", golPath));
                 }
             }
-            features = new FeatureLibrary(golPath, url);
+            features = session != null ? session.library(golPath, url) :
+                new FeatureLibrary(golPath, url);
             readAreaFile();
             performWithLibrary();
         }
         finally
         {
-            if(features != null) features.close();
+            // A server's libraries stay open
+            if(features != null && session == null) features.close();
         }
         return result;
     }
@@ -132,10 +176,9 @@ public abstract class GolCommand extends BasicCommand
     protected TileIndexWalker getTileIndexWalker()
     {
         TileIndexWalker walker = new TileIndexWalker(features.store());
-        if (area != null)
+        if (areaFilter != null)
         {
-            Filter filter = Filters.intersects(area);
-            walker.start(filter.bounds(), filter);
+            walker.start(areaFilter.bounds(), areaFilter);
         }
         else
         {
@@ -163,6 +206,6 @@ public abstract class GolCommand extends BasicCommand
 
     @Override public int error(Throwable ex)
     {
-        return ErrorReporter.report(ex, verbosity);
+        return ErrorReporter.report(ex, verbosity, stderr);
     }
 }
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol;
+
+import com.clarisma.common.cli.JvmLauncher;
+import com.clarisma.common.cli.Verbosity;
+import com.geodesk.feature.FeatureLibrary;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs commands on behalf of clients (see `JvmLauncher`) that connect via
+ * a Unix-domain socket. The server keeps every library it has opened, so
+ * a command only pays for the query itself, rather than for starting the
+ * JVM, loading classes and mapping the store. Each connection is handled
+ * on its own thread; the command's output is sent straight to the client.
+ *
+ * Only commands whose output can be redirected to the client are
+ * served (currently `query`).
+ */
+public class GolServer
+{
+    private final Path socketPath;
+    private final int verbosity;
+    private final Map<Path, FeatureLibrary> libraries = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private ServerSocketChannel serverChannel;
+
+    private static final Set<String> SERVED_COMMANDS = Set.of("query");
+
+    public GolServer(Path socketPath, int verbosity)
+    {
+        this.socketPath = socketPath;
+        this.verbosity = verbosity;
+    }
+
+    /**
+     * The environment of a command that runs on behalf of a client.
+     */
+    public class Session
+    {
+        private final Path workingFolder;
+        private final PrintStream out;
+        private final PrintStream err;
+
+        private Session(Path workingFolder, PrintStream out, PrintStream err)
+        {
+            this.workingFolder = workingFolder;
+            this.out = out;
+            this.err = err;
+        }
+
+        public PrintStream out()
+        {
+            return out;
+        }
+
+        public PrintStream err()
+        {
+            return err;
+        }
+
+        /**
+         * Resolves a path against the client's working folder.
+         */
+        public Path resolve(Path path)
+        {
+            return workingFolder.resolve(path);
+        }
+
+        /**
+         * Returns the library at the given path, opening it if it is not
+         * already open. The library remains open until the server stops.
+         */
+        public FeatureLibrary library(Path path, String url)
+        {
+            return libraries.computeIfAbsent(path.toAbsolutePath().normalize(), p ->
+            {
+                if(verbosity >= Verbosity.NORMAL) System.err.format("Opening %s\n", p);
+                return new FeatureLibrary(p, url);
+            });
+        }
+    }
+
+    /**
+     * An output stream that sends each write to the client as a frame
+     * of the given channel.
+     */
+    private static class FrameOutputStream extends OutputStream
+    {
+        private final DataOutputStream response;
+        private final byte channel;
+
+        FrameOutputStream(DataOutputStream response, byte channel)
+        {
+            this.response = response;
+            this.channel = channel;
+        }
+
+        @Override public void write(int b) throws IOException
+        {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException
+        {
+            if(len == 0) return;
+            synchronized (response)
+            {
+                response.writeByte(channel);
+                response.writeInt(len);
+                response.write(b, off, len);
+            }
+        }
+
+        @Override public void flush() throws IOException
+        {
+            synchronized (response)
+            {
+                response.flush();
+            }
+        }
+    }
+
+    private void handle(SocketChannel channel)
+    {
+        try(channel)
+        {
+            DataInputStream request = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel)));
+            Path workingFolder = Path.of(request.readUTF());
+            String[] args = new String[request.readInt()];
+            for(int i=0; i<args.length; i++) args[i] = request.readUTF();
+
+            DataOutputStream response = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            PrintStream out = new PrintStream(new FrameOutputStream(
+                response, JvmLauncher.STDOUT), false, StandardCharsets.UTF_8);
+            PrintStream err = new PrintStream(new FrameOutputStream(
+                response, JvmLauncher.STDERR), true, StandardCharsets.UTF_8);
+            int result = run(new Session(workingFolder, out, err), args);
+            out.flush();
+            err.flush();
+            synchronized (response)
+            {
+                response.writeByte(JvmLauncher.EXIT);
+                response.writeInt(result);
+                response.flush();
+            }
+        }
+        catch(IOException ex)
+        {
+            // The client went away; nothing we can do
+            if(verbosity >= Verbosity.VERBOSE)
+            {
+                System.err.format("Connection failed: %s\n", ex.getMessage());
+            }
+        }
+    }
+
+    private int run(Session session, String[] args) throws IOException
+    {
+        if(args.length == 0 || !SERVED_COMMANDS.contains(args[0]))
+        {
+            session.err().format("Command not supported by gol serve: %s\n",
+                args.length == 0 ? "(none)" : args[0]);
+            return ErrorReporter.BAD_ARGUMENTS;
+        }
+        if(verbosity >= Verbosity.VERBOSE)
+        {
+            System.err.format("Running: %s\n", String.join(" ", args));
+        }
+        GolCommand cmd = new QueryCommand();
+        cmd.session(session);
+        try
+        {
+            return new GolTool().run(cmd, Arrays.copyOfRange(args, 1, args.length));
+        }
+        catch(Exception ex)
+        {
+            return cmd.error(ex);
+        }
+    }
+
+    private static boolean isListening(Path socketPath)
+    {
+        try(SocketChannel probe = SocketChannel.open(UnixDomainSocketAddress.of(socketPath)))
+        {
+            return true;
+        }
+        catch(IOException ex)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Accepts connections until the server is stopped.
+     */
+    public void run() throws IOException
+    {
+        if(Files.exists(socketPath))
+        {
+            // A socket file is left behind if a server was killed; only
+            // refuse to start if a server is actually listening on it
+            if(isListening(socketPath))
+            {
+                throw new IOException("A server is already running on " + socketPath);
+            }
+            Files.delete(socketPath);
+        }
+        serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        serverChannel.bind(UnixDomainSocketAddress.of(socketPath));
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+        if(verbosity >= Verbosity.QUIET)
+        {
+            System.err.format("Listening on %s (Ctrl-C to stop)\n", socketPath);
+        }
+        try
+        {
+            for(;;)
+            {
+                SocketChannel channel = serverChannel.accept();
+                executor.submit(() -> handle(channel));
+            }
+        }
+        catch(AsynchronousCloseException ex)
+        {
+            // server has been stopped
+        }
+    }
+
+    /**
+     * Stops accepting connections, and closes the libraries once the
+     * running commands have finished.
+     */
+    public void stop()
+    {
+        try
+        {
+            if(serverChannel != null) serverChannel.close();
+            Files.deleteIfExists(socketPath);
+        }
+        catch(IOException ex)
+        {
+            // we're shutting down anyway
+        }
+        executor.shutdown();
+        try
+        {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException ex)
+        {
+            // close the libraries regardless
+        }
+        libraries.values().forEach(FeatureLibrary::close);
+        libraries.clear();
+    }
+}
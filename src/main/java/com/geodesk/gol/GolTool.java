@@ -31,6 +31,7 @@ public class GolTool extends Application
             "  load  - Load an existing tile set\n" +
             "  save  - Export tiles to a tile set\n" +
             "  check - Verify integrity\n" +
+            "  serve - Keep libraries open to run queries for clients\n" +
             "\n" +
             "Use \"gol help <command>\" for detailed documentation.";
     }
@@ -15,6 +15,7 @@ import com.geodesk.feature.store.TileIndexWalker;
 import com.geodesk.gol.info.FreeBlobReport;
 import com.geodesk.gol.info.IndexReport;
 import com.geodesk.gol.info.TileReport;
+import com.geodesk.gol.info.TileSample;
 import org.eclipse.collections.api.iterator.IntIterator;
 import org.eclipse.collections.api.list.primitive.IntList;
 
@@ -31,6 +32,14 @@ public class InfoCommand extends GolCommand
     @Option("free,f: display free-block details")
     protected boolean freeDetails;
 
+    protected TileSample sample = TileSample.ALL;
+
+    @Option("sample=N%: estimate index and tile statistics from a random sample of tiles")
+    public void sample(String rate)
+    {
+        sample = TileSample.parse(rate);
+    }
+
     @Override protected void performWithLibrary() throws Exception
     {
         FeatureStore store = features.store();
@@ -62,7 +71,7 @@ public class InfoCommand extends GolCommand
         {
             System.out.println();
             new IndexReport(features.store(), getTileIndexWalker(),
-                verbosity >= Verbosity.VERBOSE).print(System.out);
+                verbosity >= Verbosity.VERBOSE, sample).print(System.out);
         }
 
         if(freeDetails)
@@ -74,7 +83,7 @@ public class InfoCommand extends GolCommand
         if(tileDetails)
         {
             System.out.println();
-            new TileReport(features.store(), getTileIndexWalker()).print(System.out);
+            new TileReport(features.store(), getTileIndexWalker(), sample).print(System.out);
         }
     }
 }
@@ -11,10 +11,15 @@ import com.clarisma.common.cli.Parameter;
 import com.clarisma.common.cli.Verbosity;
 import com.geodesk.feature.store.FeatureStore;
 import com.clarisma.common.util.ProgressReporter;
+import com.geodesk.gol.tiles.UpdatableFeatureStore;
 import org.eclipse.collections.api.list.primitive.IntList;
 import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.api.set.primitive.IntSet;
 import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+
 public class LoadCommand extends GolCommand
 {
     @Parameter("1=?path|url")
@@ -38,14 +43,17 @@ public class LoadCommand extends GolCommand
                 "  or   gol load <gol> -u=<url>");
         }
         FeatureStore store = features.store();
+        Path golPath = store.path();
         IntList tiles = getTiles();
+        IntSet loadedTiles = TileLoader.readProgress(golPath);
         MutableIntList tilesToLoad = new IntArrayList();
         tiles.forEach(tip ->
         {
-            if(store.tilePage(tip) == 0) tilesToLoad.add(tip);
+            if(store.tilePage(tip) == 0 && !loadedTiles.contains(tip)) tilesToLoad.add(tip);
         });
         if(tilesToLoad.isEmpty())
         {
+            Files.deleteIfExists(TileLoader.progressPath(golPath));
             if(verbosity >= Verbosity.QUIET)
             {
                 System.err.format("All %d tiles already loaded.\n", tiles.size());
@@ -62,11 +70,22 @@ public class LoadCommand extends GolCommand
             verbosity >= Verbosity.NORMAL ? "Loading" : null,
             verbosity >= Verbosity.QUIET ? "Loaded" : null);
 
-        tilesToLoad.forEach(tip ->
+        // Only one instance of a store may be open per process, so we
+        // close the library and re-open its store for loading (other
+        // processes, such as `gol serve`, can keep reading the GOL)
+        features.close();
+        features = null;
+        UpdatableFeatureStore loadStore = new UpdatableFeatureStore();
+        loadStore.setPath(golPath);
+        loadStore.openForUpdate();
+        try
         {
-            store.fetchTile(tip);
-            reporter.progress(1);
-        });
+            new TileLoader(loadStore, url, tilesToLoad, reporter).load();
+        }
+        finally
+        {
+            loadStore.close();
+        }
         reporter.finished();
     }
 }
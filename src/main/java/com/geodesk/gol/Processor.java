@@ -9,6 +9,7 @@ package com.geodesk.gol;
 
 import com.clarisma.common.util.Log;
 
+import java.io.PrintStream;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -35,6 +36,7 @@ public abstract class Processor<T> implements Runnable
     private long workCompleted;
     private String verb;
     private int percentageReported;
+    private PrintStream progressOut = System.err;
 
     protected Worker createWorker()
     {
@@ -44,7 +46,7 @@ public abstract class Processor<T> implements Runnable
     protected void fail(Throwable ex)
     {
         if(error != null) return;       // TODO: (benign) race condition
-        System.out.println(ex.getMessage());
+        System.err.println(ex.getMessage());
         ex.printStackTrace();
         error = ex;
         if(outputThread != null) outputThread.interrupt();
@@ -177,6 +179,15 @@ public abstract class Processor<T> implements Runnable
         return System.currentTimeMillis() - startTime;
     }
 
+    /**
+     * Sets the stream to which progress is reported (`System.err` by
+     * default), or `null` to turn off progress reporting.
+     */
+    public void setProgressOutput(PrintStream out)
+    {
+        progressOut = out;
+    }
+
     protected void setTotalWork(String verb, long totalWork)
     {
         this.verb = verb;
@@ -192,10 +203,9 @@ public abstract class Processor<T> implements Runnable
 
         int percentageCompleted = (int)(workCompleted * 100 / totalWork);
         // log.debug("Completed: {} %", percentageCompleted);
-        if (percentageCompleted != percentageReported)
+        if (percentageCompleted != percentageReported && progressOut != null)
         {
-            // TODO: use System.err, respect verbosity level
-            System.out.format("%s... %d%%\r", verb, percentageCompleted);
+            progressOut.format("%s... %d%%\r", verb, percentageCompleted);
             percentageReported = percentageCompleted;
         }
     }
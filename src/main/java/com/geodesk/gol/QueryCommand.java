@@ -11,14 +11,22 @@ import com.clarisma.common.cli.Option;
 import com.clarisma.common.cli.Parameter;
 import com.clarisma.common.cli.Verbosity;
 import com.clarisma.common.text.Format;
+import com.geodesk.core.Box;
+import com.geodesk.feature.store.FeatureStore;
 import com.geodesk.feature.Feature;
 import com.geodesk.feature.Features;
-import com.geodesk.feature.Filters;
+import com.geodesk.geom.Bounds;
+import com.geodesk.gol.build.Utils;
 import com.geodesk.gol.query.*;
+import com.geodesk.gol.tiles.UpdatableFeatureStore;
 import com.geodesk.util.CoordinateTransformer;
+import org.eclipse.collections.api.iterator.IntIterator;
+import org.locationtech.jts.io.WKBWriter;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -50,7 +58,7 @@ public class QueryCommand extends GolCommand
 
     private enum ResultFormat
     {
-        LIST, CSV, FAB, GEOJSON, GEOJSONL, XML, WKT, COUNT, MAP, POLY, STATS, TABLE;
+        LIST, CSV, FAB, FGB, GEOJSON, GEOJSONL, XML, WKT, COUNT, MAP, POLY, STATS, TABLE;
     }
 
     @Option("limit,l=number: maximum number of features to return")
@@ -70,6 +78,19 @@ public class QueryCommand extends GolCommand
     }
 */
 
+    /**
+     * The maximum size of the result cache (in bytes), or 0 if results
+     * should not be cached (user option)
+     */
+    private long cacheSize;
+
+    @Option("cache=MB: cache results (default max. 1024 MB)")
+    public void cache(String size)
+    {
+        cacheSize = (size == null ? 1024 : Long.parseLong(size)) * 1024 * 1024;
+        if(cacheSize <= 0) throw new IllegalArgumentException("Must be at least 1 MB");
+    }
+
     @Option("tags,t=keys: keys of tags to include")
     public void tags(String s)
     {
@@ -103,15 +124,68 @@ public class QueryCommand extends GolCommand
         formatOptions.add(value);
     }
 
-    @Override public void performWithLibrary()
+    @Override public void performWithLibrary() throws IOException
     {
         long start = System.currentTimeMillis();
-        long count = 0;
+        long count;
+
+        ResultCache cache = null;
+        String cacheKey = null;
+        if(cacheSize > 0)
+        {
+            cache = new ResultCache(Utils.peerFolder(golPath(), "-cache"), cacheSize);
+            cacheKey = cacheKey();
+            Path cached = cache.get(cacheKey);
+            if(cached != null)
+            {
+                Files.copy(cached, stdout);
+                stdout.flush();
+                if(verbosity >= Verbosity.NORMAL)
+                {
+                    stderr.format("\nRetrieved cached result in %s\n",
+                        Format.formatTimespan(System.currentTimeMillis() - start));
+                }
+                return;
+            }
+        }
+
+        OutputStream resultStream = stdout;
+        ResultCache.Writer cacheWriter = null;
+        if(cache != null)
+        {
+            cacheWriter = cache.writer(cacheKey, resultStream);
+            resultStream = cacheWriter;
+        }
+        try
+        {
+            count = printResults(resultStream);
+            if(cacheWriter != null) cacheWriter.commit();
+        }
+        finally
+        {
+            // discards the captured output unless it has been committed
+            if(cacheWriter != null) cacheWriter.close();
+        }
+        if(verbosity >= Verbosity.NORMAL)
+        {
+            stderr.format("\nRetrieved %,d features in %s\n", count,
+                Format.formatTimespan(System.currentTimeMillis() - start));
+        }
+    }
 
+    /**
+     * Prints the features that match the query.
+     *
+     * @param resultStream  the stream to which the results are written
+     * @return the number of features
+     */
+    private long printResults(OutputStream resultStream) throws IOException
+    {
+        long count = 0;
         // PrintStream out = System.out;
         // Create a stream with autoflush disabled to increase performance
         PrintStream out = new PrintStream(
-            new BufferedOutputStream(System.out, 64 * 4096));
+            new BufferedOutputStream(resultStream, 64 * 4096));
 
         // TODO: On Windows CLI, this requires switching code page: chcp 65001
         //  (Using original System.out worked without change codepage, but
@@ -134,13 +208,14 @@ public class QueryCommand extends GolCommand
             case LIST -> new ListFeaturePrinter(out);
             case CSV -> new CsvFeaturePrinter(out);
             case FAB -> new FabFeaturePrinter(out);
+            case FGB -> new FgbFeaturePrinter(out);
             case GEOJSON -> new GeoJsonFeaturePrinter(out, false);
             case GEOJSONL -> new GeoJsonFeaturePrinter(out, true);
             case MAP -> new MapFeaturePrinter(out);
             case POLY -> new PolyFeaturePrinter(out);
             case WKT -> new WktFeaturePrinter(out);
             case XML -> new OsmXmlFeaturePrinter(out);
-            case STATS -> new StatsFeaturePrinter(out);
+            case STATS -> new StatsFeaturePrinter(out, stderr);
             case TABLE -> new TableFeaturePrinter(out);
             default -> new NullFeaturePrinter();
         };
@@ -168,34 +243,104 @@ public class QueryCommand extends GolCommand
         printer.coordinateTransformer(new CoordinateTransformer.FromMercator(precision));
         printer.columns(tags);
 
-        printer.printHeader();
-        Features<?> selected = features.select(query);
-        if(area != null)
+        try
         {
-            selected = selected.select(Filters.intersects(area));
+            printer.printHeader();
+            if(format == ResultFormat.COUNT)
+            {
+                count = Math.min(countFeatures(), limit);
+            }
+            else
+            {
+                Features<?> selected = features.select(query);
+                if(area != null)
+                {
+                    selected = selected.select(areaFilter);
+                }
+                else if(bbox != null)
+                {
+                    selected = selected.in(bbox);
+                }
+                for(Feature f: selected)
+                {
+                    printer.print(f);
+                    // out.flush();
+                    count++;
+                    if(count == limit) break;
+                }
+            }
+            printer.printFooter();
         }
-        else if(bbox != null)
+        finally
         {
-            selected = selected.in(bbox);
+            printer.close();
         }
-        for(Feature f: selected)
+        if(format == ResultFormat.COUNT)
         {
-            printer.print(f);
-            // out.flush();
-            count++;
-            if(count == limit) break;
+            out.println(count);
         }
-        printer.printFooter();
         out.flush();
+        return count;
+    }
 
-        if(format == ResultFormat.COUNT)
+    /**
+     * Builds the key under which the result of this query is cached. Besides
+     * the query and its options, it includes the ID of the tile set and the
+     * page and revision of every tile in the query's bounding box or area
+     * (see `UpdatableFeatureStore.tileRevision()`), so changes to the GOL
+     * yield a different key.
+     *
+     * @return the key
+     */
+    private String cacheKey()
+    {
+        ResultCache.Key key = new ResultCache.Key();
+        FeatureStore store = features.store();
+        key.add(store.getGuid().toString());
+        key.add(query.trim().replaceAll("\\s+", " "));
+        key.add(format.toString());
+        key.add(precision);
+        key.add(limit);
+        key.add(tags == null ? null : String.join(",", tags));
+        key.add(formatOptions == null ? null : String.join("\0",
+            formatOptions.stream().map(String::valueOf).toList()));
+        if(area != null)
         {
-            System.out.println(count);
+            key.add(new WKBWriter().write(area));
         }
-        if(verbosity >= Verbosity.NORMAL)
+        else
         {
-            System.err.format("\nRetrieved %,d features in %s\n", count,
-                Format.formatTimespan(System.currentTimeMillis() - start));
+            key.add(bbox == null ? null : bbox.toString());
+        }
+        IntIterator iter = getTiles().intIterator();
+        while(iter.hasNext())
+        {
+            int tip = iter.next();
+            int page = store.tilePage(tip);
+            key.add(((long)tip << 32) | page);
+            key.add(page == 0 ? 0 : UpdatableFeatureStore.tileRevision(store, page));
+        }
+        return key.hash();
+    }
+
+    /**
+     * Counts the features that match the query, without creating
+     * Feature objects.
+     *
+     * @return the number of features
+     */
+    private long countFeatures()
+    {
+        Bounds bounds;
+        if(area != null)
+        {
+            bounds = areaFilter.bounds();
+        }
+        else
+        {
+            bounds = bbox != null ? bbox : Box.ofWorld();
         }
+        FeatureCounter counter = new FeatureCounter(features.store(), query, bounds);
+        return counter.count(getTileIndexWalker());
     }
 }
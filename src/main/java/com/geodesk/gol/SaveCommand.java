@@ -7,44 +7,38 @@
 
 package com.geodesk.gol;
 
+import com.clarisma.common.cli.Option;
 import com.clarisma.common.cli.Parameter;
 import com.clarisma.common.cli.Verbosity;
 import com.geodesk.feature.store.FeatureStore;
 import com.geodesk.feature.store.TileExporter;
 import com.clarisma.common.util.ProgressReporter;
+import com.geodesk.feature.store.Tip;
 import org.eclipse.collections.api.list.primitive.IntList;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Properties;
 import java.util.UUID;
+import java.util.stream.IntStream;
 
 public class SaveCommand extends GolCommand
 {
     private Path exportPath;
+    private TileCodec codec;
 
-    @Parameter("1=path")
-    public void exportPath(String path)
+    @Option("codec,c=deflate|deflate-dict: compression method for the tiles")
+    public void codec(String name)
     {
-        exportPath = Paths.get(path);
+        codec = TileCodec.fromString(name);
     }
 
-    private UUID readTilesetManifest(Path tilesetManifest) throws IOException
+    @Parameter("1=path")
+    public void exportPath(String path)
     {
-        if(!Files.exists(tilesetManifest)) return null;
-        Properties props = new Properties();
-        try(FileInputStream in = new FileInputStream(tilesetManifest.toFile()))
-        {
-            props.load(in);
-        }
-        String value = props.getProperty("guid");
-        if(value == null) return null;
-        return UUID.fromString(value);
+        exportPath = Paths.get(path);
     }
 
     @Override protected void performWithLibrary() throws Exception
@@ -52,7 +46,6 @@ public class SaveCommand extends GolCommand
         FeatureStore store = features.store();
         Path tilesetManifest = exportPath.resolve("tileset.txt");
         UUID storeId = store.getGuid();
-        UUID existingSetId = null;
 
         if(Files.exists(exportPath))
         {
@@ -60,12 +53,13 @@ public class SaveCommand extends GolCommand
             {
                 throw new IllegalArgumentException(exportPath + " is not a folder");
             }
-            existingSetId = readTilesetManifest(tilesetManifest);
         }
         else
         {
             Files.createDirectories(exportPath);
         }
+        TileSetManifest manifest = TileSetManifest.read(tilesetManifest);
+        UUID existingSetId = manifest.guid();
         if(existingSetId != null)
         {
             if(!existingSetId.equals(storeId))
@@ -77,23 +71,77 @@ public class SaveCommand extends GolCommand
         }
         else
         {
-            // TODO: write to temp file first, then rename (safer)
-
-            PrintStream out = new PrintStream(
-                new FileOutputStream(tilesetManifest.toFile()));
-            out.print("# TileSet Manifest\nguid=" + storeId);
-            out.close();
+            manifest.guid(storeId);
+        }
+        if(codec == null) codec = existingSetId != null ? manifest.codec() : TileCodec.DEFLATE;
+        manifest.codec(codec);
+        byte[] dictionary = null;
+        if(codec.usesDictionary())
+        {
+            Path dictionaryPath = exportPath.resolve(TileCodec.DICTIONARY_FILE);
+            if(manifest.isEmpty() || !Files.exists(dictionaryPath))
+            {
+                // A new dictionary invalidates all tiles exported so far;
+                // make sure the manifest says so before we replace it
+                manifest.clear();
+                manifest.write();
+                dictionary = TileCodec.buildDictionary(store, getTiles());
+                Files.write(dictionaryPath, dictionary);
+            }
+            else
+            {
+                dictionary = Files.readAllBytes(dictionaryPath);
+            }
         }
+        manifest.write();
+
+        // Only export the tiles whose contents differ from the copy
+        // in the tile set (or that have not been exported yet)
 
         IntList tiles = getTiles();
+        String[] hashes = new String[tiles.size()];
+        IntStream.range(0, tiles.size()).parallel().forEach(i ->
+        {
+            int page = store.tilePage(tiles.get(i));
+            if(page != 0) hashes[i] = TileSetManifest.hashTile(store, page);
+        });
+        MutableIntList changedTiles = new IntArrayList();
+        for(int i=0; i<tiles.size(); i++)
+        {
+            int tip = tiles.get(i);
+            if(hashes[i] == null) continue;
+            if(hashes[i].equals(manifest.hash(tip)) &&
+                Files.exists(Tip.path(exportPath, tip, ".tile")))
+            {
+                continue;
+            }
+            changedTiles.add(tip);
+        }
+        if(verbosity >= Verbosity.NORMAL && changedTiles.size() < tiles.size())
+        {
+            System.err.format("Skipping %d unchanged tiles...\n",
+                tiles.size() - changedTiles.size());
+        }
+
         ProgressReporter progress = new ProgressReporter(
-            tiles.size(), "tiles",
+            changedTiles.size(), "tiles",
             verbosity >= Verbosity.NORMAL ? "Exporting" : null,
             verbosity >= Verbosity.QUIET ? "Exported" : null);
-        TileExporter exporter = new TileExporter(store, exportPath, progress);
-        exporter.exportTiles(tiles);
-        // TODO: better error handling
-        Exception error = exporter.error();
+        new Exporter(store, exportPath, codec, dictionary, changedTiles, progress).export();
+
+        // The metadata is always written in the library's format (the
+        // library's exporter skips existing files, so we remove the old
+        // copy in case the metadata has changed)
+        Files.deleteIfExists(exportPath.resolve("meta.tile"));
+        TileExporter metaExporter = new TileExporter(store, exportPath, progress);
+        metaExporter.exportTiles(new IntArrayList());
+        Exception error = metaExporter.error();
         if(error != null) throw error;
+
+        for(int i=0; i<tiles.size(); i++)
+        {
+            if(hashes[i] != null) manifest.setHash(tiles.get(i), hashes[i]);
+        }
+        manifest.write();
     }
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol;
+
+import com.clarisma.common.cli.BasicCommand;
+import com.clarisma.common.cli.JvmLauncher;
+import com.clarisma.common.cli.Option;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Starts a server that keeps libraries open and runs queries on behalf
+ * of clients (see `GolServer`). If the environment variable `GOL_SERVER`
+ * is set, the `gol` launch script forwards queries to the server.
+ */
+public class ServeCommand extends BasicCommand
+{
+    private Path socketPath = JvmLauncher.defaultSocketPath("gol");
+
+    @Option("socket=path: Unix-domain socket on which to listen")
+    public void socket(String path)
+    {
+        socketPath = Paths.get(path);
+    }
+
+    @Override public int perform() throws Exception
+    {
+        new GolServer(socketPath, verbosity).run();
+        return 0;
+    }
+
+    @Override public int error(Throwable ex)
+    {
+        return ErrorReporter.report(ex, verbosity);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol;
+
+import com.geodesk.core.Tile;
+import com.geodesk.feature.store.FeatureStore;
+import com.geodesk.feature.store.TileIndexWalker;
+import com.geodesk.gol.util.TileReaderTask;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Checks the structure of the tiles selected by a TileIndexWalker, one
+ * tile per task. For each tile, the checker walks the spatial indexes
+ * and verifies that every index node, feature, tag table and body lies
+ * within the tile's blob, and that the features in each index have the
+ * expected type. (FeatureStoreChecker only verifies that the tile index
+ * refers to valid blobs; it does not look inside the tiles.)
+ *
+ * Errors are collected per tile and reported in TIP order.
+ */
+public class TileChecker extends Processor<TileChecker.Task>
+{
+    private final FeatureStore store;
+    private final TileIndexWalker walker;
+    private final List<TileError> errors = new ArrayList<>();
+    private int tileCount;
+
+    /**
+     * The maximum number of errors recorded for a single tile.
+     */
+    private static final int MAX_ERRORS_PER_TILE = 10;
+
+    private record TileError(int tip, int tile, String message) {}
+
+    public TileChecker(FeatureStore store, TileIndexWalker walker)
+    {
+        this.store = store;
+        this.walker = walker;
+    }
+
+    protected class Task extends TileReaderTask
+    {
+        private final int tip;
+        private final int tile;
+        private int start;
+        private int end;
+        private int currentType;
+        private int errorCount;
+
+        Task(int tip, int tile)
+        {
+            this.tip = tip;
+            this.tile = tile;
+        }
+
+        private void error(String msg, Object... args)
+        {
+            if(++errorCount <= MAX_ERRORS_PER_TILE)
+            {
+                addError(new TileError(tip, tile, String.format(msg, args)));
+            }
+        }
+
+        private boolean checkRange(int p, int len, String what, int pFeature)
+        {
+            if(p >= start && p + len <= end) return true;
+            if(pFeature < 0)
+            {
+                error("%s at %d lies outside of the tile", what, p - start);
+            }
+            else
+            {
+                error("%s of feature at %d lies outside of the tile",
+                    what, pFeature - start);
+            }
+            return false;
+        }
+
+        @Override protected void beginIndex(int type, int indexBits)
+        {
+            currentType = type;
+        }
+
+        private void checkFeature(int p, int expectedType, int stubStart, int stubLen)
+        {
+            if(!checkRange(p - stubStart, stubLen, "Feature", -1)) return;
+            int flags = buf.getInt(p);
+            int type = (flags >>> 3) & 3;
+            if(type != expectedType)
+            {
+                error("Feature at %d has type %d, expected %d in index %d",
+                    p - start, type, expectedType, currentType);
+            }
+            int ppTags = p + 8;
+            checkRange((buf.getInt(ppTags) & ~1) + ppTags, 4, "Tag table", p);
+            if(type != 0)
+            {
+                int ppBody = p + 12;
+                checkRange(buf.getInt(ppBody) + ppBody, 0, "Body", p);
+                if(buf.getInt(p-16) > buf.getInt(p-8) ||
+                    buf.getInt(p-12) > buf.getInt(p-4))
+                {
+                    error("Feature at %d has an invalid bounding box", p - start);
+                }
+            }
+            else if((flags & 4) != 0)
+            {
+                int ppRelations = p + 12;
+                checkRange(buf.getInt(ppRelations) + ppRelations, 4,
+                    "Relation table", p);
+            }
+        }
+
+        @Override protected void node(int p)
+        {
+            checkFeature(p, 0, 8, (buf.getInt(p) & 4) != 0 ? 24 : 20);
+        }
+
+        @Override protected void way(int p)
+        {
+            checkFeature(p, 1, 16, 32);
+        }
+
+        @Override protected void relation(int p)
+        {
+            checkFeature(p, 2, 16, 32);
+        }
+
+        @Override public void run()
+        {
+            try
+            {
+                int page = store.tilePage(tip);
+                ByteBuffer tileBuf = store.bufferOfPage(page);
+                int pTile = store.offsetOfPage(page);
+                int payloadSize = tileBuf.getInt(pTile) & 0x3fff_ffff;
+                start = pTile;
+                end = pTile + 4 + payloadSize;
+                if(payloadSize < 20 || end > tileBuf.capacity())
+                {
+                    error("Invalid tile size (%d bytes)", payloadSize);
+                }
+                else
+                {
+                    start(tileBuf, pTile);
+                    super.run();
+                }
+            }
+            catch(RuntimeException ex)
+            {
+                // A corrupted index pointer typically leads us outside
+                // of the mapped segment
+                error("Unreadable tile structure (%s)", ex);
+            }
+            completed(1);
+        }
+    }
+
+    private synchronized void addError(TileError error)
+    {
+        errors.add(error);
+    }
+
+    @Override protected void feed()
+    {
+        List<Task> tasks = new ArrayList<>();
+        while(walker.next())
+        {
+            if(walker.tilePage() == 0) continue;
+            tasks.add(new Task(walker.tip(), walker.tile()));
+        }
+        tileCount = tasks.size();
+        setTotalWork("Checking", Math.max(tileCount, 1));
+        for(Task task: tasks)
+        {
+            if(failed()) break;
+            submit(task);
+        }
+    }
+
+    /**
+     * Checks the tiles.
+     */
+    public void check()
+    {
+        run();
+        errors.sort(Comparator.comparingInt(TileError::tip));
+    }
+
+    public int tileCount()
+    {
+        return tileCount;
+    }
+
+    public boolean hasErrors()
+    {
+        return !errors.isEmpty();
+    }
+
+    public void reportErrors(PrintStream out)
+    {
+        for(TileError error: errors)
+        {
+            out.format("Tile %s: %s\n", Tile.toString(error.tile), error.message);
+        }
+    }
+}
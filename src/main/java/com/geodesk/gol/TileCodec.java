@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol;
+
+import com.geodesk.feature.store.FeatureStore;
+import org.eclipse.collections.api.list.primitive.IntList;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * The compression methods for the tiles of a tile set. All codecs use
+ * the same file layout (header, zlib stream, CRC-32 of the uncompressed
+ * data); they differ in the compression level and in whether the zlib
+ * stream uses a preset dictionary.
+ *
+ * - `deflate`: the default level, without a dictionary. Tile sets that
+ *   use this codec can be read by any GeoDesk loader.
+ *
+ * - `deflate-dict`: the fastest level, with a preset dictionary made up
+ *   of slices of sample tiles (stored as `dictionary.bin` in the tile
+ *   set). The dictionary recovers most of the ratio that the faster
+ *   level gives up, since much of a small tile consists of structures
+ *   (headers, indexes, common tag tables) that recur in all tiles.
+ */
+public enum TileCodec
+{
+    DEFLATE("deflate", Deflater.DEFAULT_COMPRESSION, false),
+    DEFLATE_DICT("deflate-dict", Deflater.BEST_SPEED, true);
+
+    private final String name;
+    private final int level;
+    private final boolean usesDictionary;
+
+    /**
+     * The name of the file (in the tile set's folder) that holds the
+     * preset dictionary.
+     */
+    public static final String DICTIONARY_FILE = "dictionary.bin";
+
+    /**
+     * The maximum size of a preset dictionary (Deflate cannot refer back
+     * further than 32 KB).
+     */
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int SAMPLE_TILES = 64;
+    private static final int SLICE_SIZE = MAX_DICTIONARY_SIZE / SAMPLE_TILES / 2;
+
+    TileCodec(String name, int level, boolean usesDictionary)
+    {
+        this.name = name;
+        this.level = level;
+        this.usesDictionary = usesDictionary;
+    }
+
+    public int level()
+    {
+        return level;
+    }
+
+    public boolean usesDictionary()
+    {
+        return usesDictionary;
+    }
+
+    @Override public String toString()
+    {
+        return name;
+    }
+
+    public static TileCodec fromString(String s)
+    {
+        for(TileCodec codec: values())
+        {
+            if(codec.name.equals(s)) return codec;
+        }
+        throw new IllegalArgumentException("Unknown codec: " + s);
+    }
+
+    /**
+     * Builds a preset dictionary from a sample of tiles: a slice from
+     * the start of each tile (its header and indexes) and a slice from
+     * its middle (feature bodies and tag tables). Since Deflate favors
+     * matches at shorter distances, the slices of the smaller tiles
+     * (which benefit the most) are placed at the end.
+     *
+     * @param store     the store
+     * @param tiles     the TIPs of the tiles to sample from
+     * @return          the dictionary (empty if there are no tiles)
+     */
+    public static byte[] buildDictionary(FeatureStore store, IntList tiles)
+    {
+        int count = Math.min(tiles.size(), SAMPLE_TILES);
+        ByteBuffer[] samples = new ByteBuffer[count];
+        for(int i=0; i<count; i++)
+        {
+            int page = store.tilePage(tiles.get((int)((long)i * tiles.size() / count)));
+            if(page == 0) continue;
+            ByteBuffer buf = store.bufferOfPage(page).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            int ofs = store.offsetOfPage(page);
+            int payloadSize = buf.getInt(ofs) & 0x3fff_ffff;
+            samples[i] = buf.limit(ofs + 4 + payloadSize).position(ofs + 8).slice();
+        }
+        Arrays.sort(samples, (a, b) -> a == null ? (b == null ? 0 : -1) :
+            (b == null ? 1 : Integer.compare(b.remaining(), a.remaining())));
+
+        ByteBuffer dict = ByteBuffer.allocate(MAX_DICTIONARY_SIZE);
+        for(ByteBuffer sample: samples)
+        {
+            if(sample == null) continue;
+            int len = sample.remaining();
+            int sliceLen = Math.min(SLICE_SIZE, len);
+            dict.put(sample.slice(0, sliceLen));
+            if(len > sliceLen * 2)
+            {
+                dict.put(sample.slice(len / 2, sliceLen));
+            }
+        }
+        byte[] bytes = new byte[dict.position()];
+        dict.flip().get(bytes);
+        return bytes;
+    }
+}
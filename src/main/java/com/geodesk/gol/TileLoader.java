@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol;
+
+import com.clarisma.common.util.Bytes;
+import com.clarisma.common.util.Log;
+import com.clarisma.common.util.ProgressReporter;
+import com.geodesk.gol.tiles.UpdatableFeatureStore;
+import org.eclipse.collections.api.list.primitive.IntList;
+import org.eclipse.collections.api.map.primitive.MutableIntIntMap;
+import org.eclipse.collections.api.set.primitive.IntSet;
+import org.eclipse.collections.api.set.primitive.MutableIntSet;
+import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
+import org.eclipse.collections.impl.set.mutable.primitive.IntHashSet;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static com.clarisma.common.store.BlobStoreConstants.*;
+
+/**
+ * Loads tiles from a tile set (as written by `gol save`) into a
+ * FeatureStore. The worker threads fetch and decompress the tiles
+ * concurrently; a single committer thread writes them into the store
+ * and installs them in batches (see `UpdatableFeatureStore.replaceTiles()`).
+ *
+ * The TIPs of the committed tiles are appended to a progress file, so an
+ * interrupted load can resume where it left off; the progress file is
+ * deleted once all tiles have been loaded. (Tiles that were already
+ * installed are skipped in any case, since their tile index entry is
+ * no longer empty.)
+ *
+ * The tile set can be a local folder (a `file:` URL) or an HTTP server.
+ * Its manifest (if any) determines the codec of the tiles; if the codec
+ * uses a preset dictionary, the dictionary is fetched before the tiles.
+ */
+public class TileLoader extends Processor<TileLoader.Task>
+{
+    private final UpdatableFeatureStore store;
+    private final String baseUrl;
+    private final IntList tiles;
+    private final Path progressPath;
+    private final UUID guid;
+    private final BlockingQueue<LoadedTile> committerQueue;
+    private final ProgressReporter progress;
+    private Thread committer;
+    private Writer progressWriter;
+    private byte[] dictionary;
+
+    /**
+     * The maximum number of tiles installed in a single transaction.
+     */
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final LoadedTile END = new LoadedTile(0, null);
+
+    private static class LoadedTile
+    {
+        final int tip;
+        final byte[] data;
+
+        LoadedTile(int tip, byte[] data)
+        {
+            this.tip = tip;
+            this.data = data;
+        }
+    }
+
+    public TileLoader(UpdatableFeatureStore store, String url, IntList tiles,
+        ProgressReporter progress)
+    {
+        this.store = store;
+        this.baseUrl = url.endsWith("/") ? url : (url + "/");
+        this.tiles = tiles;
+        this.progress = progress;
+        progressPath = progressPath(store.path());
+        guid = store.getGuid();
+        committerQueue = new ArrayBlockingQueue<>(
+            Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * Returns the path of the file that lists the tiles loaded so far
+     * into the given GOL.
+     */
+    public static Path progressPath(Path golPath)
+    {
+        return golPath.resolveSibling(golPath.getFileName() + ".loading");
+    }
+
+    /**
+     * Reads the TIPs of the tiles that have been committed by an earlier
+     * (interrupted) load.
+     */
+    public static IntSet readProgress(Path golPath) throws IOException
+    {
+        MutableIntSet tips = new IntHashSet();
+        Path path = progressPath(golPath);
+        if(!Files.exists(path)) return tips;
+        for(String line: Files.readAllLines(path))
+        {
+            line = line.trim();
+            if(line.isEmpty()) continue;
+            try
+            {
+                tips.add(Integer.parseInt(line, 16));
+            }
+            catch(NumberFormatException ex)
+            {
+                // The last line may be incomplete if the load was interrupted
+                Log.warn("%s: Ignoring invalid entry \"%s\"", path, line);
+            }
+        }
+        return tips;
+    }
+
+    protected class Task implements Runnable
+    {
+        private final int tip;
+
+        Task(int tip)
+        {
+            this.tip = tip;
+        }
+
+        public void run()
+        {
+            try
+            {
+                URL url = new URL(String.format("%s%03X/%03X.tile",
+                    baseUrl, tip >>> 12, tip & 0xfff));
+                byte[] file;
+                try(InputStream in = url.openStream())
+                {
+                    file = in.readAllBytes();
+                }
+                committerQueue.put(new LoadedTile(tip, decode(url, file)));
+            }
+            catch(InterruptedException ex)
+            {
+                // loader has failed, we're done
+            }
+            catch (Throwable ex)
+            {
+                fail(ex);
+            }
+        }
+
+        /**
+         * Checks the header of a tile file, and decompresses its contents.
+         */
+        private byte[] decode(URL url, byte[] file) throws IOException
+        {
+            if(file.length < EXPORTED_HEADER_LEN + 4 ||
+                Bytes.getInt(file, 0) != EXPORTED_MAGIC)
+            {
+                throw new IOException(url + ": Not a valid tile file");
+            }
+            UUID fileGuid = new UUID(
+                Bytes.getLong(file, EXPORTED_HEADER_GUID + 8),
+                Bytes.getLong(file, EXPORTED_HEADER_GUID));
+            if(!fileGuid.equals(guid))
+            {
+                throw new IOException(String.format(
+                    "%s: Tile belongs to a different tile set (%s)", url, fileGuid));
+            }
+            int len = Bytes.getInt(file, EXPORTED_ORIGINAL_LEN_OFS);
+            if(len < 0 || len > (1 << 30) - 8)
+            {
+                throw new IOException(url + ": Invalid tile size");
+            }
+            byte[] data = new byte[len];
+            Inflater inflater = new Inflater();
+            try
+            {
+                inflater.setInput(file, EXPORTED_HEADER_LEN,
+                    file.length - EXPORTED_HEADER_LEN - 4);
+                int n = 0;
+                while(n < len)
+                {
+                    int chunk = inflater.inflate(data, n, len - n);
+                    if(chunk == 0)
+                    {
+                        if(inflater.needsDictionary())
+                        {
+                            if(dictionary == null)
+                            {
+                                throw new IOException(url + ": Tile requires a dictionary");
+                            }
+                            inflater.setDictionary(dictionary);
+                            continue;
+                        }
+                        if(inflater.finished() || inflater.needsInput()) break;
+                    }
+                    n += chunk;
+                }
+                if(n != len) throw new IOException(url + ": Tile is truncated");
+            }
+            catch(DataFormatException ex)
+            {
+                throw new IOException(url + ": " + ex.getMessage(), ex);
+            }
+            finally
+            {
+                inflater.end();
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            if((int)crc.getValue() != Bytes.getInt(file, file.length - 4))
+            {
+                throw new IOException(url + ": Checksum mismatch");
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Writes the loaded tiles into the store, and installs them in batches.
+     */
+    private class Committer extends Thread
+    {
+        private final MutableIntIntMap batch = new IntIntHashMap();
+
+        @Override public void run()
+        {
+            try
+            {
+                for(;;)
+                {
+                    LoadedTile tile = committerQueue.poll();
+                    if(tile == null)
+                    {
+                        // Nothing waiting: install what we have so far
+                        flush();
+                        tile = committerQueue.take();
+                    }
+                    if(tile == END) break;
+                    write(tile);
+                    if(batch.size() >= MAX_BATCH_SIZE) flush();
+                }
+                flush();
+            }
+            catch(InterruptedException ex)
+            {
+                // loader has failed, we're done
+            }
+            catch(Throwable ex)
+            {
+                fail(ex);
+            }
+        }
+
+        private void write(LoadedTile tile) throws IOException
+        {
+            // The exported data starts at the second word of the tile
+            // (after the blob header and the tile's reserved word)
+            int page = store.allocateTile(tile.data.length + 4);
+            ByteBuffer buf = store.bufferOfPage(page);
+            int ofs = store.offsetOfPage(page);
+            buf.putInt(ofs + 4, 0);
+            buf.put(ofs + 8, tile.data);
+            batch.put(tile.tip, page);
+        }
+
+        private void flush() throws IOException
+        {
+            if(batch.isEmpty()) return;
+            store.replaceTiles(batch);
+            StringBuilder buf = new StringBuilder();
+            batch.forEachKey(tip -> buf.append(Integer.toHexString(tip)).append('\n'));
+            progressWriter.write(buf.toString());
+            progressWriter.flush();
+            progress.progress(batch.size());
+            batch.clear();
+        }
+    }
+
+    @Override protected void feed() throws Exception
+    {
+        for(int i=0; i<tiles.size(); i++)
+        {
+            if(failed()) break;
+            submit(new Task(tiles.get(i)));
+        }
+    }
+
+    /**
+     * Loads the tiles.
+     */
+    public void load() throws IOException
+    {
+        if(tiles.isEmpty()) return;
+        TileSetManifest manifest = TileSetManifest.read(new URL(baseUrl + "tileset.txt"));
+        if(manifest.codec().usesDictionary())
+        {
+            try(InputStream in = new URL(baseUrl + TileCodec.DICTIONARY_FILE).openStream())
+            {
+                dictionary = in.readAllBytes();
+            }
+        }
+        progressWriter = new OutputStreamWriter(new FileOutputStream(
+            progressPath.toFile(), true), StandardCharsets.UTF_8);
+        committer = new Committer();
+        committer.setName("committer");
+        committer.start();
+        try
+        {
+            run();
+            while(committer.isAlive())
+            {
+                if(committerQueue.offer(END, 100, TimeUnit.MILLISECONDS)) break;
+            }
+            committer.join();
+        }
+        catch(InterruptedException ex)
+        {
+            throw new IOException("Interrupted while loading tiles", ex);
+        }
+        catch(RuntimeException ex)
+        {
+            committer.interrupt();
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException ioex) throw ioex;
+            throw ex;
+        }
+        finally
+        {
+            progressWriter.close();
+        }
+        if(failed()) throw new IOException("Failed to load tiles");
+        Files.deleteIfExists(progressPath);
+    }
+}
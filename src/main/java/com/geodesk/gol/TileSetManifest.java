@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol;
+
+import com.geodesk.feature.store.FeatureStore;
+import org.eclipse.collections.api.map.primitive.MutableIntObjectMap;
+import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * The manifest of a tile set written by `gol save` (`tileset.txt`): the
+ * GUID of the GOL the tiles came from, the codec used to compress the
+ * tiles (see `TileCodec`), and a content hash for each exported tile,
+ * which lets a subsequent save skip the tiles that have not changed.
+ *
+ * ```
+ * # TileSet Manifest
+ * guid=<guid>
+ * codec=<codec>
+ * tile.<tip>=<hash>
+ * ```
+ *
+ * Tile sets that lack a `codec` entry use `deflate`.
+ *
+ * The TIP is in hex; the hash is the first 128 bits of the SHA-256
+ * digest of the tile's contents (in hex).
+ */
+public class TileSetManifest
+{
+    private final Path path;
+    private UUID guid;
+    private TileCodec codec = TileCodec.DEFLATE;
+    private final MutableIntObjectMap<String> hashes = new IntObjectHashMap<>();
+
+    private static final String TILE_PREFIX = "tile.";
+
+    private TileSetManifest(Path path)
+    {
+        this.path = path;
+    }
+
+    /**
+     * Reads the manifest at the given path, or creates an empty manifest
+     * (with no GUID) if the file does not exist.
+     */
+    public static TileSetManifest read(Path path) throws IOException
+    {
+        TileSetManifest manifest = new TileSetManifest(path);
+        if(!Files.exists(path)) return manifest;
+        try(FileInputStream in = new FileInputStream(path.toFile()))
+        {
+            manifest.load(in);
+        }
+        return manifest;
+    }
+
+    /**
+     * Reads the manifest of a remote tile set (for reading only), or
+     * creates an empty manifest if the tile set has none.
+     */
+    public static TileSetManifest read(URL url) throws IOException
+    {
+        TileSetManifest manifest = new TileSetManifest(null);
+        try(InputStream in = url.openStream())
+        {
+            manifest.load(in);
+        }
+        catch(FileNotFoundException | NoSuchFileException ex)
+        {
+            // tile sets written by older versions have no manifest
+        }
+        return manifest;
+    }
+
+    private void load(InputStream in) throws IOException
+    {
+        Properties props = new Properties();
+        props.load(in);
+        String value = props.getProperty("guid");
+        if(value != null) guid = UUID.fromString(value);
+        value = props.getProperty("codec");
+        if(value != null) codec = TileCodec.fromString(value);
+        for(String key: props.stringPropertyNames())
+        {
+            if(!key.startsWith(TILE_PREFIX)) continue;
+            try
+            {
+                int tip = Integer.parseInt(key.substring(TILE_PREFIX.length()), 16);
+                hashes.put(tip, props.getProperty(key));
+            }
+            catch(NumberFormatException ex)
+            {
+                // ignore entries we don't understand
+            }
+        }
+    }
+
+    public UUID guid()
+    {
+        return guid;
+    }
+
+    public void guid(UUID guid)
+    {
+        this.guid = guid;
+    }
+
+    public TileCodec codec()
+    {
+        return codec;
+    }
+
+    /**
+     * Sets the codec of the tile set. Since all tiles of a set must use
+     * the same codec, this discards the hashes of the tiles exported
+     * previously if the codec changes.
+     */
+    public void codec(TileCodec codec)
+    {
+        if(codec != this.codec) hashes.clear();
+        this.codec = codec;
+    }
+
+    /**
+     * Returns the hash of the exported copy of the given tile, or `null`
+     * if the tile has not been exported.
+     */
+    public String hash(int tip)
+    {
+        return hashes.get(tip);
+    }
+
+    public void setHash(int tip, String hash)
+    {
+        hashes.put(tip, hash);
+    }
+
+    public boolean isEmpty()
+    {
+        return hashes.isEmpty();
+    }
+
+    /**
+     * Discards the hashes of all tiles.
+     */
+    public void clear()
+    {
+        hashes.clear();
+    }
+
+    /**
+     * Writes the manifest to a temporary file, which then replaces the
+     * manifest file.
+     */
+    public void write() throws IOException
+    {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try(PrintWriter out = new PrintWriter(new OutputStreamWriter(
+            new FileOutputStream(tempPath.toFile()), StandardCharsets.ISO_8859_1)))
+        {
+            out.print("# TileSet Manifest\n");
+            out.print("guid=" + guid + "\n");
+            out.print("codec=" + codec + "\n");
+            int[] tips = hashes.keySet().toSortedArray();
+            for(int tip: tips)
+            {
+                out.format("%s%X=%s\n", TILE_PREFIX, tip, hashes.get(tip));
+            }
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Calculates the hash of a tile's contents (the data that is exported).
+     * This method is threadsafe.
+     *
+     * @param store     the store
+     * @param page      the first page of the tile's blob
+     * @return          the hash (in hex)
+     */
+    public static String hashTile(FeatureStore store, int page)
+    {
+        ByteBuffer buf = store.bufferOfPage(page).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int ofs = store.offsetOfPage(page);
+        int payloadSize = buf.getInt(ofs) & 0x3fff_ffff;
+        buf.limit(ofs + 4 + payloadSize).position(ofs + 8);
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(buf);
+            return HexFormat.of().formatHex(digest.digest(), 0, 16);
+        }
+        catch(NoSuchAlgorithmException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -24,6 +24,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.zip.GZIPInputStream;
 
 public class UpdateCommand extends GolCommand
@@ -54,14 +56,11 @@ public class UpdateCommand extends GolCommand
         // TODO: do we need a work path?
         BuildContext context = new BuildContext(features.store(), null, project);
 
-        Updater updater = new Updater(context);
+        List<Path> files = new ArrayList<>(sourceFiles.length);
+        for(String file: sourceFiles) files.add(Path.of(file));
+        Updater updater = new Updater(context, files);
         updater.update();
 
-        /*
-        TileCompiler compiler = new TileCompiler(context);
-        compiler.compileAll();
-        */
-
         /*
         ChangeModel changes = new ChangeModel(features.store());
         String oscFile = "c:\\geodesk\\research\\world-3803.osc.gz";
@@ -117,6 +116,13 @@ public class UpdateCommand extends GolCommand
 
          */
 
-        System.err.format("Processed updates in %s\n" , Format.formatTimespan(System.currentTimeMillis() - start));
+        // TODO: The changes are only analyzed; they cannot be applied to the
+        //  tiles yet, since a rewritten tile relocates its features, which
+        //  the features of other tiles reference by offset. Once they are,
+        //  call updater.trackStringUsage() and promote the strings that
+        //  have become common (see StringPromoter); until then, the strings
+        //  of the changes must not count towards promotion
+        System.err.format("Analyzed updates in %s (the changes have not been " +
+            "applied to the GOL)\n", Format.formatTimespan(System.currentTimeMillis() - start));
     }
 }
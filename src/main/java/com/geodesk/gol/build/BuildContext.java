@@ -9,6 +9,7 @@ package com.geodesk.gol.build;
 
 import com.clarisma.common.index.DenseInt16Index;
 import com.clarisma.common.index.DensePackedIntIndex;
+import com.clarisma.common.index.IdRangeSummary;
 import com.clarisma.common.index.IntIndex;
 import com.clarisma.common.io.MappedFile;
 import com.clarisma.common.io.PileFile;
@@ -26,6 +27,7 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
 
 import static java.nio.file.StandardOpenOption.READ;
@@ -47,9 +49,14 @@ public class BuildContext
     private IntIndex nodeIndex;
     private IntIndex wayIndex;
     private IntIndex relationIndex;
+    private IdRangeSummary nodeSummary;
+    private IdRangeSummary waySummary;
+    private IdRangeSummary relationSummary;
+    private boolean summariesCreated;
 
     private static final int IMPORT_DB_PAGE_SIZE = 1 << 16; // TODO: configurable
     private static final int LINKER_EXPORTS_PAGE_SIZE = 1 << 13; // TODO: configurable
+    private static final int ID_SUMMARY_BLOCK_BITS = 8;
 
     public BuildContext(Path golPath, Path workPath, Project project)
     {
@@ -109,6 +116,13 @@ public class BuildContext
         nodeIndex = openIndex("nodes.idx", 0, true);
         wayIndex = openIndex("ways.idx", 2, true);
         relationIndex = openIndex("relations.idx", 2, true);
+        if(project.idSummaries())
+        {
+            nodeSummary = new IdRangeSummary(ID_SUMMARY_BLOCK_BITS);
+            waySummary = new IdRangeSummary(ID_SUMMARY_BLOCK_BITS);
+            relationSummary = new IdRangeSummary(ID_SUMMARY_BLOCK_BITS);
+            summariesCreated = true;
+        }
     }
 
     public void closeIndexes() throws IOException
@@ -120,6 +134,14 @@ public class BuildContext
         nodeIndex = null;
         wayIndex = null;
         relationIndex = null;
+        if(summariesCreated)
+        {
+            writeSummaries();
+            summariesCreated = false;
+        }
+        nodeSummary = null;
+        waySummary = null;
+        relationSummary = null;
     }
 
     public IntIndex getNodeIndex() throws IOException
@@ -140,6 +162,47 @@ public class BuildContext
         return relationIndex;
     }
 
+    /**
+     * Returns the summary of the IDs in the node index, or `null` if the
+     * GOL was built without ID summaries (or the `id-summaries` setting
+     * is off).
+     */
+    public IdRangeSummary getNodeSummary() throws IOException
+    {
+        if(nodeSummary == null) nodeSummary = readSummary("nodes.sum");
+        return nodeSummary;
+    }
+
+    public IdRangeSummary getWaySummary() throws IOException
+    {
+        if(waySummary == null) waySummary = readSummary("ways.sum");
+        return waySummary;
+    }
+
+    public IdRangeSummary getRelationSummary() throws IOException
+    {
+        if(relationSummary == null) relationSummary = readSummary("relations.sum");
+        return relationSummary;
+    }
+
+    private IdRangeSummary readSummary(String fileName) throws IOException
+    {
+        if(!project.idSummaries()) return null;
+        Path path = idIndexPath.resolve(fileName);
+        return Files.exists(path) ? IdRangeSummary.read(path) : null;
+    }
+
+    /**
+     * Writes the ID summaries that have been created or read (e.g. after
+     * an update has added the IDs of new features to them).
+     */
+    public void writeSummaries() throws IOException
+    {
+        if(nodeSummary != null) nodeSummary.write(idIndexPath.resolve("nodes.sum"));
+        if(waySummary != null) waySummary.write(idIndexPath.resolve("ways.sum"));
+        if(relationSummary != null) relationSummary.write(idIndexPath.resolve("relations.sum"));
+    }
+
     private IntIndex openIndex(String fileName, int extraBits, boolean create) throws IOException
     {
         int tileCount = getTileCatalog().tileCount();
@@ -199,7 +262,7 @@ public class BuildContext
         assert pileFile == null;
         int pageSize = IMPORT_DB_PAGE_SIZE; // TODO: tkae form config
         pileFile = PileFile.create(workPath.resolve("features.bin"),
-            getTileCatalog().tileCount(), pageSize);
+            getTileCatalog().tileCount(), pageSize, project.compressPiles());
         return pileFile;
     }
 
@@ -213,6 +276,44 @@ public class BuildContext
         return pileFile;
     }
 
+    /**
+     * Rewrites the pile file so that the pages of each pile are contiguous,
+     * which turns the reads of the Validator and Compiler into sequential
+     * reads. The pile file is closed afterward.
+     */
+    public void compactPileFile() throws IOException
+    {
+        Path path = workPath.resolve("features.bin");
+        Path tempPath = workPath.resolve("features.tmp");
+        PileFile source = getPileFile();
+        PileFile target = PileFile.create(tempPath, source.pileCount(),
+            IMPORT_DB_PAGE_SIZE, source.isCompressed());
+        try
+        {
+            source.compactTo(target);
+        }
+        finally
+        {
+            target.close();
+            closePileFile();
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns the pile file mapped read-only (reopening it if it is
+     * currently open for writing).
+     */
+    public PileFile getPileFileForReading() throws IOException
+    {
+        if(pileFile != null && !pileFile.isReadOnly()) closePileFile();
+        if(pileFile == null)
+        {
+            pileFile = PileFile.openExisiting(workPath.resolve("features.bin"), true);
+        }
+        return pileFile;
+    }
+
     // TODO: not needed
     /*
     public ObjectIntMap<String> getGlobalStringMap() throws IOException
@@ -255,7 +356,8 @@ public class BuildContext
     {
         assert linkerExportFile == null;
         linkerExportFile = PileFile.create(workPath.resolve("exports.bin"),
-            getTileCatalog().tileCount(), LINKER_EXPORTS_PAGE_SIZE);
+            getTileCatalog().tileCount(), LINKER_EXPORTS_PAGE_SIZE,
+            project.compressPiles());
         return linkerExportFile;
     }
 
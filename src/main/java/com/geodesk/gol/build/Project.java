@@ -22,11 +22,14 @@ public class Project implements Serializable
 	private String name;		// TODO: needed?
 	private int verbosity;
 	private boolean keepWork;
+	private boolean compactPiles;
+	private boolean compressPiles;
 	private Path sourcePath;
 	private int maxTiles = 16 * 1024;
 	private int minTileDensity = 75_000;
 	private int zoomLevels = ZoomLevels.fromString(ZoomLevels.DEFAULT); // TODO
 	private int minStringUsage = 300;
+	private int stringPromotionScore = 15_000;
 	private int maxStringCount = 1 << 14;
 	private int rtreeBucketSize = 16;
 	private KeyIndexSchema keyIndexSchema;
@@ -35,6 +38,8 @@ public class Project implements Serializable
 	private Map<String,String> properties = new HashMap<>();
 	private boolean explicitIdIndexing;
 	private boolean idIndexing;
+	private boolean explicitIdSummaries;
+	private boolean idSummaries;
 	private boolean tagDuplicateNodes;
 	private boolean tagOrphanNodes;
 	private boolean updatable;
@@ -62,6 +67,16 @@ public class Project implements Serializable
 		return explicitIdIndexing ? idIndexing : updatable;
 	}
 
+	/**
+	 * Whether the build should write compact summaries of the ID indexes,
+	 * which let the updater skip index lookups for IDs that do not
+	 * exist. By default, summaries are written if IDs are indexed.
+	 */
+	public boolean idSummaries()
+	{
+		return explicitIdSummaries ? idSummaries : idIndexing();
+	}
+
 	public boolean isUpdatable()
 	{
 		return updatable;
@@ -102,6 +117,26 @@ public class Project implements Serializable
 		this.keepWork = keepWork;
 	}
 
+	/**
+	 * Whether the Sorter's pile file should be compacted before it is
+	 * validated, so each tile's features can be read sequentially (this
+	 * requires temporary disk space for a second copy of the file).
+	 */
+	public boolean compactPiles()
+	{
+		return compactPiles;
+	}
+
+	/**
+	 * Whether the contents of the work files written by the Sorter,
+	 * Validator and Compiler should be compressed, which reduces the
+	 * scratch space needed by a build at the cost of some CPU time.
+	 */
+	public boolean compressPiles()
+	{
+		return compressPiles;
+	}
+
 	public Path sourcePath() { return sourcePath; };
 
 	public void sourcePath(Path path)
@@ -146,6 +181,24 @@ public class Project implements Serializable
 		this.minStringUsage = count;
 	}
 
+	/**
+	 * The usage score (see UsageScores) at which a string that has been
+	 * introduced by updates is promoted to the global string table.
+	 * A key scores about 45 points for each feature that uses it, so the
+	 * default roughly corresponds to 300 uses. A score of 0 disables
+	 * promotion.
+	 */
+	public int stringPromotionScore()
+	{
+		return stringPromotionScore;
+	}
+
+	public void stringPromotionScore(int score)
+	{
+		checkRange(score, 0, Integer.MAX_VALUE);
+		this.stringPromotionScore = score;
+	}
+
 	public boolean tagDuplicateNodes()
 	{
 		return tagDuplicateNodes;
@@ -257,10 +310,20 @@ public class Project implements Serializable
 		case "source":
 			sourcePath(Path.of(value));
 			return true;
+		case "compact-piles":
+			compactPiles = booleanValue(value);
+			return true;
+		case "compress-piles":
+			compressPiles = booleanValue(value);
+			return true;
 		case "id-indexing":
 			idIndexing = booleanValue(value);
 			explicitIdIndexing = true;
 			return true;
+		case "id-summaries":
+			idSummaries = booleanValue(value);
+			explicitIdSummaries = true;
+			return true;
 		case "indexed-keys":
 			keyIndexSchema(value);
 			return true;
@@ -285,6 +348,9 @@ public class Project implements Serializable
 		case "rtree-bucket-size":
 			rtreeBucketSize(Integer.parseInt(value));
 			return true;
+		case "string-promotion-score":
+			stringPromotionScore(Integer.parseInt(value));
+			return true;
 		case "tag-duplicate-nodes":
 			tagDuplicateNodes = booleanValue(value);
 			return true;
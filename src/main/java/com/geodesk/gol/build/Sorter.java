@@ -8,6 +8,7 @@
 package com.geodesk.gol.build;
 
 import com.clarisma.common.cli.Verbosity;
+import com.clarisma.common.index.IdRangeSummary;
 import com.clarisma.common.index.IntIndex;
 import com.clarisma.common.io.PileFile;
 import com.clarisma.common.pbf.PbfOutputStream;
@@ -29,6 +30,7 @@ import org.eclipse.collections.api.map.primitive.MutableIntObjectMap;
 import org.eclipse.collections.api.map.primitive.MutableLongObjectMap;
 import org.eclipse.collections.api.map.primitive.MutableObjectIntMap;
 import org.eclipse.collections.api.map.primitive.ObjectIntMap;
+import org.eclipse.collections.api.tuple.primitive.IntObjectPair;
 import org.eclipse.collections.impl.factory.primitive.ObjectIntMaps;
 import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
 import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
@@ -65,6 +67,9 @@ public class Sorter extends OsmPbfReader
     private final IntIndex nodeIndex;
     private final IntIndex wayIndex;
     private final IntIndex relationIndex;
+    private final IdRangeSummary nodeSummary;
+    private final IdRangeSummary waySummary;
+    private final IdRangeSummary relationSummary;
     private List<RelationData> superRelations = new ArrayList<>();
     private final List<RelationData> emptyRelations = new ArrayList<>();
     private final ObjectIntMap<String> keyStrings;
@@ -90,6 +95,9 @@ public class Sorter extends OsmPbfReader
         nodeIndex = ctx.getNodeIndex();
         wayIndex = ctx.getWayIndex();
         relationIndex = ctx.getRelationIndex();
+        nodeSummary = ctx.getNodeSummary();
+        waySummary = ctx.getWaySummary();
+        relationSummary = ctx.getRelationSummary();
         keyStrings = loadStringMap(workPath.resolve("keys.txt"));
         valueStrings = loadStringMap(workPath.resolve("values.txt"));
         roleStrings = loadStringMap(workPath.resolve("roles.txt"));
@@ -221,6 +229,11 @@ public class Sorter extends OsmPbfReader
         int[] indexedPiles;
         int indexedFeatureCount;
         MutableIntObjectMap<GroupEncoder> encoders;
+        /**
+         * The encoded contents of each pile, ready to be appended
+         * (see `encode()`).
+         */
+        MutableIntObjectMap<byte[]> blocks;
 
         Batch(IntIndex index)
         {
@@ -266,19 +279,44 @@ public class Sorter extends OsmPbfReader
             return indexedFeatureCount == indexedIds.length;
         }
 
+        /**
+         * Finishes the groups and encodes (i.e. compresses, if needed)
+         * the contents of each pile. This happens on the worker thread
+         * that filled the batch, so only the appending itself is left
+         * to the single output thread.
+         */
+        void encode()
+        {
+            blocks = new IntObjectHashMap<>(encoders.size());
+            for (GroupEncoder encoder : encoders.values())
+            {
+                encoder.writeEnd();
+                blocks.put(encoder.pile(), pileFile.encodeBlock(
+                    encoder.buffer(), 0, encoder.size()));
+            }
+            encoders = null;
+        }
+
         @Override public void run()
         {
             try
             {
-                for (GroupEncoder encoder : encoders.values())
+                for (IntObjectPair<byte[]> block : blocks.keyValuesView())
                 {
-                    encoder.writeEnd();
-                    pileFile.append(encoder.pile(), encoder.buffer(), 0, encoder.size());
+                    pileFile.appendBlock(block.getOne(), block.getTwo());
                 }
                 for (int i = 0; i < indexedFeatureCount; i++)
                 {
                     index.put(indexedIds[i], indexedPiles[i]);
                 }
+                IdRangeSummary summary = index == nodeIndex ? nodeSummary :
+                    (index == wayIndex ? waySummary : relationSummary);
+                if(summary != null)
+                {
+                    // Batches are written by the single output thread,
+                    // so there is no need to synchronize
+                    for (int i = 0; i < indexedFeatureCount; i++) summary.add(indexedIds[i]);
+                }
                 // log(String.format("Batch %s: Indexed %d features", this, indexedFeatureCount));
             }
             catch (IOException ex)
@@ -1125,6 +1163,7 @@ public class Sorter extends OsmPbfReader
             {
                 Path indexPath = ((MappedFile)batch.index).path();
                 // log(String.format("Flushing batch %s to %s", batch, indexPath.getFileName()));
+                batch.encode();
                 output(batch);
             }
             catch (InterruptedException ex)
@@ -1872,26 +1872,36 @@ public class Validator
 
     /**
      * Writes the contents of the provided encoders into the database.
+     * The contents are encoded (compressed, if needed) on the calling
+     * thread; only the appending is serialized.
      *
      * @param encoders	a map of tile numbers to Encoders
      */
-    private synchronized void flushToPiles(IntObjectMap<Task.Encoder> encoders)
+    private void flushToPiles(IntObjectMap<Task.Encoder> encoders)
     {
+        MutableIntObjectMap<byte[]> blocks = new IntObjectHashMap<>(encoders.size());
         encoders.forEachKeyValue((tile, encoder) ->
         {
             int pile = tileCatalog.resolvePileOfTile(tile);
             assert pile > 0: String.format("Failed to resolve tile %s", Tile.toString(tile));
-            try
-            {
-                pileFile.append(pile, encoder.buffer(), 0,  encoder.size());
-            }
-            catch(IOException ex)
-            {
-                // TODO
-                System.out.println(ex);
-                ex.printStackTrace();
-            }
+            blocks.put(pile, pileFile.encodeBlock(encoder.buffer(), 0, encoder.size()));
         });
+        synchronized (this)
+        {
+            blocks.forEachKeyValue((pile, block) ->
+            {
+                try
+                {
+                    pileFile.appendBlock(pile, block);
+                }
+                catch(IOException ex)
+                {
+                    // TODO
+                    System.out.println(ex);
+                    ex.printStackTrace();
+                }
+            });
+        }
     }
 
     // TODO: turn exception into exit code
@@ -20,11 +20,15 @@ import com.geodesk.feature.store.Tip;
 import com.geodesk.geom.Bounds;
 import com.geodesk.gol.*;
 import com.geodesk.gol.build.*;
+import com.geodesk.gol.update.WayNodeIndexFile;
 import org.eclipse.collections.api.map.primitive.IntObjectMap;
+import org.eclipse.collections.api.map.primitive.MutableIntObjectMap;
 import org.eclipse.collections.api.map.primitive.ObjectIntMap;
+import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
@@ -43,10 +47,9 @@ public class Compiler extends Processor<Compiler.Task>
     private final Project project;
     private final PileFile pileFile;
     private final PileFile linkerExportFile;
-    private final PbfOutputStream linkerExportHeader = new PbfOutputStream();
     private final RandomAccessFile linkerImportFile;
     private Path debugPath;
-    private final Path wayNodeIndexPath;
+    private final WayNodeIndexFile.Writer wayNodeIndexFile;
     private final boolean debug = false; // true;
 
     private static final int DEFAULT_LINK_DB_PAGE_SIZE = 1 << 13; // TODO: configurable
@@ -57,7 +60,7 @@ public class Compiler extends Processor<Compiler.Task>
         this.rootPath = ctx.workPath();
         this.project = ctx.project();
         this.tileCatalog = ctx.getTileCatalog();
-        this.pileFile = ctx.getPileFile();
+        this.pileFile = ctx.getPileFileForReading();
         linkerImportFile = ctx.createLinkerImportFile();
         linkerExportFile = ctx.createLinkerExportFile();
 
@@ -72,8 +75,9 @@ public class Compiler extends Processor<Compiler.Task>
         // TODO: check if we need to have "" in the table
         //  (currently not included)
         globalStrings = featureStore.stringsToCodes();
-        wayNodeIndexPath = ctx.project().isUpdatable() ?
-            ctx.indexPath().resolve("waynodes") : null;
+        wayNodeIndexFile = ctx.project().isUpdatable() ?
+            WayNodeIndexFile.create(ctx.indexPath().resolve(WayNodeIndexFile.FILE_NAME),
+                tileCatalog.topTip()) : null;
     }
 
     protected class Task implements Runnable
@@ -400,26 +404,36 @@ public class Compiler extends Processor<Compiler.Task>
         {
             int sourceTile = tileCatalog.tileOfPile(pile);
             int sourceTip = tileCatalog.tipOfTile(sourceTile);
+
+            // Each export (header and data) is encoded as a single block
+            // on this thread, so compression doesn't happen under the lock
+            MutableIntObjectMap<byte[]> blocks = new IntObjectHashMap<>(exports.size());
+            exports.forEachKeyValue((targetTile, buf) ->
+            {
+                int targetPile = tileCatalog.resolvePileOfTile(targetTile);
+                // TODO: use simpler method, 1:1 mapping without resolving
+
+                int exportDataSize = buf.size();
+                byte[] export = new byte[8 + exportDataSize];
+                ByteBuffer header = ByteBuffer.wrap(export).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(0, sourceTip);
+                header.putInt(4, exportDataSize / 12);
+                System.arraycopy(buf.buffer(), 0, export, 8, exportDataSize);
+                blocks.put(targetPile, linkerExportFile.isCompressed() ?
+                    linkerExportFile.encodeBlock(export, 0, export.length) : export);
+            });
             synchronized (linkerExportFile)
             {
-                exports.forEachKeyValue((targetTile, buf) ->
+                blocks.forEachKeyValue((targetPile, block) ->
                 {
-                    int targetPile = tileCatalog.resolvePileOfTile(targetTile);
-                    // TODO: use simpler method, 1:1 mapping without resolving
-
-                    int exportDataSize = buf.size();
-                    linkerExportHeader.writeFixed32(sourceTip);
-                    linkerExportHeader.writeFixed32(exportDataSize / 12);
                     try
                     {
-                        linkerExportFile.append(targetPile, linkerExportHeader.buffer(), 0, 8);
-                        linkerExportFile.append(targetPile, buf.buffer(), 0, exportDataSize);
+                        linkerExportFile.appendBlock(targetPile, block);
                     }
                     catch (IOException ex)
                     {
                         throw new RuntimeException(ex); // TODO
                     }
-                    linkerExportHeader.reset();
                 });
             }
         }
@@ -437,11 +451,7 @@ public class Compiler extends Processor<Compiler.Task>
 
         private void writeWayNodeIndex(PbfOutputStream out) throws IOException
         {
-            // TODO: save to temp file first, then rename
-            Path path = Tip.path(wayNodeIndexPath, tip, ".wnx");
-            // TODO: make more efficient, avoid buffer copy
-            //  (can use PbfOutputStream qwith ofs/len)
-            Files.write(path, out.toByteArray());
+            wayNodeIndexFile.write(tip, out.buffer(), out.size());
         }
 
         private void dump(FeatureTile ft) throws IOException
@@ -465,7 +475,7 @@ public class Compiler extends Processor<Compiler.Task>
                 PbfOutputStream imports = writeTile();
                 writeImports(imports);
                 writeExports(archive.getExports());
-                if (wayNodeIndexPath != null && sourceTile != TileCatalog.PURGATORY_TILE)
+                if (wayNodeIndexFile != null && sourceTile != TileCatalog.PURGATORY_TILE)
                 {
                     writeWayNodeIndex(archive.createWayNodeIndex());
                 }
@@ -524,6 +534,7 @@ public class Compiler extends Processor<Compiler.Task>
 
         // TODO: verbosity
         pileFile.close();
+        if(wayNodeIndexFile != null) wayNodeIndexFile.close();
         System.err.format("Compiled %d tiles in %s\n",
             tileCatalog.tileCount(), Format.formatTimespan(timeElapsed()));
     }
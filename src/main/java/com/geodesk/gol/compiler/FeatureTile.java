@@ -21,6 +21,7 @@ import com.geodesk.core.Box;
 import com.geodesk.geom.Bounds;
 import com.geodesk.gol.build.Project;
 import com.geodesk.gol.build.TileCatalog;
+import com.geodesk.gol.update.WayNodeIndex;
 import org.eclipse.collections.api.map.primitive.*;
 import org.eclipse.collections.impl.map.mutable.primitive.IntObjectHashMap;
 import org.eclipse.collections.impl.map.mutable.primitive.LongLongHashMap;
@@ -436,6 +437,10 @@ public class FeatureTile
         });
     }
 
+    /**
+     * Creates the way-node index of this tile (see WayNodeIndex for
+     * a description of the format).
+     */
     public PbfOutputStream createWayNodeIndex()
     {
         List<SWay> wayList = new ArrayList<>(ways.size());
@@ -445,21 +450,17 @@ public class FeatureTile
         });
         Collections.sort(wayList);
 
-        PbfOutputStream out = new PbfOutputStream();
-        long prevId = 0;
-        for(SWay way: wayList)
+        long[] wayIds = new long[wayList.size()];
+        long[][] nodeIds = new long[wayList.size()][];
+        for(int i=0; i<wayIds.length; i++)
         {
-            long id = way.id();
-            out.writeSignedVarint(id - prevId);
-                // we could use unsigned delta, but this would require that
-                // we always sort the IDs to get efficient compression
-
-            assert way.nodeIds() != null:
-                "way/%d in %s has no nodeIds".formatted(id, Tile.toString(tile));
-            way.writeNodes(out);
-            prevId = id;
+            SWay way = wayList.get(i);
+            wayIds[i] = way.id();
+            nodeIds[i] = way.nodeIds();
+            assert nodeIds[i] != null:
+                "way/%d in %s has no nodeIds".formatted(wayIds[i], Tile.toString(tile));
         }
-        return out;
+        return WayNodeIndex.write(wayIds, nodeIds);
     }
 
     public void build()
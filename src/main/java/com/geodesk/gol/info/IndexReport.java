@@ -14,13 +14,24 @@ import com.geodesk.gol.util.TileReaderTask;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * A report on the use of the spatial indexes of a FeatureStore. The tiles
+ * are scanned in parallel; each thread accumulates its counts in its own
+ * partial Stats, which are merged once all tiles have been scanned.
+ *
+ * If the report is based on a sample of tiles, counts are scaled to the
+ * estimated totals, and the report is followed by the estimated index
+ * quality (IQ) of each feature type with its margin of error.
+ */
 public class IndexReport extends Table
 {
     private final FeatureStore store;
@@ -32,12 +43,25 @@ public class IndexReport extends Table
     private final int maxKeyStringCode;
     private final int valueNoBits;
     private final Stats[] tables;
+    private final TileSample sample;
+    private final List<Stats[]> partials = new ArrayList<>();
+    private final ThreadLocal<Stats[]> partial = ThreadLocal.withInitial(this::newPartial);
     private int totalTileCount;
+    private int walkedTileCount;
+
+    private static final String[] TYPE_NAMES = { "Nodes", "Ways", "Areas", "Relations", "All" };
 
     public IndexReport(FeatureStore store, TileIndexWalker walker, boolean calculateIQ)
+    {
+        this(store, walker, calculateIQ, TileSample.ALL);
+    }
+
+    public IndexReport(FeatureStore store, TileIndexWalker walker, boolean calculateIQ,
+        TileSample sample)
     {
         this.store = store;
         this.calculateIQ = calculateIQ;
+        this.sample = sample;
 
         valueNoBits = (store.codeFromString("no") << 16) | 1;
 
@@ -101,6 +125,16 @@ public class IndexReport extends Table
             scannedCount += other.scannedCount;
             tileCount = Math.max(tileCount, other.tileCount);
         }
+
+        /**
+         * Merges the counts of a partial (for a disjoint set of tiles).
+         */
+        public void merge(Counter other)
+        {
+            hitCount += other.hitCount;
+            scannedCount += other.scannedCount;
+            tileCount += other.tileCount;
+        }
     }
 
     /**
@@ -113,6 +147,13 @@ public class IndexReport extends Table
         long mixedCount;
         long uncatCount;
 
+        // Per-tile moments, used to estimate margins of error when the
+        // report is based on a sample: t = number of features,
+        // x = features scanned for indexed keys, y = hits
+
+        double sumT, sumTT;
+        double sumX, sumY, sumXX, sumYY, sumXY;
+
         public Stats(String[] keys)
         {
             counters = new Counter[keys.length];
@@ -133,6 +174,46 @@ public class IndexReport extends Table
             mixedCount += other.mixedCount;
             uncatCount += other.uncatCount;
         }
+
+        public void merge(Stats other)
+        {
+            for(int i=0; i<counters.length; i++)
+            {
+                counters[i].merge(other.counters[i]);
+            }
+            total += other.total;
+            mixedCount += other.mixedCount;
+            uncatCount += other.uncatCount;
+            sumT += other.sumT;
+            sumTT += other.sumTT;
+            sumX += other.sumX;
+            sumY += other.sumY;
+            sumXX += other.sumXX;
+            sumYY += other.sumYY;
+            sumXY += other.sumXY;
+        }
+
+        void addTile(double t, double x, double y)
+        {
+            sumT += t;
+            sumTT += t * t;
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumYY += y * y;
+            sumXY += x * y;
+        }
+    }
+
+    private Stats[] newPartial()
+    {
+        Stats[] stats = new Stats[5];
+        for(int i=0; i<stats.length; i++) stats[i] = new Stats(keys);
+        synchronized (partials)
+        {
+            partials.add(stats);
+        }
+        return stats;
     }
 
     private class IndexScanTask extends TileReaderTask
@@ -231,24 +312,34 @@ public class IndexReport extends Table
         @Override public void run()
         {
             super.run();
+            Stats[] stats = partial.get();
+            long allTotal = 0;
+            long allScanned = 0;
+            long allHits = 0;
             for (int type = 0; type < 4; type++)
             {
-                Stats table = tables[type];
-                synchronized (table)
+                Stats table = stats[type];
+                long typeScanned = 0;
+                long typeHits = 0;
+                for (int i = 0; i < keyCount; i++)
                 {
-                    for (int i = 0; i < keyCount; i++)
-                    {
-                        int slot = type * keyCount + i;
-                        Counter counter = table.counters[i];
-                        counter.hitCount += hitCounts[slot];
-                        counter.scannedCount += scannedCounts[slot];
-                        if(scannedCounts[slot] != 0) counter.tileCount++;
-                    }
-                    table.total += totalScannedCounts[type];
-                    table.mixedCount += mixedCounts[type];
-                    table.uncatCount += uncatCounts[type];
+                    int slot = type * keyCount + i;
+                    Counter counter = table.counters[i];
+                    counter.hitCount += hitCounts[slot];
+                    counter.scannedCount += scannedCounts[slot];
+                    if(scannedCounts[slot] != 0) counter.tileCount++;
+                    typeScanned += scannedCounts[slot];
+                    typeHits += hitCounts[slot];
                 }
+                table.total += totalScannedCounts[type];
+                table.mixedCount += mixedCounts[type];
+                table.uncatCount += uncatCounts[type];
+                table.addTile(totalScannedCounts[type], typeScanned, typeHits);
+                allTotal += totalScannedCounts[type];
+                allScanned += typeScanned;
+                allHits += typeHits;
             }
+            stats[4].addTile(allTotal, allScanned, allHits);
         }
 
     }
@@ -266,6 +357,8 @@ public class IndexReport extends Table
             int tilePage = walker.tilePage();
             if (tilePage != 0)
             {
+                walkedTileCount++;
+                if(!sample.includes()) continue;
                 executor.submit(new IndexScanTask(
                     store.bufferOfPage(tilePage),
                     store.offsetOfPage(tilePage)));
@@ -282,18 +375,32 @@ public class IndexReport extends Table
             // don't care about being interrupted, we're done anyway
         }
 
+        for(Stats[] stats: partials)
+        {
+            for(int i=0; i<tables.length; i++) tables[i].merge(stats[i]);
+        }
         for(int i=0; i<4; i++)
         {
             tables[4].add(tables[i]);
         }
     }
 
+    /**
+     * Returns the factor by which counts in the sample are scaled to
+     * estimate the totals for all tiles.
+     */
+    private double scale()
+    {
+        return totalTileCount == 0 ? 0 : (double)walkedTileCount / totalTileCount;
+    }
+
     private void addStats(String title, Stats stats) throws IOException
     {
         long total = stats.total;
         long allTypeTotal = tables[4].total;
+        double scale = scale();
         add(title);
-        add(total);
+        add(total * scale);
         add("");
         add((double) total / allTypeTotal);
         if(calculateIQ)
@@ -307,7 +414,7 @@ public class IndexReport extends Table
         {
             add("  " + c.key);
             double hits = c.hitCount;
-            add(hits);
+            add(hits * scale);
             add(hits / stats.total);
             add(hits / allTypeTotal);
             if(calculateIQ)
@@ -320,14 +427,14 @@ public class IndexReport extends Table
 
         add("  (Multiple)");
         double mixedCount = stats.mixedCount;
-        add(mixedCount);
+        add(mixedCount * scale);
         add(mixedCount / total);
         add(mixedCount / allTypeTotal);
         newRow();
 
         add("  (Unindexed)");
         double uncatCount = stats.uncatCount;
-        add(uncatCount);
+        add(uncatCount * scale);
         add(uncatCount / total);
         add(uncatCount / allTypeTotal);
         divider("=");
@@ -346,5 +453,25 @@ public class IndexReport extends Table
         divider("");
         addStats("All", tables[4]);
         super.print(out);
+        if(!sample.isComplete()) printEstimates(out);
+    }
+
+    private void printEstimates(Appendable out) throws IOException
+    {
+        long n = totalTileCount;
+        out.append(String.format(
+            "\nEstimated from %,d of %,d tiles (%.1f%%), with 95%% margins of error:\n",
+            n, walkedTileCount, sample.rate() * 100));
+        for(int i=0; i<tables.length; i++)
+        {
+            Stats stats = tables[i];
+            double features = stats.sumT * scale();
+            double featuresMargin = walkedTileCount * sample.meanMargin(n, stats.sumT, stats.sumTT);
+            double iq = stats.sumX == 0 ? 0 : stats.sumY / stats.sumX;
+            double iqMargin = sample.ratioMargin(n, stats.sumX, stats.sumY,
+                stats.sumXX, stats.sumYY, stats.sumXY);
+            out.append(String.format("  %-10s %,15.0f features (± %,.0f)   IQ %5.1f%% (± %.1f%%)\n",
+                TYPE_NAMES[i], features, featuresMargin, iq * 100, iqMargin * 100));
+        }
     }
 }
\ No newline at end of file
@@ -12,22 +12,43 @@ import com.clarisma.common.text.Table;
 import com.geodesk.core.Tile;
 import com.geodesk.feature.store.FeatureStore;
 import com.geodesk.feature.store.TileIndexWalker;
-import org.eclipse.collections.api.list.primitive.MutableLongList;
-import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * A report on the sizes of the tiles of a FeatureStore, by zoom level.
+ * The tile sizes are read in parallel, in batches; each batch produces
+ * partial statistics, which are then merged.
+ *
+ * If the report is based on a sample of tiles, the sizes are estimated
+ * from the sampled tiles (minimum and maximum are those observed in the
+ * sample), and the report is followed by the margins of error of the
+ * average tile size at each zoom level.
+ */
 public class TileReport extends Table
 {
     private final FeatureStore store;
     private final int pageSize;
     final long totalPages;
-    private int smallestSizeInPages = Integer.MAX_VALUE;
-    private int largestSizeInPages = Integer.MIN_VALUE;
+    private final TileSample sample;
+    private final ZoomStats[] zoomStats = newZoomStats();
+
+    private static final int MAX_ZOOM = 12;
+    private static final int BATCH_SIZE = 256;
 
     public TileReport(FeatureStore store, TileIndexWalker walker)
+    {
+        this(store, walker, TileSample.ALL);
+    }
+
+    public TileReport(FeatureStore store, TileIndexWalker walker, TileSample sample)
     {
         this.store = store;
+        this.sample = sample;
         pageSize = store.pageSize();
         totalPages = store.baseMapping().getInt(BlobStoreConstants.TOTAL_PAGES_OFS);
 
@@ -52,115 +73,197 @@ public class TileReport extends Table
         createReport(walker);
     }
 
+    /**
+     * Size statistics for the tiles at one zoom level (or a partial of
+     * these, for a batch of tiles).
+     */
+    private static class ZoomStats
+    {
+        int tileCount;
+        int loadedCount;
+        int sampledCount;
+        int minPages = Integer.MAX_VALUE;
+        int maxPages;
+        long totalPages;
+        double sumSq;
+
+        void add(int sizeInPages)
+        {
+            sampledCount++;
+            minPages = Math.min(minPages, sizeInPages);
+            maxPages = Math.max(maxPages, sizeInPages);
+            totalPages += sizeInPages;
+            sumSq += (double)sizeInPages * sizeInPages;
+        }
+
+        void merge(ZoomStats other)
+        {
+            tileCount += other.tileCount;
+            loadedCount += other.loadedCount;
+            sampledCount += other.sampledCount;
+            minPages = Math.min(minPages, other.minPages);
+            maxPages = Math.max(maxPages, other.maxPages);
+            totalPages += other.totalPages;
+            sumSq += other.sumSq;
+        }
+
+        double averagePages()
+        {
+            return sampledCount == 0 ? 0 : (double)totalPages / sampledCount;
+        }
+
+        /**
+         * The estimated total size of the loaded tiles (exact if all
+         * loaded tiles have been sampled).
+         */
+        double estimatedTotalPages()
+        {
+            return averagePages() * loadedCount;
+        }
+    }
+
     private int fetchSizeInPages(int page)
     {
         ByteBuffer buf = store.bufferOfPage(page);
         int ofs = store.offsetOfPage(page);
-        int sizeInPages = ((buf.getInt(ofs) & BlobStoreConstants.PAYLOAD_SIZE_MASK) +
+        return ((buf.getInt(ofs) & BlobStoreConstants.PAYLOAD_SIZE_MASK) +
             pageSize + 3) / pageSize;
-        if(sizeInPages < smallestSizeInPages) smallestSizeInPages = sizeInPages;
-        if(sizeInPages > largestSizeInPages) largestSizeInPages = sizeInPages;
-        return sizeInPages;
     }
 
-    private long sizeInKB(long pages)
+    private long sizeInKB(double pages)
     {
-        return pages * pageSize / 1024;
+        return (long)(pages * pageSize / 1024);
     }
 
-    private void addSize(long pages)
+    private void addSize(double pages)
     {
         add(sizeInKB(pages));
-        add((double)pages / totalPages);
+        add(pages / totalPages);
+    }
+
+    private void addZoomStats(String title, ZoomStats stats)
+    {
+        add(title);
+        add(stats.loadedCount);
+        add(stats.tileCount);
+        add(sizeInKB(stats.sampledCount == 0 ? 0 : stats.minPages));
+        add(sizeInKB(stats.maxPages));
+        add(sizeInKB(stats.averagePages()));
+        addSize(stats.estimatedTotalPages());
+    }
+
+    /**
+     * Reads the sizes of a batch of tiles into a partial, which is then
+     * merged into the per-zoom statistics.
+     */
+    private class SizeTask implements Runnable
+    {
+        private final int[] zooms;
+        private final int[] pages;
+        private final int count;
+
+        SizeTask(int[] zooms, int[] pages, int count)
+        {
+            this.zooms = zooms;
+            this.pages = pages;
+            this.count = count;
+        }
+
+        @Override public void run()
+        {
+            ZoomStats[] partial = newZoomStats();
+            for(int i=0; i<count; i++)
+            {
+                partial[zooms[i]].add(fetchSizeInPages(pages[i]));
+            }
+            synchronized (zoomStats)
+            {
+                for(int z=0; z<zoomStats.length; z++) zoomStats[z].merge(partial[z]);
+            }
+        }
+    }
+
+    private static ZoomStats[] newZoomStats()
+    {
+        ZoomStats[] stats = new ZoomStats[MAX_ZOOM + 1];
+        for(int i=0; i<stats.length; i++) stats[i] = new ZoomStats();
+        return stats;
     }
 
     private void createReport(TileIndexWalker walker)
     {
-        MutableLongList tiles = new LongArrayList();
-        long totalTilePages = 0;
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            threadCount, threadCount, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(threadCount * 4),
+            new ThreadPoolExecutor.CallerRunsPolicy());
 
-        int loadedTileCount = 0;
+        int[] zooms = new int[BATCH_SIZE];
+        int[] pages = new int[BATCH_SIZE];
+        int count = 0;
         while(walker.next())
         {
-            int tile = walker.tile();
+            int zoom = Tile.zoom(walker.tile());
             int page = walker.tilePage();
-            int sizeInPages;
-            if(page == 0)
-            {
-                sizeInPages = 0;
-            }
-            else
+            ZoomStats stats = zoomStats[zoom];
+            stats.tileCount++;
+            if(page == 0) continue;
+            stats.loadedCount++;
+            if(!sample.includes()) continue;
+            zooms[count] = zoom;
+            pages[count] = page;
+            count++;
+            if(count == BATCH_SIZE)
             {
-                sizeInPages = fetchSizeInPages(page);
-                loadedTileCount++;
+                executor.submit(new SizeTask(zooms, pages, count));
+                zooms = new int[BATCH_SIZE];
+                pages = new int[BATCH_SIZE];
+                count = 0;
             }
-            tiles.add(((long)Tile.zoom(tile) << 32) | sizeInPages);
-            totalTilePages += sizeInPages;
         }
-        tiles.sortThis();
+        if(count > 0) executor.submit(new SizeTask(zooms, pages, count));
+        executor.shutdown();
+        try
+        {
+            executor.awaitTermination(30, TimeUnit.DAYS);
+        }
+        catch (InterruptedException ex)
+        {
+            // don't care about being interrupted, we're done anyway
+        }
 
+        ZoomStats purgatory = new ZoomStats();
+        purgatory.tileCount = 1;
         int purgatoryPage = store.baseMapping().getInt(store.tileIndexPointer()) >>> 1;
-        int purgatorySizeInPages = 0;
         if(purgatoryPage != 0)
         {
-            purgatorySizeInPages = fetchSizeInPages(purgatoryPage);
-            totalTilePages += purgatorySizeInPages;
-            loadedTileCount++;
+            purgatory.loadedCount = 1;
+            purgatory.add(fetchSizeInPages(purgatoryPage));
         }
 
+        ZoomStats all = new ZoomStats();
+        double totalTilePages = purgatory.estimatedTotalPages();
+        for(ZoomStats stats: zoomStats)
+        {
+            all.merge(stats);
+            totalTilePages += stats.estimatedTotalPages();
+        }
+        all.merge(purgatory);
+
         add("Tiles");
-        add(loadedTileCount);
-        add(tiles.size() + 1);
-        add(sizeInKB(smallestSizeInPages));
-        add(sizeInKB(largestSizeInPages));
-        add(loadedTileCount == 0 ? 0 : sizeInKB(totalTilePages / loadedTileCount));
+        add(all.loadedCount);
+        add(all.tileCount);
+        add(sizeInKB(all.sampledCount == 0 ? 0 : all.minPages));
+        add(sizeInKB(all.maxPages));
+        add(sizeInKB(all.loadedCount == 0 ? 0 : totalTilePages / all.loadedCount));
         addSize(totalTilePages);
 
-        int currentZoom = 0;
-        int start = 0;
-        int end = 0;
-        while(start < tiles.size())
+        for(int zoom=0; zoom<zoomStats.length; zoom++)
         {
-            int nextZoom = -1;
-            for(;;)
-            {
-                end++;
-                if(end >= tiles.size()) break;
-                nextZoom = (int)(tiles.get(end) >>> 32);
-                if(nextZoom != currentZoom) break;
-            }
-            add("  Zoom " + currentZoom);
-            int n = start;
-            while(n < end)
-            {
-                if((int)tiles.get(n) > 0) break;
-                n++;
-            }
-            long totalZoomPages = 0;
-            for(int i=n; i<end; i++)
-            {
-                totalZoomPages += (int)tiles.get(i);
-            }
-            int loadedTilesAtZoom = end - n;
-
-            add(loadedTilesAtZoom);
-            add(end - start);
-            add(sizeInKB((int)tiles.get(n)));
-            add(sizeInKB((int)tiles.get(end-1)));
-            add(sizeInKB(totalZoomPages / loadedTilesAtZoom));
-            addSize(totalZoomPages);
-
-            currentZoom = nextZoom;
-            start = end;
+            if(zoomStats[zoom].tileCount == 0) continue;
+            addZoomStats("  Zoom " + zoom, zoomStats[zoom]);
         }
-        add("  Purgatory");
-        add(purgatorySizeInPages > 0 ? 1 : 0);
-        add(1);
-        long purgatorySizeInKB = sizeInKB(purgatorySizeInPages);
-        add(purgatorySizeInKB);
-        add(purgatorySizeInKB);
-        add(purgatorySizeInKB);
-        addSize(purgatorySizeInPages);
+        addZoomStats("  Purgatory", purgatory);
 
         int metaDataSizeInBytes = store.baseMapping().getInt(BlobStoreConstants.METADATA_SIZE_OFS);
         int tileIndexSizeInPages = (metaDataSizeInBytes + pageSize - 1) / pageSize;
@@ -172,7 +275,7 @@ public class TileReport extends Table
         add("");
         addSize(tileIndexSizeInPages);
 
-        long emptyPages = totalPages - totalTilePages - tileIndexSizeInPages;
+        double emptyPages = totalPages - totalTilePages - tileIndexSizeInPages;
         add("Free pages");
         add("");
         add("");
@@ -190,4 +293,25 @@ public class TileReport extends Table
         add("");
         addSize(totalPages);
     }
+
+    @Override public void print(Appendable out) throws IOException
+    {
+        super.print(out);
+        if(sample.isComplete()) return;
+        ZoomStats all = new ZoomStats();
+        for(ZoomStats stats: zoomStats) all.merge(stats);
+        out.append(String.format(
+            "\nEstimated from %,d of %,d loaded tiles (%.1f%%), with 95%% margins of error:\n",
+            all.sampledCount, all.loadedCount, sample.rate() * 100));
+        for(int zoom=0; zoom<zoomStats.length; zoom++)
+        {
+            ZoomStats stats = zoomStats[zoom];
+            if(stats.sampledCount == 0) continue;
+            double margin = sample.meanMargin(stats.sampledCount,
+                stats.totalPages, stats.sumSq);
+            out.append(String.format("  Zoom %-3d avg %,10d KB (± %,d KB)   total %,14d KB (± %,d KB)\n",
+                zoom, sizeInKB(stats.averagePages()), sizeInKB(margin),
+                sizeInKB(stats.estimatedTotalPages()), sizeInKB(margin * stats.loadedCount)));
+        }
+    }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.info;
+
+import java.util.Random;
+
+/**
+ * Selects a random subset of tiles for a report, and provides the
+ * margins of error (95% confidence) of estimates derived from the
+ * sample. Each tile is included independently with the sampling rate;
+ * the margins include the finite-population correction, so they
+ * shrink to zero as the rate approaches 100%.
+ */
+public class TileSample
+{
+    private final double rate;
+    private final Random random;
+
+    /**
+     * The z-score for a 95% confidence interval.
+     */
+    private static final double Z_95 = 1.96;
+
+    public static final TileSample ALL = new TileSample(1);
+
+    public TileSample(double rate)
+    {
+        this(rate, new Random());
+    }
+
+    /**
+     * Creates a sample that selects tiles using the given random
+     * number generator (seeded, for a reproducible selection).
+     */
+    public TileSample(double rate, Random random)
+    {
+        if(rate <= 0 || rate > 1)
+        {
+            throw new IllegalArgumentException("Sampling rate must be > 0% and <= 100%");
+        }
+        this.rate = rate;
+        this.random = rate < 1 ? random : null;
+    }
+
+    /**
+     * Parses a sampling rate, such as "5%" or "0.05".
+     */
+    public static TileSample parse(String s)
+    {
+        s = s.trim();
+        try
+        {
+            if(s.endsWith("%"))
+            {
+                return new TileSample(Double.parseDouble(
+                    s.substring(0, s.length() - 1)) / 100);
+            }
+            return new TileSample(Double.parseDouble(s));
+        }
+        catch(NumberFormatException ex)
+        {
+            throw new IllegalArgumentException("Invalid sampling rate: " + s);
+        }
+    }
+
+    public double rate()
+    {
+        return rate;
+    }
+
+    public boolean isComplete()
+    {
+        return rate >= 1;
+    }
+
+    /**
+     * Decides whether the next tile should be included in the sample.
+     * (Not threadsafe; tiles are selected while walking the tile index.)
+     */
+    public boolean includes()
+    {
+        return random == null || random.nextDouble() < rate;
+    }
+
+    private double correction(long n)
+    {
+        return Z_95 * Math.sqrt((1 - rate) / n);
+    }
+
+    /**
+     * Returns the margin of error of the mean of a per-tile value.
+     *
+     * @param n     the number of sampled tiles
+     * @param sum   the sum of the values
+     * @param sumSq the sum of the squared values
+     */
+    public double meanMargin(long n, double sum, double sumSq)
+    {
+        if(n < 2) return Double.NaN;
+        double mean = sum / n;
+        double variance = Math.max(0, (sumSq - n * mean * mean) / (n - 1));
+        return correction(n) * Math.sqrt(variance);
+    }
+
+    /**
+     * Returns the margin of error of a ratio estimate `sum(y) / sum(x)`,
+     * where each sampled tile contributes a pair of values (x,y).
+     *
+     * @param n     the number of sampled tiles
+     */
+    public double ratioMargin(long n, double sumX, double sumY,
+        double sumXX, double sumYY, double sumXY)
+    {
+        if(n < 2 || sumX == 0) return Double.NaN;
+        double r = sumY / sumX;
+        double meanX = sumX / n;
+        double residuals = Math.max(0, sumYY - 2 * r * sumXY + r * r * sumXX);
+        return correction(n) * Math.sqrt(residuals / (n - 1)) / meanX;
+    }
+}
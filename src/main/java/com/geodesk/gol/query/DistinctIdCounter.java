@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.query;
+
+import org.eclipse.collections.api.iterator.LongIterator;
+import org.eclipse.collections.api.set.primitive.MutableLongSet;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+
+/**
+ * Counts the number of distinct IDs in a set whose size is only bounded by
+ * the number of features in a query. An exact counter keeps all IDs. An
+ * approximate counter tracks IDs exactly until their number exceeds a
+ * small threshold; after that, it switches to a HyperLogLog sketch with
+ * a fixed footprint (256 bytes, about 6.5% standard error). Counters can
+ * be merged, which yields the count of the union of their IDs.
+ */
+public class DistinctIdCounter
+{
+    private static final int EXACT_LIMIT = 64;
+    private static final int REGISTER_BITS = 8;
+    private static final int REGISTER_COUNT = 1 << REGISTER_BITS;
+
+    private final boolean approximate;
+    private MutableLongSet ids = new LongHashSet();
+    private byte[] registers;
+
+    /**
+     * Creates a counter.
+     *
+     * @param approximate   `true` if the counter may switch to an
+     *                      estimate once it holds more than a few IDs
+     */
+    public DistinctIdCounter(boolean approximate)
+    {
+        this.approximate = approximate;
+    }
+
+    public void add(long id)
+    {
+        if(registers != null)
+        {
+            addToSketch(id);
+            return;
+        }
+        ids.add(id);
+        if(approximate && ids.size() > EXACT_LIMIT) switchToSketch();
+    }
+
+    private void switchToSketch()
+    {
+        registers = new byte[REGISTER_COUNT];
+        LongIterator iter = ids.longIterator();
+        while(iter.hasNext()) addToSketch(iter.next());
+        ids = null;
+    }
+
+    private static long hash(long x)
+    {
+        // finalizer of MurmurHash3 (64-bit)
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    private void addToSketch(long id)
+    {
+        long h = hash(id);
+        int slot = (int)(h >>> (64 - REGISTER_BITS));
+        int rank = Long.numberOfLeadingZeros((h << REGISTER_BITS) | (1L << (REGISTER_BITS-1))) + 1;
+        if(rank > registers[slot]) registers[slot] = (byte)rank;
+    }
+
+    public void merge(DistinctIdCounter other)
+    {
+        if(other.registers == null)
+        {
+            LongIterator iter = other.ids.longIterator();
+            while(iter.hasNext()) add(iter.next());
+            return;
+        }
+        if(registers == null) switchToSketch();
+        for(int i=0; i<REGISTER_COUNT; i++)
+        {
+            if(other.registers[i] > registers[i]) registers[i] = other.registers[i];
+        }
+    }
+
+    public boolean isExact()
+    {
+        return registers == null;
+    }
+
+    public long count()
+    {
+        if(registers == null) return ids.size();
+        double sum = 0;
+        int zeroes = 0;
+        for(byte r: registers)
+        {
+            sum += 1.0 / (1L << r);
+            if(r == 0) zeroes++;
+        }
+        double m = REGISTER_COUNT;
+        double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+        if(estimate <= 2.5 * m && zeroes > 0)
+        {
+            // small-range correction (linear counting)
+            estimate = m * Math.log(m / zeroes);
+        }
+        return Math.round(estimate);
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.query;
+
+import com.geodesk.core.Tile;
+import com.geodesk.feature.Filter;
+import com.geodesk.feature.match.Matcher;
+import com.geodesk.feature.match.MatcherSet;
+import com.geodesk.feature.match.TypeBits;
+import com.geodesk.feature.store.FeatureStore;
+import com.geodesk.feature.store.StoredFeature;
+import com.geodesk.feature.store.TileIndexWalker;
+import com.geodesk.geom.Bounds;
+import com.geodesk.gol.util.AreaFilter;
+import org.eclipse.collections.api.set.primitive.MutableLongSet;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the features that match a GOQL query, by scanning the feature
+ * records in the tile buffers directly. Unlike iterating over a `Features`
+ * collection, this never creates `Feature` objects (except for features
+ * whose bounding box straddles the boundary of an area, where the exact
+ * geometric test needs them). Tiles are scanned in parallel.
+ *
+ * The scan mirrors the library's query engine:
+ *
+ * - Key-index buckets whose key bits don't match the query are skipped
+ *   entirely, as are spatial-index branches outside the bounding box.
+ * - In tiles that lie fully inside the bounding box (or area), bounding
+ *   boxes of branches and features aren't checked at all.
+ * - Features that live in multiple tiles are counted only once: if their
+ *   western or northern neighbor tile is also scanned, they are skipped;
+ *   features that span both directions are deduplicated by ID.
+ */
+public class FeatureCounter
+{
+    private final FeatureStore store;
+    private final MatcherSet matchers;
+    private final int types;
+    private final int minX, minY, maxX, maxY;
+    private long count;
+    private final MutableLongSet potentialDupes = new LongHashSet();
+    private Throwable error;
+
+    public FeatureCounter(FeatureStore store, String query, Bounds bounds)
+    {
+        this.store = store;
+        matchers = store.getMatchers(query);
+        types = matchers.types();
+        minX = bounds.minX();
+        minY = bounds.minY();
+        maxX = bounds.maxX();
+        maxY = bounds.maxY();
+    }
+
+    /**
+     * Counts the matching features in all tiles visited by the given
+     * walker (which must have been started with the bounding box, and
+     * optional area filter, of the query).
+     *
+     * @param walker a started TileIndexWalker
+     * @return the number of features
+     */
+    public long count(TileIndexWalker walker)
+    {
+        if(types == 0) return 0;
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            threadCount, threadCount, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(threadCount * 4),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+
+        try
+        {
+            while (walker.next())
+            {
+                int tile = walker.tile();
+                boolean fullyInside = Tile.leftX(tile) >= minX &&
+                    Tile.rightX(tile) <= maxX &&
+                    Tile.bottomY(tile) >= minY &&
+                    Tile.topY(tile) <= maxY &&
+                    isInsideTile(walker.filter());
+                executor.execute(new TileCountTask(walker.tip(),
+                    walker.northwestFlags(), walker.filter(), fullyInside));
+            }
+            executor.shutdown();
+            executor.awaitTermination(30, TimeUnit.DAYS);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+        finally
+        {
+            // If the walker or a caller-run task throws, don't leave the
+            // (non-daemon) worker threads behind to keep the JVM alive
+            executor.shutdownNow();
+        }
+        if(error != null) throw new RuntimeException(error);
+        return count + potentialDupes.size();
+    }
+
+    private static boolean isInsideTile(Filter filter)
+    {
+        return filter == null || (filter instanceof AreaFilter.TileFilter tileFilter &&
+            tileFilter.isInsideTile());
+    }
+
+    private synchronized void addResults(long tileCount, MutableLongSet tileDupes)
+    {
+        count += tileCount;
+        if(tileDupes != null) potentialDupes.addAll(tileDupes);
+    }
+
+    private synchronized void fail(Throwable ex)
+    {
+        if(error == null) error = ex;
+    }
+
+    private class TileCountTask implements Runnable
+    {
+        private final int tip;
+        private final int northwestFlags;
+        private final Filter filter;
+        private final boolean fullyInside;
+        private ByteBuffer buf;
+        private long tileCount;
+        private MutableLongSet tileDupes;
+
+        TileCountTask(int tip, int northwestFlags, Filter filter, boolean fullyInside)
+        {
+            this.tip = tip;
+            this.northwestFlags = northwestFlags;
+            this.filter = filter;
+            this.fullyInside = fullyInside;
+        }
+
+        @Override public void run()
+        {
+            try
+            {
+                int tilePage = store.fetchTile(tip);
+                buf = store.bufferOfPage(tilePage);
+                int pTile = store.offsetOfPage(tilePage);
+                if((types & TypeBits.NODES) != 0)
+                {
+                    scanIndex(pTile + 8, matchers.nodes(), true);
+                }
+                if((types & TypeBits.NONAREA_WAYS) != 0)
+                {
+                    scanIndex(pTile + 12, matchers.ways(), false);
+                }
+                if((types & TypeBits.AREAS) != 0)
+                {
+                    scanIndex(pTile + 16, matchers.areas(), false);
+                }
+                if((types & TypeBits.NONAREA_RELATIONS) != 0)
+                {
+                    scanIndex(pTile + 20, matchers.relations(), false);
+                }
+                addResults(tileCount, tileDupes);
+            }
+            catch(Throwable ex)
+            {
+                fail(ex);
+            }
+        }
+
+        private void scanIndex(int ppTree, Matcher matcher, boolean nodes)
+        {
+            int p = buf.getInt(ppTree);
+            if(p == 0) return;
+            if((p & 1) == 0)
+            {
+                scanRoot(ppTree, matcher, nodes);
+                return;
+            }
+            p = ppTree + (p ^ 1);
+            for(;;)
+            {
+                int last = buf.getInt(p) & 1;
+                int indexBits = buf.getInt(p+4);
+                if(matcher.acceptIndex(indexBits)) scanRoot(p, matcher, nodes);
+                if(last != 0) break;
+                p += 8;
+            }
+        }
+
+        private void scanRoot(int ppTree, Matcher matcher, boolean nodes)
+        {
+            int ptr = buf.getInt(ppTree);
+            if (ptr == 0) return;
+            int p = ppTree + (ptr & 0xffff_fffc);
+            if ((ptr & 2) != 0)
+            {
+                if(nodes)
+                {
+                    scanNodeLeaf(p, matcher);
+                }
+                else
+                {
+                    scanLeaf(p, matcher);
+                }
+            }
+            else
+            {
+                scanTree(p, matcher, nodes);
+            }
+        }
+
+        private void scanTree(int p, Matcher matcher, boolean nodes)
+        {
+            for (;;)
+            {
+                int ptr = buf.getInt(p);
+                int last = ptr & 1;
+                if(fullyInside || (
+                    buf.getInt(p+4) <= maxX &&
+                    buf.getInt(p+8) <= maxY &&
+                    buf.getInt(p+12) >= minX &&
+                    buf.getInt(p+16) >= minY))
+                {
+                    if ((ptr & 2) != 0)
+                    {
+                        int pLeaf = p + (ptr ^ 2 ^ last);
+                        if(nodes)
+                        {
+                            scanNodeLeaf(pLeaf, matcher);
+                        }
+                        else
+                        {
+                            scanLeaf(pLeaf, matcher);
+                        }
+                    }
+                    else
+                    {
+                        scanTree(p + (ptr ^ last), matcher, nodes);
+                    }
+                }
+                if (last != 0) break;
+                p += 20;
+            }
+        }
+
+        private void scanNodeLeaf(int p, Matcher matcher)
+        {
+            for(;;)
+            {
+                int pNode = p + 8;
+                int flags = buf.getInt(pNode);
+                int x = buf.getInt(p);
+                int y = buf.getInt(p+4);
+                if(fullyInside || inBounds(x, y))
+                {
+                    if(matcher.accept(buf, pNode) && acceptedByFilter(pNode, x, y, x, y))
+                    {
+                        tileCount++;
+                    }
+                }
+                if((flags & 1) != 0) break;
+                p += 20 + (flags & 4);
+                // If Node is member of relation (flag bit 2), add
+                // extra 4 bytes for the relation table pointer
+            }
+        }
+
+        private boolean inBounds(int x, int y)
+        {
+            return x >= minX && x <= maxX && y >= minY && y <= maxY;
+        }
+
+        private void scanLeaf(int p, Matcher matcher)
+        {
+            for(;;)
+            {
+                int pFeature = p + 16;
+                int flags = buf.getInt(pFeature);
+                count:
+                if(fullyInside || (
+                    buf.getInt(p) <= maxX &&
+                    buf.getInt(p+4) <= maxY &&
+                    buf.getInt(p+8) >= minX &&
+                    buf.getInt(p+12) >= minY))
+                {
+                    int multiTileFlags = flags & 192;
+                    if(multiTileFlags != 0 && multiTileFlags != 192)
+                    {
+                        // Feature is also stored in the western (64) or
+                        // northern (128) neighbor tile; if we're scanning
+                        // that tile as well, it will be counted there
+                        if((northwestFlags & multiTileFlags) != 0) break count;
+                    }
+                    if(!matcher.accept(buf, pFeature)) break count;
+                    if(!acceptedByFilter(pFeature, buf.getInt(p), buf.getInt(p+4),
+                        buf.getInt(p+8), buf.getInt(p+12)))
+                    {
+                        break count;
+                    }
+                    if(multiTileFlags == 192)
+                    {
+                        if(tileDupes == null) tileDupes = new LongHashSet();
+                        tileDupes.add((StoredFeature.id(buf, pFeature) << 2) |
+                            StoredFeature.typeCode(buf, pFeature));
+                    }
+                    else
+                    {
+                        tileCount++;
+                    }
+                }
+                if((flags & 1) != 0) break;
+                p += 32;
+            }
+        }
+
+        private boolean acceptedByFilter(int pFeature, int minX, int minY, int maxX, int maxY)
+        {
+            if(filter == null) return true;
+            if(filter instanceof AreaFilter.TileFilter tileFilter)
+            {
+                // Most features can be accepted or rejected based on
+                // their bounding box alone
+                int featureClass = tileFilter.classify(minX, minY, maxX, maxY);
+                if(featureClass != AreaFilter.BOUNDARY) return featureClass == AreaFilter.INSIDE;
+            }
+            return filter.accept(store.getFeature(buf, pFeature));
+        }
+    }
+}
@@ -18,4 +18,10 @@ public interface FeaturePrinter
     default void printHeader() {};
     void print(Feature feature);
     default void printFooter() {};
+
+    /**
+     * Releases any resources held by the printer. Called after the
+     * footer has been printed, or if the query fails.
+     */
+    default void close() {};
 }
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.query;
+
+import com.geodesk.core.Box;
+import com.geodesk.feature.Feature;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.CoordinateSequenceFilter;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ByteOrderValues;
+import org.locationtech.jts.io.WKBWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes features in a spatially indexed binary format modeled after
+ * FlatGeobuf, so a client can use HTTP range requests to retrieve only the
+ * features within its viewport.
+ *
+ * Since features must be sorted before the index can be written, all
+ * selected features are buffered (in encoded form) until printFooter().
+ *
+ * Layout (all values little-endian):
+ *
+ *   magic          8 bytes  "GOLFGB\0" followed by the format version
+ *   feature count  uint64
+ *   node size      uint16   (followed by 6 bytes of padding)
+ *   extent         4 x double (minX, minY, maxX, maxY of all features)
+ *   index          packed Hilbert R-tree (see PackedHilbertTree)
+ *   features       for each feature: uint32 length, followed by the record
+ *
+ * Each feature record consists of:
+ *
+ *   type           uint8 (0 = node, 1 = way, 2 = relation)
+ *   id             int64
+ *   geometry       uint32 length, followed by the WKB of the geometry
+ *   properties     uint32 count, followed by key/value pairs, each a
+ *                  uint32 length followed by a UTF-8 string
+ *
+ * Coordinates are written in the projection of the coordinate transformer
+ * (WGS-84 by default).
+ */
+public class FgbFeaturePrinter extends AbstractFeaturePrinter
+{
+    private static final byte[] MAGIC = { 'G', 'O', 'L', 'F', 'G', 'B', 0, 1 };
+    private static final int HEADER_SIZE = 56;
+
+    private final WKBWriter wkbWriter = new WKBWriter(2, ByteOrderValues.LITTLE_ENDIAN);
+    private final List<byte[]> records = new ArrayList<>();
+    private double[] bounds = new double[1024];
+    private int nodeSize = PackedHilbertTree.DEFAULT_NODE_SIZE;
+    private final ByteArrayOutputStream recordBuf = new ByteArrayOutputStream();
+    private final List<byte[]> properties = new ArrayList<>();
+
+    public FgbFeaturePrinter(PrintStream out)
+    {
+        super(out);
+    }
+
+    @Override public boolean setOption(String name, String value)
+    {
+        if(name.equals("node-size"))
+        {
+            nodeSize = getValue(value, Integer.class);
+            if(nodeSize < 2 || nodeSize > 65535)
+            {
+                throw new IllegalArgumentException("Must be between 2 and 65535");
+            }
+            return true;
+        }
+        return super.setOption(name, value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream buf, int v)
+    {
+        buf.write(v);
+        buf.write(v >>> 8);
+        buf.write(v >>> 16);
+        buf.write(v >>> 24);
+    }
+
+    private static void writeLong(ByteArrayOutputStream buf, long v)
+    {
+        writeInt(buf, (int)v);
+        writeInt(buf, (int)(v >>> 32));
+    }
+
+    private static void writeBytes(ByteArrayOutputStream buf, byte[] b)
+    {
+        writeInt(buf, b.length);
+        buf.writeBytes(b);
+    }
+
+    @Override protected void printProperty(String key, String value)
+    {
+        properties.add(key.getBytes(StandardCharsets.UTF_8));
+        properties.add(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Geometry transform(Geometry geom)
+    {
+        geom = geom.copy();
+        geom.apply(new CoordinateSequenceFilter()
+        {
+            @Override public void filter(CoordinateSequence seq, int i)
+            {
+                seq.setOrdinate(i, 0, transformer.transformX(seq.getOrdinate(i, 0)));
+                seq.setOrdinate(i, 1, transformer.transformY(seq.getOrdinate(i, 1)));
+            }
+
+            @Override public boolean isDone()
+            {
+                return false;
+            }
+
+            @Override public boolean isGeometryChanged()
+            {
+                return true;
+            }
+        });
+        return geom;
+    }
+
+    @Override public void print(Feature feature)
+    {
+        Geometry geom = transform(feature.toGeometry());
+
+        int n = records.size();
+        if((n + 1) * 4 > bounds.length)
+        {
+            double[] newBounds = new double[bounds.length * 2];
+            System.arraycopy(bounds, 0, newBounds, 0, bounds.length);
+            bounds = newBounds;
+        }
+        Box b = feature.bounds();
+        int p = n * 4;
+        double x1 = transformer.transformX(b.minX());
+        double y1 = transformer.transformY(b.minY());
+        double x2 = transformer.transformX(b.maxX());
+        double y2 = transformer.transformY(b.maxY());
+        bounds[p] = Math.min(x1, x2);
+        bounds[p+1] = Math.min(y1, y2);
+        bounds[p+2] = Math.max(x1, x2);
+        bounds[p+3] = Math.max(y1, y2);
+
+        recordBuf.reset();
+        recordBuf.write(switch(feature.type())
+        {
+            case NODE -> 0;
+            case WAY -> 1;
+            case RELATION -> 2;
+        });
+        writeLong(recordBuf, feature.id());
+        writeBytes(recordBuf, wkbWriter.write(geom));
+
+        extractProperties(feature.tags());
+        printProperties();
+        writeInt(recordBuf, properties.size() / 2);
+        for(byte[] s: properties) writeBytes(recordBuf, s);
+        properties.clear();
+
+        records.add(recordBuf.toByteArray());
+    }
+
+    @Override public void printFooter()
+    {
+        int count = records.size();
+        int[] order = PackedHilbertTree.hilbertOrder(bounds, count);
+        double[] sortedBounds = new double[count * 4];
+        long[] offsets = new long[count];
+        long offset = 0;
+        for(int i=0; i<count; i++)
+        {
+            int item = order[i];
+            System.arraycopy(bounds, item * 4, sortedBounds, i * 4, 4);
+            offsets[i] = offset;
+            offset += 4 + records.get(item).length;
+        }
+        bounds = null;
+
+        try
+        {
+            ByteArrayOutputStream indexBuf = new ByteArrayOutputStream();
+            double[] extent = PackedHilbertTree.write(
+                indexBuf, sortedBounds, offsets, count, nodeSize);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC);
+            header.putLong(count);
+            header.putShort((short)nodeSize);
+            header.position(24);
+            for(double v: extent) header.putDouble(v);
+            out.write(header.array());
+            indexBuf.writeTo(out);
+
+            byte[] len = new byte[4];
+            ByteBuffer lenBuf = ByteBuffer.wrap(len).order(ByteOrder.LITTLE_ENDIAN);
+            for(int i=0; i<count; i++)
+            {
+                byte[] record = records.get(order[i]);
+                records.set(order[i], null);    // allow it to be collected
+                lenBuf.putInt(0, record.length);
+                out.write(len);
+                out.write(record);
+            }
+        }
+        catch(IOException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.query;
+
+import com.geodesk.geom.Hilbert;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * A static R-tree whose items are packed in Hilbert order of their
+ * bounding-box centers. The layout matches the index of FlatGeobuf:
+ *
+ * - Each node is 40 bytes: minX, minY, maxX, maxY (doubles), followed by
+ *   a 64-bit offset (all little-endian).
+ * - The root node comes first, the leaf nodes last. Leaves are stored in
+ *   the same order as the items they reference.
+ * - For a leaf, the offset is the byte offset of its item in the data
+ *   section that follows the index; for a branch, it is the index of its
+ *   first child node.
+ *
+ * A client that knows the item count and node size can calculate the size
+ * of the index, fetch it (or only its upper levels), and then issue range
+ * reads for just the items that intersect its bounding box.
+ */
+public class PackedHilbertTree
+{
+    public static final int NODE_BYTES = 40;
+    public static final int DEFAULT_NODE_SIZE = 16;
+
+    private static final int HILBERT_MAX = (1 << 15) - 1;
+
+    /**
+     * Calculates the number of nodes on each level of the tree.
+     *
+     * @param itemCount the number of items (must be > 0)
+     * @param nodeSize  the maximum number of children per node
+     * @return the node counts, starting with the leaf level
+     */
+    public static int[] levelNodeCounts(long itemCount, int nodeSize)
+    {
+        if(itemCount <= 0) return new int[0];
+        if(nodeSize < 2) throw new IllegalArgumentException("Node size must be at least 2");
+        int[] counts = new int[64];
+        int levels = 0;
+        long n = itemCount;
+        for(;;)
+        {
+            counts[levels++] = (int)n;
+            if(n == 1) break;
+            n = (n + nodeSize - 1) / nodeSize;
+        }
+        return Arrays.copyOf(counts, levels);
+    }
+
+    /**
+     * Calculates the total number of nodes in a tree.
+     */
+    public static long nodeCount(long itemCount, int nodeSize)
+    {
+        long total = 0;
+        for(int n: levelNodeCounts(itemCount, nodeSize)) total += n;
+        return total;
+    }
+
+    /**
+     * Calculates the size of the index (in bytes).
+     */
+    public static long indexSize(long itemCount, int nodeSize)
+    {
+        return nodeCount(itemCount, nodeSize) * NODE_BYTES;
+    }
+
+    /**
+     * Determines the order in which items should be stored, based on the
+     * Hilbert value of the center of each item's bounding box. The centers
+     * are scaled to the extent of all items, which yields a much better
+     * clustering than scaling them to the extent of the world.
+     *
+     * @param bounds    the bounding box of each item (minX, minY, maxX, maxY)
+     * @param itemCount the number of items
+     * @return the indexes of the items, in Hilbert order
+     */
+    public static int[] hilbertOrder(double[] bounds, int itemCount)
+    {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for(int i=0; i<itemCount; i++)
+        {
+            int p = i * 4;
+            minX = Math.min(minX, bounds[p]);
+            minY = Math.min(minY, bounds[p+1]);
+            maxX = Math.max(maxX, bounds[p+2]);
+            maxY = Math.max(maxY, bounds[p+3]);
+        }
+        double scaleX = maxX > minX ? HILBERT_MAX / (maxX - minX) : 0;
+        double scaleY = maxY > minY ? HILBERT_MAX / (maxY - minY) : 0;
+
+        // Sort the items by packing the Hilbert value into the upper
+        // 32 bits and the item index into the lower 32 bits of a long;
+        // this avoids boxing and a comparator
+
+        long[] keys = new long[itemCount];
+        for(int i=0; i<itemCount; i++)
+        {
+            int p = i * 4;
+            double cx = (bounds[p] + bounds[p+2]) / 2;
+            double cy = (bounds[p+1] + bounds[p+3]) / 2;
+            int hx = (int)Math.round((cx - minX) * scaleX);
+            int hy = (int)Math.round((cy - minY) * scaleY);
+            long h = Hilbert.fromXY(hx, hy) & 0xffff_ffffL;
+            keys[i] = (h << 32) | i;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[itemCount];
+        for(int i=0; i<itemCount; i++) order[i] = (int)keys[i];
+        return order;
+    }
+
+    /**
+     * Builds the tree and writes it to a stream.
+     *
+     * @param out       the stream to write to
+     * @param bounds    the bounding box of each item (minX, minY, maxX, maxY),
+     *                  already in Hilbert order
+     * @param offsets   the offset of each item in the data section (in the
+     *                  same order as `bounds`)
+     * @param itemCount the number of items
+     * @param nodeSize  the maximum number of children per node
+     * @return the bounding box of all items (minX, minY, maxX, maxY)
+     * @throws IOException if the stream cannot be written
+     */
+    public static double[] write(OutputStream out, double[] bounds,
+        long[] offsets, int itemCount, int nodeSize) throws IOException
+    {
+        double[] extent = new double[] {
+            Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        if(itemCount == 0) return extent;
+
+        int[] levelCounts = levelNodeCounts(itemCount, nodeSize);
+        int levels = levelCounts.length;
+        int[] levelStarts = new int[levels];
+        int nodeCount = 0;
+        for(int level=levels-1; level>=0; level--)
+        {
+            levelStarts[level] = nodeCount;
+            nodeCount += levelCounts[level];
+        }
+
+        double[] nodeBounds = new double[nodeCount * 4];
+        long[] nodeOffsets = new long[nodeCount];
+        int leafStart = levelStarts[0];
+        System.arraycopy(bounds, 0, nodeBounds, leafStart * 4, itemCount * 4);
+        System.arraycopy(offsets, 0, nodeOffsets, leafStart, itemCount);
+
+        for(int level=1; level<levels; level++)
+        {
+            int childStart = levelStarts[level-1];
+            int childEnd = childStart + levelCounts[level-1];
+            int parent = levelStarts[level];
+            for(int child = childStart; child < childEnd; child += nodeSize, parent++)
+            {
+                int end = Math.min(child + nodeSize, childEnd);
+                double minX = Double.POSITIVE_INFINITY;
+                double minY = Double.POSITIVE_INFINITY;
+                double maxX = Double.NEGATIVE_INFINITY;
+                double maxY = Double.NEGATIVE_INFINITY;
+                for(int i=child; i<end; i++)
+                {
+                    int p = i * 4;
+                    minX = Math.min(minX, nodeBounds[p]);
+                    minY = Math.min(minY, nodeBounds[p+1]);
+                    maxX = Math.max(maxX, nodeBounds[p+2]);
+                    maxY = Math.max(maxY, nodeBounds[p+3]);
+                }
+                int p = parent * 4;
+                nodeBounds[p] = minX;
+                nodeBounds[p+1] = minY;
+                nodeBounds[p+2] = maxX;
+                nodeBounds[p+3] = maxY;
+                nodeOffsets[parent] = child;
+            }
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(NODE_BYTES * 1024);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        for(int i=0; i<nodeCount; i++)
+        {
+            if(!buf.hasRemaining())
+            {
+                out.write(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+            int p = i * 4;
+            buf.putDouble(nodeBounds[p]);
+            buf.putDouble(nodeBounds[p+1]);
+            buf.putDouble(nodeBounds[p+2]);
+            buf.putDouble(nodeBounds[p+3]);
+            buf.putLong(nodeOffsets[i]);
+        }
+        out.write(buf.array(), 0, buf.position());
+        System.arraycopy(nodeBounds, 0, extent, 0, 4);
+        return extent;
+    }
+
+    /**
+     * Searches a tree for items whose bounding boxes intersect the given
+     * box. This is the lookup a client performs against the index section
+     * of an exported file.
+     *
+     * @param index     a buffer containing the index (little-endian), starting
+     *                  at its current position
+     * @param itemCount the number of items
+     * @param nodeSize  the maximum number of children per node
+     * @param consumer  receives the data offset of each matching item
+     */
+    public static void search(ByteBuffer index, long itemCount, int nodeSize,
+        double minX, double minY, double maxX, double maxY, LongConsumer consumer)
+    {
+        if(itemCount == 0) return;
+        ByteBuffer buf = index.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int[] levelCounts = levelNodeCounts(itemCount, nodeSize);
+        int levels = levelCounts.length;
+        int[] levelEnds = new int[levels];
+        int nodeCount = 0;
+        for(int level=levels-1; level>=0; level--)
+        {
+            nodeCount += levelCounts[level];
+            levelEnds[level] = nodeCount;
+        }
+        searchNode(buf, 0, levels-1, levelEnds, nodeSize,
+            minX, minY, maxX, maxY, consumer);
+    }
+
+    private static void searchNode(ByteBuffer buf, int start, int level,
+        int[] levelEnds, int nodeSize,
+        double minX, double minY, double maxX, double maxY, LongConsumer consumer)
+    {
+        int end = Math.min(start + nodeSize, levelEnds[level]);
+        for(int i=start; i<end; i++)
+        {
+            int p = i * NODE_BYTES;
+            if(buf.getDouble(p) > maxX) continue;
+            if(buf.getDouble(p+8) > maxY) continue;
+            if(buf.getDouble(p+16) < minX) continue;
+            if(buf.getDouble(p+24) < minY) continue;
+            long offset = buf.getLong(p+32);
+            if(level == 0)
+            {
+                consumer.accept(offset);
+            }
+            else
+            {
+                searchNode(buf, (int)offset, level-1, levelEnds, nodeSize,
+                    minX, minY, maxX, maxY, consumer);
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.query;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * An on-disk cache of query results. Each result is stored as a file
+ * whose name is a hash of everything that determines the output of a query
+ * (see `Key`); a cache hit is served by copying the file verbatim.
+ *
+ * The cache is bounded by size: whenever a result is added, the least
+ * recently used results are removed until the total size of the cache
+ * fits. Reading a result marks it as used by updating the file's
+ * modification time.
+ *
+ * Results never need to be invalidated explicitly: the key includes the
+ * ID of the tile set and a checksum of the contents of every tile touched
+ * by the query, so a different GOL, or tiles that have been loaded or
+ * updated since the result was cached (even if a replacement tile ends
+ * up in the blob of the old tile), simply yield a different key. Stale
+ * results are eventually evicted.
+ */
+public class ResultCache
+{
+    private static final String RESULT_EXTENSION = ".result";
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final long STALE_TEMP_FILE_AGE = 24 * 60 * 60 * 1000;
+
+    private final Path folder;
+    private final long maxSize;
+
+    public ResultCache(Path folder, long maxSize) throws IOException
+    {
+        this.folder = folder;
+        this.maxSize = maxSize;
+        Files.createDirectories(folder);
+    }
+
+    private Path resultPath(String key)
+    {
+        return folder.resolve(key + RESULT_EXTENSION);
+    }
+
+    /**
+     * Returns the file containing the cached result for the given key,
+     * or `null` if no such result has been cached.
+     */
+    public Path get(String key) throws IOException
+    {
+        Path path = resultPath(key);
+        if(!Files.exists(path)) return null;
+        Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        return path;
+    }
+
+    /**
+     * Creates a stream that writes to `out`, while also capturing the
+     * output as the cached result for `key`. The result is only added to
+     * the cache once `commit()` is called; if the stream is closed before,
+     * the captured output is discarded. Closing the stream does not close
+     * `out`.
+     */
+    public Writer writer(String key, OutputStream out) throws IOException
+    {
+        return new Writer(key, out);
+    }
+
+    /**
+     * Removes the least recently used results until the total size of the
+     * cache is within its limit. Temporary files left behind by aborted
+     * queries are removed as well.
+     */
+    public void evict() throws IOException
+    {
+        List<Result> results = new ArrayList<>();
+        long totalSize = 0;
+        try(Stream<Path> files = Files.list(folder))
+        {
+            for(Path path: (Iterable<Path>)files::iterator)
+            {
+                String name = path.getFileName().toString();
+                FileTime time = Files.getLastModifiedTime(path);
+                if(name.endsWith(TEMP_EXTENSION))
+                {
+                    // Only remove temporary files that are clearly stale,
+                    // since another query may still be writing to them
+                    long age = System.currentTimeMillis() - time.toMillis();
+                    if(age > STALE_TEMP_FILE_AGE) Files.deleteIfExists(path);
+                    continue;
+                }
+                if(!name.endsWith(RESULT_EXTENSION)) continue;
+                Result result = new Result(path, Files.size(path), time);
+                results.add(result);
+                totalSize += result.size;
+            }
+        }
+        if(totalSize <= maxSize) return;
+
+        results.sort(Comparator.comparing(r -> r.lastUsed));
+        for(Result result: results)
+        {
+            if(totalSize <= maxSize) break;
+            Files.deleteIfExists(result.path);
+            totalSize -= result.size;
+        }
+    }
+
+    private static class Result
+    {
+        final Path path;
+        final long size;
+        final FileTime lastUsed;
+
+        Result(Path path, long size, FileTime lastUsed)
+        {
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    public class Writer extends OutputStream
+    {
+        private final String key;
+        private final OutputStream out;
+        private final Path tempPath;
+        private OutputStream fileOut;
+
+        private Writer(String key, OutputStream out) throws IOException
+        {
+            this.key = key;
+            this.out = out;
+            tempPath = Files.createTempFile(folder, key, TEMP_EXTENSION);
+            fileOut = new FileOutputStream(tempPath.toFile());
+        }
+
+        @Override public void write(int b) throws IOException
+        {
+            out.write(b);
+            fileOut.write(b);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            fileOut.write(b, off, len);
+        }
+
+        @Override public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        /**
+         * Adds the captured output to the cache.
+         */
+        public void commit() throws IOException
+        {
+            fileOut.close();
+            fileOut = null;
+            Files.move(tempPath, resultPath(key), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            evict();
+        }
+
+        @Override public void close() throws IOException
+        {
+            out.flush();
+            if(fileOut != null)
+            {
+                fileOut.close();
+                fileOut = null;
+                Files.deleteIfExists(tempPath);
+            }
+        }
+    }
+
+    /**
+     * Builds the cache key of a query result by hashing its components.
+     */
+    public static class Key
+    {
+        private final MessageDigest digest;
+
+        public Key()
+        {
+            try
+            {
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch(NoSuchAlgorithmException ex)
+            {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        public Key add(String s)
+        {
+            if(s == null)
+            {
+                add(-1);
+                return this;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            add(bytes.length);
+            digest.update(bytes);
+            return this;
+        }
+
+        public Key add(byte[] bytes)
+        {
+            add(bytes.length);
+            digest.update(bytes);
+            return this;
+        }
+
+        public Key add(long v)
+        {
+            for(int i=0; i<8; i++)
+            {
+                digest.update((byte)v);
+                v >>>= 8;
+            }
+            return this;
+        }
+
+        /**
+         * Returns the key as a hex string. The Key cannot be used
+         * afterwards.
+         */
+        public String hash()
+        {
+            return HexFormat.of().formatHex(digest.digest());
+        }
+    }
+}
@@ -10,20 +10,38 @@ package com.geodesk.gol.query;
 import com.clarisma.common.text.Table;
 import com.geodesk.feature.Feature;
 import com.geodesk.feature.Relation;
+import com.geodesk.feature.store.StoredFeature;
 import org.eclipse.collections.api.map.primitive.MutableObjectIntMap;
-import org.eclipse.collections.api.set.primitive.MutableLongSet;
 import org.eclipse.collections.impl.map.mutable.primitive.ObjectIntHashMap;
-import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
 
 import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Features are tallied in parallel: print() hands batches of features to a
+// thread pool, and each worker tallies into a partial StatsFeaturePrinter of
+// its own. In printFooter(), the partial counters are merged into the
+// counters of this printer. Tag values and roles are stored as string codes
+// (see StringCodes) and only turned back into strings for the rows that
+// end up in the report.
 
 public class StatsFeaturePrinter extends AbstractFeaturePrinter
 {
     /**
      * A counter for each row in the report.
      */
-    private final Map<Object, Counter> counters = new HashMap<>();
+    private final Map<Counter, Counter> counters = new HashMap<>();
+
+    /**
+     * The codes of the strings used in the rows (shared by all partials).
+     */
+    private StringCodes strings = new StringCodes();
+    private int emptyCode;
+    private int missingCode;
 
     /**
      * The number of tag/role columns.
@@ -82,6 +100,43 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
     private Unit unit = Unit.M;
     private int maxTableWidth = 100;
 
+    /**
+     * If > 0, the maximum number of rows to report. In this mode, the
+     * number of counters kept in memory is bounded: whenever their number
+     * exceeds `TOP_CAPACITY_FACTOR * top`, the least frequent ones are
+     * discarded (lossy counting). Tallies of the reported rows are then
+     * lower bounds, which may be too low by at most their `error`.
+     */
+    private int top;
+    private static final int TOP_CAPACITY_FACTOR = 8;
+    private static final int TOP_MIN_CAPACITY = 4096;
+
+    /**
+     * The highest tally of any counter discarded in top-k mode (the
+     * tally that any row created afterwards may have missed).
+     */
+    private double floor;
+
+    /**
+     * The relations of counters discarded in top-k mode (only used for
+     * -f:tally=roles).
+     */
+    private DistinctIdCounter discardedRelations;
+
+    private String[] columnSpecs;
+
+    /**
+     * The stream for messages that should not end up in the results.
+     */
+    private final PrintStream err;
+
+    private static final int BATCH_SIZE = 256;
+    private ThreadPoolExecutor executor;
+    private BlockingQueue<StatsFeaturePrinter> idlePartials;
+    private List<StatsFeaturePrinter> partials;
+    private List<Feature> batch;
+    private volatile Throwable error;
+
     private enum TallyMode
     {
         COUNT, LENGTH, AREA, ROLES, KEYS, TAGS;
@@ -117,6 +172,10 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
         case "tally":
             tallyMode = getValue(value, TallyMode.class);
             return true;
+        case "top":
+            top = getValue(value, Integer.class);
+            if(top < 1) throw new IllegalArgumentException("Must be at least 1");
+            return true;
         case "unit":
             unit = getValue(value, Unit.class);
             return true;
@@ -131,8 +190,14 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
     private static class Counter implements Comparable<Counter>
     {
         /**
-         * The tag values to which this counter applies (for -f:tally=roles,
-         * the last item is the role)
+         * The string codes of the tag values to which this counter applies
+         * (for -f:tally=roles, the last item is the role)
+         */
+        int[] codes;
+
+        /**
+         * The tag values (resolved from `codes` only for the rows that
+         * are reported)
          */
         String[] tags;
 
@@ -141,6 +206,13 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
          */
         double tally;
 
+        /**
+         * In top-k mode, the maximum amount by which the tally may be
+         * too low (because an earlier counter for the same row was
+         * discarded).
+         */
+        double error;
+
         /**
          * For -f:tally=roles only: The number of relations that contain
          * thr role in this row.
@@ -151,9 +223,9 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
          * For -f:tally=roles only: Tracks the relations that contain the
          * role in this row (only needed if the number of rows is limited,
          * so we can properly calculate the number of relations in the
-         * "other" row). If this set is used, its size must equal relCount.
+         * "other" row).
          */
-        MutableLongSet relations;
+        DistinctIdCounter relations;
 
         /**
          * For -f:tally=keys: The counter that tracks all values for this key,
@@ -200,22 +272,41 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
         {
             if(o instanceof Counter other)
             {
-                return Arrays.equals(tags, other.tags);
+                return Arrays.equals(codes, other.codes);
             }
             return false;
         }
 
         @Override public int hashCode()
         {
-            return Arrays.hashCode(tags);
+            return Arrays.hashCode(codes);
         }
 
         Counter copy()
         {
             Counter copy = new Counter();
-            copy.tags = Arrays.copyOf(tags, tags.length);
+            copy.codes = Arrays.copyOf(codes, codes.length);
             return copy;
         }
+
+        void merge(Counter other)
+        {
+            tally += other.tally;
+            error += other.error;
+            relCount += other.relCount;
+            if(other.relations != null)
+            {
+                if(relations == null)
+                {
+                    // the other counter is discarded after merging
+                    relations = other.relations;
+                }
+                else
+                {
+                    relations.merge(other.relations);
+                }
+            }
+        }
     }
 
     private static class LexicalComparator implements Comparator<Counter>
@@ -272,12 +363,68 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
         }
     }
 
-    public StatsFeaturePrinter(PrintStream out)
+    public StatsFeaturePrinter(PrintStream out, PrintStream err)
     {
         super(out);
+        this.err = err;
+    }
+
+    /**
+     * Creates a partial printer that tallies a subset of the features,
+     * using the same settings as its parent.
+     */
+    private StatsFeaturePrinter(StatsFeaturePrinter parent)
+    {
+        super(null);
+        err = null;
+        strings = parent.strings;
+        splitValues = parent.splitValues;
+        minTally = parent.minTally;
+        minPercentage = parent.minPercentage;
+        tallyMode = parent.tallyMode;
+        unit = parent.unit;
+        top = parent.top;
+        columns(parent.columnSpecs);
+        initTally();
+    }
+
+    @Override public void columns(String[] colSpecs)
+    {
+        columnSpecs = colSpecs;
+        super.columns(colSpecs);
     }
 
     @Override public void printHeader()
+    {
+        initTally();
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        if(threadCount > 1)
+        {
+            executor = new ThreadPoolExecutor(
+                threadCount, threadCount, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(threadCount * 4),
+                r ->
+                {
+                    Thread thread = new Thread(r, "stats-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+            // One partial per worker, plus one for the calling thread
+            // (which runs tasks itself if the queue is full)
+            partials = new ArrayList<>(threadCount + 1);
+            idlePartials = new ArrayBlockingQueue<>(threadCount + 1);
+            for(int i=0; i<=threadCount; i++)
+            {
+                StatsFeaturePrinter partial = new StatsFeaturePrinter(this);
+                partials.add(partial);
+                idlePartials.add(partial);
+            }
+            batch = new ArrayList<>(BATCH_SIZE);
+        }
+    }
+
+    private void initTally()
     {
         switch(tallyMode)
         {
@@ -305,7 +452,14 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
             columnCount = columns.size();
             break;
         }
-        key.tags = new String[columnCount];
+        key.codes = new int[columnCount];
+        initCodes();
+    }
+
+    private void initCodes()
+    {
+        emptyCode = strings.code("");
+        missingCode = strings.code("-");
     }
 
     private Counter addToCounter(double tally)
@@ -313,23 +467,68 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
         Counter counter = counters.get(key);
         if(counter == null)
         {
+            if(top > 0 && counters.size() >= Math.max(
+                top * TOP_CAPACITY_FACTOR, TOP_MIN_CAPACITY))
+            {
+                discardLeastFrequent();
+            }
             counter = key.copy();
+            counter.error = floor;
             counters.put(counter, counter);
         }
         counter.tally += tally;
         return counter;
     }
 
+    /**
+     * Checks whether a counter tracks a key (rather than a tag) in a
+     * -f:tally=keys or -f:tally=tags report. Such counters are never
+     * discarded in top-k mode, since the value counters are grouped by
+     * their key counter.
+     */
+    private boolean isKeyCounter(Counter c)
+    {
+        return (tallyMode == TallyMode.KEYS || tallyMode == TallyMode.TAGS)
+            && c.codes[1] == emptyCode;
+    }
+
+    /**
+     * Discards the least frequent counters, so that only about twice the
+     * number of requested rows remain (top-k mode only).
+     */
+    private void discardLeastFrequent()
+    {
+        List<Counter> list = new ArrayList<>(counters.size());
+        for(Counter c: counters.values())
+        {
+            if(!isKeyCounter(c)) list.add(c);
+        }
+        int keep = top * 2;
+        if(list.size() <= keep) return;
+        Collections.sort(list);
+        for(int i=keep; i<list.size(); i++)
+        {
+            Counter c = list.get(i);
+            counters.remove(c);
+            floor = Math.max(floor, c.tally);
+            if(c.relations != null)
+            {
+                if(discardedRelations == null) discardedRelations = new DistinctIdCounter(true);
+                discardedRelations.merge(c.relations);
+            }
+        }
+    }
+
     private void tallyRoles(int n)
     {
         currentRoles.forEachKeyValue((role, count) ->
         {
-            key.tags[n] = role;
+            key.codes[n] = strings.code(role);
             Counter counter = addToCounter(count);
             counter.relCount++;
-            if(minTally > Long.MIN_VALUE || minPercentage > 0)
+            if(minTally > Long.MIN_VALUE || minPercentage > 0 || top > 0)
             {
-                if(counter.relations == null) counter.relations = new LongHashSet();
+                if(counter.relations == null) counter.relations = new DistinctIdCounter(top > 0);
                 counter.relations.add(currentRelationId);
             }
         });
@@ -343,12 +542,15 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
             return;
         }
         String value = columns.get(n).value;
-        if(value == null) value = "-";
-        if(splitValues && value.indexOf(';') >= 0)
+        if(value == null)
+        {
+            key.codes[n] = missingCode;
+        }
+        else if(splitValues && value.indexOf(';') >= 0)
         {
             for(String valuePart : value.split(";"))
             {
-                key.tags[n] = valuePart.trim();
+                key.codes[n] = strings.code(valuePart.trim());
                 if (n + 1 < columnCount)
                 {
                     tally(n + 1, tally);
@@ -360,7 +562,10 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
             }
             return;
         }
-        key.tags[n] = value;
+        else
+        {
+            key.codes[n] = strings.code(value);
+        }
         if (n + 1 < columnCount)
         {
             tally(n + 1, tally);
@@ -386,6 +591,115 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
     }
 
     @Override public void print(Feature feature)
+    {
+        if(strings.store() == null && feature instanceof StoredFeature stored)
+        {
+            // Now that we know the store, the codes of the special
+            // strings may change to global-string codes
+            strings.store(stored.store());
+            initCodes();
+            if(partials != null)
+            {
+                for(StatsFeaturePrinter partial: partials) partial.initCodes();
+            }
+        }
+        if(batch == null)
+        {
+            tallyFeature(feature);
+            return;
+        }
+        batch.add(feature);
+        if(batch.size() == BATCH_SIZE) submitBatch();
+    }
+
+    private void submitBatch()
+    {
+        if(error != null) throw new RuntimeException(error);
+        List<Feature> features = batch;
+        batch = new ArrayList<>(BATCH_SIZE);
+        executor.execute(() ->
+        {
+            StatsFeaturePrinter partial = null;
+            try
+            {
+                partial = idlePartials.take();
+                for(Feature f: features) partial.tallyFeature(f);
+            }
+            catch(Throwable ex)
+            {
+                error = ex;
+            }
+            finally
+            {
+                if(partial != null) idlePartials.add(partial);
+            }
+        });
+    }
+
+    /**
+     * Waits for all pending batches and merges the counters of the
+     * partials into the counters of this printer.
+     */
+    private void mergePartials()
+    {
+        if(!batch.isEmpty()) submitBatch();
+        executor.shutdown();
+        try
+        {
+            executor.awaitTermination(30, TimeUnit.DAYS);
+        }
+        catch (InterruptedException ex)
+        {
+            // don't care about being interrupted, we're done anyway
+        }
+        if(error != null) throw new RuntimeException(error);
+        for(StatsFeaturePrinter partial: partials) merge(partial);
+        partials = null;
+        idlePartials = null;
+    }
+
+    @Override public void close()
+    {
+        // If the query failed, the workers are still around
+        if(executor != null) executor.shutdownNow();
+    }
+
+    private void merge(StatsFeaturePrinter partial)
+    {
+        for(Counter c: counters.values())
+        {
+            if(!partial.counters.containsKey(c)) c.error += partial.floor;
+        }
+        for(Counter c: partial.counters.values())
+        {
+            Counter existing = counters.get(c);
+            if(existing == null)
+            {
+                c.error += floor;
+                counters.put(c, c);
+            }
+            else
+            {
+                existing.merge(c);
+            }
+        }
+        floor += partial.floor;
+        totalTally += partial.totalTally;
+        totalFeatureCount += partial.totalFeatureCount;
+        totalRelationCount += partial.totalRelationCount;
+        if(partial.discardedRelations != null)
+        {
+            if(discardedRelations == null) discardedRelations = new DistinctIdCounter(true);
+            discardedRelations.merge(partial.discardedRelations);
+        }
+        if(top > 0 && counters.size() > Math.max(
+            top * TOP_CAPACITY_FACTOR, TOP_MIN_CAPACITY))
+        {
+            discardLeastFrequent();
+        }
+    }
+
+    private void tallyFeature(Feature feature)
     {
         extractProperties(feature.tags());
         double tally = 0;
@@ -421,17 +735,42 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
 
     protected void printProperty(String k, String v)
     {
-        key.tags[0] = k;
-        key.tags[1] = "";
-        Counter keyCounter = addToCounter(1);
-        key.tags[1] = v;
-        Counter valueCounter = addToCounter(1);
-        if(tallyMode == TallyMode.KEYS) valueCounter.parent = keyCounter;
+        key.codes[0] = strings.code(k);
+        key.codes[1] = emptyCode;
+        addToCounter(1);
+        key.codes[1] = strings.code(v);
+        addToCounter(1);
+    }
+
+    /**
+     * Resolves the tag values of the counters, and (for -f:tally=keys)
+     * links each value counter to the counter of its key.
+     */
+    private void resolveCounters(List<Counter> list)
+    {
+        for(Counter c: list)
+        {
+            int[] codes = c.codes;
+            c.tags = new String[codes.length];
+            for(int i=0; i<codes.length; i++) c.tags[i] = strings.string(codes[i]);
+        }
+        if(tallyMode == TallyMode.KEYS)
+        {
+            for(Counter c: list)
+            {
+                if(c.codes[1] == emptyCode) continue;
+                key.codes[0] = c.codes[0];
+                key.codes[1] = emptyCode;
+                c.parent = counters.get(key);
+            }
+        }
     }
 
     @Override public void printFooter()
     {
+        if(partials != null) mergePartials();
         List<Counter> list = new ArrayList<>(counters.values());
+        resolveCounters(list);
         if(tallyMode == TallyMode.KEYS)
         {
             // For KEYS report, we need to ensure that parents are always
@@ -465,19 +804,40 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
 
         double totalOmitted = 0;
         int omittedRowCount = 0;
-        MutableLongSet omittedRelations = new LongHashSet();
+        double maxError = 0;
+        DistinctIdCounter omittedRelations = new DistinctIdCounter(top > 0);
+        if(discardedRelations != null) omittedRelations.merge(discardedRelations);
         int end;
         for(end = list.size(); end > 0; end--)
         {
             Counter c = list.get(end-1);
             double tally = c.tally;
             double percentage = tally / totalTally;
-            if(tally >= minTally && percentage >= minPercentage) break;
+            if(tally >= minTally && percentage >= minPercentage)
+            {
+                if(top == 0 || end <= top) break;
+            }
             totalOmitted += tally;
             omittedRowCount++;
-            if(c.relations != null) omittedRelations.addAll(c.relations);
+            if(c.relations != null) omittedRelations.merge(c.relations);
         }
         list = list.subList(0, end);
+        if(top > 0)
+        {
+            // In top-k mode, the discarded counters are part of "others" as
+            // well; their tallies are whatever the retained counters
+            // don't account for
+            double retainedTally = totalOmitted;
+            for(Counter c: list)
+            {
+                if(!isKeyCounter(c)) retainedTally += c.tally;
+                maxError = Math.max(maxError, c.error);
+            }
+            if(tallyMode != TallyMode.KEYS && tallyMode != TallyMode.TAGS)
+            {
+                totalOmitted += Math.max(0, totalTally - retainedTally);
+            }
+        }
 
         // TODO: sorting for KEYS/TAGS report
         if(alphaSort)
@@ -612,8 +972,16 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
         if(totalOmitted > 0 && tallyMode != TallyMode.KEYS && tallyMode != TallyMode.TAGS)
         {
             // TODO: KEYS/TAGS: break "others" into keys/tags?
-            table.add(String.format("(%,d other%s)", omittedRowCount,
-                omittedRowCount == 1 ? "" : "s"));
+            if(floor > 0)
+            {
+                // In top-k mode, we don't know how many rows were discarded
+                table.add("(others)");
+            }
+            else
+            {
+                table.add(String.format("(%,d other%s)", omittedRowCount,
+                    omittedRowCount == 1 ? "" : "s"));
+            }
             switch(tallyMode)
             {
             case KEYS:
@@ -632,7 +1000,7 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
                 table.add("");      // (no per-key %)
                 break;
             case ROLES:
-                table.add(omittedRelations.size());
+                table.add(omittedRelations.count());
                 break;
             }
             table.add(totalOmitted / totalTally);
@@ -671,8 +1039,13 @@ public class StatsFeaturePrinter extends AbstractFeaturePrinter
         // operator         = *                  61,695   80.9%
         // collection_times = *                  51,070   67.0%
 
-        System.err.println();
+        err.println();
             // Print to stderr so the extra line does not end up in a file
         out.print(table);
+        if(maxError > 0)
+        {
+            err.format("Approximate tallies (-f:top): each may be " +
+                "too low by up to %,.0f\n", maxError);
+        }
     }
 }
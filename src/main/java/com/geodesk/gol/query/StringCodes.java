@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.query;
+
+import com.geodesk.feature.store.FeatureStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns strings into integer codes, so reports that aggregate large numbers
+ * of tag permutations can store an `int` per value instead of a `String`.
+ * Strings that appear in the global string table of the FeatureStore use
+ * their global-string code (0 or positive); all other strings are assigned
+ * a negative code the first time they are encountered, and are stored only
+ * once.
+ *
+ * This class is thread-safe.
+ */
+public class StringCodes
+{
+    private volatile FeatureStore store;
+    private final Map<String,Integer> localCodes = new ConcurrentHashMap<>();
+    private final List<String> localStrings = new ArrayList<>();
+
+    /**
+     * Sets the FeatureStore whose global strings should be used. Must be
+     * called before the first string is encoded.
+     */
+    public void store(FeatureStore store)
+    {
+        this.store = store;
+    }
+
+    public FeatureStore store()
+    {
+        return store;
+    }
+
+    public int code(String s)
+    {
+        FeatureStore store = this.store;
+        if(store != null)
+        {
+            int code = store.codeFromString(s);
+            if(code >= 0) return code;
+        }
+        return localCodes.computeIfAbsent(s, this::addLocalString);
+    }
+
+    private synchronized int addLocalString(String s)
+    {
+        localStrings.add(s);
+        return -localStrings.size();
+    }
+
+    public synchronized String string(int code)
+    {
+        if(code >= 0) return store.stringFromCode(code);
+        return localStrings.get(-code - 1);
+    }
+}
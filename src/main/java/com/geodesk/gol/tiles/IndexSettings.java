@@ -22,11 +22,16 @@ public class IndexSettings
     public final IntIntMap keysToCategory;
 
     public IndexSettings(FeatureStore store, Project settings)
+    {
+        this(settings, store.keysToCategories());
+    }
+
+    public IndexSettings(Project settings, IntIntMap keysToCategory)
     {
         this.rtreeBucketSize = settings.rtreeBucketSize();
         this.maxKeyIndexes = settings.maxKeyIndexes();
         this.keyIndexMinFeatures = settings.keyIndexMinFeatures();
-        keysToCategory = store.keysToCategories();
+        this.keysToCategory = keysToCategory;
         maxIndexedKey = keysToCategory.keySet().max();
     }
 
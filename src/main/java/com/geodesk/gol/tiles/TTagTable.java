@@ -56,6 +56,7 @@ public class TTagTable extends SharedStruct implements Comparable<TTagTable>
         setAlignment(1);    // 2-byte aligned (1 << 1)
         int uncommonTagCount = 0;
         int size;
+        int anchor = 0;
         int p = pTable;
 
         // Do an initial scan of the stored tag table to count the tags
@@ -73,6 +74,7 @@ public class TTagTable extends SharedStruct implements Comparable<TTagTable>
                 if((k & 4) != 0) break;     // bit 2 is last-item flag
             }
             size = pTable - p;
+            anchor = size;
             setAnchor(size);
             setLocation(p);
             p = pTable;
@@ -99,7 +101,7 @@ public class TTagTable extends SharedStruct implements Comparable<TTagTable>
         //  adjust size if we switch to a "proper" end marker
         //  that respects the wide-value flag
 
-        tags = new long[tagCount];
+        long[] tags = new long[tagCount];
         p = pTable;
         int origin = pTable & 0xffff_fffc;
         for(int i= globalKeyTagCount; i < tagCount; i++)
@@ -174,6 +176,58 @@ public class TTagTable extends SharedStruct implements Comparable<TTagTable>
             if((k & 0x8000) != 0) break;
         }
 
+        // If strings have been promoted to the global string table since
+        // the tile was written, switch their tags to the global codes
+
+        boolean promoted = false;
+        for(int i=0; i<tags.length; i++)
+        {
+            long tag = tags[i];
+            if(tag == EMPTY_TAG) continue;
+            boolean localKey = (tag & LOCAL_KEY) != 0;
+            int valueSize = (tag & 2) != 0 ? 4 : 2;
+            int oldTagSize = (localKey ? 4 : 2) + valueSize;
+            if(localKey)
+            {
+                int k = tile.globalStringCode(tile.localString(((int)tag >>> 2) & 0x1fff_ffff));
+                if(k >= 0 && k <= TagValues.MAX_COMMON_KEY)
+                {
+                    tag = (tag & 0xffff_ffff_0000_0003L) | (k << 2);
+                    anchor -= oldTagSize;
+                    localKey = false;
+                }
+            }
+            if((tag & 3) == 3)
+            {
+                int v = tile.globalStringCode(tile.localString((int)(tag >>> 32)));
+                if(v >= 0)
+                {
+                    // narrow global-string value
+                    tag = ((long)v << 32) | (tag & 0xffff_fffcL) | 1;
+                    valueSize = 2;
+                    if(localKey) anchor -= 2;
+                }
+            }
+            if(tag != tags[i])
+            {
+                size += (localKey ? 4 : 2) + valueSize - oldTagSize;
+                tags[i] = tag;
+                promoted = true;
+            }
+        }
+        if(promoted)
+        {
+            if(tags[0] == EMPTY_TAG && hasGlobalKeys(tags))
+            {
+                // The empty-table marker is no longer needed, since the
+                // table now has global-key tags
+                tags = Arrays.copyOfRange(tags, 1, tags.length);
+                size -= 4;
+            }
+            sortPromotedTags(tags);
+            setAnchor(anchor);
+        }
+        this.tags = tags;
         hashCode = Arrays.hashCode(tags);
         setSize(size);
     }
@@ -273,6 +327,39 @@ public class TTagTable extends SharedStruct implements Comparable<TTagTable>
 		setAnchor(anchor);
     }
 
+    private static boolean hasGlobalKeys(long[] tags)
+    {
+        for(long tag: tags)
+        {
+            if(tag != EMPTY_TAG && (tag & LOCAL_KEY) == 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves tags whose keys have been promoted to global strings ahead of
+     * the local-key tags, keeping the global-key tags in ascending order
+     * of their key codes (the relative order of the local-key tags is
+     * preserved).
+     */
+    private static void sortPromotedTags(long[] tags)
+    {
+        for(int i=1; i<tags.length; i++)
+        {
+            long tag = tags[i];
+            if((tag & LOCAL_KEY) != 0) continue;
+            int key = (char)tag;
+            int j = i - 1;
+            while(j >= 0 && ((tags[j] & LOCAL_KEY) != 0 ||
+                (tags[j] != EMPTY_TAG && (char)tags[j] > key)))
+            {
+                tags[j + 1] = tags[j];
+                j--;
+            }
+            tags[j + 1] = tag;
+        }
+    }
+
     /**
      * Sorts tags:
      * - global keys first, ascending key code
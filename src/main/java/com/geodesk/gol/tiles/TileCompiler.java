@@ -18,18 +18,26 @@ import com.geodesk.core.Tile;
 import com.geodesk.core.TileQuad;
 import com.geodesk.feature.store.FeatureStore;
 import com.geodesk.feature.store.TileIndexWalker;
+import com.geodesk.feature.store.TagValues;
 import com.geodesk.feature.store.Tip;
 import com.geodesk.geom.Bounds;
 import com.geodesk.gol.Processor;
 import com.geodesk.gol.build.BuildContext;
+import com.geodesk.gol.build.KeyIndexSchema;
 import com.geodesk.gol.build.Project;
 import com.geodesk.gol.build.TileCatalog;
 import com.geodesk.gol.compiler.FeatureTile;
 import com.geodesk.gol.compiler.SFeature;
 import com.geodesk.gol.compiler.SRelation;
 import com.geodesk.gol.compiler.SWay;
+import org.eclipse.collections.api.map.primitive.IntIntMap;
 import org.eclipse.collections.api.map.primitive.IntObjectMap;
+import org.eclipse.collections.api.map.primitive.MutableIntIntMap;
+import org.eclipse.collections.api.map.primitive.MutableObjectIntMap;
 import org.eclipse.collections.api.map.primitive.ObjectIntMap;
+import org.eclipse.collections.api.set.primitive.IntSet;
+import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
+import org.eclipse.collections.impl.map.mutable.primitive.ObjectIntHashMap;
 
 import java.io.FileWriter;
 import java.io.IOException;
@@ -39,6 +47,7 @@ import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
 
 import static com.geodesk.gol.build.ProtoGol.*;
 
@@ -47,8 +56,29 @@ public class TileCompiler extends Processor<TileCompiler.Task>
     private final FeatureStore store;
     private final TileCatalog tileCatalog;
     private final ObjectIntMap<String> globalStrings;
+    /**
+     * The global strings to install along with the compiled tiles, or
+     * `null` if the store's string table remains unchanged.
+     */
+    private final String[] newGlobalStrings;
+    /**
+     * The key index schema to install along with the compiled tiles (if
+     * promoted keys are assigned to index categories), or `null` if the
+     * store's schema remains unchanged.
+     */
+    private final IntIntMap newKeysToCategory;
     private final IndexSettings indexSettings;
     private FeatureStore destinationStore;
+    /**
+     * The tiles to compile, or `null` to compile all tiles.
+     */
+    private IntSet tiles;
+    /**
+     * If tiles are compiled in place, the TIPs of the compiled tiles,
+     * mapped to the first page of their replacement blob; otherwise
+     * `null`.
+     */
+    private MutableIntIntMap replacedTiles;
 
     private static final int DEFAULT_LINK_DB_PAGE_SIZE = 1 << 13; // TODO: configurable
 
@@ -57,15 +87,91 @@ public class TileCompiler extends Processor<TileCompiler.Task>
         store = ctx.getFeatureStore();
         tileCatalog = ctx.getTileCatalog();
         globalStrings = store.stringsToCodes();
+        newGlobalStrings = null;
+        newKeysToCategory = null;
         indexSettings = new IndexSettings(store, ctx.project());
     }
 
+    /**
+     * Creates a TileCompiler that encodes tiles using a new global string
+     * table, which `compile()` installs along with the tiles. The new
+     * table must start with the strings of the current table (in the
+     * same order), so tiles that are not recompiled remain valid.
+     *
+     * Promoted keys that the project's `indexed-keys` assign to a
+     * category are added to the key index schema, provided the store
+     * uses that category for the same keys (or not at all).
+     *
+     * @param ctx           the BuildContext
+     * @param globalStrings the new global strings (including the empty
+     *                      string at #0)
+     */
+    public TileCompiler(BuildContext ctx, String[] globalStrings) throws IOException
+    {
+        store = ctx.getFeatureStore();
+        tileCatalog = ctx.getTileCatalog();
+        MutableObjectIntMap<String> stringsToCodes = new ObjectIntHashMap<>(globalStrings.length);
+        for(int i=0; i<globalStrings.length; i++) stringsToCodes.put(globalStrings[i], i);
+        this.globalStrings = stringsToCodes;
+        newGlobalStrings = globalStrings;
+        IntIntMap keysToCategory = store.keysToCategories();
+        MutableIntIntMap promotedKeysToCategory = categorizePromotedKeys(
+            ctx.project().keyIndexSchema(), globalStrings);
+        if(promotedKeysToCategory.isEmpty())
+        {
+            newKeysToCategory = null;
+        }
+        else
+        {
+            promotedKeysToCategory.putAll(keysToCategory);
+            keysToCategory = promotedKeysToCategory;
+            newKeysToCategory = keysToCategory;
+        }
+        indexSettings = new IndexSettings(ctx.project(), keysToCategory);
+    }
+
+    /**
+     * Determines the index categories of promoted keys.
+     *
+     * @param schema        the project's key index schema (may be `null`)
+     * @param globalStrings the new global strings
+     * @return the codes of the promoted keys that are indexed, mapped
+     *   to their categories
+     */
+    private MutableIntIntMap categorizePromotedKeys(KeyIndexSchema schema, String[] globalStrings)
+    {
+        MutableIntIntMap keysToCategory = new IntIntHashMap();
+        if(schema == null) return keysToCategory;
+        Map<String,Integer> indexedKeys = store.indexedKeys();
+        int end = Math.min(globalStrings.length, TagValues.MAX_COMMON_KEY + 1);
+        for(int code = store.codesToStrings().length; code < end; code++)
+        {
+            int category = schema.getCategory(globalStrings[code]);
+            if(category == 0) continue;
+            boolean consistent = true;
+            for(Map.Entry<String,Integer> e: indexedKeys.entrySet())
+            {
+                if(e.getValue() == category && schema.getCategory(e.getKey()) != category)
+                {
+                    // The store uses this category for other keys (the
+                    // GOL was built with different settings)
+                    consistent = false;
+                    break;
+                }
+            }
+            if(consistent) keysToCategory.put(code, category);
+        }
+        return keysToCategory;
+    }
+
     protected class Task implements Runnable
     {
+        private final int tile;
         private final int tip;
 
-        public Task(int tip)
+        public Task(int tile, int tip)
         {
+            this.tile = tile;
             this.tip = tip;
         }
 
@@ -73,11 +179,11 @@ public class TileCompiler extends Processor<TileCompiler.Task>
         {
             try
             {
-                TTile tile = new TTile(tip, globalStrings, tileCatalog, indexSettings);
-                TileReader reader = new TileReader(tile, store, tip);
+                TTile tTile = new TTile(tile, globalStrings, tileCatalog, indexSettings);
+                TileReader reader = new TileReader(tTile, store, tip);
                 reader.read();
-                tile.build();
-                writeTile(tile);
+                tTile.build();
+                writeTile(tTile);
             }
             catch (Throwable ex)
             {
@@ -90,7 +196,19 @@ public class TileCompiler extends Processor<TileCompiler.Task>
         {
             FeatureStore store = destinationStore;
             int payloadSize = tile.header.payloadSize;   // don't include 4-byte header
-            int page = store.createTile(tip, payloadSize);
+            int page;
+            if(replacedTiles != null)
+            {
+                page = ((UpdatableFeatureStore)store).allocateTile(payloadSize);
+                synchronized (replacedTiles)
+                {
+                    replacedTiles.put(tip, page);
+                }
+            }
+            else
+            {
+                page = store.createTile(tip, payloadSize);
+            }
             PbfOutputStream imports = new PbfOutputStream();
 
             ByteBuffer buf = store.bufferOfPage(page);
@@ -114,13 +232,73 @@ public class TileCompiler extends Processor<TileCompiler.Task>
 
     @Override protected void feed() throws IOException
     {
+        if(tiles != null)
+        {
+            setTotalWork("Compiling", tiles.size());
+            tiles.forEach(tile -> submit(new Task(tile, tileCatalog.tipOfTile(tile))));
+            return;
+        }
         int tileCount = tileCatalog.tileCount();
         setTotalWork("Compiling", tileCount);
         TileIndexWalker walker = new TileIndexWalker(store);
         walker.start(Box.ofWorld());
         while(walker.next())
         {
-            submit(new Task(walker.tip()));
+            submit(new Task(walker.tile(), walker.tip()));
+        }
+    }
+
+    /**
+     * Recompiles the given tiles in place. Each tile is written to a new
+     * blob (reusing free space in the store where possible); once all
+     * tiles have been compiled, the tile index is switched to the new
+     * blobs (retiring the blobs of the old tiles) in a single transaction.
+     * Tiles that are not in the set are left untouched.
+     *
+     * Requires that the store of the BuildContext is an UpdatableFeatureStore.
+     *
+     * @param tiles     the tile numbers of the tiles to compile
+     * @return `true` if the tiles have been replaced, or `false` if there
+     *   was no room for the new global string table (or index schema) in
+     *   the first segment of the store, in which case the store remains
+     *   unchanged
+     */
+    public boolean compile(IntSet tiles) throws IOException
+    {
+        if(!(store instanceof UpdatableFeatureStore updatableStore))
+        {
+            throw new IllegalStateException("Store must be opened for updating");
+        }
+        if(tiles.isEmpty() && newGlobalStrings == null) return true;
+        this.tiles = tiles;
+        replacedTiles = new IntIntHashMap(tiles.size());
+        destinationStore = updatableStore;
+        try
+        {
+            int stringTablePage = 0;
+            int indexSchemaPage = 0;
+            if(newGlobalStrings != null)
+            {
+                stringTablePage = updatableStore.writeStringTable(newGlobalStrings);
+                if(stringTablePage == 0) return false;
+                if(newKeysToCategory != null)
+                {
+                    indexSchemaPage = updatableStore.writeIndexSchema(newKeysToCategory);
+                    if(indexSchemaPage == 0)
+                    {
+                        updatableStore.discardBlob(stringTablePage);
+                        return false;
+                    }
+                }
+            }
+            if(!tiles.isEmpty()) run();
+            updatableStore.replaceTiles(replacedTiles, stringTablePage, indexSchemaPage);
+            return true;
+        }
+        finally
+        {
+            this.tiles = null;
+            replacedTiles = null;
         }
     }
 
@@ -13,6 +13,7 @@ import com.clarisma.common.util.Log;
 import com.geodesk.feature.match.TypeBits;
 import com.geodesk.feature.store.FeatureConstants;
 import com.geodesk.feature.store.FeatureStore;
+import com.geodesk.feature.store.TagValues;
 import org.eclipse.collections.api.list.primitive.MutableIntList;
 import org.eclipse.collections.api.map.primitive.MutableIntIntMap;
 import org.eclipse.collections.api.map.primitive.MutableIntObjectMap;
@@ -447,9 +448,19 @@ public class TileReader
                     {
                         // uncommon role
                         rawRole = buf.getInt(p);
-                        currentRole = (readString(p + (rawRole >> 1)) << 1) | 1;
+                        int roleCode = readString(p + (rawRole >> 1));
                             // signed shift (rawRole contains relative pointer)
-                            // flag bit is reversed internally: 1 = local string
+                        int globalRoleCode = tile.globalStringCode(tile.localString(roleCode));
+                        if(globalRoleCode >= 0 && globalRoleCode <= TagValues.MAX_COMMON_ROLE)
+                        {
+                            // role has been promoted to a global string
+                            currentRole = globalRoleCode << 1;
+                        }
+                        else
+                        {
+                            currentRole = (roleCode << 1) | 1;
+                                // flag bit is reversed internally: 1 = local string
+                        }
                         //Log.debug("Read uncommon role: %s", tile.localString(currentRole >>> 1));
                             // TODO: use Bit 31 to signal local-key role
                         p += 4;
@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.tiles;
+
+import com.clarisma.common.pbf.PbfOutputStream;
+import com.clarisma.common.store.StoreException;
+import com.clarisma.common.util.Bytes;
+import com.geodesk.feature.store.FeatureStore;
+import org.eclipse.collections.api.list.primitive.IntList;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.api.map.primitive.IntIntMap;
+import org.eclipse.collections.api.set.primitive.MutableIntSet;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.eclipse.collections.impl.set.mutable.primitive.IntHashSet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static com.clarisma.common.store.BlobStoreConstants.METADATA_SIZE_OFS;
+import static com.geodesk.feature.store.FeatureStoreConstants.INDEX_SCHEMA_PTR_OFS;
+import static com.geodesk.feature.store.FeatureStoreConstants.STRING_TABLE_PTR_OFS;
+
+/**
+ * A FeatureStore whose tiles can be replaced in place, while other
+ * processes (such as `gol serve`) keep reading it. A replacement
+ * tile is written to a newly allocated blob (which may reuse the space
+ * of blobs that were freed earlier), while the tile index continues to
+ * refer to the old blob. Once all replacement tiles have been written,
+ * `replaceTiles()` switches the tile index entries to the new blobs
+ * in a single journaled transaction -- if the process is interrupted,
+ * the store either refers to all old tiles, or to all new tiles.
+ *
+ * The global string table (and the key index schema) can be replaced
+ * along with the tiles, in order to promote strings that have become
+ * common. Readers cache the string table, so a reader in another process
+ * must reopen the store before it can decode the re-encoded tiles.
+ *
+ * The blobs of replaced tiles are not freed right away, since a reader
+ * in another process may still be using them. Instead, they are added
+ * to a list of retired blobs, which is kept in the store itself (its
+ * head is referenced from a header word the library leaves unused).
+ * Retired blobs are freed by `openForUpdate()` the next time the store
+ * is opened while no other process has it open. Updates only take an
+ * append lock, which serializes writers, but doesn't block readers.
+ */
+public class UpdatableFeatureStore extends FeatureStore
+{
+    /**
+     * The header word that holds the first page of the most recent blob
+     * of retired blobs (or 0 if there are none). Each of these blobs
+     * contains the first page of the previous one (or 0), the number of
+     * retired blobs it lists, and their first pages.
+     */
+    private static final int RETIRED_BLOBS_PTR_OFS = 60;
+
+    /**
+     * The offset (from the start of a tile's blob) of the word that holds
+     * the tile's revision. The library leaves the first word of a tile's
+     * payload unused (it is 0 in compiled and loaded tiles, and is not
+     * exported); `replaceTiles()` sets it to the revision of the replaced
+     * tile plus one.
+     */
+    private static final int TILE_REVISION_OFS = 4;
+
+    /**
+     * Opens the store for reading and updating. If no other process has
+     * the store open, the blobs retired by earlier updates are freed.
+     */
+    public void openForUpdate()
+    {
+        open();
+        try
+        {
+            lock(LOCK_NONE);
+            if(tryExclusiveLock()) freeRetiredBlobs();
+            lock(LOCK_READ);
+            // Another process may have replaced the string table while
+            // the store was briefly unlocked
+            initialize();
+        }
+        catch(IOException ex)
+        {
+            close();
+            throw new StoreException("Failed to open store for updating", path(), ex);
+        }
+    }
+
+    /**
+     * Returns the revision of a tile, which is incremented each time the
+     * tile is replaced (0 if the tile has never been replaced). Together
+     * with the tile's page, it identifies the tile's contents, even if
+     * the tile's blob reuses the space of a blob that has been freed.
+     *
+     * @param store     the store (which need not be an
+     *                  UpdatableFeatureStore)
+     * @param page      the first page of the tile
+     * @return the tile's revision
+     */
+    public static int tileRevision(FeatureStore store, int page)
+    {
+        return store.bufferOfPage(page).getInt(store.offsetOfPage(page) + TILE_REVISION_OFS);
+    }
+
+    /**
+     * Returns the first pages of the blobs that have been replaced, but
+     * which cannot be freed until the store is opened exclusively.
+     */
+    public IntList retiredBlobs()
+    {
+        MutableIntList pages = new IntArrayList();
+        int listPage = baseMapping().getInt(RETIRED_BLOBS_PTR_OFS);
+        while(listPage != 0)
+        {
+            ByteBuffer buf = bufferOfPage(listPage);
+            int p = offsetOfPage(listPage) + 4;
+            int count = buf.getInt(p + 4);
+            for(int i=0; i<count; i++) pages.add(buf.getInt(p + 8 + i * 4));
+            listPage = buf.getInt(p);
+        }
+        return pages;
+    }
+
+    /**
+     * Frees the retired blobs (and the blobs that list them). The caller
+     * must hold the exclusive lock, which is downgraded to a read lock
+     * once the blobs have been freed.
+     */
+    private void freeRetiredBlobs() throws IOException
+    {
+        if(baseMapping().getInt(RETIRED_BLOBS_PTR_OFS) == 0) return;
+        beginTransaction(LOCK_EXCLUSIVE);
+        try
+        {
+            retiredBlobs().forEach(this::freeBlob);
+            int listPage = baseMapping().getInt(RETIRED_BLOBS_PTR_OFS);
+            while(listPage != 0)
+            {
+                int nextPage = bufferOfPage(listPage).getInt(offsetOfPage(listPage) + 4);
+                freeBlob(listPage);
+                listPage = nextPage;
+            }
+            getBlock(0).putInt(RETIRED_BLOBS_PTR_OFS, 0);
+            commit();
+        }
+        catch(Throwable ex)
+        {
+            rollback();
+            throw ex;
+        }
+        finally
+        {
+            endTransaction();
+        }
+    }
+
+    /**
+     * Adds blobs to the list of retired blobs. Must be called within a
+     * transaction.
+     *
+     * @param pages     the first pages of the blobs
+     */
+    private void retireBlobs(IntList pages) throws IOException
+    {
+        if(pages.isEmpty()) return;
+        ByteBuffer header = getBlock(0);
+        int listPage = allocateBlob(pages.size() * 4 + 8);
+        long pos = absoluteOffsetOfPage(listPage) + 4;
+        putInt(pos, header.getInt(RETIRED_BLOBS_PTR_OFS));
+        putInt(pos + 4, pages.size());
+        for(int i=0; i<pages.size(); i++) putInt(pos + 8 + i * 4, pages.get(i));
+        header.putInt(RETIRED_BLOBS_PTR_OFS, listPage);
+    }
+
+    /**
+     * Writes a value into the (journaled) block at the given position of
+     * the store. Must be called within a transaction.
+     */
+    private void putInt(long pos, int value) throws IOException
+    {
+        getBlock(pos & ~4095L).putInt((int)(pos & 4095), value);
+    }
+
+    /**
+     * A copy of the store starts out without retired blobs.
+     */
+    @Override protected void resetMetadata(ByteBuffer buf)
+    {
+        super.resetMetadata(buf);
+        buf.putInt(RETIRED_BLOBS_PTR_OFS, 0);
+    }
+
+    /**
+     * Allocates a blob for a replacement tile. The allocation is committed
+     * right away, so the caller can write the tile's contents directly
+     * into the blob (journaled blocks would otherwise clobber these
+     * writes when the transaction commits). Since the blob is not yet
+     * referenced by the tile index, its space is lost (until the next
+     * compaction) if the process is interrupted before `replaceTiles()`
+     * is called.
+     *
+     * This method may be called concurrently.
+     *
+     * @param payloadSize   the size of the tile (excluding the 4-byte header)
+     * @return the first page of the new blob
+     */
+    public synchronized int allocateTile(int payloadSize) throws IOException
+    {
+        beginTransaction(LOCK_APPEND);
+        try
+        {
+            int page = allocateBlob(payloadSize);
+            commit();
+            return page;
+        }
+        catch(Throwable ex)
+        {
+            rollback();
+            throw ex;
+        }
+        finally
+        {
+            endTransaction();
+        }
+    }
+
+    /**
+     * Writes data into a new blob that is referenced from the header of
+     * the store. The blob must lie within the first segment (the library
+     * reads the string table and the index schema via the base mapping);
+     * if the allocator places it elsewhere, the blob is freed right away.
+     *
+     * @return the first page of the blob, or 0 if it could not be placed
+     */
+    private int writeMetadataBlob(byte[] data, int len) throws IOException
+    {
+        int page = allocateTile(len);
+        if(absoluteOffsetOfPage(page) + 4 + len > MAPPING_SIZE)
+        {
+            freeBlobs(IntArrayList.newListWith(page));
+            return 0;
+        }
+        ByteBuffer buf = bufferOfPage(page);
+        buf.put(offsetOfPage(page) + 4, data, 0, len);
+        return page;
+    }
+
+    /**
+     * Writes a global string table into a new blob, which `replaceTiles()`
+     * can then install. The table must lie within the first segment of
+     * the store; if there is no room for it, the caller can try again
+     * once more space has been freed.
+     *
+     * @param strings   the strings (entry #0 must be the empty string)
+     * @return the first page of the blob, or 0 if the table could not
+     *   be placed
+     */
+    public synchronized int writeStringTable(String[] strings) throws IOException
+    {
+        assert strings[0].isEmpty();
+        PbfOutputStream out = new PbfOutputStream();
+        out.writeVarint(strings.length - 1);    // entry #0 is not stored
+        for(int i=1; i<strings.length; i++) out.writeString(strings[i]);
+        return writeMetadataBlob(out.buffer(), out.size());
+    }
+
+    /**
+     * Writes a key index schema into a new blob, which `replaceTiles()`
+     * can then install. Like the string table, the schema must lie within
+     * the first segment of the store.
+     *
+     * @param keysToCategories  the codes of the indexed keys, mapped to
+     *                          their categories
+     * @return the first page of the blob, or 0 if the schema could not
+     *   be placed
+     */
+    public synchronized int writeIndexSchema(IntIntMap keysToCategories) throws IOException
+    {
+        int[] keys = keysToCategories.keySet().toSortedArray();
+        byte[] b = new byte[keys.length * 4 + 4];
+        Bytes.putInt(b, 0, keys.length);
+        for(int i=0; i<keys.length; i++)
+        {
+            Bytes.putInt(b, i * 4 + 4, keys[i] | (keysToCategories.get(keys[i]) << 16));
+        }
+        return writeMetadataBlob(b, b.length);
+    }
+
+    /**
+     * Frees a blob that has been allocated, but not installed (e.g. a
+     * string table that cannot be used after all).
+     *
+     * @param page  the first page of the blob
+     */
+    public synchronized void discardBlob(int page) throws IOException
+    {
+        freeBlobs(IntArrayList.newListWith(page));
+    }
+
+    /**
+     * Makes the tile index refer to the replacement tiles, and retires the
+     * blobs of the tiles they replace.
+     *
+     * @param newPages  a mapping of TIPs to the first page of their
+     *                  replacement tile (as returned by `allocateTile()`)
+     */
+    public void replaceTiles(IntIntMap newPages) throws IOException
+    {
+        replaceTiles(newPages, 0, 0);
+    }
+
+    /**
+     * Makes the tile index refer to the replacement tiles (retiring the
+     * blobs of the tiles they replace) and (optionally) installs a new
+     * global string table and key index schema, in the same transaction.
+     * The blobs of a string table or index schema installed by an earlier
+     * call are retired as well (the ones created by the build live in the
+     * metadata area, which is never freed).
+     *
+     * @param newPages          a mapping of TIPs to the first page of their
+     *                          replacement tile
+     * @param stringTablePage   the first page of the new string table (as
+     *                          returned by `writeStringTable()`), or 0 to
+     *                          keep the current string table
+     * @param indexSchemaPage   the first page of the new index schema (as
+     *                          returned by `writeIndexSchema()`), or 0 to
+     *                          keep the current index schema
+     */
+    public synchronized void replaceTiles(IntIntMap newPages,
+        int stringTablePage, int indexSchemaPage) throws IOException
+    {
+        if(newPages.isEmpty() && stringTablePage == 0 && indexSchemaPage == 0) return;
+
+        // The contents of the new tiles have been written directly into
+        // the mapped file (their revisions are written the same way, as
+        // the blobs aren't referenced yet); make sure they are on disk
+        // before the tile index refers to them
+
+        newPages.forEachKeyValue((tip, page) ->
+        {
+            int oldPage = tilePage(tip);
+            int revision = oldPage == 0 ? 0 : tileRevision(this, oldPage) + 1;
+            bufferOfPage(page).putInt(offsetOfPage(page) + TILE_REVISION_OFS, revision);
+        });
+        MutableIntSet segments = new IntHashSet();
+        newPages.forEachValue(page -> segments.add(segmentOfPos(absoluteOffsetOfPage(page))));
+        if(stringTablePage != 0 || indexSchemaPage != 0) segments.add(0);
+        segments.forEach(segment -> getMapping(segment).force());
+
+        beginTransaction(LOCK_APPEND);
+        try
+        {
+            MutableIntList retired = new IntArrayList(newPages.size() + 2);
+            newPages.forEachKeyValue((tip, page) ->
+            {
+                int oldPage = tilePage(tip);
+                setIndexEntry(tip, page);      // shifts the page (bit 0 is a flag)
+                if(oldPage != 0) retired.add(oldPage);
+            });
+            if(stringTablePage != 0) setMetadataBlob(STRING_TABLE_PTR_OFS, stringTablePage, retired);
+            if(indexSchemaPage != 0) setMetadataBlob(INDEX_SCHEMA_PTR_OFS, indexSchemaPage, retired);
+            retireBlobs(retired);
+            commit();
+        }
+        catch(Throwable ex)
+        {
+            rollback();
+            throw ex;
+        }
+        finally
+        {
+            endTransaction();
+        }
+
+        // re-reads the string table and index schema
+        if(stringTablePage != 0 || indexSchemaPage != 0) initialize();
+    }
+
+    /**
+     * Points a header field to the contents of the given blob. The blob
+     * the field referred to before is added to `retired`, unless it lies
+     * in the metadata area. Must be called within a transaction.
+     *
+     * @param ptrOfs    the offset of the (relative) pointer in the header
+     * @param page      the first page of the new blob
+     * @param retired   the list of blobs to retire
+     */
+    private void setMetadataBlob(int ptrOfs, int page, MutableIntList retired) throws IOException
+    {
+        ByteBuffer header = getBlock(0);
+        int oldPos = ptrOfs + header.getInt(ptrOfs);
+        if(oldPos >= header.getInt(METADATA_SIZE_OFS))
+        {
+            retired.add((oldPos - 4) >>> pageSizeShift);
+        }
+        header.putInt(ptrOfs, offsetOfPage(page) + 4 - ptrOfs);
+    }
+
+    private void freeBlobs(MutableIntList pages) throws IOException
+    {
+        if(pages.isEmpty()) return;
+        beginTransaction(LOCK_APPEND);
+        try
+        {
+            pages.forEach(this::freeBlob);
+            commit();
+        }
+        catch(Throwable ex)
+        {
+            rollback();
+            throw ex;
+        }
+        finally
+        {
+            endTransaction();
+        }
+    }
+}
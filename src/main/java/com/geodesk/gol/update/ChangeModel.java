@@ -7,48 +7,504 @@
 
 package com.geodesk.gol.update;
 
+import com.geodesk.feature.FeatureType;
 import com.geodesk.feature.store.FeatureStore;
+import org.eclipse.collections.api.LongIterable;
+import org.eclipse.collections.api.block.procedure.primitive.LongLongProcedure;
+import org.eclipse.collections.api.block.procedure.primitive.LongProcedure;
+import org.eclipse.collections.api.list.primitive.IntList;
+import org.eclipse.collections.api.list.primitive.LongList;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.api.list.primitive.MutableLongList;
 import org.eclipse.collections.api.map.primitive.MutableLongIntMap;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.eclipse.collections.impl.map.mutable.primitive.LongIntHashMap;
 
-import java.util.List;
+import java.util.Arrays;
 
+/**
+ * A compact representation of a batch of changes (the coalesced contents
+ * of one or more OSM change files). Instead of allocating an object (plus
+ * arrays for its tags and members) for each changed feature, the model
+ * stores features in columns of primitive arrays, addressed by a slot
+ * number:
+ *
+ * - Each feature type has a map of IDs to slots, and columns for ID,
+ *   version, flags, the position of its tags, and a "data" value (the
+ *   X/Y coordinates of a node, or the position of the members of a way
+ *   or relation).
+ *
+ * - Tags and roles are stored as string codes (assigned by a
+ *   StringInterner) in a shared `int` arena; each entry starts with its
+ *   length. The roles of a relation immediately follow its tags.
+ *
+ * - Way-node IDs and typed member IDs are stored in a shared `long`
+ *   arena, likewise prefixed by their count.
+ *
+ * An untagged node takes up about 60 bytes (instead of the 150+ bytes of
+ * a ChangedNode with its tag array), and a way or relation costs little
+ * more than its node IDs/members. If a feature is changed more than once,
+ * only the version with the highest version number is kept (if versions
+ * are equal, the later change wins); the arena entries of the superseded
+ * version are simply abandoned, since superseded changes are rare.
+ *
+ * This class is not thread-safe.
+ */
 public class ChangeModel
 {
-    private final FeatureStore store;
+    private final StringInterner strings;
+    private final Table nodes = new Table();
+    private final Table ways = new Table();
+    private final Table relations = new Table();
+    private final MutableIntList codeArena = new IntArrayList();
+    private final MutableLongList memberArena = new LongArrayList();
+    private long supersededCount;
+
     /**
-     * Mapping of node IDs to an index into `changedNodes` or `nodeLocations`.
-     * To distinguish, the index into `changedNodes` is XOR'd with -1
+     * Marker for a feature that has no tags/members (because it is deleted).
      */
-    private MutableLongIntMap nodes;
-    private MutableLongIntMap ways;
-    private MutableLongIntMap relations;
+    private static final int NONE = -1;
+
+    private static class Table
+    {
+        final MutableLongIntMap slots = new LongIntHashMap();
+        final MutableLongList ids = new LongArrayList();
+        final MutableIntList versions = new IntArrayList();
+        final MutableIntList flags = new IntArrayList();
+        final MutableIntList tags = new IntArrayList();
+        final MutableLongList data = new LongArrayList();
+
+        int size()
+        {
+            return ids.size();
+        }
+
+        int slot(long id)
+        {
+            return slots.getIfAbsent(id, -1);
+        }
+
+        int version(long id)
+        {
+            int slot = slot(id);
+            return slot < 0 ? 0 : versions.get(slot);
+        }
+
+        void put(long id, int version, int flags, int tags, long data)
+        {
+            int slot = slot(id);
+            if(slot < 0)
+            {
+                slots.put(id, ids.size());
+                ids.add(id);
+                versions.add(version);
+                this.flags.add(flags);
+                this.tags.add(tags);
+                this.data.add(data);
+                return;
+            }
+            versions.set(slot, version);
+            this.flags.set(slot, flags);
+            this.tags.set(slot, tags);
+            this.data.set(slot, data);
+        }
+    }
 
     /**
-     * All nodes that have changed, excluding those that were anonymous
-     * in the past and will be anonymous in the future.
+     * Creates a ChangeModel whose string table is seeded with the global
+     * strings of a FeatureStore, so tags that use them share the store's
+     * String instances.
      */
-    private List<ChangedNode> changedNodes;
-    private List<ChangedWay> changedWays;
-    private List<ChangedRelation> changedRelations;
+    public ChangeModel(FeatureStore store)
+    {
+        this(new StringInterner());
+        for(String s: store.codesToStrings())
+        {
+            if(s != null) strings.add(s);
+        }
+    }
+
+    ChangeModel(StringInterner strings)
+    {
+        this.strings = strings;
+    }
 
     /**
-     * The X/Y locations of:
-     * - changed nodes that were and will be anonymous
-     * - referenced anonymous nodes
-     * - referenced feature nodes
-     * Anonymous nodes come before feature nodes; entry 0 is unused.
+     * Returns the StringInterner that assigns the codes of the tags and
+     * roles passed to `addNode`, `addWay` and `addRelation`.
      */
-    private long[] nodeLocations;
-    private int[] wayRefs;
-    private int[] relationRefs;
+    public StringInterner strings()
+    {
+        return strings;
+    }
+
+    private Table table(FeatureType type)
+    {
+        return switch(type)
+        {
+            case NODE -> nodes;
+            case WAY -> ways;
+            default -> relations;
+        };
+    }
+
+    public int nodeCount()
+    {
+        return nodes.size();
+    }
+
+    public int wayCount()
+    {
+        return ways.size();
+    }
+
+    public int relationCount()
+    {
+        return relations.size();
+    }
 
     /**
-     * Index of the first node in `nodeLocation` that represents a feature node.
+     * Returns the number of changes that were discarded because the model
+     * already contained a change of the same feature.
      */
-    private int firstFeatureNode;
+    public long supersededCount()
+    {
+        return supersededCount;
+    }
 
-    public ChangeModel(FeatureStore store)
+    /**
+     * Returns the number of changed nodes that have tags.
+     */
+    public int taggedNodeCount()
+    {
+        int count = 0;
+        for(int i=0; i<nodes.size(); i++)
+        {
+            int p = nodes.tags.get(i);
+            if(p != NONE && codeArena.get(p) > 0) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the version of a changed feature, or 0 if the model does not
+     * contain the feature.
+     */
+    public int version(FeatureType type, long id)
+    {
+        return table(type).version(id);
+    }
+
+    public boolean containsNode(long id)
+    {
+        return nodes.slots.containsKey(id);
+    }
+
+    public boolean containsWay(long id)
+    {
+        return ways.slots.containsKey(id);
+    }
+
+    public boolean containsRelation(long id)
+    {
+        return relations.slots.containsKey(id);
+    }
+
+    public LongIterable nodeIds()
+    {
+        return nodes.slots.keysView();
+    }
+
+    public LongIterable wayIds()
+    {
+        return ways.slots.keysView();
+    }
+
+    public LongIterable relationIds()
+    {
+        return relations.slots.keysView();
+    }
+
+    /**
+     * Checks whether a changed feature is deleted.
+     *
+     * @throws IllegalArgumentException if the model does not contain
+     *   the feature
+     */
+    public boolean isDeleted(FeatureType type, long id)
+    {
+        Table table = table(type);
+        return (table.flags.get(checkedSlot(table, type, id)) & ChangedFeature.DELETE) != 0;
+    }
+
+    private static int checkedSlot(Table table, FeatureType type, long id)
+    {
+        int slot = table.slot(id);
+        if(slot < 0)
+        {
+            throw new IllegalArgumentException("%s/%d is not in the model".formatted(
+                type.toString().toLowerCase(), id));
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the X/Y coordinates of a changed node (0 for a deleted node).
+     */
+    public long nodeXY(long id)
+    {
+        return nodes.data.get(checkedSlot(nodes, FeatureType.NODE, id));
+    }
+
+    private String[] strings(int p)
+    {
+        if(p == NONE) return null;
+        int count = codeArena.get(p++);
+        String[] s = new String[count];
+        for(int i=0; i<count; i++) s[i] = strings.string(codeArena.get(p + i));
+        return s;
+    }
+
+    private long[] members(int p)
+    {
+        if(p == NONE) return null;
+        int count = (int)memberArena.get(p++);
+        long[] ids = new long[count];
+        for(int i=0; i<count; i++) ids[i] = memberArena.get(p + i);
+        return ids;
+    }
+
+    /**
+     * Returns the tags of a changed feature as an array of alternating
+     * keys and values, or `null` if the feature is deleted.
+     */
+    public String[] tags(FeatureType type, long id)
+    {
+        Table table = table(type);
+        return strings(table.tags.get(checkedSlot(table, type, id)));
+    }
+
+    /**
+     * Returns the node IDs of a changed way, or `null` if the way is deleted.
+     */
+    public long[] wayNodes(long id)
+    {
+        return members((int)ways.data.get(checkedSlot(ways, FeatureType.WAY, id)));
+    }
+
+    /**
+     * Returns the typed member IDs (see FeatureId) of a changed relation,
+     * or `null` if the relation is deleted.
+     */
+    public long[] members(long id)
+    {
+        return members((int)relations.data.get(checkedSlot(relations, FeatureType.RELATION, id)));
+    }
+
+    /**
+     * Returns the member roles of a changed relation, or `null` if the
+     * relation is deleted.
+     */
+    public String[] roles(long id)
+    {
+        int p = relations.tags.get(checkedSlot(relations, FeatureType.RELATION, id));
+        if(p == NONE) return null;
+        return strings(p + codeArena.get(p) + 1);
+    }
+
+    /**
+     * Calls a procedure with the ID and X/Y coordinates of each changed node.
+     */
+    public void forEachNode(LongLongProcedure procedure)
+    {
+        for(int i=0; i<nodes.size(); i++) procedure.value(nodes.ids.get(i), nodes.data.get(i));
+    }
+
+    private void forEachMember(Table table, LongProcedure procedure)
+    {
+        for(int i=0; i<table.size(); i++)
+        {
+            int p = (int)table.data.get(i);
+            if(p == NONE) continue;
+            int count = (int)memberArena.get(p++);
+            for(int i2=0; i2<count; i2++) procedure.value(memberArena.get(p + i2));
+        }
+    }
+
+    /**
+     * Calls a procedure with each node ID of each changed way.
+     */
+    public void forEachWayNode(LongProcedure procedure)
+    {
+        forEachMember(ways, procedure);
+    }
+
+    /**
+     * Calls a procedure with each typed member ID of each changed relation.
+     */
+    public void forEachRelationMember(LongProcedure procedure)
+    {
+        forEachMember(relations, procedure);
+    }
+
+    /**
+     * Checks whether a version of a feature supersedes the version in the
+     * model (if any). Since files are read in sequence, a later change
+     * with the same version number wins.
+     */
+    private boolean supersedes(Table table, long id, int version)
+    {
+        int previousVersion = table.version(id);
+        if(previousVersion == 0) return true;
+        supersededCount++;
+        return version >= previousVersion;
+    }
+
+    private int addCodes(IntList codes)
+    {
+        int p = codeArena.size();
+        codeArena.add(codes.size());
+        codeArena.addAll(codes);
+        return p;
+    }
+
+    private int addMembers(LongList ids)
+    {
+        int p = memberArena.size();
+        memberArena.add(ids.size());
+        memberArena.addAll(ids);
+        return p;
+    }
+
+    /**
+     * Adds a changed node, unless the model already contains a later
+     * version of it.
+     *
+     * @param tags  the codes of the node's keys and values, or `null`
+     *              if the node is deleted
+     * @return `true` if the node was added
+     */
+    public boolean addNode(long id, int version, int flags, long xy, IntList tags)
+    {
+        if(!supersedes(nodes, id, version)) return false;
+        nodes.put(id, version, flags, tags == null ? NONE : addCodes(tags), xy);
+        return true;
+    }
+
+    /**
+     * Adds a changed way, unless the model already contains a later
+     * version of it.
+     *
+     * @param tags      the codes of the way's keys and values, or `null`
+     *                  if the way is deleted
+     * @param nodeIds   the IDs of the way's nodes, or `null` if the way
+     *                  is deleted
+     * @return `true` if the way was added
+     */
+    public boolean addWay(long id, int version, int flags, IntList tags, LongList nodeIds)
+    {
+        if(!supersedes(ways, id, version)) return false;
+        ways.put(id, version, flags,
+            tags == null ? NONE : addCodes(tags),
+            nodeIds == null ? NONE : addMembers(nodeIds));
+        return true;
+    }
+
+    /**
+     * Adds a changed relation, unless the model already contains a later
+     * version of it.
+     *
+     * @param tags      the codes of the relation's keys and values, or
+     *                  `null` if the relation is deleted
+     * @param memberIds the typed IDs of the relation's members, or `null`
+     *                  if the relation is deleted
+     * @param roles     the codes of the member roles, or `null`
+     *                  if the relation is deleted
+     * @return `true` if the relation was added
+     */
+    public boolean addRelation(long id, int version, int flags,
+        IntList tags, LongList memberIds, IntList roles)
+    {
+        if(!supersedes(relations, id, version)) return false;
+        int pTags = NONE;
+        if(tags != null)
+        {
+            // roles must come right after the tags
+            pTags = addCodes(tags);
+            addCodes(roles);
+        }
+        relations.put(id, version, flags, pTags,
+            memberIds == null ? NONE : addMembers(memberIds));
+        return true;
+    }
+
+    /**
+     * Copies an arena entry of another model, translating its string codes.
+     */
+    private int copyCodes(ChangeModel other, int p, int[] codeMap)
+    {
+        int pNew = codeArena.size();
+        int count = other.codeArena.get(p++);
+        codeArena.add(count);
+        for(int i=0; i<count; i++)
+        {
+            int code = other.codeArena.get(p + i);
+            int newCode = codeMap[code];
+            if(newCode < 0)
+            {
+                newCode = strings.code(other.strings.string(code));
+                codeMap[code] = newCode;
+            }
+            codeArena.add(newCode);
+        }
+        return pNew;
+    }
+
+    private long copyMembers(ChangeModel other, long p)
+    {
+        if(p == NONE) return NONE;
+        int pNew = memberArena.size();
+        int count = (int)other.memberArena.get((int)p);
+        for(int i=0; i<=count; i++) memberArena.add(other.memberArena.get((int)p + i));
+        return pNew;
+    }
+
+    private void merge(ChangeModel later, Table table, Table laterTable, int[] codeMap)
+    {
+        for(int i=0; i<laterTable.size(); i++)
+        {
+            long id = laterTable.ids.get(i);
+            int version = laterTable.versions.get(i);
+            if(!supersedes(table, id, version)) continue;
+            int pTags = laterTable.tags.get(i);
+            if(pTags != NONE)
+            {
+                int pRoles = pTags + later.codeArena.get(pTags) + 1;
+                pTags = copyCodes(later, pTags, codeMap);
+                if(table == relations) copyCodes(later, pRoles, codeMap);
+            }
+            long data = laterTable.data.get(i);
+            if(table != nodes) data = copyMembers(later, data);
+            table.put(id, version, laterTable.flags.get(i), pTags, data);
+        }
+    }
+
+    /**
+     * Merges the changes of another model into this one, keeping the
+     * highest version of each feature. The other model must hold changes
+     * that come later in the sequence than the changes in this model,
+     * so its changes win if versions are equal.
+     *
+     * @param later the other model (which should be discarded afterward)
+     */
+    public void merge(ChangeModel later)
     {
-        this.store = store;
+        int[] codeMap = new int[later.strings.size()];
+        Arrays.fill(codeMap, -1);
+        merge(later, nodes, later.nodes, codeMap);
+        merge(later, ways, later.ways, codeMap);
+        merge(later, relations, later.relations, codeMap);
+        supersededCount += later.supersededCount;
     }
 }
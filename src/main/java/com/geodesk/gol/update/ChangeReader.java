@@ -17,29 +17,17 @@ import com.geodesk.feature.store.FeatureStore;
 import com.geodesk.gol.build.BuildContext;
 import org.eclipse.collections.api.list.primitive.MutableIntList;
 import org.eclipse.collections.api.list.primitive.MutableLongList;
-import org.eclipse.collections.api.map.primitive.MutableLongObjectMap;
-import org.eclipse.collections.api.set.primitive.MutableLongSet;
 import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
 import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
-import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
-import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
-
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.*;
 import java.util.zip.GZIPInputStream;
 
 // TODO: What happens if there are multiple versions of the same node,
 //  some with tags, some without?
 
-public class ChangeReader extends DefaultHandler
+public class ChangeReader implements OscParser.Handler
 {
     private final TileFinder tileFinder;
     private final FeatureStore store;
@@ -49,59 +37,57 @@ public class ChangeReader extends DefaultHandler
     private long currentId;
     private int currentVersion;
     private int currentX, currentY;
-    private final List<String> tagList = new ArrayList<>();
+    private final MutableIntList tagList = new IntArrayList();
     private final MutableLongList memberList = new LongArrayList();
-    private final List<String> roleList = new ArrayList<>();
-    private final List<ChangedNode> nodes = new ArrayList<>();
-    private final MutableLongList untaggedNodes = new LongArrayList();
-    private final MutableIntList untaggedNodeVersions = new IntArrayList();
-    private final List<ChangedWay> ways = new ArrayList<>();
-    private final List<ChangedRelation> relations = new ArrayList<>();
-    private Map<String,String> strings = new HashMap<>();
+    private final MutableIntList roleList = new IntArrayList();
+    /**
+     * The changed features. If a feature is changed more than once (e.g.
+     * in multiple diffs of a batch), only the version with the highest
+     * version number is kept.
+     */
+    private final ChangeModel model;
+    private OscParser parser;
     private long changeCount;
     private long wayNodeCount;
     private long memberCount;
-    private long anonymousNodeCount;
+    private final long[] lookups = new long[LOOKUP_BATCH_SIZE];
+    private int lookupCount;
 
-    private final static String[] EMPTY_STRING_ARRAY = new String[0];
+    private static final int LOOKUP_BATCH_SIZE = 4096;
 
     public ChangeReader(BuildContext ctx, TileFinder tileFinder) throws IOException
     {
         this.tileFinder = tileFinder;
         this.store = ctx.getFeatureStore();
+        model = new ChangeModel(store);
     }
 
     public void read(String file, boolean zipped) throws IOException
     {
-        try (FileInputStream fin = new FileInputStream(file))
-        {
-            InputStream in = fin;
-            if (zipped) in = new GZIPInputStream(fin);
-
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser parser = factory.newSAXParser();
-            parser.parse(in, this);
-            in.close();
-        }
-        catch(SAXException | ParserConfigurationException ex)
+        // Decompression runs on a separate thread, ahead of the parser
+        try (InputStream fileIn = new FileInputStream(file))
         {
-            throw new IOException("%s: Invalid file (%s)".formatted(file, ex.getMessage()));
+            try (InputStream in = zipped ? new GZIPInputStream(fileIn, 64 * 1024) : fileIn;
+                InputStream readAhead = new ReadAheadInputStream(in, "osc-reader"))
+            {
+                parser = new OscParser(readAhead, model.strings());
+                parser.parse(this);
+                flushLookups();
+            }
+            catch(IOException ex)
+            {
+                throw new IOException("%s: Invalid file (%s)".formatted(file, ex.getMessage()), ex);
+            }
+            finally
+            {
+                parser = null;
+            }
         }
     }
 
-    public List<ChangedNode> nodes()
+    public ChangeModel model()
     {
-        return nodes;
-    }
-
-    public List<ChangedWay> ways()
-    {
-        return ways;
-    }
-
-    public List<ChangedRelation> relations()
-    {
-        return relations;
+        return model;
     }
 
     private void reportFreeMemory()
@@ -122,20 +108,25 @@ public class ChangeReader extends DefaultHandler
         // strings = null;
         reportFreeMemory();
         // Log.debug("%,d of %,d nodes are untagged", anonymousNodeCount, nodes.size());
-        Log.debug("Tagged nodes:   %,d", nodes.size());
-        Log.debug("Untagged nodes: %,d", untaggedNodes.size());
-        Log.debug("Ways:           %,d", ways.size());
-        Log.debug("Relations:      %,d", relations.size());
+        int taggedNodeCount = model.taggedNodeCount();
+        Log.debug("Tagged nodes:   %,d", taggedNodeCount);
+        Log.debug("Untagged nodes: %,d", model.nodeCount() - taggedNodeCount);
+        Log.debug("Ways:           %,d", model.wayCount());
+        Log.debug("Relations:      %,d", model.relationCount());
+        Log.debug("Superseded:     %,d", model.supersededCount());
     }
 
 
-    private void startFeature(FeatureType type, Attributes attr)
+    private void startFeature(FeatureType type) throws IOException
     {
-        currentVersion = Integer.parseInt(attr.getValue("version"));
-        currentId = Long.parseLong(attr.getValue("id"));
-        if(tileFinder != null && currentVersion != 1)
+        currentVersion = parser.intAttribute(OscParser.VERSION);
+        currentId = parser.longAttribute(OscParser.ID);
+        if(tileFinder != null && currentVersion != 1 && model.version(type, currentId) == 0)
         {
-            tileFinder.addFeature(FeatureId.of(type, currentId));
+            // Only look up features that haven't been seen in an earlier
+            // diff read by this ChangeReader
+            lookups[lookupCount++] = FeatureId.of(type, currentId);
+            if(lookupCount == LOOKUP_BATCH_SIZE) flushLookups();
         }
         changeCount++;
         if (verbosity >= Verbosity.NORMAL)
@@ -144,138 +135,106 @@ public class ChangeReader extends DefaultHandler
         }
     }
 
+    /**
+     * Passes the IDs of features that need to be looked up to the
+     * TileFinder (which may be shared by multiple ChangeReaders).
+     */
+    private void flushLookups()
+    {
+        if(lookupCount == 0) return;
+        tileFinder.addFeatures(lookups, lookupCount);
+        lookupCount = 0;
+    }
+
+    /**
+     * Merges the changes read by another ChangeReader into this one,
+     * keeping the highest version of each feature. The other reader must
+     * have read files that come later in the sequence than the files read
+     * by this reader, so its changes win if versions are equal.
+     *
+     * @param later the other ChangeReader (which should be discarded
+     *              afterward)
+     */
+    public void merge(ChangeReader later)
+    {
+        model.merge(later.model);
+        changeCount += later.changeCount;
+        wayNodeCount += later.wayNodeCount;
+        memberCount += later.memberCount;
+    }
+
     private void reportProgress()
     {
         System.err.format("Reading... %,d nodes / %,d ways / %,d relations\r",
-            nodes.size(), ways.size(), relations.size());
+            model.nodeCount(), model.wayCount(), model.relationCount());
     }
 
 
-    @Override public void startElement (String uri, String localName,
-        String qName, Attributes attr)
+    @Override public void startElement(int element) throws IOException
     {
-        switch(qName)
+        switch(element)
         {
-        case "node":
-            startFeature(FeatureType.NODE, attr);
-            double lon = Double.parseDouble(attr.getValue("lon"));
-            double lat = Double.parseDouble(attr.getValue("lat"));
+        case OscParser.NODE:
+            startFeature(FeatureType.NODE);
+            double lon = parser.doubleAttribute(OscParser.LON);
+            double lat = parser.doubleAttribute(OscParser.LAT);
             currentX = (int)Math.round(Mercator.xFromLon(lon));
             currentY = (int)Math.round(Mercator.yFromLat(lat));
             break;
-        case "way":
-            startFeature(FeatureType.WAY, attr);
+        case OscParser.WAY:
+            startFeature(FeatureType.WAY);
             break;
-        case "relation":
-            startFeature(FeatureType.RELATION, attr);
+        case OscParser.RELATION:
+            startFeature(FeatureType.RELATION);
             break;
-        case "nd":
-            memberList.add(Long.parseLong(attr.getValue("ref")));
+        case OscParser.ND:
+            memberList.add(parser.longAttribute(OscParser.REF));
             break;
-        case "member":
-            String type = attr.getValue("type");
-            long id = Long.parseLong(attr.getValue("ref"));
-            memberList.add(FeatureId.of(FeatureType.from(type), id));
-            roleList.add(getString(attr.getValue("role")));
+        case OscParser.MEMBER:
+            FeatureType type = parser.typeAttribute(OscParser.TYPE);
+            long id = parser.longAttribute(OscParser.REF);
+            memberList.add(FeatureId.of(type, id));
+            roleList.add(parser.stringCodeAttribute(OscParser.ROLE));
             break;
-        case "tag":
-            tagList.add(getString(attr.getValue("k")));
-            tagList.add(getString(attr.getValue("v")));
+        case OscParser.TAG:
+            tagList.add(parser.stringCodeAttribute(OscParser.K));
+            tagList.add(parser.stringCodeAttribute(OscParser.V));
             break;
-        case "create":
-        case "modify":
+        case OscParser.CREATE:
+        case OscParser.MODIFY:
             currentChangeType = 0;
             break;
-        case "delete":
+        case OscParser.DELETE:
             currentChangeType = ChangedFeature.DELETE;
             break;
         }
     }
 
-    private String getString(String s)
+    @Override public void endElement(int element)
     {
-        int code = store.codeFromString(s);
-        if(code >= 0) return store.stringFromCode(code);
-        String unique = strings.get(s);
-        if(unique == null)
+        boolean deleted = currentChangeType == ChangedFeature.DELETE;
+        switch(element)
         {
-            strings.put(s, s);
-            unique = s;
-        }
-        return unique;
-    }
-
-    private String[] getTags()
-    {
-        return tagList.toArray(EMPTY_STRING_ARRAY);
-    }
-
-    private String[] getRoles()
-    {
-        return roleList.toArray(EMPTY_STRING_ARRAY);
-    }
-
-    public void endElement (String uri, String localName, String qName)
-    {
-        String[] tags;
-        switch(qName)
-        {
-        case "node":
-            if(currentChangeType == ChangedFeature.DELETE)
-            {
-                tags = null;
-                currentX = currentY = 0;
-            }
-            else
-            {
-                tags = getTags();
-                if(tags.length == 0)
-                {
-                    untaggedNodes.add(currentId);
-                    untaggedNodes.add(XY.of(currentX, currentY));
-                    // untaggedNodeVersions.add(currentVersion);
-                    break;
-                }
-            }
-            nodes.add(new ChangedNode(currentId, currentChangeType, currentVersion, tags, currentX, currentY));
+        case OscParser.NODE:
+            long xy = deleted ? 0 : XY.of(currentX, currentY);
+            model.addNode(currentId, currentVersion, currentChangeType, xy,
+                deleted ? null : tagList);
             // Always clear list, since tags may be listed even for deleted nodes
             tagList.clear();
             break;
-        case "way":
-            long[] nodeIds;
-            if(currentChangeType == ChangedFeature.DELETE)
-            {
-                tags = null;
-                nodeIds = null;
-            }
-            else
-            {
-                tags = getTags();
-                nodeIds = memberList.toArray();
-                wayNodeCount+=nodeIds.length;
-            }
-            ways.add(new ChangedWay(currentId, currentChangeType, currentVersion, tags, nodeIds));
+        case OscParser.WAY:
+            if(!deleted) wayNodeCount += memberList.size();
+            model.addWay(currentId, currentVersion, currentChangeType,
+                deleted ? null : tagList, deleted ? null : memberList);
             // Always clear lists, since tags/nodes may be listed even for deleted ways
             tagList.clear();
             memberList.clear();
             break;
-        case "relation":
-            long[] memberIds;
-            String[] roles;
-            if(currentChangeType == ChangedFeature.DELETE)
-            {
-                tags = null;
-                memberIds = null;
-                roles = null;
-            }
-            else
-            {
-                tags = getTags();
-                memberIds = memberList.toArray();
-                roles = getRoles();
-                memberCount += memberIds.length;
-            }
-            relations.add(new ChangedRelation(currentId, currentChangeType, currentVersion, tags, memberIds, roles));
+        case OscParser.RELATION:
+            if(!deleted) memberCount += memberList.size();
+            model.addRelation(currentId, currentVersion, currentChangeType,
+                deleted ? null : tagList, deleted ? null : memberList,
+                deleted ? null : roleList);
             // Always clear lists, since tags/members/roles may be listed even for deleted relations
             tagList.clear();
             memberList.clear();
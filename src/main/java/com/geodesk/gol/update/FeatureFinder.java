@@ -8,9 +8,11 @@
 package com.geodesk.gol.update;
 
 import com.clarisma.common.pbf.PbfDecoder;
+import com.clarisma.common.store.Store;
 import com.clarisma.common.text.Format;
 import com.clarisma.common.util.Log;
 import com.geodesk.core.Tile;
+import com.geodesk.core.XY;
 import com.geodesk.feature.FeatureId;
 import com.geodesk.feature.FeatureType;
 import com.geodesk.feature.Features;
@@ -22,7 +24,6 @@ import com.geodesk.gol.build.TileCatalog;
 import com.geodesk.gol.tiles.MemberReader;
 import com.geodesk.gol.util.TileReaderTask;
 import org.eclipse.collections.api.list.primitive.MutableLongList;
-import org.eclipse.collections.api.map.primitive.LongObjectMap;
 import org.eclipse.collections.api.map.primitive.MutableIntObjectMap;
 import org.eclipse.collections.api.map.primitive.MutableLongObjectMap;
 import org.eclipse.collections.api.set.primitive.IntSet;
@@ -35,22 +36,31 @@ import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.util.List;
+import java.util.Arrays;
 
 public class FeatureFinder extends TaskEngine<FeatureFinder.SearchTile>
 {
     private final FeatureStore store;
     private final TileCatalog tileCatalog;
-    private final LongObjectMap<ChangedNode> changedNodes;
-    private final LongObjectMap<ChangedWay> changedWays;
-    private final LongObjectMap<ChangedRelation> changedRelations;
+    private final ChangeModel changes;
     private final LongSet nodesOfInterest;
     private final LongSet waysOfInterest;
     private final LongSet relationsOfInterest;
+    /**
+     * The IDs in `nodesOfInterest`, in ascending order.
+     */
+    private final long[] sortedNodesOfInterest;
     private final Path wayNodeIndexPath;
+    /**
+     * The consolidated way-node index, or `null` if the GOL was built by
+     * an earlier version, which used one `.wnx` file per tile.
+     */
+    private final WayNodeIndexFile wayNodeIndexFile;
     private final Features<?> duplicateNodes;
     private MutableIntObjectMap<SearchTile> tiles;
     private boolean reportProgress = true; // TODO
@@ -64,10 +74,15 @@ public class FeatureFinder extends TaskEngine<FeatureFinder.SearchTile>
     private static final int FIND_WAY_NODES = 1 << 3;
     private static final int FIND_DUPLICATE_XY = 1 << 4;
 
-    public FeatureFinder(BuildContext ctx,
-        List<ChangedNode> changedNodeList,
-        List<ChangedWay> changedWayList,
-        List<ChangedRelation> changedRelationList) throws IOException
+    private static final byte WAY_EXTRACT = 1;
+    private static final byte WAY_IMPLICITLY_CHANGED = 2;
+
+    /**
+     * Creates a FeatureFinder for a batch of changes. The model contains
+     * only the latest version of each changed feature (ChangeReader
+     * coalesces the changes of all diffs it reads).
+     */
+    public FeatureFinder(BuildContext ctx, ChangeModel changes) throws IOException
     {
         super(new SearchTile(-1), 2, false);
         Log.debug("Creating FeatureFinder...");
@@ -75,56 +90,29 @@ public class FeatureFinder extends TaskEngine<FeatureFinder.SearchTile>
         tileCatalog = ctx.getTileCatalog();
         tileCount = tileCatalog.tileCount();
         wayNodeIndexPath = ctx.indexPath().resolve("waynodes");
+        Path wayNodeIndexFilePath = ctx.indexPath().resolve(WayNodeIndexFile.FILE_NAME);
+        wayNodeIndexFile = Files.exists(wayNodeIndexFilePath) ?
+            WayNodeIndexFile.open(wayNodeIndexFilePath) : null;
         duplicateNodes = new WorldView<>(store).select("n[geodesk:duplicate]");
-        changedNodes = getChangedFeatures(changedNodeList);
-        changedWays = getChangedFeatures(changedWayList);
-        changedRelations = getChangedFeatures(changedRelationList);
-        MutableLongSet nodesOfInterest = new LongHashSet(changedNodes.size() * 2);
-        MutableLongSet waysOfInterest = new LongHashSet(changedWays.size() * 2);
-        MutableLongSet relationsOfInterest = new LongHashSet(changedRelations.size() * 2);
-        nodesOfInterest.addAll(changedNodes.keysView());
-        waysOfInterest.addAll(changedWays.keysView());
-        relationsOfInterest.addAll(changedRelations.keysView());
-        for(ChangedWay way: changedWays)
-        {
-            long[] nodeIds = way.nodeIds;
-            if (nodeIds != null) nodesOfInterest.addAll();
-        }
+        this.changes = changes;
+        MutableLongSet nodesOfInterest = new LongHashSet(changes.nodeCount() * 2);
+        MutableLongSet waysOfInterest = new LongHashSet(changes.wayCount() * 2);
+        MutableLongSet relationsOfInterest = new LongHashSet(changes.relationCount() * 2);
+        nodesOfInterest.addAll(changes.nodeIds());
+        waysOfInterest.addAll(changes.wayIds());
+        relationsOfInterest.addAll(changes.relationIds());
+        changes.forEachWayNode(nodesOfInterest::add);
         MutableLongSet[] membersOfInterest = new MutableLongSet[] {
             nodesOfInterest, waysOfInterest, relationsOfInterest };
-        for(ChangedRelation rel: changedRelations)
-        {
-            long[] memberIds = rel.memberIds;
-            if(memberIds != null)
-            {
-                for (long memberId : memberIds)
-                {
-                    long id = FeatureId.id(memberId);
-                    int type = FeatureId.typeCode(memberId);
-                    membersOfInterest[type].add(id);
-                }
-            }
-        }
+        changes.forEachRelationMember(memberId ->
+            membersOfInterest[FeatureId.typeCode(memberId)].add(FeatureId.id(memberId)));
         this.nodesOfInterest = nodesOfInterest;
+        sortedNodesOfInterest = nodesOfInterest.toSortedArray();
         this.waysOfInterest = waysOfInterest;
         this.relationsOfInterest = relationsOfInterest;
         Log.debug("Created FeatureFinder.");
     }
 
-    private <T extends ChangedFeature> MutableLongObjectMap<T> getChangedFeatures(List<T> list)
-    {
-        MutableLongObjectMap<T> map =new LongObjectHashMap<>(list.size());
-        for(T f: list)
-        {
-            T existing = map.get(f.id());
-            if(existing == null || existing.version < f.version)
-            {
-                map.put(f.id(), f);
-            }
-        }
-        return map;
-    }
-
     public void search(TileFinder tileFinder) throws InterruptedException
     {
         long start = System.currentTimeMillis();
@@ -137,12 +125,12 @@ public class FeatureFinder extends TaskEngine<FeatureFinder.SearchTile>
         });
         tileFinder.wayTiles().forEach(t -> markTile(t, FIND_WAYS));
         tileFinder.relationTiles().forEach(t -> markTile(t, FIND_RELATIONS));
-        for(ChangedNode node: changedNodes)
+        changes.forEachNode((id, xy) ->
         {
             // TODO: use tile directly
-            int pile = tileCatalog.resolvePileOfXY(node.x, node.y);
+            int pile = tileCatalog.resolvePileOfXY(XY.x(xy), XY.y(xy));
             markTile(tileCatalog.tileOfPile(pile), FIND_DUPLICATE_XY);
-        }
+        });
         start();
         for(SearchTile st: tiles.values()) submit(st);
         awaitCompletionOfGroup(0);
@@ -178,6 +166,14 @@ public class FeatureFinder extends TaskEngine<FeatureFinder.SearchTile>
         }
     }
 
+    /**
+     * Releases the way-node indexes (call once the search has completed).
+     */
+    public void close()
+    {
+        if(wayNodeIndexFile != null) wayNodeIndexFile.close();
+    }
+
     private synchronized void updateProgress()
     {
         tilesSearched++;
@@ -278,64 +274,160 @@ public class FeatureFinder extends TaskEngine<FeatureFinder.SearchTile>
 
         private void findWayNodes() throws IOException
         {
+            if(wayNodeIndexFile != null)
+            {
+                WayNodeIndex index = wayNodeIndexFile.get(currentTip);
+                if(index != null) findWayNodes(index);
+                return;
+            }
             Path path = Tip.path(wayNodeIndexPath, currentTip, ".wnx");
             try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
             {
                 int len = (int) channel.size();
-                ByteBuffer buf = ByteBuffer.allocateDirect(len);
-                channel.read(buf);
-                PbfDecoder pbf = new PbfDecoder(buf, 0);
-                long prevWayId = 0;
-                while (pbf.pos() < len)
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, len);
+                try
                 {
-                    boolean extract;
-                    boolean implicitlyChanged = false;
-                    long wayId = pbf.readSignedVarint() + prevWayId;
-                    int savedPos = pbf.pos();
-                    ChangedWay way = changedWays.get(wayId);
-                    if(way != null)
+                    if (WayNodeIndex.isCurrentFormat(buf, 0, len))
                     {
-                        // In 99.9% of cases, we could merely check if a way's node
-                        // is contained in the ChangeModel in order to determine
-                        // if we should pick up this way's nodeIDs. However,
-                        // it is possible that a way changed completely, retaining
-                        // none of its past nodes -- therefore, we check if the way
-                        // is modified explicitly
-
-                        extract = true;
+                        findWayNodes(new WayNodeIndex(buf, 0));
                     }
                     else
                     {
-                        extract = false;
-                        int nodeCount = (int) pbf.readVarint();
-                        long prevNodeId = 0;
-                        for (int i = 0; i < nodeCount; i++)
+                        findWayNodesLegacy(buf, len);
+                    }
+                }
+                finally
+                {
+                    // Don't wait for the GC to release the mapping
+                    Store.unmapSegments(new MappedByteBuffer[] { buf });
+                }
+            }
+        }
+
+        private void foundWayNodes(long wayId, long[] nodeIds, boolean implicitlyChanged)
+        {
+            currentTileWayNodes.put(wayId, nodeIds);
+            if(implicitlyChanged)
+            {
+                implicitlyChangedWays.put(wayId, new ChangedWay(wayId,
+                    0, Integer.MAX_VALUE, null, nodeIds));
+            }
+        }
+
+        /**
+         * Extracts the node IDs of relevant ways from a way-node index
+         * that has a node lookup table. If the tile has far more entries
+         * than there are nodes of interest, we look up each node of
+         * interest via binary search; otherwise, we check each entry
+         * against `nodesOfInterest`. Either way, we only decode the
+         * node lists of the ways we extract.
+         */
+        private void findWayNodes(WayNodeIndex index)
+        {
+            int wayCount = index.wayCount();
+            int entryCount = index.entryCount();
+            if(wayCount == 0) return;
+            byte[] wayFlags = new byte[wayCount];
+
+            for(int i=0; i<wayCount; i++)
+            {
+                // In 99.9% of cases, we could merely check if a way's node
+                // is contained in the ChangeModel in order to determine
+                // if we should pick up this way's nodeIDs. However,
+                // it is possible that a way changed completely, retaining
+                // none of its past nodes -- therefore, we check if the way
+                // is modified explicitly
+                if(changes.containsWay(index.wayId(i))) wayFlags[i] = WAY_EXTRACT;
+            }
+
+            if(entryCount > 0)
+            {
+                long[] interest = sortedNodesOfInterest;
+                if((long)interest.length * 16 < entryCount)
+                {
+                    long maxNodeId = index.entryNodeId(entryCount - 1);
+                    int k = Arrays.binarySearch(interest, index.entryNodeId(0));
+                    if(k < 0) k = -k - 1;
+                    for(; k < interest.length && interest[k] <= maxNodeId; k++)
+                    {
+                        long nodeId = interest[k];
+                        boolean changed = changes.containsNode(nodeId);
+                        for(int e = index.findEntry(nodeId);
+                            e < entryCount && index.entryNodeId(e) == nodeId; e++)
                         {
-                            long nodeId = pbf.readSignedVarint() + prevNodeId;
-                            if (nodesOfInterest.contains(nodeId))
-                            {
-                                extract = true;
-                                if(changedNodes.containsKey(nodeId))
-                                {
-                                    implicitlyChanged = true;
-                                }
-                            }
-                            prevNodeId = nodeId;
+                            wayFlags[index.entryWay(e)] |= changed ?
+                                WAY_EXTRACT | WAY_IMPLICITLY_CHANGED : WAY_EXTRACT;
                         }
                     }
-                    if(extract)
+                }
+                else
+                {
+                    for(int e=0; e<entryCount; e++)
+                    {
+                        long nodeId = index.entryNodeId(e);
+                        if(nodesOfInterest.contains(nodeId))
+                        {
+                            wayFlags[index.entryWay(e)] |= changes.containsNode(nodeId) ?
+                                WAY_EXTRACT | WAY_IMPLICITLY_CHANGED : WAY_EXTRACT;
+                        }
+                    }
+                }
+            }
+
+            for(int i=0; i<wayCount; i++)
+            {
+                int flags = wayFlags[i];
+                if(flags == 0) continue;
+                long wayId = index.wayId(i);
+                foundWayNodes(wayId, index.nodeIds(i), (flags & WAY_IMPLICITLY_CHANGED) != 0
+                    && !changes.containsWay(wayId));
+            }
+        }
+
+        /**
+         * Extracts the node IDs of relevant ways from a way-node index
+         * created by an earlier version of the build tool, which consists
+         * only of node lists.
+         */
+        private void findWayNodesLegacy(ByteBuffer buf, int len)
+        {
+            PbfDecoder pbf = new PbfDecoder(buf, 0);
+            long prevWayId = 0;
+            while (pbf.pos() < len)
+            {
+                boolean extract;
+                boolean implicitlyChanged = false;
+                long wayId = pbf.readSignedVarint() + prevWayId;
+                int savedPos = pbf.pos();
+                if(changes.containsWay(wayId))
+                {
+                    extract = true;
+                }
+                else
+                {
+                    extract = false;
+                    int nodeCount = (int) pbf.readVarint();
+                    long prevNodeId = 0;
+                    for (int i = 0; i < nodeCount; i++)
                     {
-                        pbf.seek(savedPos);
-                        long[] nodeIds = readWayNodes(pbf);
-                        currentTileWayNodes.put(wayId, nodeIds);
-                        if(implicitlyChanged)
+                        long nodeId = pbf.readSignedVarint() + prevNodeId;
+                        if (nodesOfInterest.contains(nodeId))
                         {
-                            implicitlyChangedWays.put(wayId, new ChangedWay(wayId,
-                                0, Integer.MAX_VALUE, null, nodeIds));
+                            extract = true;
+                            if(changes.containsNode(nodeId))
+                            {
+                                implicitlyChanged = true;
+                            }
                         }
+                        prevNodeId = nodeId;
                     }
-                    prevWayId = wayId;
                 }
+                if(extract)
+                {
+                    pbf.seek(savedPos);
+                    foundWayNodes(wayId, readWayNodes(pbf), implicitlyChanged);
+                }
+                prevWayId = wayId;
             }
         }
 
@@ -361,8 +453,7 @@ public class FeatureFinder extends TaskEngine<FeatureFinder.SearchTile>
                 long id = StoredNode.id(buf, p);
                 if(nodesOfInterest.contains(id))
                 {
-                    ChangedNode node = changedNodes.get(id);
-                    if(node != null)
+                    if(changes.containsNode(id))
                     {
                         // TODO: update node
                     }
@@ -401,8 +492,7 @@ public class FeatureFinder extends TaskEngine<FeatureFinder.SearchTile>
                     if (waysOfInterest.contains(id))
                     {
                         scanWayNodes = true;
-                        way = changedWays.get(id);
-                        if (way != null)
+                        if (changes.containsWay(id))
                         {
                             // TODO: update way
                         }
@@ -452,8 +542,7 @@ public class FeatureFinder extends TaskEngine<FeatureFinder.SearchTile>
                 if(relationsOfInterest.contains(id))
                 {
                     // Log.debug("relation/%d", id);
-                    ChangedRelation rel = changedRelations.get(id);
-                    if (rel != null)
+                    if (changes.containsRelation(id))
                     {
                         // TODO: update relation
                         memberReader.start(buf, StoredRelation.bodyPointer(buf, p));
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.update;
+
+import com.geodesk.core.Box;
+import com.geodesk.feature.store.FeatureStore;
+import com.geodesk.feature.store.TileIndexWalker;
+import com.geodesk.gol.Processor;
+import com.geodesk.gol.build.BuildContext;
+import com.geodesk.gol.build.TileCatalog;
+import com.geodesk.gol.tiles.IndexSettings;
+import com.geodesk.gol.tiles.TTile;
+import com.geodesk.gol.tiles.TileReader;
+import org.eclipse.collections.api.map.primitive.ObjectIntMap;
+import org.eclipse.collections.api.set.primitive.IntSet;
+import org.eclipse.collections.api.set.primitive.MutableIntSet;
+import org.eclipse.collections.impl.set.mutable.primitive.IntHashSet;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Finds the tiles that store any of a set of strings as local strings.
+ * Before strings are promoted to the global string table, every tile
+ * that uses them must be re-encoded: queries look up a key via its
+ * global code if it has one, so they would miss tags that still use
+ * the local string.
+ *
+ * Reads every tile that is present in the store (but does not change
+ * the store).
+ */
+public class LocalStringFinder extends Processor<LocalStringFinder.Task>
+{
+    private final FeatureStore store;
+    private final TileCatalog tileCatalog;
+    private final ObjectIntMap<String> globalStrings;
+    private final IndexSettings indexSettings;
+    private final List<String> strings;
+    private final MutableIntSet tiles = new IntHashSet();
+
+    public LocalStringFinder(BuildContext ctx, Collection<String> strings) throws IOException
+    {
+        store = ctx.getFeatureStore();
+        tileCatalog = ctx.getTileCatalog();
+        globalStrings = store.stringsToCodes();
+        indexSettings = new IndexSettings(store, ctx.project());
+        this.strings = List.copyOf(strings);
+    }
+
+    protected class Task implements Runnable
+    {
+        private final int tile;
+        private final int tip;
+
+        Task(int tile, int tip)
+        {
+            this.tile = tile;
+            this.tip = tip;
+        }
+
+        public void run()
+        {
+            try
+            {
+                TTile tTile = new TTile(tile, globalStrings, tileCatalog, indexSettings);
+                new TileReader(tTile, store, tip).read();
+                for(String s: strings)
+                {
+                    if(tTile.localStringCode(s) >= 0)
+                    {
+                        found(tile);
+                        break;
+                    }
+                }
+            }
+            catch (Throwable ex)
+            {
+                fail(ex);
+            }
+            completed(1);
+        }
+    }
+
+    private synchronized void found(int tile)
+    {
+        tiles.add(tile);
+    }
+
+    @Override protected void feed()
+    {
+        setTotalWork("Scanning", tileCatalog.tileCount());
+        TileIndexWalker walker = new TileIndexWalker(store);
+        walker.start(Box.ofWorld());
+        while(walker.next())
+        {
+            if(failed()) break;
+            // Tiles that haven't been loaded don't need to be re-encoded
+            if(store.tilePage(walker.tip()) == 0)
+            {
+                completed(1);
+                continue;
+            }
+            submit(new Task(walker.tile(), walker.tip()));
+        }
+    }
+
+    /**
+     * Scans all tiles.
+     *
+     * @return the tile numbers of the tiles that use any of the strings
+     *   as a local string
+     */
+    public IntSet find()
+    {
+        if(!strings.isEmpty()) run();
+        return tiles;
+    }
+}
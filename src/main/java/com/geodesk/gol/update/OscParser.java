@@ -0,0 +1,496 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.update;
+
+import com.geodesk.feature.FeatureType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A streaming parser for OSM change files (`.osc`), which works directly
+ * on the UTF-8 bytes of the file. It only understands the small subset of
+ * XML that these files use (elements, attributes, the standard entities,
+ * comments and processing instructions), and it only looks at the elements
+ * and attributes that are needed to apply changes.
+ *
+ * For each element, the parser calls `startElement()` and `endElement()`
+ * of its `Handler`. While in `startElement()`, the handler can retrieve
+ * the element's attributes. Numbers are parsed straight from the bytes,
+ * and strings are interned via a `StringInterner`, so the parser allocates
+ * nothing for most attributes.
+ */
+public class OscParser
+{
+    public static final int OTHER = 0;
+    public static final int NODE = 1;
+    public static final int WAY = 2;
+    public static final int RELATION = 3;
+    public static final int ND = 4;
+    public static final int MEMBER = 5;
+    public static final int TAG = 6;
+    public static final int CREATE = 7;
+    public static final int MODIFY = 8;
+    public static final int DELETE = 9;
+
+    public static final int ID = 0;
+    public static final int VERSION = 1;
+    public static final int LAT = 2;
+    public static final int LON = 3;
+    public static final int REF = 4;
+    public static final int TYPE = 5;
+    public static final int ROLE = 6;
+    public static final int K = 7;
+    public static final int V = 8;
+
+    private static final byte[][] ELEMENT_NAMES = names(
+        "", "node", "way", "relation", "nd", "member", "tag",
+        "create", "modify", "delete");
+    private static final byte[][] ATTRIBUTE_NAMES = names(
+        "id", "version", "lat", "lon", "ref", "type", "role", "k", "v");
+    private static final byte[] COMMENT_START = { '<', '!', '-', '-' };
+
+    private static final double[] POWERS_OF_TEN = new double[16];
+
+    static
+    {
+        double p = 1;
+        for(int i=0; i<POWERS_OF_TEN.length; i++)
+        {
+            POWERS_OF_TEN[i] = p;
+            p *= 10;
+        }
+    }
+
+    public interface Handler
+    {
+        void startElement(int element) throws IOException;
+        void endElement(int element) throws IOException;
+    }
+
+    private final InputStream in;
+    private final StringInterner strings;
+    private byte[] buf = new byte[64 * 1024];
+    private int pos;
+    private int limit;
+    private long bufferOffset;
+    private final int[] attrStart = new int[ATTRIBUTE_NAMES.length];
+    private final int[] attrEnd = new int[ATTRIBUTE_NAMES.length];
+    private byte[] scratch = new byte[256];
+
+    public OscParser(InputStream in, StringInterner strings)
+    {
+        this.in = in;
+        this.strings = strings;
+    }
+
+    private static byte[][] names(String... names)
+    {
+        byte[][] bytes = new byte[names.length][];
+        for(int i=0; i<names.length; i++)
+        {
+            bytes[i] = names[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return bytes;
+    }
+
+    private IOException error(String msg)
+    {
+        return new IOException("%s (at byte %,d)".formatted(msg, bufferOffset + pos));
+    }
+
+    /**
+     * Moves the unconsumed bytes to the start of the buffer (growing the
+     * buffer if they fill it entirely), then reads more bytes.
+     *
+     * @return false if the end of the input has been reached
+     */
+    private boolean fill() throws IOException
+    {
+        if(pos > 0)
+        {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            bufferOffset += pos;
+            limit -= pos;
+            pos = 0;
+        }
+        if(limit == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+        int n = in.read(buf, limit, buf.length - limit);
+        if(n < 0) return false;
+        limit += n;
+        return true;
+    }
+
+    public void parse(Handler handler) throws IOException
+    {
+        for(;;)
+        {
+            int p = pos;
+            for(;;)
+            {
+                while(p < limit && buf[p] != '<') p++;
+                if(p < limit) break;
+                pos = limit;        // discard character data
+                if(!fill()) return;
+                p = pos;
+            }
+            pos = p;
+            int end = findTagEnd();
+            parseTag(pos + 1, end, handler);
+            pos = end + 1;
+        }
+    }
+
+    /**
+     * Finds the end of the tag that starts at `pos`, reading more input
+     * if necessary. Quoted attribute values may contain `>`, and comments
+     * end only at `-->`.
+     *
+     * @return the position of the closing `>`
+     */
+    private int findTagEnd() throws IOException
+    {
+        int scanned = 1;
+        byte quote = 0;
+        boolean comment = false;
+        for(;;)
+        {
+            int p = pos + scanned;
+            if(scanned == 1)
+            {
+                // need 4 bytes to check for a comment, but a short tag
+                // like `<a>` may end right at the end of the input
+                if(limit - pos < 4 && isCommentStart() && fill()) continue;
+                comment = limit - pos >= 4 && isCommentStart();
+                if(comment) p += 3;
+            }
+            for(; p < limit; p++)
+            {
+                byte b = buf[p];
+                if(quote != 0)
+                {
+                    if(b == quote) quote = 0;
+                }
+                else if(b == '>')
+                {
+                    if(!comment) return p;
+                    if(buf[p-1] == '-' && buf[p-2] == '-' && p - pos >= 6) return p;
+                }
+                else if(!comment && (b == '"' || b == '\''))
+                {
+                    quote = b;
+                }
+            }
+            scanned = p - pos;
+            if(!fill()) throw error("Unexpected end of file");
+        }
+    }
+
+    /**
+     * Checks whether the bytes available at `pos` could be the start
+     * of a comment (`<!--`).
+     */
+    private boolean isCommentStart()
+    {
+        int n = Math.min(limit - pos, 4);
+        for(int i=1; i<n; i++)
+        {
+            if(buf[pos+i] != COMMENT_START[i]) return false;
+        }
+        return true;
+    }
+
+    private static int lookup(byte[][] names, byte[] b, int start, int end)
+    {
+        for(int i=0; i<names.length; i++)
+        {
+            if(Arrays.equals(names[i], 0, names[i].length, b, start, end)) return i;
+        }
+        return -1;
+    }
+
+    private static boolean isWhitespace(byte b)
+    {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private void parseTag(int p, int end, Handler handler) throws IOException
+    {
+        byte first = buf[p];
+        if(first == '?' || first == '!') return;
+        if(first == '/')
+        {
+            int nameEnd = end;
+            while(isWhitespace(buf[nameEnd-1])) nameEnd--;
+            int element = lookup(ELEMENT_NAMES, buf, p+1, nameEnd);
+            handler.endElement(Math.max(element, OTHER));
+            return;
+        }
+        int nameStart = p;
+        while(p < end && !isWhitespace(buf[p]) && buf[p] != '/') p++;
+        int element = Math.max(lookup(ELEMENT_NAMES, buf, nameStart, p), OTHER);
+        Arrays.fill(attrStart, -1);
+        boolean selfClosing = false;
+        for(;;)
+        {
+            while(p < end && isWhitespace(buf[p])) p++;
+            if(p == end) break;
+            if(buf[p] == '/')
+            {
+                selfClosing = true;
+                break;
+            }
+            int attrNameStart = p;
+            while(p < end && buf[p] != '=' && !isWhitespace(buf[p])) p++;
+            int attr = lookup(ATTRIBUTE_NAMES, buf, attrNameStart, p);
+            while(p < end && isWhitespace(buf[p])) p++;
+            if(p == end || buf[p] != '=') throw error("Expected '='");
+            p++;
+            while(p < end && isWhitespace(buf[p])) p++;
+            if(p == end) throw error("Expected attribute value");
+            byte quote = buf[p];
+            if(quote != '"' && quote != '\'') throw error("Expected quoted attribute value");
+            int valueStart = ++p;
+            while(buf[p] != quote) p++;     // findTagEnd() ensures closing quote
+            if(attr >= 0)
+            {
+                attrStart[attr] = valueStart;
+                attrEnd[attr] = p;
+            }
+            p++;
+        }
+        handler.startElement(element);
+        if(selfClosing) handler.endElement(element);
+    }
+
+    public boolean hasAttribute(int attr)
+    {
+        return attrStart[attr] >= 0;
+    }
+
+    private int start(int attr) throws IOException
+    {
+        int start = attrStart[attr];
+        if(start < 0)
+        {
+            throw error("Missing attribute \"%s\"".formatted(
+                new String(ATTRIBUTE_NAMES[attr], StandardCharsets.US_ASCII)));
+        }
+        return start;
+    }
+
+    private IOException invalidNumber(int attr)
+    {
+        return error("Invalid number: \"%s\"".formatted(
+            new String(buf, attrStart[attr], attrEnd[attr] - attrStart[attr],
+                StandardCharsets.UTF_8)));
+    }
+
+    public long longAttribute(int attr) throws IOException
+    {
+        int p = start(attr);
+        int end = attrEnd[attr];
+        boolean negative = p < end && buf[p] == '-';
+        if(negative) p++;
+        if(p == end || end - p > 18) throw invalidNumber(attr);
+        long v = 0;
+        for(; p < end; p++)
+        {
+            int digit = buf[p] - '0';
+            if(digit < 0 || digit > 9) throw invalidNumber(attr);
+            v = v * 10 + digit;
+        }
+        return negative ? -v : v;
+    }
+
+    public int intAttribute(int attr) throws IOException
+    {
+        long v = longAttribute(attr);
+        if(v != (int)v) throw invalidNumber(attr);
+        return (int)v;
+    }
+
+    /**
+     * Parses a decimal number. Coordinates in OSM files have at most 7
+     * fractional digits, so the mantissa fits into a `long` and the value
+     * is calculated with a single (correctly rounded) division; numbers
+     * with more digits or an exponent are passed to `Double.parseDouble()`.
+     */
+    public double doubleAttribute(int attr) throws IOException
+    {
+        int start = start(attr);
+        int end = attrEnd[attr];
+        int p = start;
+        boolean negative = p < end && buf[p] == '-';
+        if(negative) p++;
+        long mantissa = 0;
+        int digits = 0;
+        int scale = -1;
+        for(; p < end; p++)
+        {
+            byte b = buf[p];
+            if(b == '.' && scale < 0)
+            {
+                scale = 0;
+                continue;
+            }
+            int digit = b - '0';
+            if(digit < 0 || digit > 9) break;
+            mantissa = mantissa * 10 + digit;
+            digits++;
+            if(scale >= 0) scale++;
+        }
+        if(p < end || digits == 0 || digits >= POWERS_OF_TEN.length)
+        {
+            try
+            {
+                return Double.parseDouble(new String(buf, start, end - start,
+                    StandardCharsets.US_ASCII));
+            }
+            catch(NumberFormatException ex)
+            {
+                throw invalidNumber(attr);
+            }
+        }
+        double v = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+        return negative ? -v : v;
+    }
+
+    public FeatureType typeAttribute(int attr) throws IOException
+    {
+        int p = start(attr);
+        int end = attrEnd[attr];
+        int type = lookup(ELEMENT_NAMES, buf, p, end);
+        switch(type)
+        {
+        case NODE:
+            return FeatureType.NODE;
+        case WAY:
+            return FeatureType.WAY;
+        case RELATION:
+            return FeatureType.RELATION;
+        }
+        throw error("Invalid type: \"%s\"".formatted(
+            new String(buf, p, end - p, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Returns the (interned) value of a string attribute, with any entity
+     * references resolved.
+     */
+    public String stringAttribute(int attr) throws IOException
+    {
+        int start = start(attr);
+        int end = attrEnd[attr];
+        for(int p=start; p<end; p++)
+        {
+            if(buf[p] == '&') return strings.get(scratch, 0, unescape(start, end));
+        }
+        return strings.get(buf, start, end - start);
+    }
+
+    /**
+     * Returns the string code (as assigned by the parser's StringInterner)
+     * of the value of a string attribute, with any entity references
+     * resolved.
+     */
+    public int stringCodeAttribute(int attr) throws IOException
+    {
+        int start = start(attr);
+        int end = attrEnd[attr];
+        for(int p=start; p<end; p++)
+        {
+            if(buf[p] == '&') return strings.code(scratch, 0, unescape(start, end));
+        }
+        return strings.code(buf, start, end - start);
+    }
+
+    private void putScratch(int pos, int b)
+    {
+        if(pos >= scratch.length) scratch = Arrays.copyOf(scratch, scratch.length * 2);
+        scratch[pos] = (byte)b;
+    }
+
+    /**
+     * Copies the bytes of an attribute value into the scratch buffer,
+     * replacing entity references.
+     *
+     * @return the number of bytes in the scratch buffer
+     */
+    private int unescape(int p, int end) throws IOException
+    {
+        int len = 0;
+        while(p < end)
+        {
+            byte b = buf[p++];
+            if(b != '&')
+            {
+                putScratch(len++, b);
+                continue;
+            }
+            int nameStart = p;
+            while(p < end && buf[p] != ';') p++;
+            if(p == end) throw error("Unterminated entity reference");
+            int ch = entity(nameStart, p);
+            p++;
+            if(ch < 0x80)
+            {
+                putScratch(len++, ch);
+            }
+            else if(ch < 0x800)
+            {
+                putScratch(len++, 0xc0 | (ch >> 6));
+                putScratch(len++, 0x80 | (ch & 0x3f));
+            }
+            else if(ch < 0x10000)
+            {
+                putScratch(len++, 0xe0 | (ch >> 12));
+                putScratch(len++, 0x80 | ((ch >> 6) & 0x3f));
+                putScratch(len++, 0x80 | (ch & 0x3f));
+            }
+            else
+            {
+                putScratch(len++, 0xf0 | (ch >> 18));
+                putScratch(len++, 0x80 | ((ch >> 12) & 0x3f));
+                putScratch(len++, 0x80 | ((ch >> 6) & 0x3f));
+                putScratch(len++, 0x80 | (ch & 0x3f));
+            }
+        }
+        return len;
+    }
+
+    private int entity(int start, int end) throws IOException
+    {
+        String name = new String(buf, start, end - start, StandardCharsets.US_ASCII);
+        switch(name)
+        {
+        case "amp":
+            return '&';
+        case "lt":
+            return '<';
+        case "gt":
+            return '>';
+        case "quot":
+            return '"';
+        case "apos":
+            return '\'';
+        }
+        try
+        {
+            if(name.startsWith("#x")) return Integer.parseInt(name.substring(2), 16);
+            if(name.startsWith("#")) return Integer.parseInt(name.substring(1));
+        }
+        catch(NumberFormatException ex)
+        {
+            // fall through
+        }
+        throw error("Invalid entity reference: &%s;".formatted(name));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An InputStream that reads its source on a background thread, a chunk at
+ * a time, while the consumer processes earlier chunks. Wrapping a
+ * `GZIPInputStream` in a `ReadAheadInputStream` moves decompression
+ * into a separate pipeline stage, so it overlaps with parsing.
+ *
+ * The source stream is closed by the background thread once it has been
+ * read completely (or fails).
+ */
+public class ReadAheadInputStream extends InputStream
+{
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_PENDING_CHUNKS = 8;
+    private static final byte[] END = new byte[0];
+
+    private final InputStream source;
+    private final BlockingQueue<Object> chunks = new ArrayBlockingQueue<>(MAX_PENDING_CHUNKS);
+    private final Thread thread;
+    private byte[] chunk = new byte[0];
+    private int pos;
+    private boolean atEnd;
+
+    public ReadAheadInputStream(InputStream source, String name)
+    {
+        this.source = source;
+        thread = new Thread(this::readAhead, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void readAhead()
+    {
+        try(source)
+        {
+            for(;;)
+            {
+                byte[] b = new byte[CHUNK_SIZE];
+                int len = source.readNBytes(b, 0, CHUNK_SIZE);
+                if(len == 0) break;
+                chunks.put(len == CHUNK_SIZE ? b : Arrays.copyOf(b, len));
+            }
+            chunks.put(END);
+        }
+        catch(InterruptedException ex)
+        {
+            // consumer has closed the stream
+        }
+        catch(Throwable ex)
+        {
+            try
+            {
+                chunks.put(ex);
+            }
+            catch(InterruptedException ex2)
+            {
+                // consumer has closed the stream
+            }
+        }
+    }
+
+    private boolean nextChunk() throws IOException
+    {
+        if(atEnd) return false;
+        Object next;
+        try
+        {
+            next = chunks.take();
+        }
+        catch(InterruptedException ex)
+        {
+            throw new IOException("Interrupted while reading", ex);
+        }
+        if(next instanceof Throwable ex)
+        {
+            atEnd = true;
+            if(ex instanceof IOException ioex) throw ioex;
+            throw new IOException(ex);
+        }
+        chunk = (byte[])next;
+        pos = 0;
+        if(chunk == END)
+        {
+            atEnd = true;
+            return false;
+        }
+        return true;
+    }
+
+    @Override public int read() throws IOException
+    {
+        while(pos == chunk.length)
+        {
+            if(!nextChunk()) return -1;
+        }
+        return chunk[pos++] & 0xff;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException
+    {
+        if(len == 0) return 0;
+        while(pos == chunk.length)
+        {
+            if(!nextChunk()) return -1;
+        }
+        int n = Math.min(len, chunk.length - pos);
+        System.arraycopy(chunk, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override public void close()
+    {
+        atEnd = true;
+        thread.interrupt();
+    }
+}
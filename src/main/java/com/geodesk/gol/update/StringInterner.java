@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.update;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A hash table that maps UTF-8 byte sequences to unique String instances.
+ * Looking up a string that has already been seen does not allocate
+ * anything, which makes it cheap to turn the keys, values and roles of an
+ * OSM change file into Strings. The table can be seeded with the global
+ * strings of a FeatureStore, so these are always represented by the
+ * store's own String instances.
+ *
+ * Each unique string is also assigned an integer code (in the order in
+ * which strings are added), which lets compact structures refer to
+ * strings using an `int`.
+ *
+ * This class is not thread-safe.
+ */
+public class StringInterner
+{
+    private byte[][] keys;
+    private int[] codes;
+    private int[] hashes;
+    private String[] strings;
+    private int count;
+
+    public StringInterner()
+    {
+        this(1024);
+    }
+
+    public StringInterner(int initialCapacity)
+    {
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 16) * 2 - 1);
+        keys = new byte[capacity][];
+        codes = new int[capacity];
+        hashes = new int[capacity];
+        strings = new String[capacity / 2];
+    }
+
+    public int size()
+    {
+        return count;
+    }
+
+    private static int hash(byte[] b, int start, int len)
+    {
+        // FNV-1a
+        int h = 0x811c9dc5;
+        int end = start + len;
+        for(int i=start; i<end; i++)
+        {
+            h ^= b[i];
+            h *= 0x01000193;
+        }
+        return h;
+    }
+
+    /**
+     * Adds a String, unless an equal String has already been added.
+     *
+     * @param s the String
+     * @return the unique instance of `s`
+     */
+    public String add(String s)
+    {
+        return string(code(s));
+    }
+
+    /**
+     * Returns the code of a String, adding the String if necessary.
+     */
+    public int code(String s)
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        return code(bytes, 0, bytes.length, s);
+    }
+
+    /**
+     * Returns the unique String whose UTF-8 encoding is the given
+     * byte sequence, creating it if necessary.
+     */
+    public String get(byte[] b, int start, int len)
+    {
+        return string(code(b, start, len, null));
+    }
+
+    /**
+     * Returns the code of the String whose UTF-8 encoding is the given
+     * byte sequence, adding the String if necessary.
+     */
+    public int code(byte[] b, int start, int len)
+    {
+        return code(b, start, len, null);
+    }
+
+    /**
+     * Returns the String with the given code.
+     */
+    public String string(int code)
+    {
+        return strings[code];
+    }
+
+    private int code(byte[] b, int start, int len, String s)
+    {
+        int h = hash(b, start, len);
+        int mask = keys.length - 1;
+        int slot = h & mask;
+        for(;;)
+        {
+            byte[] key = keys[slot];
+            if(key == null) break;
+            if(hashes[slot] == h && Arrays.equals(key, 0, key.length, b, start, start + len))
+            {
+                return codes[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        if(s == null) s = new String(b, start, len, StandardCharsets.UTF_8);
+        int code = count++;
+        keys[slot] = Arrays.copyOfRange(b, start, start + len);
+        codes[slot] = code;
+        hashes[slot] = h;
+        if(code == strings.length) strings = Arrays.copyOf(strings, strings.length * 2);
+        strings[code] = s;
+        if(count * 2 > keys.length) rehash();
+        return code;
+    }
+
+    private void rehash()
+    {
+        byte[][] oldKeys = keys;
+        int[] oldCodes = codes;
+        int[] oldHashes = hashes;
+        int capacity = oldKeys.length * 2;
+        keys = new byte[capacity][];
+        codes = new int[capacity];
+        hashes = new int[capacity];
+        int mask = capacity - 1;
+        for(int i=0; i<oldKeys.length; i++)
+        {
+            if(oldKeys[i] == null) continue;
+            int slot = oldHashes[i] & mask;
+            while(keys[slot] != null) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            codes[slot] = oldCodes[i];
+            hashes[slot] = oldHashes[i];
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.update;
+
+import com.clarisma.common.cli.Verbosity;
+import com.clarisma.common.util.Log;
+import com.geodesk.gol.build.BuildContext;
+import com.geodesk.gol.tiles.TileCompiler;
+import org.eclipse.collections.api.set.primitive.IntSet;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Promotes strings to the global string table: appends them to the
+ * table, and re-encodes all tiles that use them as local strings (in
+ * the same transaction). The store of the BuildContext must be an
+ * UpdatableFeatureStore.
+ *
+ * Re-encoding a tile relocates its features, and the TileCompiler
+ * doesn't relink references between tiles, so this is only safe for
+ * tiles that don't reference features in other tiles (or are referenced
+ * by them) -- the same limitation that keeps the Updater from applying
+ * changes to tiles.
+ */
+public class StringPromoter
+{
+    private final BuildContext context;
+    private final int verbosity;
+
+    public StringPromoter(BuildContext context, int verbosity)
+    {
+        this.context = context;
+        this.verbosity = verbosity;
+    }
+
+    /**
+     * Promotes the given strings.
+     *
+     * @param strings   the strings to promote (none of which may be
+     *                  global strings already)
+     * @return `false` if there was no room for the new string table (the
+     *   strings remain candidates, and promotion can be attempted again
+     *   once space has been freed)
+     */
+    public boolean promote(List<String> strings) throws IOException
+    {
+        if(strings.isEmpty()) return true;
+        PrintStream progress = verbosity >= Verbosity.NORMAL ? System.err : null;
+        LocalStringFinder finder = new LocalStringFinder(context, strings);
+        finder.setProgressOutput(progress);
+        IntSet tiles = finder.find();
+        String[] oldStrings = context.getFeatureStore().codesToStrings();
+        String[] globalStrings = Arrays.copyOf(oldStrings, oldStrings.length + strings.size());
+        for(int i=0; i<strings.size(); i++) globalStrings[oldStrings.length + i] = strings.get(i);
+        TileCompiler compiler = new TileCompiler(context, globalStrings);
+        compiler.setProgressOutput(progress);
+        if(!compiler.compile(tiles))
+        {
+            Log.warn("No room for the global string table in the first " +
+                "segment of the GOL; promotion of %,d strings postponed", strings.size());
+            return false;
+        }
+        if(verbosity >= Verbosity.NORMAL)
+        {
+            System.err.format("Promoted %,d string%s to global strings (re-encoded %,d tile%s)\n",
+                strings.size(), strings.size() == 1 ? "" : "s",
+                tiles.size(), tiles.size() == 1 ? "" : "s");
+        }
+        return true;
+    }
+}
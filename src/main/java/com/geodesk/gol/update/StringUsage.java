@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.update;
+
+import com.clarisma.common.math.Decimal;
+import com.geodesk.feature.FeatureType;
+import com.geodesk.feature.store.TagValues;
+import org.eclipse.collections.api.map.primitive.ObjectIntMap;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static com.geodesk.gol.compiler.UsageScores.*;
+
+/**
+ * Tracks the usage of strings that are not in the global string table,
+ * across updates. The global string table is frozen when a GOL is built,
+ * so a key or value that becomes popular afterward ends up as a local
+ * string in every tile that uses it. Each applied batch of changes adds
+ * to the usage scores of the strings used by its tags and roles (scored
+ * the same way as by the Compiler, see UsageScores); once a string's
+ * score crosses a threshold, it becomes a candidate for promotion to
+ * the global string table.
+ *
+ * The scores are cumulative and stored in a file in the index folder.
+ *
+ * # File Format
+ *
+ * ```
+ * int      magic ("SUSG")
+ * int      number of strings
+ * entries
+ *   UTF    string
+ *   double score
+ *   byte   usage flags (1 = key, 2 = value, 4 = role)
+ * ```
+ */
+public class StringUsage
+{
+    /**
+     * The name of the file (within the index folder of a GOL).
+     */
+    public static final String FILE_NAME = "strings.usage";
+
+    public static final int KEY = 1;
+    public static final int VALUE = 2;
+    public static final int ROLE = 4;
+
+    /**
+     * The highest number of entries (including the empty string at #0)
+     * in the global string table.
+     */
+    public static final int MAX_GLOBAL_STRINGS = 1 << 16;
+
+    private static final int MAGIC = 0x47535553;   // "SUSG"
+
+    private static class Entry
+    {
+        double score;
+        int flags;
+    }
+
+    private final Map<String,Entry> entries = new HashMap<>();
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public double score(String s)
+    {
+        Entry e = entries.get(s);
+        return e == null ? 0 : e.score;
+    }
+
+    private void add(String s, double score, int flag)
+    {
+        Entry e = entries.computeIfAbsent(s, k -> new Entry());
+        e.score += score;
+        e.flags |= flag;
+    }
+
+    /**
+     * Checks whether a value would be stored as a string (rather than as
+     * a number) by the Compiler.
+     */
+    private static boolean isStringValue(String value)
+    {
+        long d = Decimal.parse(value, true);
+        return d == Decimal.INVALID || !TagValues.isNarrowNumber(d);
+    }
+
+    private void addTags(String[] tags, double featureScore, ObjectIntMap<String> globalStrings)
+    {
+        if(tags == null) return;
+        double tagTableScore = featureScore * TAGTABLE_RATIO;
+        for(int i=0; i<tags.length; i+=2)
+        {
+            String key = tags[i];
+            String value = tags[i+1];
+            if(!globalStrings.containsKey(key))
+            {
+                add(key, tagTableScore * KEY_STRING_RATIO, KEY);
+            }
+            if(!globalStrings.containsKey(value) && isStringValue(value))
+            {
+                add(value, tagTableScore * ("name".equals(key) ?
+                    SPECIAL_VALUE_STRING_RATIO : VALUE_STRING_RATIO), VALUE);
+            }
+        }
+    }
+
+    /**
+     * Adds the usage of the strings in a batch of changes. Deleted features
+     * are ignored (we don't subtract their usage, since we don't know
+     * which tags they had).
+     *
+     * @param changes       the changes
+     * @param globalStrings the strings in the global string table (these
+     *                      are not tracked)
+     */
+    public void add(ChangeModel changes, ObjectIntMap<String> globalStrings)
+    {
+        for(long id: changes.nodeIds().toArray())
+        {
+            addTags(changes.tags(FeatureType.NODE, id), BASE_FEATURE_SCORE, globalStrings);
+        }
+        for(long id: changes.wayIds().toArray())
+        {
+            addTags(changes.tags(FeatureType.WAY, id), BASE_FEATURE_SCORE, globalStrings);
+        }
+        for(long id: changes.relationIds().toArray())
+        {
+            String[] roles = changes.roles(id);
+            if(roles == null) continue;
+            double score = BASE_FEATURE_SCORE + roles.length * RELATION_MEMBER_BONUS_SCORE;
+            addTags(changes.tags(FeatureType.RELATION, id), score, globalStrings);
+            for(String role: roles)
+            {
+                if(!role.isEmpty() && !globalStrings.containsKey(role))
+                {
+                    add(role, ROLE_STRING_RATIO, ROLE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the strings whose score has reached the given threshold,
+     * in descending order of their score, limited to the strings that
+     * can be appended to a global string table of the given size. A
+     * string that is used as a key (or role) is only included if its
+     * code would be low enough for a global key (or role).
+     *
+     * @param threshold         the minimum score
+     * @param globalStringCount the current number of entries in the global
+     *                          string table (including the empty string)
+     */
+    public List<String> candidates(double threshold, int globalStringCount)
+    {
+        List<Map.Entry<String,Entry>> list = new ArrayList<>();
+        for(Map.Entry<String,Entry> e: entries.entrySet())
+        {
+            if(e.getValue().score >= threshold) list.add(e);
+        }
+        list.sort((a,b) -> Double.compare(b.getValue().score, a.getValue().score));
+
+        List<String> candidates = new ArrayList<>();
+        int code = globalStringCount;
+        for(Map.Entry<String,Entry> e: list)
+        {
+            if(code >= MAX_GLOBAL_STRINGS) break;
+            int flags = e.getValue().flags;
+            if((flags & KEY) != 0 && code > TagValues.MAX_COMMON_KEY) continue;
+            if((flags & ROLE) != 0 && code > TagValues.MAX_COMMON_ROLE) continue;
+            candidates.add(e.getKey());
+            code++;
+        }
+        return candidates;
+    }
+
+    /**
+     * Stops tracking the given strings (after they have been promoted
+     * to the global string table).
+     */
+    public void removeAll(Collection<String> strings)
+    {
+        for(String s: strings) entries.remove(s);
+    }
+
+    public void write(Path path) throws IOException
+    {
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(path))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(entries.size());
+            for(Map.Entry<String,Entry> e: entries.entrySet())
+            {
+                out.writeUTF(e.getKey());
+                out.writeDouble(e.getValue().score);
+                out.writeByte(e.getValue().flags);
+            }
+        }
+    }
+
+    /**
+     * Reads the usage scores from a file, or returns an empty StringUsage
+     * if the file does not exist.
+     */
+    public static StringUsage read(Path path) throws IOException
+    {
+        StringUsage usage = new StringUsage();
+        if(!Files.exists(path)) return usage;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(
+            Files.newInputStream(path))))
+        {
+            if(in.readInt() != MAGIC)
+            {
+                throw new IOException(path + ": Not a valid string usage file");
+            }
+            int count = in.readInt();
+            for(int i=0; i<count; i++)
+            {
+                String s = in.readUTF();
+                Entry e = new Entry();
+                e.score = in.readDouble();
+                e.flags = in.readByte();
+                usage.entries.put(s, e);
+            }
+        }
+        return usage;
+    }
+}
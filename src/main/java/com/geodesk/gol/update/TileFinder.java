@@ -7,6 +7,7 @@
 
 package com.geodesk.gol.update;
 
+import com.clarisma.common.index.IdRangeSummary;
 import com.clarisma.common.index.IntIndex;
 import com.clarisma.common.util.Log;
 import com.geodesk.core.Heading;
@@ -17,26 +18,45 @@ import com.geodesk.gol.build.BuildContext;
 import com.geodesk.gol.build.TileCatalog;
 import org.eclipse.collections.api.set.primitive.IntSet;
 import org.eclipse.collections.api.set.primitive.MutableIntSet;
+import org.eclipse.collections.api.set.primitive.MutableLongSet;
 import org.eclipse.collections.impl.set.mutable.primitive.IntHashSet;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TileFinder extends TaskEngine<TileFinder.Task>
 {
     private BuildContext context;
     private long[] featureIds;
     private int featureCount;
+    /**
+     * Summaries of the ID indexes (or `null` if the GOL has none), which
+     * let us skip the index lookup for IDs that have never existed
+     * (e.g. newly created features)
+     */
+    private final IdRangeSummary[] summaries;
+    private final AtomicLong rejectedCount = new AtomicLong();
 
     private MutableIntSet nodeTiles;
     private MutableIntSet wayTiles;
     private MutableIntSet relationTiles;
 
+    /**
+     * The IDs of all features that have been submitted for lookup, so
+     * features changed in multiple files are only looked up once
+     */
+    private final MutableLongSet submittedFeatures = new LongHashSet();
+
     private static int BATCH_SIZE = 8192;
 
     public TileFinder(BuildContext ctx) throws IOException
     {
-        super(new Task(null), 1, true);
+        super(new Task(null, 0), 1, true);
         this.context = ctx;
+        summaries = new IdRangeSummary[] {
+            ctx.getNodeSummary(), ctx.getWaySummary(), ctx.getRelationSummary() };
         newBatch();
         start();
     }
@@ -45,6 +65,8 @@ public class TileFinder extends TaskEngine<TileFinder.Task>
     {
         flush();
         awaitCompletionOfGroup(0);
+        Log.debug("%,d of %,d lookups skipped based on ID summaries",
+            rejectedCount.get(), submittedFeatures.size());
         /*
         Log.debug("%,d node tiles", nodeTiles.size());
         Log.debug("%,d way tiles", wayTiles.size());
@@ -80,23 +102,38 @@ public class TileFinder extends TaskEngine<TileFinder.Task>
 
     private void flush()
     {
-        submit(new Task(featureIds));
+        submit(new Task(featureIds, featureCount));
         newBatch();
     }
 
-    public void addFeature(long typedId)
+    public synchronized void addFeature(long typedId)
     {
+        if(!submittedFeatures.add(typedId)) return;
         featureIds[featureCount++] = typedId;
         if (featureCount == BATCH_SIZE) flush();
     }
 
+    /**
+     * Adds the IDs of multiple features that should be looked up. This
+     * method may be called by multiple threads.
+     *
+     * @param typedIds  an array of typed feature IDs
+     * @param count     the number of IDs in the array
+     */
+    public synchronized void addFeatures(long[] typedIds, int count)
+    {
+        for(int i=0; i<count; i++) addFeature(typedIds[i]);
+    }
+
     protected static class Task
     {
         private final long[] featureIds;
+        private final int featureCount;
 
-        public Task(long[] featureIds)
+        public Task(long[] featureIds, int featureCount)
         {
             this.featureIds = featureIds;
+            this.featureCount = featureCount;
         }
     }
 
@@ -146,11 +183,22 @@ public class TileFinder extends TaskEngine<TileFinder.Task>
         @Override protected void process(Task task) throws Exception
         {
             long[] ids = task.featureIds;
-            for(int i=0; i<ids.length; i++)
+            int count = task.featureCount;
+            // Sorting the typed IDs puts the IDs of each type in ascending
+            // order, so we access each index sequentially
+            Arrays.sort(ids, 0, count);
+            int rejected = 0;
+            for(int i=0; i<count; i++)
             {
                 long typedId = ids[i];
                 int type = FeatureId.typeCode(typedId);
                 long id = FeatureId.id(typedId);
+                IdRangeSummary summary = summaries[type];
+                if(summary != null && !summary.mayContain(id))
+                {
+                    rejected++;
+                    continue;
+                }
                 switch(type)
                 {
                 case 0:
@@ -164,6 +212,7 @@ public class TileFinder extends TaskEngine<TileFinder.Task>
                     break;
                 }
             }
+            rejectedCount.addAndGet(rejected);
         }
 
         @Override protected void postProcess() throws Exception
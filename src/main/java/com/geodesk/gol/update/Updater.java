@@ -7,49 +7,241 @@
 
 package com.geodesk.gol.update;
 
+import com.clarisma.common.index.IdRangeSummary;
 import com.clarisma.common.text.Format;
-import com.clarisma.common.util.Log;
+import com.geodesk.feature.FeatureType;
+import com.geodesk.feature.store.FeatureStore;
 import com.geodesk.gol.build.BuildContext;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
+import org.eclipse.collections.api.LongIterable;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.zip.GZIPInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Applies a batch of OSM change files (e.g. a week of minutely diffs)
+ * to a GOL. The files are read in order of their replication sequence
+ * numbers (multiple files are read concurrently), and the changes are
+ * coalesced per feature, so each feature is only processed in its final
+ * state. The affected tiles are scanned once for the whole batch.
+ */
 public class Updater
 {
     private final BuildContext context;
+    private final List<Path> files;
+    private ChangeModel changes;
+    private StringUsage stringUsage;
+    private List<String> stringsToPromote = List.of();
 
-    public Updater(BuildContext context)
+    public Updater(BuildContext context, List<Path> files)
     {
         this.context = context;
+        this.files = new ArrayList<>(files);
+        this.files.sort(Comparator.comparingLong(Updater::sequenceNumber));
     }
 
-    public void update() throws IOException, InterruptedException
+    /**
+     * Determines the replication sequence number of a change file, based on
+     * its path. Replication servers store files as `AAA/BBB/CCC.osc.gz`
+     * (for sequence number AAABBBCCC); otherwise, the digits in the file
+     * name are used (e.g. `planet-3807.osc.gz`). Files without a number
+     * are placed after all numbered files, in their original order.
+     *
+     * @param path  the path of the change file
+     * @return the sequence number, or `Long.MAX_VALUE`
+     */
+    static long sequenceNumber(Path path)
+    {
+        String name = path.getFileName().toString();
+        int dot = name.indexOf('.');
+        if(dot > 0) name = name.substring(0, dot);
+        Path parent = path.getParent();
+        Path grandparent = parent == null ? null : parent.getParent();
+        if(grandparent != null && isReplicationPart(name) &&
+            isReplicationPart(parent.getFileName().toString()) &&
+            isReplicationPart(grandparent.getFileName().toString()))
+        {
+            return Long.parseLong(grandparent.getFileName().toString() +
+                parent.getFileName() + name);
+        }
+        String digits = name.replaceAll("\\D+", "");
+        if(digits.isEmpty() || digits.length() > 18) return Long.MAX_VALUE;
+        return Long.parseLong(digits);
+    }
+
+    private static boolean isReplicationPart(String s)
     {
-        // TODO
-        // String oscFile = "c:\\geodesk\\research\\world-3803.osc.gz";
-        // String oscFile = "c:\\geodesk\\research\\de-3530.osc.gz";
-        String oscFile = "/home/md/geodesk/osc/planet-3807.osc.gz";
+        return s.length() == 3 && Character.isDigit(s.charAt(0)) &&
+            Character.isDigit(s.charAt(1)) && Character.isDigit(s.charAt(2));
+    }
+
+    private static void read(ChangeReader reader, Path file) throws IOException
+    {
+        reader.read(file.toString(), file.getFileName().toString().endsWith(".gz"));
+    }
 
+    /**
+     * Reads the change files. If there are multiple files, they are split
+     * into consecutive runs which are decompressed and parsed concurrently,
+     * each by its own ChangeReader; the partial results are then merged in
+     * sequence order, keeping the latest version of each feature.
+     *
+     * @param tileFinder  the TileFinder that looks up the tiles of the
+     *                    changed features (shared by all readers)
+     * @return a ChangeReader that holds the coalesced changes
+     */
+    private ChangeReader readFiles(TileFinder tileFinder) throws IOException, InterruptedException
+    {
+        int threadCount = Math.min(files.size(), Runtime.getRuntime().availableProcessors());
+        if(threadCount <= 1)
+        {
+            ChangeReader reader = new ChangeReader(context, tileFinder);
+            for(Path file: files) read(reader, file);
+            return reader;
+        }
+
+        ChangeReader[] partials = new ChangeReader[threadCount];
+        List<Future<?>> results = new ArrayList<>(threadCount);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        for(int i=0; i<threadCount; i++)
+        {
+            int n = i;
+            List<Path> run = files.subList(
+                files.size() * n / threadCount, files.size() * (n+1) / threadCount);
+            results.add(executor.submit(() ->
+            {
+                ChangeReader reader = new ChangeReader(context, tileFinder);
+                for(Path file: run) read(reader, file);
+                partials[n] = reader;
+                return null;
+            }));
+        }
+        executor.shutdown();
+        try
+        {
+            for(Future<?> result: results) result.get();
+        }
+        catch(ExecutionException ex)
+        {
+            executor.shutdownNow();
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException ioex) throw ioex;
+            throw new RuntimeException(cause);
+        }
+
+        ChangeReader reader = partials[0];
+        for(int i=1; i<partials.length; i++)
+        {
+            reader.merge(partials[i]);
+            partials[i] = null;
+        }
+        return reader;
+    }
+
+    public void update() throws IOException, InterruptedException
+    {
         long start = System.currentTimeMillis();
         TileFinder tileFinder = new TileFinder(context);
-        ChangeReader reader = new ChangeReader(context, tileFinder);
-        reader.read(oscFile, true); // TODO
+        ChangeReader reader = readFiles(tileFinder);
         tileFinder.finish();
         reader.dump();
 
-        int fileCount = 1;  // TODO
+        int fileCount = files.size();
         System.err.format("Read %,d file%s in %s\n", fileCount, fileCount==1 ? "" : "s",
             Format.formatTimespan(System.currentTimeMillis() - start));
 
-        FeatureFinder featureFinder = new FeatureFinder(context,
-            reader.nodes(), reader.ways(), reader.relations());
-        featureFinder.search(tileFinder);
+        FeatureFinder featureFinder = new FeatureFinder(context, reader.model());
+        try
+        {
+            featureFinder.search(tileFinder);
+        }
+        finally
+        {
+            featureFinder.close();
+        }
+        changes = reader.model();
+        updateIdSummaries(changes);
+    }
+
+    private static void addIds(IdRangeSummary summary, ChangeModel changes,
+        FeatureType type, LongIterable ids)
+    {
+        if(summary == null) return;
+        ids.forEach(id ->
+        {
+            if(!changes.isDeleted(type, id)) summary.add(id);
+        });
+    }
+
+    /**
+     * Adds the IDs of the features created by the changes to the ID
+     * summaries and writes them back, so the next update does not skip
+     * the index lookup for these features. (Creations and modifications
+     * are indistinguishable in the model, so the IDs of modified features
+     * are added as well, which does no harm.)
+     */
+    private void updateIdSummaries(ChangeModel changes) throws IOException
+    {
+        IdRangeSummary nodeSummary = context.getNodeSummary();
+        IdRangeSummary waySummary = context.getWaySummary();
+        IdRangeSummary relationSummary = context.getRelationSummary();
+        if(nodeSummary == null && waySummary == null && relationSummary == null) return;
+        addIds(nodeSummary, changes, FeatureType.NODE, changes.nodeIds());
+        addIds(waySummary, changes, FeatureType.WAY, changes.wayIds());
+        addIds(relationSummary, changes, FeatureType.RELATION, changes.relationIds());
+        context.writeSummaries();
+    }
+
+    private Path stringUsagePath()
+    {
+        return context.indexPath().resolve(StringUsage.FILE_NAME);
+    }
+
+    /**
+     * Adds the usage of the strings in the changes to the usage scores
+     * tracked across updates, and determines which strings have become
+     * common enough to be promoted to the global string table.
+     *
+     * Must only be called once the changes have been applied to the
+     * tiles: otherwise, strings could be promoted that no tile uses,
+     * and their usage would be counted again once the changes are
+     * applied by a later update.
+     */
+    public void trackStringUsage() throws IOException
+    {
+        int threshold = context.project().stringPromotionScore();
+        if(threshold == 0 || !Files.isDirectory(context.indexPath())) return;
+        FeatureStore store = context.getFeatureStore();
+        stringUsage = StringUsage.read(stringUsagePath());
+        stringUsage.add(changes, store.stringsToCodes());
+        stringsToPromote = stringUsage.candidates(threshold, store.codesToStrings().length);
+        stringUsage.write(stringUsagePath());
+    }
+
+    /**
+     * Returns the strings that should be promoted to the global string
+     * table (only valid once `trackStringUsage()` has been called).
+     */
+    public List<String> stringsToPromote()
+    {
+        return stringsToPromote;
+    }
+
+    /**
+     * Stops tracking the usage of strings that have been promoted to the
+     * global string table.
+     */
+    public void stringsPromoted(Collection<String> strings) throws IOException
+    {
+        stringUsage.removeAll(strings);
+        stringUsage.write(stringUsagePath());
     }
 }
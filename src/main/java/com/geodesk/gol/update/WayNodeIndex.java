@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.update;
+
+import com.clarisma.common.pbf.PbfDecoder;
+import com.clarisma.common.pbf.PbfOutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The way-node index of a tile (version 2 of the `.wnx` format), which
+ * lists the node IDs of all local ways in the tile. In addition to the
+ * node lists, the index has a sorted lookup table of node IDs, which lets
+ * the FeatureFinder find the ways that contain a given node without
+ * having to decode every node list.
+ *
+ * All values are little-endian:
+ *
+ * ```
+ * int      magic (bytes 0x80 0x00 'W' '2')
+ * int      number of ways (W)
+ * int      number of lookup entries (E)
+ * int      (reserved)
+ * long[W]  way IDs, in ascending order
+ * int[W]   offset of each way's node list (relative to the start
+ *          of the index)
+ * int      (padding, only if W is odd)
+ * long[E]  lookup entries: node ID << 24 | way number, in ascending order
+ * ...      node lists: varint node count, followed by the signed
+ *          varint deltas of the node IDs
+ * ```
+ *
+ * Version 1 of the format (which consists of node lists only, each
+ * preceded by the signed varint delta of its way ID) can be recognized
+ * by the absence of the magic word: A version-1 index cannot start with
+ * the bytes 0x80 0x00, since that would be a non-canonical varint.
+ */
+public class WayNodeIndex
+{
+    public static final int MAGIC = 0x32570080;
+    public static final int HEADER_SIZE = 16;
+
+    /**
+     * The number of bits in a lookup entry used for the way number.
+     * (This leaves 40 bits for the node ID.)
+     */
+    public static final int WAY_NUMBER_BITS = 24;
+
+    private final ByteBuffer buf;
+    private final int start;
+    private final int wayCount;
+    private final int entryCount;
+    private final int pOffsets;
+    private final int pEntries;
+
+    /**
+     * Opens a version-2 way-node index.
+     *
+     * @param buf   the buffer that holds the index
+     * @param start the position of the index within the buffer
+     */
+    public WayNodeIndex(ByteBuffer buf, int start)
+    {
+        this.buf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.start = start;
+        wayCount = this.buf.getInt(start + 4);
+        entryCount = this.buf.getInt(start + 8);
+        pOffsets = start + HEADER_SIZE + wayCount * 8;
+        pEntries = pOffsets + ((wayCount * 4 + 7) & ~7);
+    }
+
+    /**
+     * Checks whether the way-node index at the given position uses the
+     * version-2 format.
+     */
+    public static boolean isCurrentFormat(ByteBuffer buf, int start, int len)
+    {
+        return len >= HEADER_SIZE &&
+            buf.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(start) == MAGIC;
+    }
+
+    /**
+     * Returns the length of the version-2 header and tables for the given
+     * number of ways and lookup entries (i.e. the offset of the first
+     * node list).
+     */
+    public static int tableSize(int wayCount, int entryCount)
+    {
+        return HEADER_SIZE + wayCount * 8 + ((wayCount * 4 + 7) & ~7) + entryCount * 8;
+    }
+
+    /**
+     * Encodes a way-node index.
+     *
+     * @param wayIds    the IDs of the ways, in ascending order
+     * @param nodeIds   the node IDs of each way
+     * @return a buffer with the encoded index
+     */
+    public static PbfOutputStream write(long[] wayIds, long[][] nodeIds)
+    {
+        int wayCount = wayIds.length;
+        assert wayCount < (1 << WAY_NUMBER_BITS);
+        PbfOutputStream nodeLists = new PbfOutputStream();
+        int[] offsets = new int[wayCount];
+        int totalNodeCount = 0;
+        for(long[] wayNodeIds: nodeIds) totalNodeCount += wayNodeIds.length;
+        long[] entries = new long[totalNodeCount];
+        int entryCount = 0;
+        for(int i=0; i<wayCount; i++)
+        {
+            offsets[i] = nodeLists.size();
+            nodeLists.writeVarint(nodeIds[i].length);
+            long prevNodeId = 0;
+            for(long nodeId: nodeIds[i])
+            {
+                nodeLists.writeSignedVarint(nodeId - prevNodeId);
+                entries[entryCount++] = (nodeId << WAY_NUMBER_BITS) | i;
+                prevNodeId = nodeId;
+            }
+        }
+        Arrays.sort(entries);
+
+        // Closed ways list their first node twice, so drop duplicate entries
+        int uniqueEntryCount = 0;
+        for(int i=0; i<entryCount; i++)
+        {
+            if(i == 0 || entries[i] != entries[i-1]) entries[uniqueEntryCount++] = entries[i];
+        }
+
+        int tableSize = tableSize(wayCount, uniqueEntryCount);
+        PbfOutputStream out = new PbfOutputStream();
+        out.writeFixed32(MAGIC);
+        out.writeFixed32(wayCount);
+        out.writeFixed32(uniqueEntryCount);
+        out.writeFixed32(0);
+        for(long wayId: wayIds) out.writeFixed64(wayId);
+        for(int ofs: offsets) out.writeFixed32(tableSize + ofs);
+        if((wayCount & 1) != 0) out.writeFixed32(0);
+        for(int i=0; i<uniqueEntryCount; i++) out.writeFixed64(entries[i]);
+        assert out.size() == tableSize;
+        out.write(nodeLists.buffer(), 0, nodeLists.size());
+        return out;
+    }
+
+    public int wayCount()
+    {
+        return wayCount;
+    }
+
+    public int entryCount()
+    {
+        return entryCount;
+    }
+
+    public long wayId(int way)
+    {
+        return buf.getLong(start + HEADER_SIZE + way * 8);
+    }
+
+    public long entryNodeId(int entry)
+    {
+        return buf.getLong(pEntries + entry * 8) >>> WAY_NUMBER_BITS;
+    }
+
+    public int entryWay(int entry)
+    {
+        return (int)(buf.getLong(pEntries + entry * 8) & ((1 << WAY_NUMBER_BITS) - 1));
+    }
+
+    /**
+     * Returns the number of the first lookup entry whose node ID is
+     * equal to or greater than the given ID.
+     */
+    public int findEntry(long nodeId)
+    {
+        int lo = 0;
+        int hi = entryCount;
+        while(lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if(entryNodeId(mid) < nodeId)
+            {
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Decodes the node IDs of a way.
+     */
+    public long[] nodeIds(int way)
+    {
+        PbfDecoder pbf = new PbfDecoder(buf, start + buf.getInt(pOffsets + way * 4));
+        int nodeCount = (int)pbf.readVarint();
+        long[] nodeIds = new long[nodeCount];
+        long prevNodeId = 0;
+        for (int i = 0; i < nodeCount; i++)
+        {
+            long nodeId = pbf.readSignedVarint() + prevNodeId;
+            nodeIds[i] = nodeId;
+            prevNodeId = nodeId;
+        }
+        return nodeIds;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.update;
+
+import com.clarisma.common.store.Store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A single file that holds the way-node indexes (see WayNodeIndex) of
+ * all tiles, instead of one `.wnx` file per tile. The file is written
+ * once by the Compiler (concurrently, by multiple threads) and afterward
+ * only read; a reader maps the entire file up front, so looking up the
+ * index of a tile requires no I/O calls. The mappings are released by
+ * `close()`, after which the indexes must no longer be accessed.
+ *
+ * All values are little-endian:
+ *
+ * ```
+ * int      magic ("WNXF")
+ * int      number of directory entries (highest TIP + 1)
+ * long     file size
+ * entries  (16 bytes each, indexed by TIP)
+ *   long   offset of the tile's index (0 if the tile has none)
+ *   int    length of the tile's index
+ *   int    (reserved)
+ * ...      the indexes, each aligned to 8 bytes
+ * ```
+ *
+ * An index never crosses a 1-GB boundary, so each can be accessed via
+ * a single mapped buffer.
+ *
+ * The magic word is written last, which means a file whose creation
+ * was interrupted is treated as invalid.
+ */
+public class WayNodeIndexFile implements AutoCloseable
+{
+    /**
+     * The name of the file (within the index folder of a GOL).
+     */
+    public static final String FILE_NAME = "waynodes.bin";
+
+    private static final int MAGIC = 0x46584E57;   // "WNXF"
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_SIZE = 16;
+    private static final int SEGMENT_SIZE_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SIZE_BITS;
+
+    private final MappedByteBuffer[] segments;
+    private final ByteBuffer directory;
+    private final int entryCount;
+
+    private WayNodeIndexFile(MappedByteBuffer[] segments, int entryCount)
+    {
+        this.segments = segments;
+        this.directory = segments[0];
+        this.entryCount = entryCount;
+    }
+
+    /**
+     * Opens an existing way-node index file and maps it into memory.
+     */
+    public static WayNodeIndexFile open(Path path) throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(path, READ))
+        {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            if(size < HEADER_SIZE || header.getInt(0) != MAGIC || header.getLong(8) != size)
+            {
+                throw new IOException(path + ": Not a valid way-node index file");
+            }
+            int segmentCount = (int)((size + SEGMENT_SIZE - 1) >> SEGMENT_SIZE_BITS);
+            MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+            for(int i=0; i<segmentCount; i++)
+            {
+                long start = (long)i << SEGMENT_SIZE_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    start, Math.min(SEGMENT_SIZE, size - start));
+                segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            // The mappings stay valid after the channel has been closed
+            return new WayNodeIndexFile(segments, header.getInt(4));
+        }
+    }
+
+    /**
+     * Returns the way-node index of a tile.
+     *
+     * @param tip   the TIP of the tile
+     * @return the tile's index, or `null` if the file has no index
+     *   for the tile
+     */
+    public WayNodeIndex get(int tip)
+    {
+        if(tip >= entryCount) return null;
+        int pEntry = HEADER_SIZE + tip * ENTRY_SIZE;
+        long ofs = directory.getLong(pEntry);
+        if(ofs == 0) return null;
+        return new WayNodeIndex(segments[(int)(ofs >>> SEGMENT_SIZE_BITS)],
+            (int)(ofs & (SEGMENT_SIZE - 1)));
+    }
+
+    /**
+     * Unmaps the file. The indexes returned by `get()` must not be used
+     * afterward.
+     */
+    @Override public void close()
+    {
+        Store.unmapSegments(segments);
+    }
+
+    /**
+     * Creates a way-node index file. Indexes of tiles can be added by
+     * multiple threads concurrently; the file is complete once the
+     * Writer has been closed.
+     *
+     * @param path      the path of the file (an existing file is replaced)
+     * @param topTip    the highest TIP
+     */
+    public static Writer create(Path path, int topTip) throws IOException
+    {
+        return new Writer(path, topTip);
+    }
+
+    public static class Writer implements AutoCloseable
+    {
+        private final FileChannel channel;
+        private final long[] offsets;
+        private final int[] lengths;
+        private long end;
+
+        private Writer(Path path, int topTip) throws IOException
+        {
+            channel = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, WRITE);
+            offsets = new long[topTip + 1];
+            lengths = new int[topTip + 1];
+            end = (HEADER_SIZE + (long)offsets.length * ENTRY_SIZE + 7) & ~7L;
+        }
+
+        /**
+         * Reserves space for an index, making sure that it does not
+         * cross a 1-GB boundary.
+         */
+        private synchronized long allocate(int tip, int len)
+        {
+            long ofs = end;
+            if((ofs >>> SEGMENT_SIZE_BITS) != ((ofs + len - 1) >>> SEGMENT_SIZE_BITS))
+            {
+                ofs = ((ofs >>> SEGMENT_SIZE_BITS) + 1) << SEGMENT_SIZE_BITS;
+            }
+            end = (ofs + len + 7) & ~7L;
+            offsets[tip] = ofs;
+            lengths[tip] = len;
+            return ofs;
+        }
+
+        /**
+         * Adds the way-node index of a tile.
+         *
+         * @param tip   the TIP of the tile
+         * @param data  a buffer that holds the index
+         * @param len   the length of the index
+         */
+        public void write(int tip, byte[] data, int len) throws IOException
+        {
+            long ofs = allocate(tip, len);
+            ByteBuffer buf = ByteBuffer.wrap(data, 0, len);
+            while(buf.hasRemaining()) ofs += channel.write(buf, ofs);
+        }
+
+        @Override public synchronized void close() throws IOException
+        {
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + offsets.length * ENTRY_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(0);      // magic is written last
+            buf.putInt(offsets.length);
+            buf.putLong(end);
+            for(int i=0; i<offsets.length; i++)
+            {
+                buf.putLong(offsets[i]);
+                buf.putInt(lengths[i]);
+                buf.putInt(0);
+            }
+            buf.flip();
+            long pos = 0;
+            while(buf.hasRemaining()) pos += channel.write(buf, pos);
+            if(channel.size() < end)
+            {
+                // The last index may be followed by alignment padding
+                channel.write(ByteBuffer.allocate((int)(end - channel.size())), channel.size());
+            }
+            channel.force(false);
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(MAGIC);
+            magic.flip();
+            channel.write(magic, 0);
+            channel.close();
+        }
+    }
+}
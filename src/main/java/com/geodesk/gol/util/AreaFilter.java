@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) Clarisma / GeoDesk contributors
+ *
+ * This source code is licensed under the AGPL 3.0 license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package com.geodesk.gol.util;
+
+import com.geodesk.core.Box;
+import com.geodesk.core.Tile;
+import com.geodesk.feature.Feature;
+import com.geodesk.feature.Filter;
+import com.geodesk.feature.filter.FalseFilter;
+import com.geodesk.feature.filter.FilterStrategy;
+import com.geodesk.geom.Bounds;
+import org.eclipse.collections.api.map.primitive.MutableIntIntMap;
+import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
+import org.locationtech.jts.algorithm.RectangleLineIntersector;
+import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.ItemVisitor;
+import org.locationtech.jts.index.strtree.STRtree;
+
+/**
+ * A filter that accepts features which intersect a polygonal area (the
+ * `--area` of a command). It does the same job as `Filters.intersects()`,
+ * but does most of the work once, up front:
+ *
+ * - The edges of the area are placed into an STR-tree.
+ *
+ * - The tile pyramid is classified into tiles that lie fully inside the
+ *   area, fully outside, or on its boundary. Only boundary tiles are
+ *   subdivided, so the number of classified tiles is proportional to the
+ *   length of the area's outline, not to its size.
+ *
+ * When the query engine asks for the filter of a tile, outside tiles are
+ * skipped, and features that lie within an inside tile are accepted
+ * without looking at their geometry. For all other features, the filter
+ * first checks whether any edge of the area crosses the feature's bounding
+ * box; if none does, the bounding box lies either fully inside or fully
+ * outside the area, which a single point-in-polygon test decides. Only
+ * features whose bounding box straddles an edge are tested against the
+ * prepared area geometry.
+ *
+ * This class is thread-safe.
+ */
+public class AreaFilter implements Filter
+{
+    public static final int OUTSIDE = 0;
+    public static final int BOUNDARY = 1;
+    public static final int INSIDE = 2;
+
+    private static final int MAX_ZOOM = 12;
+
+    private final PreparedGeometry prepared;
+    private final IndexedPointInAreaLocator locator;
+    private final STRtree edges = new STRtree();
+    private final Box bounds;
+    /**
+     * The classification of each tile that was examined while rasterizing
+     * the area. Children of inside or outside tiles are not included;
+     * they share the classification of their ancestor.
+     */
+    private final MutableIntIntMap tileClasses = new IntIntHashMap();
+
+    public AreaFilter(Geometry area)
+    {
+        prepared = PreparedGeometryFactory.prepare(area);
+        locator = new IndexedPointInAreaLocator(area);
+        bounds = Box.fromEnvelope(area.getEnvelopeInternal());
+        addEdges(area);
+        edges.build();
+        classifyTiles(Tile.fromColumnRowZoom(0,0,0));
+    }
+
+    private void addEdges(Geometry geom)
+    {
+        for(int i=0; i<geom.getNumGeometries(); i++)
+        {
+            Geometry part = geom.getGeometryN(i);
+            if(part instanceof Polygon polygon)
+            {
+                addEdges(polygon.getExteriorRing());
+                for(int i2=0; i2<polygon.getNumInteriorRing(); i2++)
+                {
+                    addEdges(polygon.getInteriorRingN(i2));
+                }
+            }
+        }
+    }
+
+    private void addEdges(LineString ring)
+    {
+        Coordinate[] coords = ring.getCoordinates();
+        for(int i=1; i<coords.length; i++)
+        {
+            LineSegment edge = new LineSegment(coords[i-1], coords[i]);
+            edges.insert(new Envelope(edge.p0, edge.p1), edge);
+        }
+    }
+
+    private void classifyTiles(int tile)
+    {
+        Box tileBounds = Tile.bounds(tile);
+        int tileClass = classify(tileBounds.minX(), tileBounds.minY(),
+            tileBounds.maxX(), tileBounds.maxY());
+        tileClasses.put(tile, tileClass);
+        if(tileClass != BOUNDARY) return;
+        int zoom = Tile.zoom(tile);
+        if(zoom == MAX_ZOOM) return;
+        int col = Tile.column(tile) * 2;
+        int row = Tile.row(tile) * 2;
+        for(int i=0; i<4; i++)
+        {
+            classifyTiles(Tile.fromColumnRowZoom(col + (i & 1), row + (i >> 1), zoom + 1));
+        }
+    }
+
+    /**
+     * Returns the classification of a tile (`INSIDE`, `OUTSIDE` or
+     * `BOUNDARY`).
+     */
+    public int classifyTile(int tile)
+    {
+        int zoom = Tile.zoom(tile);
+        for(;;)
+        {
+            int tileClass = tileClasses.getIfAbsent(tile, -1);
+            if(tileClass >= 0) return tileClass;
+            zoom--;
+            tile = Tile.zoomedOut(tile, zoom);
+        }
+    }
+
+    /**
+     * Determines whether a bounding box lies fully inside the area
+     * (`INSIDE`), fully outside (`OUTSIDE`), or is crossed by one of its
+     * edges (`BOUNDARY`).
+     */
+    public int classify(double minX, double minY, double maxX, double maxY)
+    {
+        Envelope env = new Envelope(minX, maxX, minY, maxY);
+        EdgeFinder finder = new EdgeFinder(env);
+        edges.query(env, finder);
+        if(finder.found) return BOUNDARY;
+        Coordinate center = new Coordinate(
+            minX / 2 + maxX / 2, minY / 2 + maxY / 2);
+        return locator.locate(center) == Location.EXTERIOR ? OUTSIDE : INSIDE;
+    }
+
+    private static class EdgeFinder implements ItemVisitor
+    {
+        final RectangleLineIntersector intersector;
+        boolean found;
+
+        EdgeFinder(Envelope env)
+        {
+            intersector = new RectangleLineIntersector(env);
+        }
+
+        @Override public void visitItem(Object item)
+        {
+            if(found) return;
+            LineSegment edge = (LineSegment)item;
+            found = intersector.intersects(edge.p0, edge.p1);
+        }
+    }
+
+    private boolean acceptGeometry(Feature feature, Geometry geom)
+    {
+        if(geom == null) geom = feature.toGeometry();
+        return prepared.intersects(geom);
+    }
+
+    @Override public int strategy()
+    {
+        return FilterStrategy.USES_BBOX |
+            FilterStrategy.FAST_TILE_FILTER |
+            FilterStrategy.NEEDS_GEOMETRY;
+    }
+
+    @Override public boolean accept(Feature feature)
+    {
+        return accept(feature, null);
+    }
+
+    @Override public boolean accept(Feature feature, Geometry geom)
+    {
+        Box b = feature.bounds();
+        int featureClass = classify(b.minX(), b.minY(), b.maxX(), b.maxY());
+        if(featureClass != BOUNDARY) return featureClass == INSIDE;
+        return acceptGeometry(feature, geom);
+    }
+
+    @Override public Filter filterForTile(int tile, Polygon tilePolygon)
+    {
+        int tileClass = classifyTile(tile);
+        if(tileClass == OUTSIDE) return FalseFilter.INSTANCE;
+        return new TileFilter(tile, tileClass == INSIDE);
+    }
+
+    @Override public Bounds bounds()
+    {
+        return bounds;
+    }
+
+    /**
+     * The filter used for a tile that lies inside the area or on its
+     * boundary.
+     */
+    public class TileFilter implements Filter
+    {
+        private final boolean insideTile;
+        private final int tileMinX, tileMinY, tileMaxX, tileMaxY;
+
+        TileFilter(int tile, boolean insideTile)
+        {
+            this.insideTile = insideTile;
+            tileMinX = Tile.leftX(tile);
+            tileMinY = Tile.bottomY(tile);
+            tileMaxX = Tile.rightX(tile);
+            tileMaxY = Tile.topY(tile);
+        }
+
+        /**
+         * Checks whether this tile lies fully inside the area.
+         */
+        public boolean isInsideTile()
+        {
+            return insideTile;
+        }
+
+        /**
+         * Classifies the bounding box of a feature stored in this tile.
+         * Features that are classified as `BOUNDARY` need to be checked
+         * using `accept()`.
+         */
+        public int classify(int minX, int minY, int maxX, int maxY)
+        {
+            if(insideTile && minX >= tileMinX && minY >= tileMinY &&
+                maxX <= tileMaxX && maxY <= tileMaxY)
+            {
+                return INSIDE;
+            }
+            return AreaFilter.this.classify(minX, minY, maxX, maxY);
+        }
+
+        @Override public boolean accept(Feature feature)
+        {
+            return accept(feature, null);
+        }
+
+        @Override public boolean accept(Feature feature, Geometry geom)
+        {
+            Box b = feature.bounds();
+            int featureClass = classify(b.minX(), b.minY(), b.maxX(), b.maxY());
+            if(featureClass != BOUNDARY) return featureClass == INSIDE;
+            return acceptGeometry(feature, geom);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.clarisma.common.index;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+public class IdRangeSummaryTest
+{
+	@Test public void testSummary() throws IOException
+	{
+		IdRangeSummary summary = new IdRangeSummary(8);
+		summary.add(5);
+		summary.add(1_000_000);
+		summary.add(12_000_000_000L);
+
+		Path path = Files.createTempFile("summary-test", ".sum");
+		try
+		{
+			summary.write(path);
+			for(IdRangeSummary s: new IdRangeSummary[] { summary, IdRangeSummary.read(path) })
+			{
+				assertEquals(12_000_000_000L, s.maxId());
+				assertTrue(s.mayContain(5));
+				assertTrue(s.mayContain(255));        // same block as 5
+				assertFalse(s.mayContain(256));
+				assertTrue(s.mayContain(1_000_000));
+				assertFalse(s.mayContain(2_000_000));
+				assertTrue(s.mayContain(12_000_000_000L));
+				assertFalse(s.mayContain(12_000_000_001L));
+				assertFalse(s.mayContain(-1));
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(path);
+		}
+	}
+}
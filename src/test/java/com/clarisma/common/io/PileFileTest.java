@@ -0,0 +1,94 @@
+package com.clarisma.common.io;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PileFileTest
+{
+	@Rule public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test public void testInterleavedAppends() throws IOException
+	{
+		testAppends(false);
+	}
+
+	@Test public void testCompressedAppends() throws IOException
+	{
+		testAppends(true);
+	}
+
+	private void testAppends(boolean compressed) throws IOException
+	{
+		int pileCount = 20;
+		Path path = folder.getRoot().toPath().resolve("piles.bin");
+		PileFile piles = PileFile.create(path, pileCount, 4096, compressed);
+		ByteArrayOutputStream[] expected = new ByteArrayOutputStream[pileCount + 1];
+		for(int i=1; i<=pileCount; i++) expected[i] = new ByteArrayOutputStream();
+
+		Random random = new Random(42);
+		for(int i=0; i<2000; i++)
+		{
+			int pile = random.nextInt(pileCount) + 1;
+			byte[] data = new byte[random.nextInt(3000)];
+			if(i % 2 == 0)
+			{
+				random.nextBytes(data);
+			}
+			else
+			{
+				// compressible data
+				for(int n=0; n<data.length; n++) data[n] = (byte)(n % 7);
+			}
+			if(i % 3 == 0)
+			{
+				piles.appendBlock(pile, piles.encodeBlock(data, 0, data.length));
+			}
+			else
+			{
+				piles.append(pile, data);
+			}
+			expected[pile].write(data);
+		}
+		for(int i=1; i<=pileCount; i++)
+		{
+			if(!compressed) assertEquals(expected[i].size(), piles.dataSize(i));
+			assertArrayEquals(expected[i].toByteArray(), piles.load(i));
+		}
+
+		Path compactedPath = folder.getRoot().toPath().resolve("compacted.bin");
+		PileFile compacted = PileFile.create(compactedPath, pileCount, 8192, compressed);
+		piles.compactTo(compacted);
+		piles.close();
+		compacted.close();
+
+		compacted = PileFile.openExisiting(compactedPath);
+		assertEquals(compressed, compacted.isCompressed());
+		for(int i=1; i<=pileCount; i++)
+		{
+			assertArrayEquals(expected[i].toByteArray(), compacted.load(i));
+		}
+		byte[] more = { 1, 2, 3 };
+		compacted.append(1, more);
+		expected[1].write(more);
+		assertArrayEquals(expected[1].toByteArray(), compacted.load(1));
+		compacted.close();
+
+		compacted = PileFile.openExisiting(compactedPath, true);
+		assertTrue(compacted.isReadOnly());
+		assertArrayEquals(expected[2].toByteArray(), compacted.load(2));
+		compacted.advise(MappedFile.Advice.DONTNEED);
+		for(int i=1; i<=pileCount; i++)
+		{
+			assertArrayEquals(expected[i].toByteArray(), compacted.load(i));
+		}
+		compacted.close();
+	}
+}
@@ -0,0 +1,64 @@
+package com.geodesk.gol;
+
+import com.clarisma.common.cli.JvmLauncher;
+import com.clarisma.common.cli.Verbosity;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class GolServerTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test public void testForward() throws Exception
+    {
+        Path socketPath = folder.getRoot().toPath().resolve("gol.sock");
+        GolServer server = new GolServer(socketPath, Verbosity.SILENT);
+        Thread serverThread = new Thread(() ->
+        {
+            try
+            {
+                server.run();
+            }
+            catch(Exception ex)
+            {
+                throw new RuntimeException(ex);
+            }
+        });
+        serverThread.start();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        // The socket file appears when the server binds it, which may
+        // be a moment before the server accepts connections
+        int result = JvmLauncher.UNAVAILABLE;
+        for(int i=0; i<250 && result == JvmLauncher.UNAVAILABLE; i++)
+        {
+            if(i > 0) Thread.sleep(20);
+            result = JvmLauncher.forward(socketPath, new String[] { "build", "x.gol" }, out, err);
+        }
+        assertEquals(ErrorReporter.BAD_ARGUMENTS, result);
+        assertTrue(err.toString().contains("not supported"));
+
+        // Paths are resolved against the client's working folder
+        err.reset();
+        assertEquals(ErrorReporter.IO_ERROR, JvmLauncher.forward(
+            socketPath, new String[] { "query", "missing.gol", "na" }, out, err));
+        assertTrue(err.toString().contains(
+            Path.of("missing.gol").toAbsolutePath().toString()));
+        assertEquals(0, out.size());
+
+        server.stop();
+        serverThread.join(5000);
+        assertFalse(serverThread.isAlive());
+        assertFalse(Files.exists(socketPath));
+        assertEquals(JvmLauncher.UNAVAILABLE, JvmLauncher.forward(
+            socketPath, new String[] { "query" }, out, err));
+    }
+}
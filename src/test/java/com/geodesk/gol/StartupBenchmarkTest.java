@@ -0,0 +1,153 @@
+package com.geodesk.gol;
+
+import com.geodesk.feature.FeatureLibrary;
+import org.eclipse.collections.api.list.primitive.IntList;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Geometry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the startup time of a short `gol query` with and without the
+ * class-data sharing archive created by CdsTrainer, and checks that the
+ * archive covers the classes of the query path (CDS only archives classes
+ * from JARs, so the compiled classes are packaged into a temporary JAR).
+ *
+ * To keep the build fast, the number of JVMs it launches is fixed: the
+ * trainer, plus `RUNS` launches each with and without the archive
+ * (interleaved, so that changes in the machine's load affect both).
+ * The class-loading log is captured by the first launch that uses the
+ * archive, which slows it down a little, so it can only make the
+ * comparison stricter.
+ */
+public class StartupBenchmarkTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int RUNS = 3;
+
+    /**
+     * The maximum number of application classes the query path may load
+     * before it fails on a missing library (guards against commands
+     * eagerly loading classes they don't need).
+     */
+    private static final int MAX_APP_CLASSES = 150;
+
+    private static Path location(Class<?> cls) throws Exception
+    {
+        return Path.of(cls.getProtectionDomain().getCodeSource().getLocation().toURI());
+    }
+
+    private static void jar(Path classes, Path jarPath) throws IOException
+    {
+        try(JarOutputStream out = new JarOutputStream(Files.newOutputStream(jarPath));
+            Stream<Path> files = Files.walk(classes))
+        {
+            for(Path file: (Iterable<Path>)files::iterator)
+            {
+                if(Files.isDirectory(file)) continue;
+                String name = classes.relativize(file).toString().replace(File.separatorChar, '/');
+                out.putNextEntry(new JarEntry(name));
+                Files.copy(file, out);
+                out.closeEntry();
+            }
+        }
+    }
+
+    private String classPath() throws Exception
+    {
+        Path appJar = folder.getRoot().toPath().resolve("gol.jar");
+        jar(location(GolTool.class), appJar);
+        List<String> entries = new ArrayList<>();
+        entries.add(appJar.toString());
+        for(Class<?> cls: List.of(FeatureLibrary.class, IntList.class,
+            IntArrayList.class, Geometry.class))
+        {
+            String entry = location(cls).toString();
+            if(!entries.contains(entry)) entries.add(entry);
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    private long run(String classPath, Path log, String... options) throws Exception
+    {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.addAll(Arrays.asList(options));
+        if(log != null) cmd.add("-Xlog:class+load:file=" + log);
+        cmd.addAll(List.of("-Xlog:cds=off", "-Xlog:cds+dynamic=off", "-cp", classPath,
+            GolTool.class.getName(), "query", "missing.gol", "na[amenity]"));
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(cmd)
+            .directory(folder.getRoot())
+            .redirectErrorStream(true)
+            .start();
+        process.getInputStream().transferTo(OutputStream.nullOutputStream());
+        assertEquals(ErrorReporter.IO_ERROR, process.waitFor());
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private static boolean isAppClass(String line)
+    {
+        return line.contains(" com.geodesk.") || line.contains(" com.clarisma.") ||
+            line.contains(" org.locationtech.");
+    }
+
+    @Test public void testStartup() throws Exception
+    {
+        String classPath = classPath();
+        Path archive = folder.getRoot().toPath().resolve("gol.jsa");
+        Process trainer = new ProcessBuilder(
+            Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+            "-XX:ArchiveClassesAtExit=" + archive,
+            "-Xlog:cds=off", "-Xlog:cds+dynamic=off",
+            "-cp", classPath, CdsTrainer.class.getName())
+            .redirectErrorStream(true)
+            .start();
+        trainer.getInputStream().transferTo(OutputStream.nullOutputStream());
+        assertEquals(0, trainer.waitFor());
+        assertTrue(Files.exists(archive));
+
+        String useArchive = "-XX:SharedArchiveFile=" + archive;
+        Path log = folder.getRoot().toPath().resolve("classes.log");
+        long withoutCds = Long.MAX_VALUE;
+        long withCds = Long.MAX_VALUE;
+        for(int i=0; i<RUNS; i++)
+        {
+            withoutCds = Math.min(withoutCds, run(classPath, null));
+            withCds = Math.min(withCds, run(classPath, i == 0 ? log : null, useArchive));
+        }
+
+        long appClasses = 0;
+        long sharedAppClasses = 0;
+        for(String line: Files.readAllLines(log))
+        {
+            if(!isAppClass(line)) continue;
+            appClasses++;
+            if(line.contains("shared objects file")) sharedAppClasses++;
+        }
+
+        assertTrue("Query path loads " + appClasses + " application classes",
+            appClasses <= MAX_APP_CLASSES);
+        assertTrue("Only " + sharedAppClasses + " of " + appClasses +
+            " application classes were loaded from the archive",
+            sharedAppClasses >= appClasses * 9 / 10);
+        assertTrue("Startup takes " + withCds + " ms with CDS, " +
+            withoutCds + " ms without", withCds < withoutCds);
+    }
+}
@@ -0,0 +1,173 @@
+package com.geodesk.gol;
+
+import com.clarisma.common.pbf.PbfOutputStream;
+import com.clarisma.common.soar.Archive;
+import com.clarisma.common.soar.SBytes;
+import com.geodesk.core.Box;
+import com.geodesk.core.Tile;
+import com.geodesk.feature.store.TileIndexWalker;
+import com.geodesk.gol.build.Project;
+import com.geodesk.geom.Bounds;
+import com.geodesk.gol.build.SFeatureStoreHeader;
+import com.geodesk.gol.build.TileCatalog;
+import com.geodesk.gol.build.TileIndexBuilder;
+import com.geodesk.gol.compiler.FeatureTile;
+import com.geodesk.gol.tiles.UpdatableFeatureStore;
+import org.eclipse.collections.api.list.primitive.IntList;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.api.map.primitive.MutableIntIntMap;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
+import org.eclipse.collections.impl.map.mutable.primitive.ObjectIntHashMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static com.clarisma.common.store.BlobStoreConstants.PRECEDING_BLOB_FREE_FLAG;
+
+/**
+ * Creates small GOLs for tests: a tile index with a handful of tiles and
+ * a minimal string table. The tiles are either filled with synthetic
+ * contents (enough for code that treats tiles as opaque blobs, such as
+ * the Exporter and the TileLoader), or with real features.
+ */
+public class TestGol
+{
+    /**
+     * Creates an empty GOL (no tiles are stored yet).
+     */
+    public static void create(Path golPath) throws IOException
+    {
+        Path nodeCounts = golPath.resolveSibling("node-counts.txt");
+        Files.writeString(nodeCounts, "2148,1332,5000\n2149,1332,3000\n2148,1333,2000\n");
+        Project project = project();
+        TileIndexBuilder tib = new TileIndexBuilder();
+        tib.buildTileTree(nodeCounts, project.zoomLevels(), 100, 1);
+
+        Archive archive = new Archive(0);
+        SFeatureStoreHeader header = new SFeatureStoreHeader(project);
+        archive.setHeader(header);
+        header.tileIndex = tib.addToArchive(archive);
+
+        ObjectIntHashMap<String> strings = new ObjectIntHashMap<>();
+        strings.put("", 0);
+        strings.put("amenity", 1);
+        SBytes indexSchema = project.keyIndexSchema().encode(strings);
+        archive.place(indexSchema);
+        header.indexSchema = indexSchema;
+
+        PbfOutputStream out = new PbfOutputStream();
+        out.writeVarint(2);
+        out.writeString("amenity");
+        out.writeString("no");      // required for queries
+        SBytes stringTable = new SBytes(out.toByteArray(), 0);
+        archive.place(stringTable);
+        header.stringTable = stringTable;
+
+        header.setMetadataSize(archive.size());
+        archive.writeSparseFile(golPath);
+    }
+
+    /**
+     * Returns the settings the test GOLs are built with.
+     */
+    public static Project project()
+    {
+        Project project = new Project();
+        project.zoomLevels("0,2,4,6,8,10,12");
+        project.keyIndexSchema("amenity");
+        return project;
+    }
+
+    public static UpdatableFeatureStore open(Path golPath)
+    {
+        UpdatableFeatureStore store = new UpdatableFeatureStore();
+        store.setPath(golPath);
+        store.openForUpdate();
+        return store;
+    }
+
+    /**
+     * Returns the TIPs of all tiles in the tile index.
+     */
+    public static IntList tiles(UpdatableFeatureStore store)
+    {
+        MutableIntList tiles = new IntArrayList();
+        TileIndexWalker walker = new TileIndexWalker(store);
+        walker.start(Box.ofWorld());
+        while(walker.next()) tiles.add(walker.tip());
+        return tiles;
+    }
+
+    /**
+     * Stores a tile with random (but compressible) contents for each
+     * of the given TIPs.
+     */
+    public static void fillTiles(UpdatableFeatureStore store, IntList tips, long seed) throws IOException
+    {
+        Random random = new Random(seed);
+        MutableIntIntMap pages = new IntIntHashMap();
+        for(int i=0; i<tips.size(); i++)
+        {
+            byte[] data = new byte[1000 + random.nextInt(20_000)];
+            for(int n=0; n<data.length; n++)
+            {
+                data[n] = (byte)(n % 8 == 0 ? random.nextInt() : n % 64);
+            }
+            int page = store.allocateTile(data.length + 4);
+            ByteBuffer buf = store.bufferOfPage(page);
+            int ofs = store.offsetOfPage(page);
+            buf.putInt(ofs + 4, 0);
+            buf.put(ofs + 8, data);
+            pages.put(tips.get(i), page);
+        }
+        store.replaceTiles(pages);
+    }
+
+    /**
+     * Stores a tile with real features: a node with the given tags (as
+     * key/value pairs) for each tag array, with IDs 1, 2, 3 ... The
+     * nodes lie in the tile's southwestern corner.
+     *
+     * @param tile  the tile number
+     * @param tags  the tags of each node
+     */
+    public static void writeNodes(UpdatableFeatureStore store, int tile, String[]... tags) throws IOException
+    {
+        TileCatalog tileCatalog = new TileCatalog(store);
+        FeatureTile featureTile = new FeatureTile(tile, store.stringsToCodes(), tileCatalog, project());
+        Bounds bounds = Tile.bounds(tile);
+        for(int i=0; i<tags.length; i++)
+        {
+            featureTile.addNode(i + 1, tags[i],
+                bounds.minX() + (i + 1) * 100, bounds.minY() + (i + 1) * 100);
+        }
+        featureTile.build();
+        int page = store.allocateTile(featureTile.size() - 4);
+        ByteBuffer buf = store.bufferOfPage(page);
+        int ofs = store.offsetOfPage(page);
+        // preserve the prev_blob_free flag, which writeTo() clobbers
+        int prevBlobFreeFlag = buf.getInt(ofs) & PRECEDING_BLOB_FREE_FLAG;
+        featureTile.writeTo(buf, ofs);
+        buf.putInt(ofs, buf.getInt(ofs) | prevBlobFreeFlag);
+        store.replaceTiles(IntIntHashMap.newWithKeysValues(tileCatalog.tipOfTile(tile), page));
+    }
+
+    /**
+     * Returns the exported contents of a tile (everything after the
+     * blob header and the tile's reserved word).
+     */
+    public static byte[] contents(UpdatableFeatureStore store, int tip)
+    {
+        int page = store.tilePage(tip);
+        if(page == 0) return null;
+        ByteBuffer buf = store.bufferOfPage(page);
+        int ofs = store.offsetOfPage(page);
+        byte[] data = new byte[(buf.getInt(ofs) & 0x3fff_ffff) - 4];
+        buf.get(ofs + 8, data);
+        return data;
+    }
+}
@@ -0,0 +1,140 @@
+package com.geodesk.gol;
+
+import com.geodesk.core.Box;
+import com.geodesk.core.Tile;
+import com.geodesk.feature.store.TileIndexWalker;
+import com.geodesk.gol.build.TileCatalog;
+import com.geodesk.gol.tiles.UpdatableFeatureStore;
+import com.geodesk.gol.util.TileReaderTask;
+import org.eclipse.collections.api.list.primitive.IntList;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class TileCheckerTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private UpdatableFeatureStore store;
+    private int tile;
+
+    @Before public void setUp() throws IOException
+    {
+        Path golPath = folder.getRoot().toPath().resolve("test.gol");
+        TestGol.create(golPath);
+        store = TestGol.open(golPath);
+        // pile 1 is the Purgatory; pile 2 is the root tile
+        tile = new TileCatalog(store).tileOfPile(2);
+        TestGol.writeNodes(store, tile,
+            new String[] { "amenity", "restaurant", "name", "Da Mario" },
+            new String[] { "amenity", "cafe", "name", "Central Perk" },
+            new String[] { "name", "Pizza Hut" });
+    }
+
+    @After public void tearDown()
+    {
+        store.close();
+    }
+
+    private TileChecker check()
+    {
+        TileIndexWalker walker = new TileIndexWalker(store);
+        walker.start(Box.ofWorld());
+        TileChecker checker = new TileChecker(store, walker);
+        checker.setProgressOutput(null);
+        checker.check();
+        return checker;
+    }
+
+    private static String report(TileChecker checker)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        checker.reportErrors(new PrintStream(out, true, StandardCharsets.UTF_8));
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the positions of the nodes in the tile (relative to the
+     * start of its blob).
+     */
+    private IntList nodes()
+    {
+        int page = tilePage();
+        int pTile = store.offsetOfPage(page);
+        MutableIntList nodes = new IntArrayList();
+        new TileReaderTask(store.bufferOfPage(page), pTile)
+        {
+            @Override protected void node(int p)
+            {
+                nodes.add(p - pTile);
+            }
+        }.run();
+        nodes.sortThis();
+        return nodes;
+    }
+
+    private int tilePage()
+    {
+        return store.tilePage(new TileCatalog(store).tipOfTile(tile));
+    }
+
+    @Test public void testValidTile()
+    {
+        assertEquals(3, nodes().size());
+        TileChecker checker = check();
+        assertEquals(1, checker.tileCount());
+        assertFalse(checker.hasErrors());
+        assertEquals("", report(checker));
+    }
+
+    @Test public void testCorruptedFeatures()
+    {
+        IntList nodes = nodes();
+        ByteBuffer buf = store.bufferOfPage(tilePage());
+        int pTile = store.offsetOfPage(tilePage());
+
+        // Point the tag table of the first node past the end of the tile
+        int ppTags = pTile + nodes.get(0) + 8;
+        buf.putInt(ppTags, 1 << 20);
+
+        // Turn the second node into a way (which also makes the checker
+        // look for a body and a bounding box, so only check the first
+        // error reported for it)
+        int pSecond = pTile + nodes.get(1);
+        buf.putInt(pSecond, buf.getInt(pSecond) | (1 << 3));
+
+        TileChecker checker = check();
+        assertEquals(1, checker.tileCount());
+        assertTrue(checker.hasErrors());
+        String[] lines = report(checker).split("\n");
+        String prefix = "Tile " + Tile.toString(tile) + ": ";
+        assertEquals(prefix + "Tag table of feature at " + nodes.get(0) +
+            " lies outside of the tile", lines[0]);
+        assertEquals(prefix + "Feature at " + nodes.get(1) +
+            " has type 1, expected 0 in index 0", lines[1]);
+    }
+
+    @Test public void testInvalidTileSize()
+    {
+        ByteBuffer buf = store.bufferOfPage(tilePage());
+        int pTile = store.offsetOfPage(tilePage());
+        buf.putInt(pTile, (buf.getInt(pTile) & ~0x3fff_ffff) | 8);
+
+        TileChecker checker = check();
+        assertEquals("Tile " + Tile.toString(tile) +
+            ": Invalid tile size (8 bytes)\n", report(checker));
+    }
+}
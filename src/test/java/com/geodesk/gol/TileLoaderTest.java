@@ -0,0 +1,230 @@
+package com.geodesk.gol;
+
+import com.clarisma.common.util.Bytes;
+import com.clarisma.common.util.ProgressListener;
+import com.clarisma.common.util.ProgressReporter;
+import com.geodesk.feature.store.Tip;
+import com.geodesk.gol.tiles.UpdatableFeatureStore;
+import org.eclipse.collections.api.list.primitive.IntList;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.clarisma.common.store.BlobStoreConstants.*;
+import static org.junit.Assert.*;
+
+public class TileLoaderTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path sourcePath;
+    private Path emptyPath;
+    private Path exportPath;
+    private IntList tiles;
+    private final List<byte[]> contents = new ArrayList<>();
+
+    private static final ProgressListener NO_PROGRESS = new ProgressListener()
+    {
+        @Override public void progress(int work) {}
+        @Override public void finished() {}
+    };
+
+    @Before public void setUp() throws IOException
+    {
+        sourcePath = folder.getRoot().toPath().resolve("source.gol");
+        emptyPath = folder.getRoot().toPath().resolve("empty.gol");
+        exportPath = folder.getRoot().toPath().resolve("tileset");
+        TestGol.create(sourcePath);
+        // A copy made before any tiles are stored shares the GUID
+        Files.copy(sourcePath, emptyPath);
+    }
+
+    private void export(TileCodec codec) throws IOException
+    {
+        UpdatableFeatureStore store = TestGol.open(sourcePath);
+        try
+        {
+            tiles = TestGol.tiles(store);
+            TestGol.fillTiles(store, tiles, 42);
+            for(int i=0; i<tiles.size(); i++) contents.add(TestGol.contents(store, tiles.get(i)));
+
+            Files.createDirectories(exportPath);
+            TileSetManifest manifest = TileSetManifest.read(exportPath.resolve("tileset.txt"));
+            manifest.guid(store.getGuid());
+            manifest.codec(codec);
+            manifest.write();
+            byte[] dictionary = null;
+            if(codec.usesDictionary())
+            {
+                dictionary = TileCodec.buildDictionary(store, tiles);
+                Files.write(exportPath.resolve(TileCodec.DICTIONARY_FILE), dictionary);
+            }
+            Exporter exporter = new Exporter(store, exportPath, codec, dictionary, tiles, NO_PROGRESS);
+            exporter.setProgressOutput(null);
+            exporter.export();
+        }
+        finally
+        {
+            store.close();
+        }
+    }
+
+    private void load(Path golPath) throws IOException
+    {
+        UpdatableFeatureStore store = TestGol.open(golPath);
+        try
+        {
+            TileLoader loader = new TileLoader(store, exportPath.toUri().toString(), tiles,
+                new ProgressReporter(tiles.size(), "tiles", null, null));
+            loader.setProgressOutput(null);
+            loader.load();
+        }
+        finally
+        {
+            store.close();
+        }
+    }
+
+    private void assertLoaded(Path golPath)
+    {
+        UpdatableFeatureStore store = TestGol.open(golPath);
+        try
+        {
+            for(int i=0; i<tiles.size(); i++)
+            {
+                assertArrayEquals(contents.get(i), TestGol.contents(store, tiles.get(i)));
+            }
+        }
+        finally
+        {
+            store.close();
+        }
+        assertFalse(Files.exists(TileLoader.progressPath(golPath)));
+    }
+
+    private void assertNotLoaded(Path golPath)
+    {
+        UpdatableFeatureStore store = TestGol.open(golPath);
+        try
+        {
+            for(int i=0; i<tiles.size(); i++) assertEquals(0, store.tilePage(tiles.get(i)));
+        }
+        finally
+        {
+            store.close();
+        }
+    }
+
+    private Path tileFile(int n)
+    {
+        return Tip.path(exportPath, tiles.get(n), ".tile");
+    }
+
+    private void assertLoadFails() throws IOException
+    {
+        try
+        {
+            load(emptyPath);
+            fail("Load should fail");
+        }
+        catch(IOException ex)
+        {
+            // expected
+        }
+    }
+
+    @Test public void testRoundTrip() throws IOException
+    {
+        export(TileCodec.DEFLATE);
+        assertTrue(tiles.size() > 1);
+        load(emptyPath);
+        assertLoaded(emptyPath);
+    }
+
+    @Test public void testRoundTripWithDictionary() throws IOException
+    {
+        export(TileCodec.DEFLATE_DICT);
+        load(emptyPath);
+        assertLoaded(emptyPath);
+    }
+
+    @Test public void testMissingDictionary() throws IOException
+    {
+        export(TileCodec.DEFLATE_DICT);
+        Files.delete(exportPath.resolve(TileCodec.DICTIONARY_FILE));
+        assertLoadFails();
+    }
+
+    @Test public void testDifferentTileSet() throws IOException
+    {
+        export(TileCodec.DEFLATE);
+        Path otherPath = folder.getRoot().toPath().resolve("other.gol");
+        TestGol.create(otherPath);      // same tiles, but a new GUID
+        try
+        {
+            load(otherPath);
+            fail("Tiles of a different tile set should be rejected");
+        }
+        catch(IOException ex)
+        {
+            // expected
+        }
+        assertNotLoaded(otherPath);
+    }
+
+    @Test public void testChecksumMismatch() throws IOException
+    {
+        export(TileCodec.DEFLATE);
+        Path path = tileFile(0);
+        byte[] file = Files.readAllBytes(path);
+        file[file.length - 1] ^= 1;
+        Files.write(path, file);
+        assertLoadFails();
+    }
+
+    @Test public void testInvalidHeader() throws IOException
+    {
+        export(TileCodec.DEFLATE);
+        Path path = tileFile(0);
+        byte[] file = Files.readAllBytes(path);
+        Bytes.putInt(file, 0, EXPORTED_MAGIC + 1);
+        Files.write(path, file);
+        assertLoadFails();
+        assertNotLoaded(emptyPath);
+    }
+
+    @Test public void testTooShort() throws IOException
+    {
+        export(TileCodec.DEFLATE);
+        Files.write(tileFile(0), new byte[EXPORTED_HEADER_LEN]);
+        assertLoadFails();
+    }
+
+    @Test public void testInvalidLength() throws IOException
+    {
+        export(TileCodec.DEFLATE);
+        Path path = tileFile(0);
+        byte[] file = Files.readAllBytes(path);
+        Bytes.putInt(file, EXPORTED_ORIGINAL_LEN_OFS, -1);
+        Files.write(path, file);
+        assertLoadFails();
+    }
+
+    @Test public void testTruncated() throws IOException
+    {
+        export(TileCodec.DEFLATE);
+        Path path = tileFile(0);
+        byte[] file = Files.readAllBytes(path);
+        int len = Bytes.getInt(file, EXPORTED_ORIGINAL_LEN_OFS);
+        Bytes.putInt(file, EXPORTED_ORIGINAL_LEN_OFS, len + 100);
+        Files.write(path, file);
+        assertLoadFails();
+    }
+}
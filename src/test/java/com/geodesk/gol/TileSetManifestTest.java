@@ -0,0 +1,100 @@
+package com.geodesk.gol;
+
+import com.geodesk.gol.tiles.UpdatableFeatureStore;
+import org.eclipse.collections.api.list.primitive.IntList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class TileSetManifestTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path manifestPath()
+    {
+        return folder.getRoot().toPath().resolve("tileset.txt");
+    }
+
+    @Test public void testMissingFile() throws IOException
+    {
+        TileSetManifest manifest = TileSetManifest.read(manifestPath());
+        assertNull(manifest.guid());
+        assertEquals(TileCodec.DEFLATE, manifest.codec());
+        assertTrue(manifest.isEmpty());
+        assertNull(manifest.hash(0x1234));
+    }
+
+    @Test public void testRoundTrip() throws IOException
+    {
+        UUID guid = UUID.randomUUID();
+        TileSetManifest manifest = TileSetManifest.read(manifestPath());
+        manifest.guid(guid);
+        manifest.codec(TileCodec.DEFLATE_DICT);
+        manifest.setHash(0x1, "00112233445566778899aabbccddeeff");
+        manifest.setHash(0xABCDE, "ffeeddccbbaa99887766554433221100");
+        manifest.write();
+
+        TileSetManifest other = TileSetManifest.read(manifestPath());
+        assertEquals(guid, other.guid());
+        assertEquals(TileCodec.DEFLATE_DICT, other.codec());
+        assertEquals("00112233445566778899aabbccddeeff", other.hash(0x1));
+        assertEquals("ffeeddccbbaa99887766554433221100", other.hash(0xABCDE));
+        assertNull(other.hash(0x2));
+        assertFalse(Files.exists(manifestPath().resolveSibling("tileset.txt.tmp")));
+
+        // Reading the same manifest through a URL gives the same result
+        other = TileSetManifest.read(manifestPath().toUri().toURL());
+        assertEquals(guid, other.guid());
+        assertEquals("ffeeddccbbaa99887766554433221100", other.hash(0xABCDE));
+    }
+
+    @Test public void testCodecChangeClearsHashes() throws IOException
+    {
+        TileSetManifest manifest = TileSetManifest.read(manifestPath());
+        manifest.setHash(0x1, "00112233445566778899aabbccddeeff");
+        manifest.codec(TileCodec.DEFLATE);
+        assertFalse(manifest.isEmpty());
+        manifest.codec(TileCodec.DEFLATE_DICT);
+        assertTrue(manifest.isEmpty());
+    }
+
+    @Test public void testHashTile() throws Exception
+    {
+        Path golPath = folder.getRoot().toPath().resolve("test.gol");
+        TestGol.create(golPath);
+        UpdatableFeatureStore store = TestGol.open(golPath);
+        try
+        {
+            IntList tiles = TestGol.tiles(store);
+            assertTrue(tiles.size() > 1);
+            TestGol.fillTiles(store, tiles, 1);
+            int tip = tiles.get(0);
+            String hash = TileSetManifest.hashTile(store, store.tilePage(tip));
+            assertEquals(32, hash.length());
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(TestGol.contents(store, tip));
+            assertEquals(HexFormat.of().formatHex(digest, 0, 16), hash);
+            assertNotEquals(hash, TileSetManifest.hashTile(store, store.tilePage(tiles.get(1))));
+
+            // Same contents in a different blob: same hash
+            TestGol.fillTiles(store, tiles, 1);
+            assertEquals(hash, TileSetManifest.hashTile(store, store.tilePage(tip)));
+
+            // Different contents: different hash
+            TestGol.fillTiles(store, tiles, 2);
+            assertNotEquals(hash, TileSetManifest.hashTile(store, store.tilePage(tip)));
+        }
+        finally
+        {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.geodesk.gol.info;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TileSampleTest
+{
+    @Test public void testParse()
+    {
+        assertEquals(0.05, TileSample.parse("5%").rate(), 1e-9);
+        assertEquals(0.25, TileSample.parse("0.25").rate(), 1e-9);
+        assertTrue(TileSample.parse("100%").isComplete());
+        assertThrows(IllegalArgumentException.class, () -> TileSample.parse("0%"));
+        assertThrows(IllegalArgumentException.class, () -> TileSample.parse("abc"));
+    }
+
+    @Test public void testMargins()
+    {
+        // A complete sample has no error
+        assertEquals(0, TileSample.ALL.meanMargin(4, 10, 30), 0);
+
+        TileSample sample = new TileSample(0.5);
+        // values 1,2,3,4: mean 2.5, variance 5/3
+        double expected = 1.96 * Math.sqrt(0.5 / 4) * Math.sqrt(5.0 / 3);
+        assertEquals(expected, sample.meanMargin(4, 10, 30), 1e-9);
+
+        // y = 2x exactly: the ratio has no error
+        assertEquals(0, sample.ratioMargin(3, 6, 12, 14, 56, 28), 1e-9);
+        assertTrue(sample.ratioMargin(3, 6, 13, 14, 69, 31) > 0);
+    }
+
+    @Test public void testIncludes()
+    {
+        TileSample sample = new TileSample(0.1, new Random(42));
+        int included = 0;
+        for(int i=0; i<100_000; i++) if(sample.includes()) included++;
+        assertEquals(10_000, included, 500);
+    }
+}
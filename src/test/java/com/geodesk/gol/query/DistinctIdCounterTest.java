@@ -0,0 +1,42 @@
+package com.geodesk.gol.query;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DistinctIdCounterTest
+{
+    @Test public void testExact()
+    {
+        DistinctIdCounter a = new DistinctIdCounter(true);
+        DistinctIdCounter b = new DistinctIdCounter(true);
+        for(int i=0; i<30; i++) a.add(i);
+        for(int i=20; i<50; i++) b.add(i);
+        a.merge(b);
+        assertTrue(a.isExact());
+        assertEquals(50, a.count());
+    }
+
+    @Test public void testEstimate()
+    {
+        DistinctIdCounter a = new DistinctIdCounter(true);
+        DistinctIdCounter b = new DistinctIdCounter(true);
+        for(int i=0; i<60_000; i++) a.add(i * 7919L);
+        for(int i=40_000; i<100_000; i++) b.add(i * 7919L);
+        assertEquals(60_000, a.count(), 60_000 * 0.2);
+        a.merge(b);
+        assertFalse(a.isExact());
+        assertEquals(100_000, a.count(), 100_000 * 0.2);
+    }
+
+    @Test public void testAlwaysExact()
+    {
+        DistinctIdCounter a = new DistinctIdCounter(false);
+        DistinctIdCounter b = new DistinctIdCounter(false);
+        for(int i=0; i<60_000; i++) a.add(i);
+        for(int i=40_000; i<100_000; i++) b.add(i);
+        a.merge(b);
+        assertTrue(a.isExact());
+        assertEquals(100_000, a.count());
+    }
+}
@@ -0,0 +1,82 @@
+package com.geodesk.gol.query;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class PackedHilbertTreeTest
+{
+    @Test public void testLevels()
+    {
+        assertArrayEquals(new int[] { 1 }, PackedHilbertTree.levelNodeCounts(1, 16));
+        assertArrayEquals(new int[] { 16, 1 }, PackedHilbertTree.levelNodeCounts(16, 16));
+        assertArrayEquals(new int[] { 17, 2, 1 }, PackedHilbertTree.levelNodeCounts(17, 16));
+        assertEquals(300 + 19 + 2 + 1, PackedHilbertTree.nodeCount(300, 16));
+    }
+
+    @Test public void testSearch() throws IOException
+    {
+        for(int count: new int[] { 1, 15, 16, 17, 1000, 4099 })
+        {
+            testSearch(count, 16);
+            testSearch(count, 4);
+        }
+    }
+
+    private void testSearch(int count, int nodeSize) throws IOException
+    {
+        Random random = new Random(count);
+        double[] bounds = new double[count * 4];
+        for(int i=0; i<count; i++)
+        {
+            double x = random.nextDouble() * 360 - 180;
+            double y = random.nextDouble() * 170 - 85;
+            bounds[i*4] = x;
+            bounds[i*4+1] = y;
+            bounds[i*4+2] = x + random.nextDouble();
+            bounds[i*4+3] = y + random.nextDouble();
+        }
+        int[] order = PackedHilbertTree.hilbertOrder(bounds, count);
+        double[] sorted = new double[count * 4];
+        long[] offsets = new long[count];
+        for(int i=0; i<count; i++)
+        {
+            System.arraycopy(bounds, order[i] * 4, sorted, i * 4, 4);
+            offsets[i] = order[i];  // use the original index as offset
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PackedHilbertTree.write(out, sorted, offsets, count, nodeSize);
+        assertEquals(PackedHilbertTree.indexSize(count, nodeSize), out.size());
+
+        ByteBuffer index = ByteBuffer.wrap(out.toByteArray());
+        for(int run=0; run<20; run++)
+        {
+            double minX = random.nextDouble() * 360 - 180;
+            double minY = random.nextDouble() * 170 - 85;
+            double maxX = minX + random.nextDouble() * 40;
+            double maxY = minY + random.nextDouble() * 40;
+
+            Set<Long> expected = new TreeSet<>();
+            for(int i=0; i<count; i++)
+            {
+                if(bounds[i*4] > maxX || bounds[i*4+1] > maxY ||
+                    bounds[i*4+2] < minX || bounds[i*4+3] < minY)
+                {
+                    continue;
+                }
+                expected.add((long)i);
+            }
+            Set<Long> found = new TreeSet<>();
+            PackedHilbertTree.search(index, count, nodeSize,
+                minX, minY, maxX, maxY, found::add);
+            assertEquals(expected, found);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.geodesk.gol.query;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.*;
+
+public class ResultCacheTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String key(String query)
+    {
+        return new ResultCache.Key().add(query).add(42).hash();
+    }
+
+    private static void put(ResultCache cache, String key, int size) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResultCache.Writer writer = cache.writer(key, out);
+        writer.write(new byte[size]);
+        writer.commit();
+        writer.close();
+        assertEquals(size, out.size());
+    }
+
+    @Test public void testEviction() throws IOException
+    {
+        ResultCache cache = new ResultCache(folder.getRoot().toPath(), 2500);
+        String a = key("na[amenity]");
+        String b = key("wa[highway]");
+        String c = key("n[place=city]");
+        assertNotEquals(a, b);
+        assertEquals(a, key("na[amenity]"));
+
+        put(cache, a, 1000);
+        put(cache, b, 1000);
+        Path pathA = cache.get(a);
+        Path pathB = cache.get(b);
+        assertNotNull(pathA);
+        assertNotNull(pathB);
+
+        // make b the least recently used result
+        Files.setLastModifiedTime(pathB, FileTime.fromMillis(0));
+        put(cache, c, 1000);
+        assertNull(cache.get(b));
+        assertNotNull(cache.get(a));
+        assertEquals(1000, Files.size(cache.get(c)));
+    }
+
+    @Test public void testAbort() throws IOException
+    {
+        ResultCache cache = new ResultCache(folder.getRoot().toPath(), 2500);
+        String a = key("na[amenity]");
+        ResultCache.Writer writer = cache.writer(a, new ByteArrayOutputStream());
+        writer.write(new byte[100]);
+        writer.close();
+        assertNull(cache.get(a));
+        try(var files = Files.list(folder.getRoot().toPath()))
+        {
+            assertEquals(0, files.count());
+        }
+    }
+}
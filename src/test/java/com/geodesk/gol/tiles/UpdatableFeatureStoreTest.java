@@ -0,0 +1,107 @@
+package com.geodesk.gol.tiles;
+
+import com.geodesk.gol.TestGol;
+import org.eclipse.collections.api.list.primitive.IntList;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.eclipse.collections.impl.map.mutable.primitive.IntIntHashMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import static com.clarisma.common.store.BlobStoreConstants.FREE_BLOB_FLAG;
+import static org.junit.Assert.*;
+
+public class UpdatableFeatureStoreTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static IntList tilePages(UpdatableFeatureStore store, IntList tiles)
+    {
+        MutableIntList pages = new IntArrayList(tiles.size());
+        tiles.forEach(tip -> pages.add(store.tilePage(tip)));
+        return pages;
+    }
+
+    @Test public void testRetiredBlobs() throws IOException
+    {
+        Path golPath = folder.getRoot().toPath().resolve("test.gol");
+        TestGol.create(golPath);
+        IntList tiles;
+        IntList oldPages;
+        long fileSize;
+        UpdatableFeatureStore store = TestGol.open(golPath);
+        try
+        {
+            tiles = TestGol.tiles(store);
+            TestGol.fillTiles(store, tiles, 1);
+            assertTrue(store.retiredBlobs().isEmpty());
+            oldPages = tilePages(store, tiles);
+
+            // The replaced tiles remain allocated, since readers in other
+            // processes may still be using them
+            TestGol.fillTiles(store, tiles, 2);
+            assertEquals(oldPages.toSortedList(), store.retiredBlobs().toSortedList());
+            for(int i=0; i<oldPages.size(); i++)
+            {
+                int page = oldPages.get(i);
+                ByteBuffer buf = store.bufferOfPage(page);
+                assertEquals(0, buf.getInt(store.offsetOfPage(page)) & FREE_BLOB_FLAG);
+            }
+            TestGol.fillTiles(store, tiles, 3);
+            assertEquals(tiles.size() * 2, store.retiredBlobs().size());
+            assertEquals(0, UpdatableFeatureStore.tileRevision(store, oldPages.get(0)));
+            assertEquals(2, UpdatableFeatureStore.tileRevision(store, store.tilePage(tiles.get(0))));
+            fileSize = store.currentFileSize();
+        }
+        finally
+        {
+            store.close();
+        }
+
+        // Opening the store while nobody else has it open frees the
+        // retired blobs, so their space can be reused
+        store = TestGol.open(golPath);
+        try
+        {
+            assertTrue(store.retiredBlobs().isEmpty());
+            TestGol.fillTiles(store, tiles, 1);
+            assertEquals(fileSize, store.currentFileSize());
+            assertEquals(tiles.size(), store.retiredBlobs().size());
+        }
+        finally
+        {
+            store.close();
+        }
+    }
+
+    @Test public void testRetiredStringTable() throws IOException
+    {
+        Path golPath = folder.getRoot().toPath().resolve("test.gol");
+        TestGol.create(golPath);
+        UpdatableFeatureStore store = TestGol.open(golPath);
+        try
+        {
+            String[] strings = { "", "amenity", "cuisine" };
+            int firstPage = store.writeStringTable(strings);
+            assertNotEquals(0, firstPage);
+            store.replaceTiles(new IntIntHashMap(), firstPage, 0);
+            // The string table created by the build is never freed
+            assertTrue(store.retiredBlobs().isEmpty());
+            assertEquals("cuisine", store.codesToStrings()[2]);
+
+            int secondPage = store.writeStringTable(new String[] { "", "amenity", "cuisine", "shop" });
+            store.replaceTiles(new IntIntHashMap(), secondPage, 0);
+            assertEquals(IntArrayList.newListWith(firstPage), store.retiredBlobs());
+            assertEquals("shop", store.codesToStrings()[3]);
+        }
+        finally
+        {
+            store.close();
+        }
+    }
+}
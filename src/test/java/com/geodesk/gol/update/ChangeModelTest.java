@@ -0,0 +1,66 @@
+package com.geodesk.gol.update;
+
+import com.geodesk.feature.FeatureId;
+import com.geodesk.feature.FeatureType;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChangeModelTest
+{
+    private static MutableIntList codes(ChangeModel model, String... strings)
+    {
+        MutableIntList list = new IntArrayList();
+        for(String s: strings) list.add(model.strings().code(s));
+        return list;
+    }
+
+    @Test public void testSupersede()
+    {
+        ChangeModel model = new ChangeModel(new StringInterner());
+        assertTrue(model.addNode(1, 3, 0, 42, codes(model, "amenity", "cafe")));
+        assertFalse(model.addNode(1, 2, 0, 7, codes(model)));
+        assertTrue(model.addNode(1, 3, 0, 43, codes(model)));
+        assertEquals(43, model.nodeXY(1));
+        assertArrayEquals(new String[0], model.tags(FeatureType.NODE, 1));
+        assertEquals(0, model.taggedNodeCount());
+        assertEquals(2, model.supersededCount());
+
+        assertTrue(model.addWay(5, 1, 0, codes(model, "highway", "primary"),
+            LongArrayList.newListWith(1, 2, 3)));
+        assertTrue(model.addWay(5, 2, ChangedFeature.DELETE, null, null));
+        assertTrue(model.isDeleted(FeatureType.WAY, 5));
+        assertNull(model.wayNodes(5));
+        assertEquals(1, model.wayCount());
+        assertEquals(0, model.version(FeatureType.WAY, 6));
+    }
+
+    @Test public void testMerge()
+    {
+        ChangeModel a = new ChangeModel(new StringInterner());
+        ChangeModel b = new ChangeModel(new StringInterner());
+        a.addWay(5, 2, 0, codes(a, "highway", "primary"), LongArrayList.newListWith(1, 2));
+        b.addWay(5, 1, 0, codes(b, "highway", "track"), LongArrayList.newListWith(3));
+        b.addNode(9, 1, 0, 99, codes(b, "name", "Zur Post"));
+        long member = FeatureId.of(FeatureType.WAY, 5);
+        b.addRelation(7, 4, 0, codes(b, "type", "route"),
+            LongArrayList.newListWith(member), codes(b, "forward"));
+        a.merge(b);
+
+        assertArrayEquals(new long[] { 1, 2 }, a.wayNodes(5));
+        assertArrayEquals(new String[] { "highway", "primary" }, a.tags(FeatureType.WAY, 5));
+        assertArrayEquals(new String[] { "name", "Zur Post" }, a.tags(FeatureType.NODE, 9));
+        assertArrayEquals(new String[] { "type", "route" }, a.tags(FeatureType.RELATION, 7));
+        assertArrayEquals(new String[] { "forward" }, a.roles(7));
+        assertArrayEquals(new long[] { member }, a.members(7));
+        assertEquals(1, a.taggedNodeCount());
+        assertEquals(1, a.supersededCount());
+
+        LongArrayList wayNodes = new LongArrayList();
+        a.forEachWayNode(wayNodes::add);
+        assertEquals(LongArrayList.newListWith(1, 2), wayNodes);
+    }
+}
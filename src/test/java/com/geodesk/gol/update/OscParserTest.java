@@ -0,0 +1,188 @@
+package com.geodesk.gol.update;
+
+import com.geodesk.feature.FeatureType;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OscParserTest
+{
+    private static final String OSC = """
+        <?xml version='1.0' encoding='UTF-8'?>
+        <osmChange version="0.6" generator="test">
+        <!-- a comment with <tags> -- and > signs -->
+        <modify>
+          <node id="123" version="2" timestamp="2023-01-01T00:00:00Z" lat="51.5074456" lon="-0.1277583">
+            <tag k="name" v="Caf&#233; &quot;Zur Post&quot; &amp; Bar"/>
+            <tag k='note' v='a > b'/>
+          </node>
+          <way id="77" version="3">
+            <nd ref="1"/>
+            <nd ref="-2" />
+            <tag k="highway" v="residential"/>
+          </way>
+        </modify>
+        <delete>
+          <relation id="9" version="5">
+            <member type="way" ref="77" role="outer"/>
+            <member type="node" ref="123" role=""/>
+          </relation>
+        </delete>
+        </osmChange>
+        """;
+
+    /**
+     * Delivers the input a few bytes at a time, so tags span buffer
+     * boundaries.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream
+    {
+        TrickleInputStream(byte[] bytes)
+        {
+            super(bytes);
+        }
+
+        @Override public synchronized int read(byte[] b, int off, int len)
+        {
+            return super.read(b, off, Math.min(len, 7));
+        }
+    }
+
+    private static List<String> parse(InputStream in) throws IOException
+    {
+        List<String> events = new ArrayList<>();
+        OscParser parser = new OscParser(in, new StringInterner());
+        parser.parse(new OscParser.Handler()
+        {
+            @Override public void startElement(int element) throws IOException
+            {
+                switch(element)
+                {
+                case OscParser.NODE:
+                    events.add("node " + parser.longAttribute(OscParser.ID) + " v" +
+                        parser.intAttribute(OscParser.VERSION) + " " +
+                        parser.doubleAttribute(OscParser.LAT) + "," +
+                        parser.doubleAttribute(OscParser.LON));
+                    break;
+                case OscParser.WAY:
+                    events.add("way " + parser.longAttribute(OscParser.ID));
+                    break;
+                case OscParser.RELATION:
+                    events.add("relation " + parser.longAttribute(OscParser.ID));
+                    break;
+                case OscParser.ND:
+                    events.add("nd " + parser.longAttribute(OscParser.REF));
+                    break;
+                case OscParser.MEMBER:
+                    FeatureType type = parser.typeAttribute(OscParser.TYPE);
+                    events.add("member " + type + " " + parser.longAttribute(OscParser.REF) +
+                        " " + parser.stringAttribute(OscParser.ROLE));
+                    break;
+                case OscParser.TAG:
+                    events.add(parser.stringAttribute(OscParser.K) + "=" +
+                        parser.stringAttribute(OscParser.V));
+                    break;
+                case OscParser.MODIFY:
+                    events.add("modify");
+                    break;
+                case OscParser.DELETE:
+                    events.add("delete");
+                    break;
+                }
+            }
+
+            @Override public void endElement(int element)
+            {
+                if(element != OscParser.OTHER) events.add("/" + element);
+            }
+        });
+        return events;
+    }
+
+    @Test public void testParse() throws IOException
+    {
+        byte[] bytes = OSC.getBytes(StandardCharsets.UTF_8);
+        List<String> expected = List.of(
+            "modify",
+            "node 123 v2 51.5074456,-0.1277583",
+            "name=Café \"Zur Post\" & Bar", "/6",
+            "note=a > b", "/6",
+            "/1",
+            "way 77",
+            "nd 1", "/4",
+            "nd -2", "/4",
+            "highway=residential", "/6",
+            "/2",
+            "/8",
+            "delete",
+            "relation 9",
+            "member WAY 77 outer", "/5",
+            "member NODE 123 ", "/5",
+            "/3",
+            "/9");
+        assertEquals(expected, parse(new ByteArrayInputStream(bytes)));
+        assertEquals(expected, parse(new TrickleInputStream(bytes)));
+        assertEquals(expected, parse(new ReadAheadInputStream(
+            new TrickleInputStream(bytes), "test")));
+    }
+
+    @Test public void testCoordinates() throws IOException
+    {
+        for(String s: new String[] { "0", "-0.5", "179.9999999", "-85.0511287", "12", "1.25e2" })
+        {
+            String osc = "<node id=\"1\" lat=\"" + s + "\"/>";
+            double[] value = new double[1];
+            OscParser parser = new OscParser(new ByteArrayInputStream(
+                osc.getBytes(StandardCharsets.UTF_8)), new StringInterner());
+            parser.parse(new OscParser.Handler()
+            {
+                @Override public void startElement(int element) throws IOException
+                {
+                    value[0] = parser.doubleAttribute(OscParser.LAT);
+                }
+
+                @Override public void endElement(int element)
+                {
+                }
+            });
+            assertEquals(Double.parseDouble(s), value[0], 0);
+        }
+    }
+
+    @Test public void testShortTagAtEnd() throws IOException
+    {
+        // A closing tag of fewer than 4 bytes right at the end of the
+        // input must not be mistaken for a truncated comment
+        String osc = "<delete><way id=\"5\"/></delete><a>";
+        byte[] bytes = osc.getBytes(StandardCharsets.UTF_8);
+        List<String> expected = List.of("delete", "way 5", "/2", "/9");
+        assertEquals(expected, parse(new ByteArrayInputStream(bytes)));
+        assertEquals(expected, parse(new TrickleInputStream(bytes)));
+        assertEquals(List.of(), parse(new ByteArrayInputStream(
+            "<a>".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test public void testTruncatedComment()
+    {
+        assertThrows(IOException.class, () -> parse(new ByteArrayInputStream(
+            "<!-".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test public void testInterner()
+    {
+        StringInterner strings = new StringInterner(4);
+        String highway = strings.add("highway");
+        byte[] bytes = "xhighwayx".getBytes(StandardCharsets.UTF_8);
+        assertSame(highway, strings.get(bytes, 1, 7));
+        for(int i=0; i<1000; i++) strings.add("s" + i);
+        assertSame(highway, strings.get(bytes, 1, 7));
+        assertEquals(1001, strings.size());
+    }
+}
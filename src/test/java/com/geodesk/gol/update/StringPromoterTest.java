@@ -0,0 +1,104 @@
+package com.geodesk.gol.update;
+
+import com.clarisma.common.cli.Verbosity;
+import com.geodesk.core.Box;
+import com.geodesk.core.Tile;
+import com.geodesk.feature.Feature;
+import com.geodesk.feature.Features;
+import com.geodesk.feature.query.WorldView;
+import com.geodesk.geom.Bounds;
+import com.geodesk.gol.TestGol;
+import com.geodesk.gol.build.BuildContext;
+import com.geodesk.gol.build.TileCatalog;
+import com.geodesk.gol.tiles.UpdatableFeatureStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StringPromoterTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<String> names(Features<?> features)
+    {
+        List<String> names = new ArrayList<>();
+        for(Feature f: features) names.add(f.stringValue("name"));
+        names.sort(null);
+        return names;
+    }
+
+    private static int tilesUsing(BuildContext context, List<String> strings) throws IOException
+    {
+        LocalStringFinder finder = new LocalStringFinder(context, strings);
+        finder.setProgressOutput(null);
+        return finder.find().size();
+    }
+
+    @Test public void testPromote() throws IOException
+    {
+        Path golPath = folder.getRoot().toPath().resolve("test.gol");
+        TestGol.create(golPath);
+        UpdatableFeatureStore store = TestGol.open(golPath);
+        // The nodes lie in the southwestern corner of the root tile (pile 1
+        // is the Purgatory); the other tiles aren't loaded, so queries must
+        // not touch them
+        int tile;
+        try
+        {
+            tile = new TileCatalog(store).tileOfPile(2);
+            TestGol.writeNodes(store, tile,
+                new String[] { "amenity", "restaurant", "cuisine", "pizza", "name", "Da Mario" },
+                new String[] { "amenity", "cafe", "name", "Central Perk" },
+                new String[] { "cuisine", "pizza", "name", "Pizza Hut" });
+            int stringCount = store.codesToStrings().length;
+            BuildContext context = new BuildContext(store, null, TestGol.project());
+            List<String> strings = List.of("cuisine", "pizza");
+            assertEquals(1, tilesUsing(context, strings));
+
+            assertTrue(new StringPromoter(context, Verbosity.SILENT).promote(strings));
+            String[] globalStrings = store.codesToStrings();
+            assertEquals(stringCount + 2, globalStrings.length);
+            assertEquals("cuisine", globalStrings[stringCount]);
+            assertEquals("pizza", globalStrings[stringCount + 1]);
+            assertEquals(stringCount, store.codeFromString("cuisine"));
+
+            // The tile no longer uses the strings as local strings
+            assertEquals(0, tilesUsing(context, strings));
+        }
+        finally
+        {
+            store.close();
+        }
+
+        // A reader (which must reopen the store to pick up the new string
+        // table) finds the re-encoded tags via their global codes
+        store = TestGol.open(golPath);
+        try
+        {
+            store.enableQueries();
+            Bounds tileBounds = Tile.bounds(tile);
+            Features<?> world = new WorldView<>(store).in(Box.ofXYWidthHeight(
+                tileBounds.minX(), tileBounds.minY(), 1000, 1000));
+            assertEquals(List.of("Da Mario", "Pizza Hut"), names(world.select("n[cuisine=pizza]")));
+            assertEquals(List.of("Central Perk"), names(world.select("n[amenity=cafe]")));
+            assertEquals(List.of("Central Perk", "Da Mario", "Pizza Hut"), names(world.select("n")));
+            for(Feature f: world.select("n[name='Da Mario']"))
+            {
+                assertEquals("restaurant", f.stringValue("amenity"));
+                assertEquals("pizza", f.stringValue("cuisine"));
+                assertEquals(3, f.tags().size());
+            }
+        }
+        finally
+        {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.geodesk.gol.update;
+
+import com.geodesk.feature.FeatureId;
+import com.geodesk.feature.FeatureType;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.eclipse.collections.impl.map.mutable.primitive.ObjectIntHashMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StringUsageTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static MutableIntList codes(ChangeModel model, String... strings)
+    {
+        MutableIntList list = new IntArrayList();
+        for(String s: strings) list.add(model.strings().code(s));
+        return list;
+    }
+
+    @Test public void testUsage() throws IOException
+    {
+        ChangeModel model = new ChangeModel(new StringInterner());
+        for(int i=1; i<=10; i++)
+        {
+            model.addNode(i, 1, 0, 0, codes(model, "amenity", "charging_station",
+                "capacity", "4", "name", "Ladepark"));
+        }
+        long member = FeatureId.of(FeatureType.NODE, 1);
+        model.addRelation(20, 1, 0, codes(model, "type", "site"),
+            LongArrayList.newListWith(member), codes(model, "charger"));
+        model.addNode(30, 2, ChangedFeature.DELETE, 0, null);
+
+        ObjectIntHashMap<String> globalStrings = new ObjectIntHashMap<>();
+        globalStrings.put("", 0);
+        globalStrings.put("amenity", 1);
+        globalStrings.put("type", 2);
+        globalStrings.put("name", 3);
+
+        StringUsage usage = new StringUsage();
+        usage.add(model, globalStrings);
+        assertEquals(0, usage.score("amenity"), 0);
+        assertEquals(0, usage.score("4"), 0);     // narrow number
+        assertEquals(10 * 100 * 0.9 * 0.5, usage.score("capacity"), 0.01);
+        assertEquals(10 * 100 * 0.9 * 0.1, usage.score("charging_station"), 0.01);
+        assertEquals(10 * 100 * 0.9 * 0.4, usage.score("Ladepark"), 0.01);
+        assertEquals(0.25, usage.score("charger"), 0.01);
+
+        assertEquals(List.of("capacity", "Ladepark"), usage.candidates(300, 4));
+        assertEquals(List.of("Ladepark"), usage.candidates(300, 8191));
+
+        Path path = folder.getRoot().toPath().resolve(StringUsage.FILE_NAME);
+        usage.removeAll(List.of("capacity"));
+        usage.write(path);
+        StringUsage usage2 = StringUsage.read(path);
+        assertEquals(usage.size(), usage2.size());
+        assertEquals(0, usage2.score("capacity"), 0);
+        assertEquals(usage.score("Ladepark"), usage2.score("Ladepark"), 0);
+        assertEquals(0, StringUsage.read(path.resolveSibling("missing")).size());
+    }
+}
@@ -0,0 +1,18 @@
+package com.geodesk.gol.update;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class UpdaterTest
+{
+    @Test public void testSequenceNumber()
+    {
+        assertEquals(5123456L, Updater.sequenceNumber(Path.of("minute/005/123/456.osc.gz")));
+        assertEquals(3807L, Updater.sequenceNumber(Path.of("osc/planet-3807.osc.gz")));
+        assertEquals(42L, Updater.sequenceNumber(Path.of("42.osc")));
+        assertEquals(Long.MAX_VALUE, Updater.sequenceNumber(Path.of("changes.osc")));
+    }
+}
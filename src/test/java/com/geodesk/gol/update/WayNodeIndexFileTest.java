@@ -0,0 +1,58 @@
+package com.geodesk.gol.update;
+
+import com.clarisma.common.pbf.PbfOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+public class WayNodeIndexFileTest
+{
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void write(WayNodeIndexFile.Writer writer, int tip, long wayId, long... nodeIds)
+        throws IOException
+    {
+        PbfOutputStream out = WayNodeIndex.write(new long[] { wayId }, new long[][] { nodeIds });
+        writer.write(tip, out.buffer(), out.size());
+    }
+
+    @Test public void testWriteAndRead() throws IOException
+    {
+        Path path = folder.getRoot().toPath().resolve(WayNodeIndexFile.FILE_NAME);
+        try(WayNodeIndexFile.Writer writer = WayNodeIndexFile.create(path, 10))
+        {
+            write(writer, 7, 100, 1, 2, 3);
+            write(writer, 2, 200, 4, 5);
+        }
+        WayNodeIndexFile file = WayNodeIndexFile.open(path);
+        assertNull(file.get(1));
+        assertNull(file.get(99));
+        WayNodeIndex index = file.get(7);
+        assertEquals(100, index.wayId(0));
+        assertArrayEquals(new long[] { 1, 2, 3 }, index.nodeIds(0));
+        index = file.get(2);
+        assertEquals(200, index.wayId(0));
+        assertEquals(5, index.entryNodeId(index.findEntry(5)));
+        file.close();
+    }
+
+    @Test(expected = IOException.class) public void testIncomplete() throws IOException
+    {
+        Path path = folder.getRoot().toPath().resolve(WayNodeIndexFile.FILE_NAME);
+        WayNodeIndexFile.Writer writer = WayNodeIndexFile.create(path, 10);
+        write(writer, 7, 100, 1, 2, 3);
+        // not closed: the file lacks its header
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            assertTrue(channel.size() > 0);
+        }
+        WayNodeIndexFile.open(path);
+    }
+}
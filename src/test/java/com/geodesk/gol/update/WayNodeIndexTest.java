@@ -0,0 +1,45 @@
+package com.geodesk.gol.update;
+
+import com.clarisma.common.pbf.PbfOutputStream;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class WayNodeIndexTest
+{
+    @Test public void testRoundTrip()
+    {
+        long[] wayIds = { 10, 20, 3_000_000_000L };
+        long[][] nodeIds = {
+            { 5, 6, 7, 5 },
+            { 7, 8 },
+            { 12_000_000_000L, 1 } };
+        PbfOutputStream out = WayNodeIndex.write(wayIds, nodeIds);
+        ByteBuffer buf = ByteBuffer.allocateDirect(out.size() + 3);
+        buf.position(3);
+        buf.put(out.buffer(), 0, out.size());
+
+        assertTrue(WayNodeIndex.isCurrentFormat(buf, 3, out.size()));
+        assertFalse(WayNodeIndex.isCurrentFormat(buf, 0, out.size()));
+        WayNodeIndex index = new WayNodeIndex(buf, 3);
+        assertEquals(3, index.wayCount());
+        assertEquals(7, index.entryCount());    // duplicate 5 of way 10 is dropped
+        for(int i=0; i<wayIds.length; i++)
+        {
+            assertEquals(wayIds[i], index.wayId(i));
+            assertArrayEquals(nodeIds[i], index.nodeIds(i));
+        }
+
+        int e = index.findEntry(7);
+        assertEquals(7, index.entryNodeId(e));
+        assertEquals(0, index.entryWay(e));
+        assertEquals(7, index.entryNodeId(e + 1));
+        assertEquals(1, index.entryWay(e + 1));
+        e = index.findEntry(12_000_000_000L);
+        assertEquals(2, index.entryWay(e));
+        assertEquals(index.entryCount(), index.findEntry(12_000_000_001L));
+        assertEquals(1, index.entryNodeId(index.findEntry(0)));
+    }
+}
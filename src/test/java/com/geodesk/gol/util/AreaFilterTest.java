@@ -0,0 +1,47 @@
+package com.geodesk.gol.util;
+
+import com.geodesk.core.Box;
+import com.geodesk.core.Tile;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import static org.junit.Assert.*;
+
+public class AreaFilterTest
+{
+    private static final GeometryFactory factory = new GeometryFactory();
+
+    private static Geometry square(double minX, double minY, double maxX, double maxY)
+    {
+        return factory.createPolygon(new Coordinate[] {
+            new Coordinate(minX, minY), new Coordinate(maxX, minY),
+            new Coordinate(maxX, maxY), new Coordinate(minX, maxY),
+            new Coordinate(minX, minY) });
+    }
+
+    @Test public void testClassify()
+    {
+        int size = 1 << 24;
+        Geometry area = square(-3 * size, -3 * size, 3 * size, 3 * size);
+        AreaFilter filter = new AreaFilter(area);
+
+        assertEquals(AreaFilter.INSIDE, filter.classify(-size, -size, size, size));
+        assertEquals(AreaFilter.OUTSIDE, filter.classify(4 * size, 0, 5 * size, size));
+        assertEquals(AreaFilter.BOUNDARY, filter.classify(2 * size, 0, 4 * size, size));
+
+        for(int zoom=0; zoom<=12; zoom+=2)
+        {
+            int tile = Tile.fromXYZ(0, 0, zoom);
+            Box tileBounds = Tile.bounds(tile);
+            int expected = area.getEnvelopeInternal().contains(tileBounds.toEnvelope()) ?
+                AreaFilter.INSIDE : AreaFilter.BOUNDARY;
+            assertEquals(expected, filter.classifyTile(tile));
+        }
+        assertEquals(AreaFilter.OUTSIDE, filter.classifyTile(
+            Tile.fromXYZ(8 * size, 8 * size, 12)));
+        assertEquals(AreaFilter.INSIDE, filter.classifyTile(
+            Tile.fromXYZ(size, -size, 12)));
+    }
+}